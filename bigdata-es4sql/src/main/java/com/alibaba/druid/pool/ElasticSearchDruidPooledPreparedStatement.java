@@ -7,6 +7,7 @@ import com.zhbwang.bigdata.es.es4sql.SearchDao;
 import com.zhbwang.bigdata.es.es4sql.exception.SqlParseException;
 import com.zhbwang.bigdata.es.es4sql.jdbc.ObjectResult;
 import com.zhbwang.bigdata.es.es4sql.jdbc.ObjectResultsExtractor;
+import com.zhbwang.bigdata.es.es4sql.query.PreparedQuery;
 import com.zhbwang.bigdata.es.es4sql.query.QueryAction;
 
 import java.sql.ResultSet;
@@ -40,7 +41,8 @@ public class ElasticSearchDruidPooledPreparedStatement extends DruidPooledPrepar
         try {
 
 
-            ObjectResult extractor = getObjectResult(true, getSql(), false, false, true);
+            ElasticSearchPreparedStatement statement = (ElasticSearchPreparedStatement) getRawPreparedStatement();
+            ObjectResult extractor = getObjectResult(true, statement.getPreparedQuery(), statement.getParameters(), false, false, true);
             List<String> headers = extractor.getHeaders();
             List<List<Object>> lines = extractor.getLines();
 
@@ -61,12 +63,12 @@ public class ElasticSearchDruidPooledPreparedStatement extends DruidPooledPrepar
         }
     }
 
-    private ObjectResult getObjectResult(boolean flat, String query, boolean includeScore, boolean includeType, boolean includeId) throws SqlParseException, SQLFeatureNotSupportedException, Exception, CsvExtractorException {
+    private ObjectResult getObjectResult(boolean flat, PreparedQuery query, Object[] parameters, boolean includeScore, boolean includeType, boolean includeId) throws SqlParseException, SQLFeatureNotSupportedException, Exception, CsvExtractorException {
         SearchDao searchDao = new SearchDao(client);
 
         //String rewriteSQL = searchDao.explain(getSql()).explain().explain();
 
-        QueryAction queryAction = searchDao.explain(query);
+        QueryAction queryAction = searchDao.explain(query, parameters);
         Object execution = QueryActionElasticExecutor.executeAnyAction(searchDao.getClient(), queryAction);
         return new ObjectResultsExtractor(includeScore, includeType, includeId).extractResults(execution, flat);
     }
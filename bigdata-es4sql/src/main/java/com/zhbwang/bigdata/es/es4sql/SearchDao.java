@@ -1,5 +1,6 @@
 package com.zhbwang.bigdata.es.es4sql;
 
+import com.zhbwang.bigdata.es.es4sql.query.PreparedQuery;
 import com.zhbwang.bigdata.es.es4sql.query.QueryAction;
 import org.elasticsearch.client.Client;
 import com.zhbwang.bigdata.es.es4sql.exception.SqlParseException;
@@ -44,6 +45,20 @@ public class SearchDao {
 		return ESActionFactory.create(client, sql);
 	}
 
+	/**
+	 * Parse a query with druid once , to be executed many times with different parameters.
+	 * @param sql SQL query with '?' parameters.
+	 * @return the prepared query
+	 * @throws SqlParseException
+	 */
+	public PreparedQuery prepare(String sql) throws SqlParseException, SQLFeatureNotSupportedException {
+		return ESActionFactory.prepare(sql);
+	}
+
+	public QueryAction explain(PreparedQuery preparedQuery, Object[] parameters) throws SqlParseException, SQLFeatureNotSupportedException {
+		return ESActionFactory.create(client, preparedQuery, parameters);
+	}
+
 
 
 }
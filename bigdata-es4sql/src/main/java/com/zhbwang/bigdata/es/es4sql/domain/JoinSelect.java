@@ -3,6 +3,7 @@ package com.zhbwang.bigdata.es.es4sql.domain;
 import com.alibaba.druid.sql.ast.statement.SQLJoinTableSource;
 import com.zhbwang.bigdata.es.es4sql.domain.hints.Hint;
 
+import java.util.ArrayList;
 import java.util.List;
 
 /**
@@ -17,6 +18,7 @@ public class JoinSelect {
     private List<Hint> hints;
     private List<Condition> connectedConditions;
     private int totalLimit;
+    private List<Order> orderBys = new ArrayList<>();
 
     private final int DEAFULT_NUM_OF_RESULTS = 200;
 
@@ -69,6 +71,14 @@ public class JoinSelect {
         return totalLimit;
     }
 
+    public List<Order> getOrderBys() {
+        return orderBys;
+    }
+
+    public void addOrderBy(String name, String type) {
+        this.orderBys.add(new Order(name, type));
+    }
+
     public List<Condition> getConnectedConditions() {
         return connectedConditions;
     }
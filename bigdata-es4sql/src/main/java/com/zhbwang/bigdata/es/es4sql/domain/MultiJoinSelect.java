@@ -0,0 +1,44 @@
+package com.zhbwang.bigdata.es.es4sql.domain;
+
+import com.alibaba.druid.sql.ast.statement.SQLJoinTableSource;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Join of more than two tables , joined left-deep: stage i joins the rows of tables 0..i with table i+1.
+ * First and second tables are the ones of the first stage , the next tables follow in the FROM order.
+ */
+public class MultiJoinSelect extends JoinSelect {
+
+    private List<TableOnJoinSelect> nextTables;
+    private List<SQLJoinTableSource.JoinType> nextJoinTypes;
+    private List<List<Condition>> stagesConditions;
+
+    public MultiJoinSelect() {
+        super();
+        nextTables = new ArrayList<>();
+        nextJoinTypes = new ArrayList<>();
+        stagesConditions = new ArrayList<>();
+    }
+
+    public List<TableOnJoinSelect> getNextTables() {
+        return nextTables;
+    }
+
+    public List<TableOnJoinSelect> getAllTables() {
+        List<TableOnJoinSelect> allTables = new ArrayList<>();
+        allTables.add(getFirstTable());
+        allTables.add(getSecondTable());
+        allTables.addAll(nextTables);
+        return allTables;
+    }
+
+    public List<SQLJoinTableSource.JoinType> getNextJoinTypes() {
+        return nextJoinTypes;
+    }
+
+    public List<List<Condition>> getStagesConditions() {
+        return stagesConditions;
+    }
+}
@@ -20,6 +20,24 @@ public class HintFactory {
         if(hintAsString.startsWith("! USE_NESTED_LOOPS") || hintAsString.startsWith("! USE_NL")){
             return new Hint(HintType.USE_NESTED_LOOPS,null);
         }
+        if(hintAsString.startsWith("! USE_MERGE_JOIN")){
+            return new Hint(HintType.USE_MERGE_JOIN,null);
+        }
+        if(hintAsString.startsWith("! USE_SEMI_JOIN")){
+            return new Hint(HintType.USE_SEMI_JOIN,null);
+        }
+
+        if(hintAsString.startsWith("! SUBQUERY_CACHE")){
+            Integer[] params = parseParamsAsInts(hintAsString,"! SUBQUERY_CACHE");
+            if(params.length > 1){
+                throw new SqlParseException("SUBQUERY_CACHE should have up to 1 int param (ttlMillis)");
+            }
+            int ttlMillis = params.length == 1 ? params[0] : 5000;
+            if(ttlMillis <= 0){
+                throw new SqlParseException("SUBQUERY_CACHE ttl should be positive");
+            }
+            return new Hint(HintType.SUBQUERY_CACHE, new Object[]{ttlMillis});
+        }
 
         if(hintAsString.startsWith("! SHARD_SIZE")){
             String[] numbers =  getParamsFromHint(hintAsString, "! SHARD_SIZE");
@@ -38,6 +56,46 @@ public class HintFactory {
 
         if(hintAsString.equals("! HASH_WITH_TERMS_FILTER"))
             return new Hint(HintType.HASH_WITH_TERMS_FILTER,null);
+        if(hintAsString.startsWith("! HASH_JOIN_SPILL_TO_DISK")){
+            Integer[] params = parseParamsAsInts(hintAsString,"! HASH_JOIN_SPILL_TO_DISK");
+            if(params.length > 2){
+                throw new SqlParseException("HASH_JOIN_SPILL_TO_DISK should have up to 2 int params (maxRowsInMemory,numOfPartitions)");
+            }
+            Integer[] paramsWithDefaults = new Integer[]{100000, 16};
+            for(int i=0;i<params.length;i++){
+                paramsWithDefaults[i]=params[i];
+            }
+            if(paramsWithDefaults[0] <= 0 || paramsWithDefaults[1] <= 0){
+                throw new SqlParseException("HASH_JOIN_SPILL_TO_DISK params should be positive");
+            }
+            return new Hint(HintType.HASH_JOIN_SPILL_TO_DISK, paramsWithDefaults);
+        }
+        if(hintAsString.startsWith("! TERMS_FILTER_CHUNKS")){
+            Integer[] params = parseParamsAsInts(hintAsString,"! TERMS_FILTER_CHUNKS");
+            if(params.length > 2){
+                throw new SqlParseException("TERMS_FILTER_CHUNKS should have up to 2 int params (termsPerChunk,maxConcurrentChunks)");
+            }
+            Integer[] paramsWithDefaults = new Integer[]{10000, 4};
+            for(int i=0;i<params.length;i++){
+                paramsWithDefaults[i]=params[i];
+            }
+            if(paramsWithDefaults[0] <= 0 || paramsWithDefaults[1] <= 0){
+                throw new SqlParseException("TERMS_FILTER_CHUNKS params should be positive");
+            }
+            return new Hint(HintType.TERMS_FILTER_CHUNKS, paramsWithDefaults);
+        }
+        if(hintAsString.startsWith("! HASH_JOIN_BLOOM_FILTER")){
+            Integer[] params = parseParamsAsInts(hintAsString,"! HASH_JOIN_BLOOM_FILTER");
+            if(params.length > 1){
+                throw new SqlParseException("HASH_JOIN_BLOOM_FILTER should have up to 1 int param (maxTermsToPushDown)");
+            }
+            Integer[] paramsWithDefaults = new Integer[]{10000};
+            if(params.length == 1) paramsWithDefaults[0] = params[0];
+            if(paramsWithDefaults[0] < 0){
+                throw new SqlParseException("HASH_JOIN_BLOOM_FILTER param should be non negative");
+            }
+            return new Hint(HintType.HASH_JOIN_BLOOM_FILTER, paramsWithDefaults);
+        }
         if(hintAsString.startsWith("! JOIN_TABLES_LIMIT")){
             String[] numbers =  getParamsFromHint(hintAsString, "! JOIN_TABLES_LIMIT");
             //todo: check if numbers etc..
@@ -59,6 +117,57 @@ public class HintFactory {
             int multiSearchSize = Integer.parseInt(number[0]);
             return new Hint(HintType.NL_MULTISEARCH_SIZE,new Object[]{multiSearchSize});
         }
+        if(hintAsString.startsWith("! NL_CONCURRENT_SEARCHES")) {
+            Integer[] params = parseParamsAsInts(hintAsString,"! NL_CONCURRENT_SEARCHES");
+            if(params.length < 1 || params.length > 2){
+                throw new SqlParseException("NL_CONCURRENT_SEARCHES should have 1 or 2 int params (maxInFlight,targetBatchMillis)");
+            }
+            Integer[] paramsWithDefaults = new Integer[]{params[0], 500};
+            if(params.length == 2) paramsWithDefaults[1] = params[1];
+            if(paramsWithDefaults[0] <= 0 || paramsWithDefaults[1] <= 0){
+                throw new SqlParseException("NL_CONCURRENT_SEARCHES params should be positive");
+            }
+            return new Hint(HintType.NL_CONCURRENT_SEARCHES, paramsWithDefaults);
+        }
+        if(hintAsString.startsWith("! NL_LOOKUP_CACHE")) {
+            Integer[] params = parseParamsAsInts(hintAsString,"! NL_LOOKUP_CACHE");
+            if(params.length != 1 || params[0] < 0){
+                throw new SqlParseException("NL_LOOKUP_CACHE should have one non negative int param (maxCachedLookups)");
+            }
+            return new Hint(HintType.NL_LOOKUP_CACHE, params);
+        }
+        if(hintAsString.startsWith("! STREAM_JOIN_RESULTS")) {
+            return new Hint(HintType.STREAM_JOIN_RESULTS,null);
+        }
+        if(hintAsString.startsWith("! MERGE_RANGES")) {
+            return new Hint(HintType.MERGE_RANGES,null);
+        }
+        if(hintAsString.startsWith("! SCROLL_PREFETCH")) {
+            Integer[] params = parseParamsAsInts(hintAsString,"! SCROLL_PREFETCH");
+            if(params.length != 1 || params[0] < 0){
+                throw new SqlParseException("SCROLL_PREFETCH should have one non negative int param (pagesToPrefetch)");
+            }
+            return new Hint(HintType.SCROLL_PREFETCH, params);
+        }
+        if(hintAsString.startsWith("! PARALLEL_SHARD_SCROLL")) {
+            Integer[] params = parseParamsAsInts(hintAsString,"! PARALLEL_SHARD_SCROLL");
+            if(params.length > 1){
+                throw new SqlParseException("PARALLEL_SHARD_SCROLL should have up to 1 int param (maxConcurrentShards)");
+            }
+            Integer[] paramsWithDefaults = new Integer[]{4};
+            if(params.length == 1) paramsWithDefaults[0] = params[0];
+            if(paramsWithDefaults[0] <= 0){
+                throw new SqlParseException("PARALLEL_SHARD_SCROLL param should be positive");
+            }
+            return new Hint(HintType.PARALLEL_SHARD_SCROLL, paramsWithDefaults);
+        }
+        if(hintAsString.startsWith("! SCROLL_KEEP_ALIVE")) {
+            Integer[] params = parseParamsAsInts(hintAsString,"! SCROLL_KEEP_ALIVE");
+            if(params.length != 1 || params[0] <= 0){
+                throw new SqlParseException("SCROLL_KEEP_ALIVE should have one positive int param (keepAliveMillis)");
+            }
+            return new Hint(HintType.SCROLL_KEEP_ALIVE, params);
+        }
         if(hintAsString.startsWith("! USE_SCROLL")){
             String[] scrollParams = getParamsFromHint(hintAsString,"! USE_SCROLL");
             int docsPerShardFetch = 50;
@@ -123,6 +232,20 @@ public class HintFactory {
 
             return new Hint(HintType.MINUS_FETCH_AND_RESULT_LIMITS, paramsWithDefaults);
         }
+        if(hintAsString.startsWith("! MULTI_QUERY_EXTERNAL_SORT")){
+            Integer[] params = parseParamsAsInts(hintAsString,"! MULTI_QUERY_EXTERNAL_SORT");
+            if(params.length > 2){
+                throw new SqlParseException("MULTI_QUERY_EXTERNAL_SORT should have up to 2 int params (maxRowsInMemory,hitsPerScrollShard)");
+            }
+            Integer[] paramsWithDefaults = new Integer[]{100000, 1000};
+            for(int i=0;i<params.length;i++){
+                paramsWithDefaults[i]=params[i];
+            }
+            if(paramsWithDefaults[0] <= 0 || paramsWithDefaults[1] <= 0){
+                throw new SqlParseException("MULTI_QUERY_EXTERNAL_SORT params should be positive");
+            }
+            return new Hint(HintType.MULTI_QUERY_EXTERNAL_SORT, paramsWithDefaults);
+        }
         if(hintAsString.startsWith("! MINUS_USE_TERMS_OPTIMIZATION")){
             String[] param = getParamsFromHint(hintAsString,"! MINUS_USE_TERMS_OPTIMIZATION");
             boolean shouldLowerStringOnTerms = false;
@@ -16,5 +16,19 @@ public enum HintType
     SHARD_SIZE,
     HIGHLIGHT,
     MINUS_FETCH_AND_RESULT_LIMITS,
-    MINUS_USE_TERMS_OPTIMIZATION;
+    MINUS_USE_TERMS_OPTIMIZATION,
+    HASH_JOIN_SPILL_TO_DISK,
+    SCROLL_PREFETCH,
+    NL_CONCURRENT_SEARCHES,
+    STREAM_JOIN_RESULTS,
+    USE_MERGE_JOIN,
+    HASH_JOIN_BLOOM_FILTER,
+    TERMS_FILTER_CHUNKS,
+    PARALLEL_SHARD_SCROLL,
+    SCROLL_KEEP_ALIVE,
+    NL_LOOKUP_CACHE,
+    USE_SEMI_JOIN,
+    MULTI_QUERY_EXTERNAL_SORT,
+    SUBQUERY_CACHE,
+    MERGE_RANGES;
 }
@@ -22,6 +22,18 @@ import java.util.List;
  * @author ansj
  */
 public class FieldMaker {
+    //a constant is only a field in the select list , eg. select 1 from t where ... limit 1 that checks a row exists
+    public static Field makeSelectField(SQLExpr expr, String alias, String tableAlias) throws SqlParseException {
+        if (expr instanceof SQLNumericLiteralExpr || expr instanceof SQLCharExpr) {
+            String constantAlias = alias == null || alias.equals("") ? expr.toString() : alias;
+            List<KVValue> methodParameters = new ArrayList<>();
+            methodParameters.add(new KVValue(constantAlias));
+            methodParameters.add(new KVValue(Util.expr2Object(expr, "'").toString()));
+            return new MethodField("script", methodParameters, null, constantAlias);
+        }
+        return makeField(expr, alias, tableAlias);
+    }
+
     public static Field makeField(SQLExpr expr, String alias, String tableAlias) throws SqlParseException {
         if (expr instanceof SQLIdentifierExpr || expr instanceof SQLPropertyExpr || expr instanceof SQLVariantRefExpr) {
             return handleIdentifier(expr, alias, tableAlias);
@@ -0,0 +1,22 @@
+package com.zhbwang.bigdata.es.es4sql.parse;
+
+/**
+ * A '?' of a prepared statement that has no bound value , it is the value of its condition when the select is parsed on prepare.
+ */
+public class SqlParameter {
+    private final int index;
+
+    public SqlParameter(int index) {
+        this.index = index;
+    }
+
+    //zero based , in the order of the '?' in the sql
+    public int getIndex() {
+        return index;
+    }
+
+    @Override
+    public String toString() {
+        return "?";
+    }
+}
@@ -15,6 +15,7 @@ import com.zhbwang.bigdata.es.es4sql.exception.SqlParseException;
 import com.zhbwang.bigdata.es.es4sql.query.multi.MultiQuerySelect;
 
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -27,9 +28,35 @@ import java.util.Map;
  */
 public class SqlParser {
 
+    //bound values of the '?' of a prepared statement , null when the sql has no parameters
+    private final Object[] parameters;
+    private final BitSet boundParameters = new BitSet();
 
     public SqlParser() {
+        this(null);
+    }
+
+    public SqlParser(Object[] parameters) {
+        this.parameters = parameters;
+    }
 
+    /**
+     * Value of the '?' with this (zero based) index , a SqlParameter placeholder when the parser has no parameters.
+     */
+    public Object bindParameter(int index) throws SqlParseException {
+        if (parameters == null) {
+            return new SqlParameter(index);
+        }
+        if (index >= parameters.length) {
+            throw new SqlParseException("no value for parameter " + (index + 1));
+        }
+        boundParameters.set(index);
+        return parameters[index];
+    }
+
+    //number of different parameters that were bound by this parser
+    public int getBoundParameters() {
+        return boundParameters.cardinality();
     }
 
     public Select parseSelect(SQLQueryExpr mySqlExpr) throws SqlParseException {
@@ -77,15 +104,29 @@ public class SqlParser {
     }
 
     public MultiQuerySelect parseMultiSelect(SQLUnionQuery query) throws SqlParseException {
-        Select firstTableSelect = this.parseSelect((MySqlSelectQueryBlock) query.getLeft());
-        Select secondTableSelect = this.parseSelect((MySqlSelectQueryBlock) query.getRight());
-        return new MultiQuerySelect(query.getOperator(),firstTableSelect,secondTableSelect);
+        List<Select> selects = new ArrayList<>();
+        fillMultiSelects(query, query.getOperator(), selects);
+        return new MultiQuerySelect(query.getOperator(), selects);
+    }
+
+    //a chain of the same operation is parsed as a tree of two sided queries , its selects are flattened by their order
+    private void fillMultiSelects(SQLSelectQuery query, SQLUnionOperator operator, List<Select> selects) throws SqlParseException {
+        if (query instanceof SQLUnionQuery) {
+            SQLUnionQuery unionQuery = (SQLUnionQuery) query;
+            if (unionQuery.getOperator() != operator) {
+                throw new SqlParseException("multi query with different operations is not supported: " + operator.name + " and " + unionQuery.getOperator().name);
+            }
+            fillMultiSelects(unionQuery.getLeft(), operator, selects);
+            fillMultiSelects(unionQuery.getRight(), operator, selects);
+        } else {
+            selects.add(this.parseSelect((MySqlSelectQueryBlock) query));
+        }
     }
 
     private void findSelect(MySqlSelectQueryBlock query, Select select, String tableAlias) throws SqlParseException {
         List<SQLSelectItem> selectList = query.getSelectList();
         for (SQLSelectItem sqlSelectItem : selectList) {
-            Field field = FieldMaker.makeField(sqlSelectItem.getExpr(), sqlSelectItem.getAlias(), tableAlias);
+            Field field = FieldMaker.makeSelectField(sqlSelectItem.getExpr(), sqlSelectItem.getAlias(), tableAlias);
             select.addField(field);
         }
     }
@@ -196,6 +237,17 @@ public class SqlParser {
         }
     }
 
+    //keeps the aliases , join results are ordered on the fields of all the tables
+    private void addJoinOrderBy(JoinSelect joinSelect, SQLOrderBy orderBy) throws SqlParseException {
+        if (orderBy == null) {
+            return;
+        }
+        for (SQLSelectOrderByItem orderByItem : orderBy.getItems()) {
+            String orderByName = FieldMaker.makeField(orderByItem.getExpr(), null, null).toString().replace("`", "");
+            joinSelect.addOrderBy(orderByName, orderByItem.getType().toString());
+        }
+    }
+
     private void findLimit(MySqlSelectQueryBlock.Limit limit, Select select) {
 
         if (limit == null) {
@@ -240,6 +292,8 @@ public class SqlParser {
         MySqlSelectQueryBlock query = (MySqlSelectQueryBlock) sqlExpr.getSubQuery().getQuery();
 
         List<From> joinedFrom = findJoinedFrom(query.getFrom());
+        if (joinedFrom.size() > 2)
+            return parseMultiJoinSelect(query, joinedFrom);
         if (joinedFrom.size() != 2)
             throw new RuntimeException("currently supports only 2 tables join");
 
@@ -254,6 +308,7 @@ public class SqlParser {
         joinSelect.setConnectedConditions(connectedConditions);
         fillTableSelectedJoin(joinSelect.getFirstTable(), query, joinedFrom.get(0), aliasToWhere.get(firstTableAlias), aliasToOrderBy.get(firstTableAlias), connectedConditions);
         fillTableSelectedJoin(joinSelect.getSecondTable(), query, joinedFrom.get(1), aliasToWhere.get(secondTableAlias), aliasToOrderBy.get(secondTableAlias), connectedConditions);
+        addJoinOrderBy(joinSelect, query.getOrderBy());
 
         updateJoinLimit(query.getLimit(), joinSelect);
 
@@ -261,20 +316,98 @@ public class SqlParser {
         return joinSelect;
     }
 
-    private Map<String, List<SQLSelectOrderByItem>> splitAndFindOrder(SQLOrderBy orderBy, String firstTableAlias, String secondTableAlias) throws SqlParseException {
+    /**
+     * Left-deep joins only: each join stage has a single table on its right side.
+     * Stage i joins the rows of tables 0..i with table i+1 , on AND of EQ conditions.
+     */
+    private MultiJoinSelect parseMultiJoinSelect(MySqlSelectQueryBlock query, List<From> joinedFrom) throws SqlParseException {
+        MultiJoinSelect joinSelect = new MultiJoinSelect();
+        joinSelect.setHints(parseHints(query.getHints()));
+
+        List<SQLJoinTableSource> stages = new ArrayList<>();
+        SQLTableSource current = query.getFrom();
+        while (current instanceof SQLJoinTableSource) {
+            SQLJoinTableSource stage = (SQLJoinTableSource) current;
+            if (stage.getRight() instanceof SQLJoinTableSource)
+                throw new SqlParseException("multi table join supports only left deep joins , the right side of a join should be one table");
+            stages.add(0, stage);
+            current = stage.getLeft();
+        }
+        if (stages.size() != joinedFrom.size() - 1)
+            throw new SqlParseException("multi table join supports only one table on each side of a join");
+
+        String[] aliases = new String[joinedFrom.size()];
+        for (int i = 0; i < aliases.length; i++) {
+            aliases[i] = joinedFrom.get(i).getAlias();
+        }
+
+        List<Condition> allConditions = new ArrayList<>();
+        for (int i = 0; i < stages.size(); i++) {
+            SQLJoinTableSource stage = stages.get(i);
+            List<Condition> stageConditions = getStageConditions(stage);
+            if (stageConditions.isEmpty())
+                throw new SqlParseException("multi table join should have ON conditions on each join , missing on table " + aliases[i + 1]);
+            if (i == 0) joinSelect.setJoinType(stage.getJoinType());
+            else joinSelect.getNextJoinTypes().add(stage.getJoinType());
+            joinSelect.getStagesConditions().add(stageConditions);
+            allConditions.addAll(stageConditions);
+        }
+        joinSelect.setConnectedConditions(allConditions);
+
+        Map<String, Where> aliasToWhere = splitWheres(new WhereParser(this, query.getWhere()).findWhere(), aliases);
+        Map<String, List<SQLSelectOrderByItem>> aliasToOrderBy = splitAndFindOrder(query.getOrderBy(), aliases);
+        for (int i = 0; i < aliases.length; i++) {
+            TableOnJoinSelect table;
+            if (i == 0) table = joinSelect.getFirstTable();
+            else if (i == 1) table = joinSelect.getSecondTable();
+            else {
+                table = new TableOnJoinSelect();
+                joinSelect.getNextTables().add(table);
+            }
+            fillTableSelectedJoin(table, query, joinedFrom.get(i), aliasToWhere.get(aliases[i]), aliasToOrderBy.get(aliases[i]), allConditions);
+        }
+        addJoinOrderBy(joinSelect, query.getOrderBy());
+
+        updateJoinLimit(query.getLimit(), joinSelect);
+        return joinSelect;
+    }
+
+    private List<Condition> getStageConditions(SQLJoinTableSource stage) throws SqlParseException {
+        List<Condition> conditions = new ArrayList<>();
+        if (stage.getCondition() == null) return conditions;
+        Where where = Where.newInstance();
+        new WhereParser(this, stage.getCondition()).parseWhere(stage.getCondition(), where);
+        if (containsOr(where))
+            throw new SqlParseException("multi table join supports only AND between ON conditions , got:" + where.toString());
+        addIfConditionRecursive(where, conditions);
+        return conditions;
+    }
+
+    private boolean containsOr(Where where) {
+        for (Where innerWhere : where.getWheres()) {
+            if (innerWhere.getConn() == Where.CONN.OR || containsOr(innerWhere)) return true;
+        }
+        return false;
+    }
+
+    private Map<String, List<SQLSelectOrderByItem>> splitAndFindOrder(SQLOrderBy orderBy, String... aliases) throws SqlParseException {
         Map<String, List<SQLSelectOrderByItem>> aliasToOrderBys = new HashMap<>();
-        aliasToOrderBys.put(firstTableAlias, new ArrayList<SQLSelectOrderByItem>());
-        aliasToOrderBys.put(secondTableAlias, new ArrayList<SQLSelectOrderByItem>());
+        for (String alias : aliases) {
+            aliasToOrderBys.put(alias, new ArrayList<SQLSelectOrderByItem>());
+        }
         if (orderBy == null) return aliasToOrderBys;
         List<SQLSelectOrderByItem> orderByItems = orderBy.getItems();
         for (SQLSelectOrderByItem orderByItem : orderByItems) {
-            if (orderByItem.getExpr().toString().startsWith(firstTableAlias + ".")) {
-                aliasToOrderBys.get(firstTableAlias).add(orderByItem);
-            } else if (orderByItem.getExpr().toString().startsWith(secondTableAlias + ".")) {
-                aliasToOrderBys.get(secondTableAlias).add(orderByItem);
-            } else
+            String orderByAlias = null;
+            for (String alias : aliases) {
+                if (orderByItem.getExpr().toString().startsWith(alias + ".")) {
+                    orderByAlias = alias;
+                    break;
+                }
+            }
+            if (orderByAlias == null)
                 throw new SqlParseException("order by field on join request should have alias before, got " + orderByItem.getExpr().toString());
-
+            aliasToOrderBys.get(orderByAlias).add(orderByItem);
         }
         return aliasToOrderBys;
     }
@@ -109,7 +109,12 @@ public class WhereParser {
                             Util.expr2Object(bExpr.getRight(), "'"))
             );
 
-            explanCond("AND", sqlMethodInvokeExpr, where);
+            ScriptFilter scriptFilter = new ScriptFilter();
+            if (!scriptFilter.tryParseFromMethodExpr(sqlMethodInvokeExpr)) {
+                throw new SqlParseException("could not parse script filter");
+            }
+            //the comparison is kept as the value expr , the query maker folds it on its literals
+            where.addWhere(new Condition(Where.CONN.AND, null, null, "SCRIPT", scriptFilter, bExpr));
             return true;
         }
         return false;
@@ -201,15 +206,17 @@ public class WhereParser {
             boolean isNested = false;
             boolean isChildren = false;
 
+            //the druid expression is not changed , a prepared statement parses it again on each execution
+            SQLExpr left = soExpr.getLeft();
             NestedType nestedType = new NestedType();
-            if (nestedType.tryFillFromExpr(soExpr.getLeft())) {
-                soExpr.setLeft(new SQLIdentifierExpr(nestedType.field));
+            if (nestedType.tryFillFromExpr(left)) {
+                left = new SQLIdentifierExpr(nestedType.field);
                 isNested = true;
             }
 
             ChildrenType childrenType = new ChildrenType();
-            if (childrenType.tryFillFromExpr(soExpr.getLeft())) {
-                soExpr.setLeft(new SQLIdentifierExpr(childrenType.field));
+            if (childrenType.tryFillFromExpr(left)) {
+                left = new SQLIdentifierExpr(childrenType.field);
                 isChildren = true;
             }
 
@@ -223,9 +230,9 @@ public class WhereParser {
                     Condition condition = null;
 
                     if (isNested)
-                        condition = new Condition(Where.CONN.valueOf(opear), soExpr.getLeft().toString(), soExpr.getLeft(), Condition.OPEAR.methodNameToOpear.get(methodName), methodParametersValue, soExpr.getRight(), nestedType);
+                        condition = new Condition(Where.CONN.valueOf(opear), left.toString(), left, Condition.OPEAR.methodNameToOpear.get(methodName), methodParametersValue, soExpr.getRight(), nestedType);
                     else if (isChildren)
-                        condition = new Condition(Where.CONN.valueOf(opear), soExpr.getLeft().toString(), soExpr.getLeft(), Condition.OPEAR.methodNameToOpear.get(methodName), methodParametersValue, soExpr.getRight(), childrenType);
+                        condition = new Condition(Where.CONN.valueOf(opear), left.toString(), left, Condition.OPEAR.methodNameToOpear.get(methodName), methodParametersValue, soExpr.getRight(), childrenType);
                     else
                         condition = new Condition(Where.CONN.valueOf(opear), soExpr.getLeft().toString(), soExpr.getLeft(), Condition.OPEAR.methodNameToOpear.get(methodName), methodParametersValue, soExpr.getRight(), null);
 
@@ -238,9 +245,9 @@ public class WhereParser {
                 Condition condition = null;
 
                 if (isNested)
-                    condition = new Condition(Where.CONN.valueOf(opear), soExpr.getLeft().toString(), soExpr.getLeft(), soExpr.getOperator().name, parseValue(soExpr.getRight()), soExpr.getRight(), nestedType);
+                    condition = new Condition(Where.CONN.valueOf(opear), left.toString(), left, soExpr.getOperator().name, parseValue(soExpr.getRight()), soExpr.getRight(), nestedType);
                 else if (isChildren)
-                    condition = new Condition(Where.CONN.valueOf(opear), soExpr.getLeft().toString(), soExpr.getLeft(), soExpr.getOperator().name, parseValue(soExpr.getRight()), soExpr.getRight(), childrenType);
+                    condition = new Condition(Where.CONN.valueOf(opear), left.toString(), left, soExpr.getOperator().name, parseValue(soExpr.getRight()), soExpr.getRight(), childrenType);
                 else {
                     SQLMethodInvokeExpr sqlMethodInvokeExpr = parseSQLBinaryOpExprWhoIsConditionInWhere(soExpr);
                     if (sqlMethodInvokeExpr == null) {
@@ -538,6 +545,8 @@ public class WhereParser {
             return expr;
         } else if (expr instanceof SQLPropertyExpr) {
             return expr;
+        } else if (expr instanceof SQLVariantRefExpr && "?".equals(((SQLVariantRefExpr) expr).getName())) {
+            return sqlParser.bindParameter(((SQLVariantRefExpr) expr).getIndex());
         } else {
             throw new SqlParseException(
                     String.format("Failed to parse SqlExpression of type %s. expression value: %s", expr.getClass(), expr)
@@ -44,6 +44,15 @@ public class AggregationQueryAction extends QueryAction {
         setIndicesAndTypes();
 
         setWhere(select.getWhere());
+
+        MethodField countField = getCountOnlyField();
+        if (countField != null) {
+            request.setSize(0);
+            request.setSearchType(SearchType.DEFAULT);
+            updateRequestWithIndexAndRoutingOptions(select, request);
+            return new SqlElasticCountRequestBuilder(request, countField.getAlias());
+        }
+
         AggregationBuilder<?> lastAgg = null;
 
         for (List<Field> groupBy : select.getGroupBys()) {
@@ -174,6 +183,24 @@ public class AggregationQueryAction extends QueryAction {
         return sqlElasticRequestBuilder;
     }
     
+    //a COUNT(*) without group by is hits.total , it needs no aggregation
+    private MethodField getCountOnlyField() {
+        if (select.getFields().size() != 1 || !(select.getFields().get(0) instanceof MethodField)) {
+            return null;
+        }
+        for (List<Field> groupBy : select.getGroupBys()) {
+            if (!groupBy.isEmpty()) return null;
+        }
+        for (Hint hint : select.getHints()) {
+            if (hint.getType() == HintType.DOCS_WITH_AGGREGATION) return null;
+        }
+        MethodField field = (MethodField) select.getFields().get(0);
+        if (!field.getName().equalsIgnoreCase("COUNT") || "DISTINCT".equals(field.getOption()) || field.getParams().size() != 1) {
+            return null;
+        }
+        return "*".equals(String.valueOf(field.getParams().get(0).value)) ? field : null;
+    }
+
     private AggregationBuilder<?> getGroupAgg(Field field, Select select2) throws SqlParseException {
         boolean refrence = false;
         AggregationBuilder<?> lastAgg = null;
@@ -335,7 +362,7 @@ public class AggregationQueryAction extends QueryAction {
      */
     private void setWhere(Where where) throws SqlParseException {
         if (where != null) {
-            QueryBuilder whereQuery = QueryMaker.explan(where,this.select.isQuery);
+            QueryBuilder whereQuery = QueryMaker.explan(where, this.select.isQuery, isMergeRanges(this.select));
             request.setQuery(whereQuery);
         }
     }
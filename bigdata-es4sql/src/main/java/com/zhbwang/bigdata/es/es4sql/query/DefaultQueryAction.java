@@ -16,12 +16,15 @@ import com.zhbwang.bigdata.es.es4sql.query.maker.QueryMaker;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.regex.Pattern;
 
 /**
  * Transform SQL query to standard Elasticsearch search query
  */
 public class DefaultQueryAction extends QueryAction {
 
+	private static final Pattern CONSTANT = Pattern.compile("-?\\d+(\\.\\d+)?|'[^']*'");
+
 	private final Select select;
 	private SearchRequestBuilder request;
 
@@ -46,7 +49,12 @@ public class DefaultQueryAction extends QueryAction {
 		setLimit(select.getOffset(), select.getRowCount());
 
 		boolean usedScroll = useScrollIfNeeded(select.isOrderdSelect());
-		if (!usedScroll) {
+		if (!usedScroll && isExistenceCheck()) {
+			// the hits are not scored or sorted , a shard can stop after the rows asked for
+			request.setSearchType(SearchType.QUERY_THEN_FETCH);
+			request.setTerminateAfter(select.getOffset() + select.getRowCount());
+			request.setFetchSource(new String[0], new String[]{"*"});
+		} else if (!usedScroll) {
 			request.setSearchType(SearchType.DFS_QUERY_THEN_FETCH);
 		}
 		updateRequestWithIndexAndRoutingOptions(select, request);
@@ -75,6 +83,25 @@ public class DefaultQueryAction extends QueryAction {
 		return scrollHint != null;
 	}
 
+	/**
+	 * Only constants are selected (select 1 from t where ... limit 1) , the hits only tell that rows exist.
+	 */
+	private boolean isExistenceCheck() {
+		if (select.getFields().isEmpty() || !select.getOrderBys().isEmpty() || select.getRowCount() < 0) {
+			return false;
+		}
+		for (Field field : select.getFields()) {
+			if (!(field instanceof MethodField) || !field.getName().equalsIgnoreCase("script")) {
+				return false;
+			}
+			List<KVValue> params = ((MethodField) field).getParams();
+			if (params.size() != 2 || !CONSTANT.matcher(params.get(1).value.toString()).matches()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
 	/**
 	 * Set indices and types to the search request.
 	 */
@@ -141,7 +168,7 @@ public class DefaultQueryAction extends QueryAction {
 	 */
 	private void setWhere(Where where) throws SqlParseException {
 		if (where != null) {
-			BoolQueryBuilder boolQuery = QueryMaker.explan(where, this.select.isQuery);
+			BoolQueryBuilder boolQuery = QueryMaker.explan(where, this.select.isQuery, isMergeRanges(this.select));
 			request.setQuery(boolQuery);
 		}
 	}
@@ -2,36 +2,52 @@ package com.zhbwang.bigdata.es.es4sql.query;
 
 
 import com.alibaba.druid.sql.ast.SQLExpr;
+import com.alibaba.druid.sql.ast.SQLObject;
 import com.alibaba.druid.sql.ast.expr.SQLQueryExpr;
+import com.alibaba.druid.sql.ast.expr.SQLVariantRefExpr;
 import com.alibaba.druid.sql.ast.statement.SQLDeleteStatement;
 import com.alibaba.druid.sql.ast.statement.SQLJoinTableSource;
 import com.alibaba.druid.sql.ast.statement.SQLUnionQuery;
 import com.alibaba.druid.sql.dialect.mysql.ast.statement.MySqlSelectQueryBlock;
 import com.alibaba.druid.sql.dialect.mysql.parser.MySqlStatementParser;
+import com.alibaba.druid.sql.dialect.mysql.visitor.MySqlASTVisitorAdapter;
 import com.alibaba.druid.sql.parser.ParserException;
 import com.alibaba.druid.sql.parser.SQLExprParser;
 import com.alibaba.druid.sql.parser.SQLStatementParser;
 import com.alibaba.druid.sql.parser.Token;
+import com.zhbwang.bigdata.es.es4sql.domain.Condition;
 import com.zhbwang.bigdata.es.es4sql.domain.JoinSelect;
+import com.zhbwang.bigdata.es.es4sql.domain.MultiJoinSelect;
 import com.zhbwang.bigdata.es.es4sql.domain.Select;
 import com.zhbwang.bigdata.es.es4sql.parse.ElasticLexer;
 import com.zhbwang.bigdata.es.es4sql.parse.ElasticSqlExprParser;
 import com.zhbwang.bigdata.es.es4sql.parse.SqlParser;
+import com.zhbwang.bigdata.es.es4sql.parse.SqlParameter;
 import com.zhbwang.bigdata.es.es4sql.query.multi.MultiQueryAction;
 import com.zhbwang.bigdata.es.es4sql.query.multi.MultiQuerySelect;
+import com.zhbwang.bigdata.es.es4sql.domain.hints.Hint;
+import com.zhbwang.bigdata.es.es4sql.domain.hints.HintType;
+import org.elasticsearch.action.ListenableActionFuture;
+import org.elasticsearch.action.admin.indices.stats.IndicesStatsResponse;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.search.SearchRequestBuilder;
+import org.elasticsearch.action.search.SearchResponse;
 import org.elasticsearch.client.Client;
 import org.elasticsearch.plugin.zhbwang.ElasticResultHandler;
-import org.elasticsearch.plugin.zhbwang.QueryActionElasticExecutor;
 import org.elasticsearch.search.SearchHit;
 import org.elasticsearch.search.SearchHits;
 import com.zhbwang.bigdata.es.es4sql.domain.Delete;
 import com.zhbwang.bigdata.es.es4sql.exception.SqlParseException;
 import com.zhbwang.bigdata.es.es4sql.parse.SubQueryExpression;
 import com.zhbwang.bigdata.es.es4sql.query.join.ESJoinQueryActionFactory;
+import com.zhbwang.bigdata.es.es4sql.query.join.ESSemiJoinQueryAction;
 
 import java.sql.SQLFeatureNotSupportedException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 public class ESActionFactory {
 
@@ -47,27 +63,11 @@ public class ESActionFactory {
         String firstWord = sql.substring(0, sql.indexOf(' '));
         switch (firstWord.toUpperCase()) {
 			case "SELECT":
-				SQLQueryExpr sqlExpr = (SQLQueryExpr) toSqlExpr(sql);
-                if(isMulti(sqlExpr)){
-                    MultiQuerySelect multiSelect = new SqlParser().parseMultiSelect((SQLUnionQuery) sqlExpr.getSubQuery().getQuery());
-                    handleSubQueries(client,multiSelect.getFirstSelect());
-                    handleSubQueries(client,multiSelect.getSecondSelect());
-                    return new MultiQueryAction(client, multiSelect);
-                }
-                else if(isJoin(sqlExpr,sql)){
-                    JoinSelect joinSelect = new SqlParser().parseJoinSelect(sqlExpr);
-                    handleSubQueries(client, joinSelect.getFirstTable());
-                    handleSubQueries(client, joinSelect.getSecondTable());
-                    return ESJoinQueryActionFactory.createJoinAction(client, joinSelect);
-                }
-                else {
-                    Select select = new SqlParser().parseSelect(sqlExpr);
-                    handleSubQueries(client, select);
-                    return handleSelect(client, select);
-                }
+                return createSelectAction(client, SqlPlanCache.getInstance().parse(sql));
 			case "DELETE":
                 SQLStatementParser parser = createSqlStatementParser(sql);
 				SQLDeleteStatement deleteStatement = parser.parseDeleteStatement();
+				checkNoParameters(deleteStatement);
 				Delete delete = new SqlParser().parseDelete(deleteStatement);
 				return new DeleteQueryAction(client, delete);
             case "SHOW":
@@ -77,40 +77,223 @@ public class ESActionFactory {
 		}
 	}
 
+    /**
+     * Parse a select once with druid , its '?' parameters are bound on each execution by {@link #create(Client, PreparedQuery, Object[])}.
+     * Other statements are kept as sql and are parsed when they are executed.
+     */
+    public static PreparedQuery prepare(String sql) throws SqlParseException, SQLFeatureNotSupportedException {
+        sql = sql.replaceAll("\n", " ");
+        String firstWord = sql.substring(0, sql.indexOf(' '));
+        if (!firstWord.equalsIgnoreCase("SELECT")) {
+            if (sql.indexOf('?') != -1) {
+                throw new SQLFeatureNotSupportedException("parameters are only supported on select statements");
+            }
+            return new PreparedQuery(sql, null, 0);
+        }
+
+        SQLQueryExpr sqlExpr = (SQLQueryExpr) toSqlExpr(sql);
+        int parameterCount = countParameters(sqlExpr);
+        //parsed once with placeholders , so a statement that can't be executed fails when it is prepared
+        Object[] placeholders = new Object[parameterCount];
+        for (int i = 0; i < parameterCount; i++) {
+            placeholders[i] = new SqlParameter(i);
+        }
+        SqlParser sqlParser = new SqlParser(placeholders);
+        parseSelect(sqlExpr, sql, sqlParser);
+        if (sqlParser.getBoundParameters() != parameterCount) {
+            throw new SQLFeatureNotSupportedException("parameters are only supported as values of where conditions");
+        }
+        return new PreparedQuery(sql, sqlExpr, parameterCount);
+    }
+
+    public static QueryAction create(Client client, PreparedQuery preparedQuery, Object[] parameters) throws SqlParseException, SQLFeatureNotSupportedException {
+        if (preparedQuery.getSqlExpr() == null) {
+            return create(client, preparedQuery.getSql());
+        }
+        return createSelectAction(client, preparedQuery.parse(parameters));
+    }
+
+    //a select parsed by druid and SqlParser , without the plan cache
+    static Object parseSelect(String sql) throws SqlParseException {
+        SQLQueryExpr sqlExpr = (SQLQueryExpr) toSqlExpr(sql);
+        if (sql.indexOf('?') != -1) checkNoParameters(sqlExpr);
+        return parseSelect(sqlExpr, sql, new SqlParser());
+    }
+
+    //selects are parsed to a MultiQuerySelect , a JoinSelect or a Select
+    static Object parseSelect(SQLQueryExpr sqlExpr, String sql, SqlParser sqlParser) throws SqlParseException {
+        if (isMulti(sqlExpr)) {
+            return sqlParser.parseMultiSelect((SQLUnionQuery) sqlExpr.getSubQuery().getQuery());
+        }
+        if (isJoin(sqlExpr, sql)) {
+            return sqlParser.parseJoinSelect(sqlExpr);
+        }
+        return sqlParser.parseSelect(sqlExpr);
+    }
+
+    private static QueryAction createSelectAction(Client client, Object statement) throws SqlParseException {
+        if(statement instanceof MultiQuerySelect){
+            MultiQuerySelect multiSelect = (MultiQuerySelect) statement;
+            handleSubQueries(client, multiSelect.getSelects());
+            return new MultiQueryAction(client, multiSelect);
+        }
+        else if(statement instanceof JoinSelect){
+            JoinSelect joinSelect = (JoinSelect) statement;
+            List<Select> joinTables = new ArrayList<>();
+            joinTables.add(joinSelect.getFirstTable());
+            joinTables.add(joinSelect.getSecondTable());
+            if (joinSelect instanceof MultiJoinSelect) {
+                joinTables.addAll(((MultiJoinSelect) joinSelect).getNextTables());
+            }
+            handleSubQueries(client, joinTables);
+            return ESJoinQueryActionFactory.createJoinAction(client, joinSelect);
+        }
+        else {
+            Select select = (Select) statement;
+            Condition semiJoinCondition = ESSemiJoinQueryAction.takeSemiJoinCondition(select);
+            List<Select> selects = new ArrayList<>();
+            selects.add(select);
+            if (semiJoinCondition != null) {
+                selects.add(((SubQueryExpression) semiJoinCondition.getValue()).getSelect());
+            }
+            handleSubQueries(client, selects);
+            if (semiJoinCondition != null) {
+                return new ESSemiJoinQueryAction(client, select, semiJoinCondition);
+            }
+            return handleSelect(client, select);
+        }
+    }
+
+    //'?' parameters are bound only by prepared statements
+    private static void checkNoParameters(SQLObject statement) throws SqlParseException {
+        if (countParameters(statement) > 0) {
+            throw new SqlParseException("parameters (?) are only supported by prepared statements");
+        }
+    }
+
+    private static int countParameters(SQLObject statement) {
+        final int[] parameters = {0};
+        statement.accept(new MySqlASTVisitorAdapter() {
+            @Override
+            public boolean visit(SQLVariantRefExpr x) {
+                if ("?".equals(x.getName())) parameters[0]++;
+                return true;
+            }
+        });
+        return parameters[0];
+    }
+
     private static boolean isMulti(SQLQueryExpr sqlExpr) {
         return sqlExpr.getSubQuery().getQuery() instanceof SQLUnionQuery;
     }
 
-    private static void handleSubQueries(Client client, Select select) throws SqlParseException {
-        if (select.containsSubQueries())
-        {
-            for(SubQueryExpression subQueryExpression : select.getSubQueries()){
-                QueryAction queryAction = handleSelect(client, subQueryExpression.getSelect());
-                executeAndFillSubQuery(client , subQueryExpression,queryAction);
+    //sub queries of all the selects are sent together , the requests run concurrently
+    private static void handleSubQueries(Client client, List<? extends Select> selects) throws SqlParseException {
+        List<SubQueryExpression> subQueries = new ArrayList<>();
+        List<Long> cacheTtls = new ArrayList<>();
+        for (Select select : selects) {
+            if (!select.containsSubQueries()) continue;
+            long cacheTtl = getSubQueryCacheTtl(select);
+            for (SubQueryExpression subQuery : select.getSubQueries()) {
+                subQueries.add(subQuery);
+                cacheTtls.add(cacheTtl);
+            }
+        }
+        if (subQueries.isEmpty()) return;
+
+        int numOfSubQueries = subQueries.size();
+        SearchRequestBuilder[] requests = new SearchRequestBuilder[numOfSubQueries];
+        //one refresh stats request for each set of indices of the cached sub queries , all sent before waiting
+        Map<String, ListenableActionFuture<IndicesStatsResponse>> refreshStats = new HashMap<>();
+        for (int i = 0; i < numOfSubQueries; i++) {
+            QueryAction queryAction = handleSelect(client, subQueries.get(i).getSelect());
+            if (!(queryAction instanceof DefaultQueryAction)) {
+                throw new SqlParseException("on sub queries only support queries that return Hits and not aggregations");
+            }
+            queryAction.explain();
+            requests[i] = ((DefaultQueryAction) queryAction).getRequestBuilder();
+            if (cacheTtls.get(i) > 0) {
+                String[] indices = requests[i].request().indices();
+                String indicesKey = indicesKey(indices);
+                if (!refreshStats.containsKey(indicesKey)) {
+                    refreshStats.put(indicesKey, client.admin().indices().prepareStats(indices).clear().setRefresh(true).execute());
+                }
+            }
+        }
+
+        SubQueryResultsCache cache = SubQueryResultsCache.getInstance();
+        String[] cacheKeys = new String[numOfSubQueries];
+        long[] refreshGenerations = new long[numOfSubQueries];
+        List<ListenableActionFuture<SearchResponse>> responses = new ArrayList<>(numOfSubQueries);
+        for (int i = 0; i < numOfSubQueries; i++) {
+            SubQueryExpression subQueryExpression = subQueries.get(i);
+            if (cacheTtls.get(i) > 0) {
+                cacheKeys[i] = subQueryCacheKey(requests[i], subQueryExpression.getReturnField());
+                refreshGenerations[i] = getRefreshGeneration(refreshStats.get(indicesKey(requests[i].request().indices())));
+                Object[] cachedValues = cache.get(cacheKeys[i], refreshGenerations[i], System.currentTimeMillis());
+                if (cachedValues != null) {
+                    subQueryExpression.setValues(cachedValues);
+                    responses.add(null);
+                    continue;
+                }
+            }
+            responses.add(requests[i].execute());
+        }
+
+        for (int i = 0; i < numOfSubQueries; i++) {
+            if (responses.get(i) == null) continue;
+            SubQueryExpression subQueryExpression = subQueries.get(i);
+            SearchHits hits;
+            try {
+                hits = responses.get(i).actionGet().getHits();
+            } catch (Exception e) {
+                throw new SqlParseException("could not execute SubQuery: " +  e.getMessage());
+            }
+            fillSubQuery(subQueryExpression, hits);
+            if (cacheTtls.get(i) > 0) {
+                cache.put(cacheKeys[i], refreshGenerations[i], System.currentTimeMillis() + cacheTtls.get(i), subQueryExpression.getValues());
             }
         }
     }
 
-    private static void executeAndFillSubQuery(Client client , SubQueryExpression subQueryExpression,QueryAction queryAction) throws SqlParseException {
+    private static void fillSubQuery(SubQueryExpression subQueryExpression, SearchHits hits) {
         List<Object> values = new ArrayList<>();
-        Object queryResult;
-        try {
-            queryResult = QueryActionElasticExecutor.executeAnyAction(client, queryAction);
-        } catch (Exception e) {
-            throw new SqlParseException("could not execute SubQuery: " +  e.getMessage());
+        String returnField = subQueryExpression.getReturnField();
+        for (SearchHit hit : hits) {
+            values.add(ElasticResultHandler.getFieldValue(hit, returnField));
         }
+        subQueryExpression.setValues(values.toArray());
+    }
 
-        String returnField = subQueryExpression.getReturnField();
-        if(queryResult instanceof SearchHits) {
-            SearchHits hits = (SearchHits) queryResult;
-            for (SearchHit hit : hits) {
-                values.add(ElasticResultHandler.getFieldValue(hit, returnField));
+    private static long getSubQueryCacheTtl(Select select) {
+        for (Hint hint : select.getHints()) {
+            if (hint.getType() == HintType.SUBQUERY_CACHE) {
+                return (int) hint.getParams()[0];
             }
         }
-        else {
-            throw new SqlParseException("on sub queries only support queries that return Hits and not aggregations");
+        return 0;
+    }
+
+    //the search request (indices , types , routing and source) is the normalized form of the sub query
+    private static String subQueryCacheKey(SearchRequestBuilder request, String returnField) {
+        SearchRequest searchRequest = request.request();
+        return Arrays.toString(searchRequest.indices()) + Arrays.toString(searchRequest.types()) + searchRequest.routing()
+                + searchRequest.preference() + returnField + request.toString();
+    }
+
+    private static String indicesKey(String[] indices) {
+        String[] sortedIndices = indices.clone();
+        Arrays.sort(sortedIndices);
+        return Arrays.toString(sortedIndices);
+    }
+
+    //number of refreshes done on the indices , changes when new data becomes visible to searches
+    private static long getRefreshGeneration(ListenableActionFuture<IndicesStatsResponse> refreshStats) throws SqlParseException {
+        try {
+            return refreshStats.actionGet().getTotal().getRefresh().getTotal();
+        } catch (Exception e) {
+            throw new SqlParseException("could not get refresh stats of SubQuery indices: " + e.getMessage());
         }
-        subQueryExpression.setValues(values.toArray());
     }
 
     private static QueryAction handleSelect(Client client, Select select) {
@@ -0,0 +1,45 @@
+package com.zhbwang.bigdata.es.es4sql.query;
+
+import com.alibaba.druid.sql.ast.expr.SQLQueryExpr;
+import com.zhbwang.bigdata.es.es4sql.exception.SqlParseException;
+import com.zhbwang.bigdata.es.es4sql.parse.SqlParser;
+
+/**
+ * A statement prepared by ESActionFactory. Selects are parsed by druid once , on each execution SqlParser turns the
+ * druid parse into a new statement with the bound parameters and a new QueryAction is built from it.
+ * The statement is not reused because executors change it while they run (nested loops and semi join wheres , sub query values).
+ * Other statements keep only their sql.
+ */
+public class PreparedQuery {
+    private final String sql;
+    private final SQLQueryExpr sqlExpr;
+    private final int parameterCount;
+
+    public PreparedQuery(String sql, SQLQueryExpr sqlExpr, int parameterCount) {
+        this.sql = sql;
+        this.sqlExpr = sqlExpr;
+        this.parameterCount = parameterCount;
+    }
+
+    /**
+     * The select (Select , JoinSelect or MultiQuerySelect) with the parameters as the values of their conditions.
+     */
+    public Object parse(Object[] parameters) throws SqlParseException {
+        if (parameters.length != parameterCount) {
+            throw new SqlParseException(String.format("expected %d parameters , got %d", parameterCount, parameters.length));
+        }
+        return ESActionFactory.parseSelect(sqlExpr, sql, new SqlParser(parameters));
+    }
+
+    public String getSql() {
+        return sql;
+    }
+
+    public SQLQueryExpr getSqlExpr() {
+        return sqlExpr;
+    }
+
+    public int getParameterCount() {
+        return parameterCount;
+    }
+}
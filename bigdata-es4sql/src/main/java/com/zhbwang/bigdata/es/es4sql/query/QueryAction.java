@@ -44,6 +44,14 @@ public abstract class QueryAction {
         }
     }
 
+    //ranges on the same field are merged only with MERGE_RANGES hint , on multi valued fields a merged range matches less docs
+    protected boolean isMergeRanges(Select select) {
+        for (Hint hint : select.getHints()) {
+            if (hint.getType() == HintType.MERGE_RANGES) return true;
+        }
+        return false;
+    }
+
     protected void updateRequestWithHighlight(Select select, SearchRequestBuilder request) {
 
         for(Hint hint : select.getHints()){
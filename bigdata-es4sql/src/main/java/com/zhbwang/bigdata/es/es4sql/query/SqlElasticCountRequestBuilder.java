@@ -0,0 +1,62 @@
+package com.zhbwang.bigdata.es.es4sql.query;
+
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.ActionResponse;
+import org.elasticsearch.action.search.SearchRequestBuilder;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.search.aggregations.InternalAggregation;
+import org.elasticsearch.search.aggregations.InternalAggregations;
+import org.elasticsearch.search.aggregations.metrics.valuecount.InternalValueCount;
+import org.elasticsearch.search.aggregations.pipeline.PipelineAggregator;
+import org.elasticsearch.search.aggregations.support.format.ValueFormatter;
+import org.elasticsearch.search.internal.InternalSearchHits;
+import org.elasticsearch.search.internal.InternalSearchResponse;
+
+import java.util.Collections;
+
+/**
+ * A COUNT(*) without group by : the search only counts the hits (size 0 , no aggregation).
+ * Its response gets the value_count aggregation that the count would have had , made from hits.total ,
+ * so the rest , jdbc and csv results are the same as for an aggregated count.
+ */
+public class SqlElasticCountRequestBuilder extends SqlElasticSearchRequestBuilder {
+    private final String countAlias;
+
+    public SqlElasticCountRequestBuilder(SearchRequestBuilder requestBuilder, String countAlias) {
+        super(requestBuilder);
+        this.countAlias = countAlias;
+    }
+
+    @Override
+    public ActionResponse get() {
+        return withCount((SearchResponse) super.get());
+    }
+
+    public SearchResponse withCount(SearchResponse response) {
+        InternalValueCount count = new InternalValueCount(countAlias, response.getHits().getTotalHits(), ValueFormatter.RAW,
+                Collections.<PipelineAggregator>emptyList(), null);
+        InternalSearchResponse internalResponse = new InternalSearchResponse((InternalSearchHits) response.getHits(),
+                new InternalAggregations(Collections.<InternalAggregation>singletonList(count)), response.getSuggest(), null,
+                response.isTimedOut(), response.isTerminatedEarly());
+        return new SearchResponse(internalResponse, response.getScrollId(), response.getTotalShards(),
+                response.getSuccessfulShards(), response.getTookInMillis(), response.getShardFailures());
+    }
+
+    public ActionListener<SearchResponse> withCount(final ActionListener<SearchResponse> listener) {
+        return new ActionListener<SearchResponse>() {
+            @Override
+            public void onResponse(SearchResponse response) {
+                listener.onResponse(withCount(response));
+            }
+
+            @Override
+            public void onFailure(Throwable e) {
+                listener.onFailure(e);
+            }
+        };
+    }
+
+    public String getCountAlias() {
+        return countAlias;
+    }
+}
@@ -0,0 +1,316 @@
+package com.zhbwang.bigdata.es.es4sql.query;
+
+import com.alibaba.druid.sql.parser.ParserException;
+import com.alibaba.druid.sql.parser.Token;
+import com.zhbwang.bigdata.es.es4sql.exception.SqlParseException;
+import com.zhbwang.bigdata.es.es4sql.parse.ElasticLexer;
+
+import java.sql.SQLFeatureNotSupportedException;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Set;
+
+/**
+ * Selects parsed by druid , shared by all the requests of the node. Keyed by the sql with the literal values of where
+ * conditions (field op literal , IN lists and BETWEEN) turned into '?' slots , so selects that differ only in these
+ * values share one druid parse. On a hit the literals are bound by SqlParser , like the parameters of a prepared statement.
+ * A shape whose slots are not all where condition values is kept as uncacheable and is always parsed.
+ * Sql that is repeated verbatim is not lexed again , its shape and literals are kept too.
+ * Both are bounded by maxEntries , least recently used entries are evicted first.
+ */
+public class SqlPlanCache {
+    private static final SqlPlanCache INSTANCE = new SqlPlanCache(1000);
+
+    private static final Set<Token> COMPARISONS = EnumSet.of(Token.EQ, Token.BANGEQ, Token.LTGT, Token.LT, Token.LTEQ, Token.GT, Token.GTEQ, Token.LIKE);
+    private static final Set<Token> LITERALS = EnumSet.of(Token.LITERAL_INT, Token.LITERAL_FLOAT, Token.LITERAL_CHARS);
+    //tokens that end a condition , a literal followed by anything else (arithmetic , string concat , escape) is kept in the key
+    private static final Set<Token> CONDITION_ENDS = EnumSet.of(Token.AND, Token.OR, Token.RPAREN, Token.EOF, Token.ORDER, Token.GROUP,
+            Token.LIMIT, Token.HAVING, Token.UNION, Token.MINUS);
+
+    private final int maxEntries;
+    private LinkedHashMap<String, CachedPlan> plans;
+    private LinkedHashMap<String, BoundPlan> statements;
+    private long hits;
+    private long misses;
+    private long uncacheable;
+    private long parseNanosSaved;
+
+    public SqlPlanCache(int maxEntries) {
+        this.maxEntries = maxEntries;
+        this.plans = new LinkedHashMap<>(16, 0.75f, true);
+        this.statements = new LinkedHashMap<>(16, 0.75f, true);
+    }
+
+    public static SqlPlanCache getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * The select (Select , JoinSelect or MultiQuerySelect) of the sql , a new statement on each call.
+     */
+    public Object parse(String sql) throws SqlParseException {
+        long start = System.nanoTime();
+        BoundPlan bound = getStatement(sql);
+        if (bound != null) {
+            Object statement = bound.plan.template.parse(bound.literals);
+            hit(bound.plan.parseNanos - (System.nanoTime() - start));
+            return statement;
+        }
+
+        NormalizedSql normalizedSql = normalize(sql);
+        if (normalizedSql == null) {
+            return ESActionFactory.parseSelect(sql);
+        }
+        CachedPlan plan = getPlan(normalizedSql.sql);
+        if (plan != null && plan.template != null) {
+            Object statement = plan.template.parse(normalizedSql.literals);
+            putStatement(sql, new BoundPlan(plan, normalizedSql.literals));
+            hit(plan.parseNanos - (System.nanoTime() - start));
+            return statement;
+        }
+
+        long parseStart = System.nanoTime();
+        Object statement = ESActionFactory.parseSelect(sql);
+        long parseNanos = System.nanoTime() - parseStart;
+        if (plan == null) {
+            long prepareStart = System.nanoTime();
+            PreparedQuery template = prepareTemplate(normalizedSql);
+            //the first parse of a node is slow , the template is parsed right after it
+            plan = new CachedPlan(template, Math.min(parseNanos, System.nanoTime() - prepareStart));
+            putPlan(normalizedSql.sql, plan);
+            if (plan.template != null) putStatement(sql, new BoundPlan(plan, normalizedSql.literals));
+        }
+        miss(plan.template == null);
+        return statement;
+    }
+
+    //number of cached shapes , uncacheable ones included
+    public synchronized int size() {
+        return plans.size();
+    }
+
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    //misses of shapes that can't be cached
+    public synchronized long getUncacheable() {
+        return uncacheable;
+    }
+
+    public synchronized double getHitRate() {
+        long lookups = hits + misses;
+        return lookups == 0 ? 0 : (double) hits / lookups;
+    }
+
+    //for each hit , the parse time of the miss of its shape minus the time of the hit (lexing and binding)
+    public synchronized long getParseNanosSaved() {
+        return parseNanosSaved;
+    }
+
+    public synchronized void clear() {
+        plans.clear();
+        statements.clear();
+        hits = 0;
+        misses = 0;
+        uncacheable = 0;
+        parseNanosSaved = 0;
+    }
+
+    private synchronized CachedPlan getPlan(String normalizedSql) {
+        return plans.get(normalizedSql);
+    }
+
+    private synchronized BoundPlan getStatement(String sql) {
+        return statements.get(sql);
+    }
+
+    private synchronized void putPlan(String normalizedSql, CachedPlan plan) {
+        plans.put(normalizedSql, plan);
+        evictLeastRecentlyUsed(plans);
+    }
+
+    private synchronized void putStatement(String sql, BoundPlan bound) {
+        statements.put(sql, bound);
+        evictLeastRecentlyUsed(statements);
+    }
+
+    private void evictLeastRecentlyUsed(LinkedHashMap<String, ?> entries) {
+        Iterator<?> leastRecentlyUsed = entries.values().iterator();
+        while (entries.size() > maxEntries && leastRecentlyUsed.hasNext()) {
+            leastRecentlyUsed.next();
+            leastRecentlyUsed.remove();
+        }
+    }
+
+    private synchronized void hit(long nanosSaved) {
+        hits++;
+        parseNanosSaved += nanosSaved;
+    }
+
+    private synchronized void miss(boolean isUncacheable) {
+        misses++;
+        if (isUncacheable) uncacheable++;
+    }
+
+    //null when a slot is not the value of a where condition , the prepared parse binds only those
+    private static PreparedQuery prepareTemplate(NormalizedSql normalizedSql) {
+        try {
+            return ESActionFactory.prepare(normalizedSql.sql);
+        } catch (SqlParseException | SQLFeatureNotSupportedException | RuntimeException e) {
+            //the sql itself was parsed , only its normalized form fails
+            return null;
+        }
+    }
+
+    /**
+     * The sql with '?' slots and the literals of the slots , null when the sql has its own parameters or can't be lexed.
+     */
+    private static NormalizedSql normalize(String sql) {
+        Token[] tokens = new Token[32];
+        int[] starts = new int[32];
+        int[] ends = new int[32];
+        Object[] values = new Object[32];
+        int numOfTokens = 0;
+        try {
+            ElasticLexer lexer = new ElasticLexer(sql);
+            int previousEnd = 0;
+            do {
+                lexer.nextToken();
+                if (lexer.token() == Token.QUES) return null;
+                if (numOfTokens == tokens.length) {
+                    tokens = Arrays.copyOf(tokens, numOfTokens * 2);
+                    starts = Arrays.copyOf(starts, numOfTokens * 2);
+                    ends = Arrays.copyOf(ends, numOfTokens * 2);
+                    values = Arrays.copyOf(values, numOfTokens * 2);
+                }
+                //the lexer keeps only where a token ends , it starts after the whitespace that follows the previous one
+                int start = previousEnd;
+                while (start < sql.length() && Character.isWhitespace(sql.charAt(start))) start++;
+                previousEnd = lexer.pos();
+                tokens[numOfTokens] = lexer.token();
+                starts[numOfTokens] = start;
+                ends[numOfTokens] = previousEnd;
+                values[numOfTokens] = literalValue(lexer);
+                numOfTokens++;
+            } while (lexer.token() != Token.EOF);
+        } catch (ParserException e) {
+            return null;
+        }
+
+        boolean[] slots = new boolean[numOfTokens];
+        int numOfSlots = 0;
+        for (int i = 0; i < numOfTokens; i++) {
+            if (!LITERALS.contains(tokens[i])) continue;
+            Token previous = tokenAt(tokens, i - 1);
+            if (COMPARISONS.contains(previous) && isConditionField(tokens, i - 2) && CONDITION_ENDS.contains(tokenAt(tokens, i + 1))) {
+                slots[i] = true;
+                numOfSlots++;
+            } else if (previous == Token.BETWEEN && isConditionField(tokens, i - 2) && tokenAt(tokens, i + 1) == Token.AND
+                    && LITERALS.contains(tokenAt(tokens, i + 2)) && CONDITION_ENDS.contains(tokenAt(tokens, i + 3))) {
+                slots[i] = true;
+                slots[i + 2] = true;
+                numOfSlots += 2;
+            } else if (previous == Token.LPAREN && tokenAt(tokens, i - 2) == Token.IN && isConditionField(tokens, i - 3)) {
+                numOfSlots += markInList(tokens, i, slots);
+            }
+        }
+
+        StringBuilder normalized = new StringBuilder(sql.length());
+        Object[] literals = new Object[numOfSlots];
+        int slot = 0;
+        int copied = 0;
+        for (int i = 0; i < numOfTokens; i++) {
+            if (!slots[i]) continue;
+            normalized.append(sql, copied, starts[i]).append('?');
+            literals[slot++] = values[i];
+            copied = ends[i];
+        }
+        normalized.append(sql, copied, sql.length());
+        return new NormalizedSql(normalized.toString(), literals);
+    }
+
+    //the value druid's expression parser reads from the current token , null when it is not a literal
+    private static Object literalValue(ElasticLexer lexer) {
+        switch (lexer.token()) {
+            case LITERAL_INT:
+                return lexer.integerValue();
+            case LITERAL_FLOAT:
+                return lexer.decimalValue();
+            case LITERAL_CHARS:
+                return lexer.stringVal();
+            default:
+                return null;
+        }
+    }
+
+    //the field of a condition , negated conditions have NOT before their operator
+    private static boolean isConditionField(Token[] tokens, int i) {
+        if (tokenAt(tokens, i) == Token.NOT) i--;
+        return tokenAt(tokens, i) == Token.IDENTIFIER;
+    }
+
+    //only lists of literals are slotted , ( 1 , 2 ) but not ( 1 + 1 , 2 )
+    private static int markInList(Token[] tokens, int first, boolean[] slots) {
+        int i = first;
+        while (LITERALS.contains(tokenAt(tokens, i)) && tokenAt(tokens, i + 1) == Token.COMMA) {
+            i += 2;
+        }
+        if (!LITERALS.contains(tokenAt(tokens, i)) || tokenAt(tokens, i + 1) != Token.RPAREN || !CONDITION_ENDS.contains(tokenAt(tokens, i + 2))) {
+            return 0;
+        }
+        int numOfSlots = 0;
+        for (int literal = first; literal <= i; literal += 2) {
+            slots[literal] = true;
+            numOfSlots++;
+        }
+        return numOfSlots;
+    }
+
+    //null outside of the tokens , EOF is the last token
+    private static Token tokenAt(Token[] tokens, int i) {
+        return i >= 0 && i < tokens.length ? tokens[i] : null;
+    }
+
+    private static class NormalizedSql {
+        private final String sql;
+        private final Object[] literals;
+
+        private NormalizedSql(String sql, Object[] literals) {
+            this.sql = sql;
+            this.literals = literals;
+        }
+    }
+
+    private static class BoundPlan {
+        private final CachedPlan plan;
+        private final Object[] literals;
+
+        private BoundPlan(CachedPlan plan, Object[] literals) {
+            this.plan = plan;
+            this.literals = literals;
+        }
+    }
+
+    private static class CachedPlan {
+        //null when the shape is uncacheable
+        private final PreparedQuery template;
+        //time of a parse without the cache , the faster of the two parses of the miss
+        private final long parseNanos;
+
+        private CachedPlan(PreparedQuery template, long parseNanos) {
+            this.template = template;
+            this.parseNanos = parseNanos;
+        }
+    }
+}
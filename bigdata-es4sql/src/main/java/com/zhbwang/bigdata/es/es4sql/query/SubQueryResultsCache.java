@@ -0,0 +1,83 @@
+package com.zhbwang.bigdata.es.es4sql.query;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Values of executed sub queries (SUBQUERY_CACHE hint), shared by all the requests of the node.
+ * Keyed by the sub query search request , an entry is valid until its ttl passes or the refresh generation
+ * of the sub query indices changes. Bounded by the total number of cached values , least recently used entries are evicted first.
+ */
+public class SubQueryResultsCache {
+    private static final SubQueryResultsCache INSTANCE = new SubQueryResultsCache(1000000);
+
+    private final int maxValues;
+    private int totalValues;
+    private LinkedHashMap<String, CachedValues> entries;
+
+    public SubQueryResultsCache(int maxValues) {
+        this.maxValues = maxValues;
+        this.totalValues = 0;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true);
+    }
+
+    public static SubQueryResultsCache getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * @return the cached values , null if not cached , expired or cached on another refresh generation.
+     */
+    public synchronized Object[] get(String key, long refreshGeneration, long now) {
+        CachedValues cached = entries.get(key);
+        if (cached == null) return null;
+        if (cached.refreshGeneration != refreshGeneration || now >= cached.expiresAt) {
+            remove(key);
+            return null;
+        }
+        return cached.values.clone();
+    }
+
+    public synchronized void put(String key, long refreshGeneration, long expiresAt, Object[] values) {
+        //a sub query bigger than the whole cache is not cached
+        if (values.length > maxValues) return;
+        remove(key);
+        entries.put(key, new CachedValues(values.clone(), refreshGeneration, expiresAt));
+        totalValues += values.length;
+        Iterator<CachedValues> leastRecentlyUsed = entries.values().iterator();
+        while (totalValues > maxValues && leastRecentlyUsed.hasNext()) {
+            totalValues -= leastRecentlyUsed.next().values.length;
+            leastRecentlyUsed.remove();
+        }
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized int getTotalValues() {
+        return totalValues;
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        totalValues = 0;
+    }
+
+    private void remove(String key) {
+        CachedValues removed = entries.remove(key);
+        if (removed != null) totalValues -= removed.values.length;
+    }
+
+    private static class CachedValues {
+        private final Object[] values;
+        private final long refreshGeneration;
+        private final long expiresAt;
+
+        private CachedValues(Object[] values, long refreshGeneration, long expiresAt) {
+            this.values = values;
+            this.refreshGeneration = refreshGeneration;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
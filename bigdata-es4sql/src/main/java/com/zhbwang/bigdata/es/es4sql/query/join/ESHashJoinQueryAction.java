@@ -41,10 +41,29 @@ public class ESHashJoinQueryAction extends ESJoinQueryAction {
     @Override
     protected void updateRequestWithHints(JoinRequestBuilder requestBuilder) {
         super.updateRequestWithHints(requestBuilder);
+        ((HashJoinElasticRequestBuilder) requestBuilder).setPlanByTableCounts(!JoinCostPlanner.hasJoinStrategyHint(joinSelect));
         for(Hint hint : joinSelect.getHints()){
             if(hint.getType() == HintType.HASH_WITH_TERMS_FILTER) {
                 ((HashJoinElasticRequestBuilder) requestBuilder).setUseTermFiltersOptimization(true);
             }
+            else if(hint.getType() == HintType.HASH_JOIN_SPILL_TO_DISK) {
+                HashJoinElasticRequestBuilder hashJoinRequest = (HashJoinElasticRequestBuilder) requestBuilder;
+                Object[] params = hint.getParams();
+                hashJoinRequest.setUseSpillToDisk(true);
+                hashJoinRequest.setMaxRowsInMemory((Integer) params[0]);
+                hashJoinRequest.setNumOfSpillPartitions((Integer) params[1]);
+            }
+            else if(hint.getType() == HintType.HASH_JOIN_BLOOM_FILTER) {
+                HashJoinElasticRequestBuilder hashJoinRequest = (HashJoinElasticRequestBuilder) requestBuilder;
+                hashJoinRequest.setUseBloomFilter(true);
+                hashJoinRequest.setMaxTermsToPushDown((Integer) hint.getParams()[0]);
+            }
+            else if(hint.getType() == HintType.TERMS_FILTER_CHUNKS) {
+                HashJoinElasticRequestBuilder hashJoinRequest = (HashJoinElasticRequestBuilder) requestBuilder;
+                Object[] params = hint.getParams();
+                hashJoinRequest.setTermsFilterChunkSize((Integer) params[0]);
+                hashJoinRequest.setMaxConcurrentTermsFilterChunks((Integer) params[1]);
+            }
         }
     }
 
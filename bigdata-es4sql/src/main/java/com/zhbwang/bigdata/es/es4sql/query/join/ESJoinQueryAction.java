@@ -2,16 +2,19 @@ package com.zhbwang.bigdata.es.es4sql.query.join;
 
 import com.zhbwang.bigdata.es.es4sql.domain.Field;
 import com.zhbwang.bigdata.es.es4sql.domain.JoinSelect;
+import com.zhbwang.bigdata.es.es4sql.domain.Order;
 import com.zhbwang.bigdata.es.es4sql.domain.Select;
 import com.zhbwang.bigdata.es.es4sql.domain.hints.HintType;
 import com.zhbwang.bigdata.es.es4sql.query.QueryAction;
 import org.elasticsearch.client.Client;
+import org.elasticsearch.common.unit.TimeValue;
 import com.zhbwang.bigdata.es.es4sql.domain.TableOnJoinSelect;
 import com.zhbwang.bigdata.es.es4sql.domain.hints.Hint;
 import com.zhbwang.bigdata.es.es4sql.exception.SqlParseException;
 import com.zhbwang.bigdata.es.es4sql.query.DefaultQueryAction;
 import com.zhbwang.bigdata.es.es4sql.query.SqlElasticRequestBuilder;
 
+import java.util.ArrayList;
 import java.util.List;
 
 /**
@@ -48,6 +51,10 @@ public abstract class ESJoinQueryAction extends QueryAction {
 
         requestBuilder.setTotalLimit(joinSelect.getTotalLimit());
 
+        requestBuilder.setOrderBys(joinSelect.getOrderBys());
+        addHiddenOrderFields(requestBuilder, requestBuilder.getFirstTable(), joinSelect.getFirstTable());
+        addHiddenOrderFields(requestBuilder, requestBuilder.getSecondTable(), joinSelect.getSecondTable());
+
         updateRequestWithHints(requestBuilder);
 
 
@@ -61,11 +68,31 @@ public abstract class ESJoinQueryAction extends QueryAction {
                 requestBuilder.getSecondTable().setHintLimit((Integer) params[1]);
             }
         }
+        updateScrollingWithHints(requestBuilder, joinSelect.getHints());
+    }
+
+    //hints of how the tables are scrolled and the rows are returned , semi joins use them too
+    static void updateScrollingWithHints(JoinRequestBuilder requestBuilder, List<Hint> hints){
+        for(Hint hint : hints) {
+            if (hint.getType() == HintType.SCROLL_PREFETCH) {
+                requestBuilder.setScrollPrefetchDepth((Integer) hint.getParams()[0]);
+            }
+            else if (hint.getType() == HintType.STREAM_JOIN_RESULTS) {
+                requestBuilder.setStreamResults(true);
+            }
+            else if (hint.getType() == HintType.PARALLEL_SHARD_SCROLL) {
+                requestBuilder.setMaxConcurrentShardScrolls((Integer) hint.getParams()[0]);
+            }
+            else if (hint.getType() == HintType.SCROLL_KEEP_ALIVE) {
+                requestBuilder.setScrollKeepAlive(new TimeValue((Integer) hint.getParams()[0]));
+            }
+        }
     }
 
-    private void fillTableInJoinRequestBuilder(TableInJoinRequestBuilder requestBuilder, TableOnJoinSelect tableOnJoinSelect) throws SqlParseException {
+    protected void fillTableInJoinRequestBuilder(TableInJoinRequestBuilder requestBuilder, TableOnJoinSelect tableOnJoinSelect) throws SqlParseException {
         List<Field> connectedFields = tableOnJoinSelect.getConnectedFields();
         addFieldsToSelectIfMissing(tableOnJoinSelect,connectedFields);
+        addFieldsToSelectIfMissing(tableOnJoinSelect,getOrderFields(tableOnJoinSelect));
         requestBuilder.setOriginalSelect(tableOnJoinSelect);
         DefaultQueryAction queryAction = new DefaultQueryAction(client,tableOnJoinSelect);
         queryAction.explain();
@@ -74,6 +101,28 @@ public abstract class ESJoinQueryAction extends QueryAction {
         requestBuilder.setAlias(tableOnJoinSelect.getAlias());
     }
 
+    private List<Field> getOrderFields(TableOnJoinSelect tableOnJoinSelect) {
+        List<Field> orderFields = new ArrayList<>();
+        for (Order order : tableOnJoinSelect.getOrderBys()) {
+            orderFields.add(new Field(order.getName(), null));
+        }
+        return orderFields;
+    }
+
+    //order fields that are not returned are still needed to order the joined rows , they are removed after ordering.
+    protected void addHiddenOrderFields(JoinRequestBuilder requestBuilder, TableInJoinRequestBuilder tableRequest, TableOnJoinSelect tableOnJoinSelect) {
+        List<Field> returnedFields = tableRequest.getReturnedFields();
+        if (tableOnJoinSelect.isSelectAll() || returnedFields == null) return;
+        List<Field> returnedWithOrderFields = new ArrayList<>(returnedFields);
+        for (Field orderField : getOrderFields(tableOnJoinSelect)) {
+            if (!returnedWithOrderFields.contains(orderField)) {
+                returnedWithOrderFields.add(orderField);
+                requestBuilder.getHiddenOrderFields().add(tableOnJoinSelect.getAlias() + "." + orderField.getName());
+            }
+        }
+        tableRequest.setReturnedFields(returnedWithOrderFields);
+    }
+
     private void addFieldsToSelectIfMissing(Select select, List<Field> fields) {
         //this means all fields
         if(select.getFields() == null || select.getFields().size() == 0) return;
@@ -2,6 +2,7 @@ package com.zhbwang.bigdata.es.es4sql.query.join;
 
 import com.zhbwang.bigdata.es.es4sql.domain.Condition;
 import com.zhbwang.bigdata.es.es4sql.domain.JoinSelect;
+import com.zhbwang.bigdata.es.es4sql.domain.MultiJoinSelect;
 import com.zhbwang.bigdata.es.es4sql.domain.hints.Hint;
 import com.zhbwang.bigdata.es.es4sql.domain.hints.HintType;
 import com.zhbwang.bigdata.es.es4sql.query.QueryAction;
@@ -14,6 +15,9 @@ import java.util.List;
  */
 public class ESJoinQueryActionFactory {
     public static QueryAction createJoinAction(Client client, JoinSelect joinSelect) {
+        if (joinSelect instanceof MultiJoinSelect)
+            return new ESMultiJoinQueryAction(client, (MultiJoinSelect) joinSelect);
+
         List<Condition> connectedConditions = joinSelect.getConnectedConditions();
         boolean allEqual = true;
         for (Condition condition : connectedConditions) {
@@ -27,15 +31,22 @@ public class ESJoinQueryActionFactory {
             return new ESNestedLoopsQueryAction(client, joinSelect);
 
         boolean useNestedLoopsHintExist = false;
+        boolean useMergeJoinHintExist = false;
         for (Hint hint : joinSelect.getHints()) {
             if (hint.getType() == HintType.USE_NESTED_LOOPS) {
                 useNestedLoopsHintExist = true;
                 break;
             }
+            if (hint.getType() == HintType.USE_MERGE_JOIN) {
+                useMergeJoinHintExist = true;
+            }
         }
         if (useNestedLoopsHintExist)
             return new ESNestedLoopsQueryAction(client, joinSelect);
 
+        if (useMergeJoinHintExist)
+            return new ESSortMergeJoinQueryAction(client, joinSelect);
+
         return new ESHashJoinQueryAction(client, joinSelect);
 
     }
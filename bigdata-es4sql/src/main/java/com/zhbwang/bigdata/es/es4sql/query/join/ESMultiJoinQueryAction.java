@@ -0,0 +1,109 @@
+package com.zhbwang.bigdata.es.es4sql.query.join;
+
+import com.alibaba.druid.sql.ast.statement.SQLJoinTableSource;
+import com.zhbwang.bigdata.es.es4sql.domain.Condition;
+import com.zhbwang.bigdata.es.es4sql.domain.Field;
+import com.zhbwang.bigdata.es.es4sql.domain.MultiJoinSelect;
+import com.zhbwang.bigdata.es.es4sql.domain.TableOnJoinSelect;
+import com.zhbwang.bigdata.es.es4sql.domain.hints.Hint;
+import com.zhbwang.bigdata.es.es4sql.domain.hints.HintType;
+import com.zhbwang.bigdata.es.es4sql.exception.SqlParseException;
+import org.elasticsearch.client.Client;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Joins more than two tables with a left-deep pipeline of hash joins.
+ */
+public class ESMultiJoinQueryAction extends ESJoinQueryAction {
+
+    private MultiJoinSelect multiJoinSelect;
+
+    public ESMultiJoinQueryAction(Client client, MultiJoinSelect joinSelect) {
+        super(client, joinSelect);
+        this.multiJoinSelect = joinSelect;
+    }
+
+    @Override
+    protected void fillSpecificRequestBuilder(JoinRequestBuilder requestBuilder) throws SqlParseException {
+        MultiJoinRequestBuilder multiJoinRequest = (MultiJoinRequestBuilder) requestBuilder;
+        for (TableOnJoinSelect nextTable : multiJoinSelect.getNextTables()) {
+            TableInJoinRequestBuilder tableRequest = new TableInJoinRequestBuilder();
+            fillTableInJoinRequestBuilder(tableRequest, nextTable);
+            addHiddenOrderFields(requestBuilder, tableRequest, nextTable);
+            multiJoinRequest.getNextTables().add(tableRequest);
+        }
+        multiJoinRequest.getNextJoinTypes().addAll(multiJoinSelect.getNextJoinTypes());
+        for (SQLJoinTableSource.JoinType joinType : multiJoinRequest.getStagesJoinTypes()) {
+            if (joinType != SQLJoinTableSource.JoinType.JOIN && joinType != SQLJoinTableSource.JoinType.INNER_JOIN
+                    && joinType != SQLJoinTableSource.JoinType.LEFT_OUTER_JOIN) {
+                throw new SqlParseException("multi table join supports only JOIN and LEFT JOIN , got:" + joinType.name);
+            }
+        }
+
+        List<TableOnJoinSelect> tables = multiJoinSelect.getAllTables();
+        List<List<Map.Entry<Field, Field>>> stagesComparisons = new ArrayList<>();
+        List<List<Condition>> stagesConditions = multiJoinSelect.getStagesConditions();
+        for (int stage = 0; stage < stagesConditions.size(); stage++) {
+            stagesComparisons.add(getStageComparisonFields(tables.subList(0, stage + 1), tables.get(stage + 1).getAlias(), stagesConditions.get(stage)));
+        }
+        multiJoinRequest.setStagesComparisons(stagesComparisons);
+    }
+
+    @Override
+    protected JoinRequestBuilder createSpecificBuilder() {
+        return new MultiJoinRequestBuilder();
+    }
+
+    @Override
+    protected void updateRequestWithHints(JoinRequestBuilder requestBuilder) {
+        super.updateRequestWithHints(requestBuilder);
+        for (Hint hint : joinSelect.getHints()) {
+            if (hint.getType() == HintType.HASH_JOIN_SPILL_TO_DISK) {
+                MultiJoinRequestBuilder multiJoinRequest = (MultiJoinRequestBuilder) requestBuilder;
+                Object[] params = hint.getParams();
+                multiJoinRequest.setMaxRowsInMemory((Integer) params[0]);
+                multiJoinRequest.setNumOfSpillPartitions((Integer) params[1]);
+            }
+        }
+    }
+
+    //joined rows field keeps its alias ("alias.field") , stage table field is without alias.
+    private List<Map.Entry<Field, Field>> getStageComparisonFields(List<TableOnJoinSelect> joinedTables, String stageAlias, List<Condition> conditions) throws SqlParseException {
+        List<Map.Entry<Field, Field>> comparisonFields = new ArrayList<>();
+        for (Condition condition : conditions) {
+            if (condition.getOpear() != Condition.OPEAR.EQ) {
+                throw new SqlParseException(String.format("multi table join should only be with EQ conditions, got:%s on condition:%s", condition.getOpear().name(), condition.toString()));
+            }
+            String firstField = condition.getName();
+            String secondField = condition.getValue().toString();
+            String stagePrefix = stageAlias + ".";
+            String joinedField;
+            String stageField;
+            if (firstField.startsWith(stagePrefix)) {
+                joinedField = secondField;
+                stageField = firstField.substring(stagePrefix.length());
+            } else if (secondField.startsWith(stagePrefix)) {
+                joinedField = firstField;
+                stageField = secondField.substring(stagePrefix.length());
+            } else {
+                throw new SqlParseException(String.format("condition:%s should compare table %s with a table joined before it", condition.toString(), stageAlias));
+            }
+            if (!startsWithAlias(joinedField, joinedTables)) {
+                throw new SqlParseException(String.format("condition:%s should compare table %s with a table joined before it", condition.toString(), stageAlias));
+            }
+            comparisonFields.add(new AbstractMap.SimpleEntry<>(new Field(joinedField, null), new Field(stageField, null)));
+        }
+        return comparisonFields;
+    }
+
+    private boolean startsWithAlias(String field, List<TableOnJoinSelect> tables) {
+        for (TableOnJoinSelect table : tables) {
+            if (field.startsWith(table.getAlias() + ".")) return true;
+        }
+        return false;
+    }
+}
@@ -37,6 +37,15 @@ public class ESNestedLoopsQueryAction extends ESJoinQueryAction {
                 Integer multiSearchMaxSize = (Integer) hint.getParams()[0];
                 ((NestedLoopsElasticRequestBuilder) requestBuilder).setMultiSearchMaxSize(multiSearchMaxSize);
             }
+            else if(hint.getType() == HintType.NL_CONCURRENT_SEARCHES){
+                Object[] params = hint.getParams();
+                NestedLoopsElasticRequestBuilder nestedLoopsRequest = (NestedLoopsElasticRequestBuilder) requestBuilder;
+                nestedLoopsRequest.setMaxConcurrentMultiSearches((Integer) params[0]);
+                nestedLoopsRequest.setTargetMultiSearchMillis((Integer) params[1]);
+            }
+            else if(hint.getType() == HintType.NL_LOOKUP_CACHE){
+                ((NestedLoopsElasticRequestBuilder) requestBuilder).setMaxCachedLookups((Integer) hint.getParams()[0]);
+            }
         }
     }
 
@@ -0,0 +1,108 @@
+package com.zhbwang.bigdata.es.es4sql.query.join;
+
+import com.zhbwang.bigdata.es.es4sql.domain.Condition;
+import com.zhbwang.bigdata.es.es4sql.domain.Field;
+import com.zhbwang.bigdata.es.es4sql.domain.Select;
+import com.zhbwang.bigdata.es.es4sql.domain.Where;
+import com.zhbwang.bigdata.es.es4sql.domain.hints.Hint;
+import com.zhbwang.bigdata.es.es4sql.domain.hints.HintType;
+import com.zhbwang.bigdata.es.es4sql.exception.SqlParseException;
+import com.zhbwang.bigdata.es.es4sql.parse.SubQueryExpression;
+import com.zhbwang.bigdata.es.es4sql.query.DefaultQueryAction;
+import com.zhbwang.bigdata.es.es4sql.query.QueryAction;
+import com.zhbwang.bigdata.es.es4sql.query.SqlElasticRequestBuilder;
+import org.elasticsearch.client.Client;
+
+import java.util.List;
+
+/**
+ * Runs a "field IN / NOT IN (subquery)" condition as a semi join / anti join instead of inlining the subquery values.
+ * Used with USE_SEMI_JOIN hint on selects without aggregations and order by , when the condition is AND-ed to the rest of the where.
+ */
+public class ESSemiJoinQueryAction extends QueryAction {
+
+    private Select outerSelect;
+    private Condition semiJoinCondition;
+    private boolean outerFieldHidden;
+
+    public ESSemiJoinQueryAction(Client client, Select outerSelect, Condition semiJoinCondition) {
+        super(client, outerSelect);
+        this.outerSelect = outerSelect;
+        this.semiJoinCondition = semiJoinCondition;
+        //the outer field is needed to probe the outer rows
+        List<Field> fields = outerSelect.getFields();
+        Field outerField = new Field(semiJoinCondition.getName(), null);
+        if (fields != null && fields.size() > 0 && !fields.contains(outerField)) {
+            fields.add(outerField);
+            this.outerFieldHidden = true;
+        }
+    }
+
+    @Override
+    public SqlElasticRequestBuilder explain() throws SqlParseException {
+        SemiJoinRequestBuilder requestBuilder = new SemiJoinRequestBuilder();
+        Select innerSelect = getSubQuery().getSelect();
+        fillTable(requestBuilder.getFirstTable(), outerSelect);
+        fillTable(requestBuilder.getSecondTable(), innerSelect);
+        requestBuilder.setOuterField(semiJoinCondition.getName());
+        requestBuilder.setInnerField(getSubQuery().getReturnField());
+        requestBuilder.setAnti(semiJoinCondition.getOpear() == Condition.OPEAR.NIN);
+        requestBuilder.setOuterFieldHidden(outerFieldHidden);
+        requestBuilder.setTotalLimit(outerSelect.getRowCount());
+
+        List<Hint> hints = outerSelect.getHints();
+        ESJoinQueryAction.updateScrollingWithHints(requestBuilder, hints);
+        for (Hint hint : hints) {
+            if (hint.getType() == HintType.TERMS_FILTER_CHUNKS) {
+                Object[] params = hint.getParams();
+                requestBuilder.setTermsFilterChunkSize((Integer) params[0]);
+                requestBuilder.setMaxConcurrentTermsFilterChunks((Integer) params[1]);
+            }
+        }
+        return requestBuilder;
+    }
+
+    private SubQueryExpression getSubQuery() {
+        return (SubQueryExpression) semiJoinCondition.getValue();
+    }
+
+    private void fillTable(TableInJoinRequestBuilder tableRequest, Select select) throws SqlParseException {
+        DefaultQueryAction queryAction = new DefaultQueryAction(client, select);
+        queryAction.explain();
+        tableRequest.setRequestBuilder(queryAction.getRequestBuilder());
+        tableRequest.setOriginalSelect(select);
+        tableRequest.setAlias(select.getFrom().get(0).getAlias());
+    }
+
+    /**
+     * Removes the IN / NOT IN subquery condition a semi join can run from the select where.
+     * @return the removed condition , null if the select has no USE_SEMI_JOIN hint or no such condition.
+     */
+    public static Condition takeSemiJoinCondition(Select select) {
+        if (!hasSemiJoinHint(select) || select.isAgg || select.isOrderdSelect()) return null;
+        Where where = select.getWhere();
+        if (where == null || where instanceof Condition) return null;
+        //removing an OR-ed condition changes the other conditions meaning
+        for (Where innerWhere : where.getWheres()) {
+            if (innerWhere.getConn() != Where.CONN.AND) return null;
+        }
+        for (Where innerWhere : where.getWheres()) {
+            if (!(innerWhere instanceof Condition)) continue;
+            Condition condition = (Condition) innerWhere;
+            boolean inSubQuery = condition.getOpear() == Condition.OPEAR.IN || condition.getOpear() == Condition.OPEAR.NIN;
+            if (!inSubQuery || !(condition.getValue() instanceof SubQueryExpression) || condition.isNested() || condition.isChildren()) continue;
+            where.getWheres().remove(condition);
+            if (where.getWheres().isEmpty()) select.setWhere(null);
+            select.fillSubQueries();
+            return condition;
+        }
+        return null;
+    }
+
+    private static boolean hasSemiJoinHint(Select select) {
+        for (Hint hint : select.getHints()) {
+            if (hint.getType() == HintType.USE_SEMI_JOIN) return true;
+        }
+        return false;
+    }
+}
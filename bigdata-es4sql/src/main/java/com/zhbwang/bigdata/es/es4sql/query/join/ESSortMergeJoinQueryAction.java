@@ -0,0 +1,86 @@
+package com.zhbwang.bigdata.es.es4sql.query.join;
+
+import com.zhbwang.bigdata.es.es4sql.domain.Condition;
+import com.zhbwang.bigdata.es.es4sql.domain.Field;
+import com.zhbwang.bigdata.es.es4sql.domain.JoinSelect;
+import com.zhbwang.bigdata.es.es4sql.domain.Where;
+import com.zhbwang.bigdata.es.es4sql.exception.SqlParseException;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.search.sort.SortBuilders;
+import org.elasticsearch.search.sort.SortOrder;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Sort merge join: both tables are requested sorted by their join fields.
+ * Only AND of EQ conditions is supported , and the joined tables can't have their own ORDER BY.
+ */
+public class ESSortMergeJoinQueryAction extends ESJoinQueryAction {
+
+    public ESSortMergeJoinQueryAction(Client client, JoinSelect joinSelect) {
+        super(client, joinSelect);
+    }
+
+    @Override
+    protected void fillSpecificRequestBuilder(JoinRequestBuilder requestBuilder) throws SqlParseException {
+        if (joinSelect.getFirstTable().isOrderdSelect() || joinSelect.getSecondTable().isOrderdSelect()) {
+            throw new SqlParseException("USE_MERGE_JOIN can't be used with ORDER BY on the joined tables");
+        }
+        String t1Alias = joinSelect.getFirstTable().getAlias();
+        String t2Alias = joinSelect.getSecondTable().getAlias();
+        List<Map.Entry<Field, Field>> comparisonFields = getComparisonFields(t1Alias, t2Alias, joinSelect.getConnectedWhere());
+        if (comparisonFields.isEmpty()) {
+            throw new SqlParseException("USE_MERGE_JOIN needs at least one join condition");
+        }
+        for (Map.Entry<Field, Field> comparison : comparisonFields) {
+            requestBuilder.getFirstTable().getRequestBuilder().addSort(SortBuilders.fieldSort(comparison.getKey().getName()).order(SortOrder.ASC).missing("_last"));
+            requestBuilder.getSecondTable().getRequestBuilder().addSort(SortBuilders.fieldSort(comparison.getValue().getName()).order(SortOrder.ASC).missing("_last"));
+        }
+        ((SortMergeJoinElasticRequestBuilder) requestBuilder).setT1ToT2FieldsComparison(comparisonFields);
+    }
+
+    @Override
+    protected JoinRequestBuilder createSpecificBuilder() {
+        return new SortMergeJoinElasticRequestBuilder();
+    }
+
+    private List<Map.Entry<Field, Field>> getComparisonFields(String t1Alias, String t2Alias, Where connectedWhere) throws SqlParseException {
+        List<Map.Entry<Field, Field>> comparisonFields = new ArrayList<>();
+        if (connectedWhere == null) return comparisonFields;
+        List<Condition> conditions = new ArrayList<>();
+        if (connectedWhere instanceof Condition) {
+            conditions.add((Condition) connectedWhere);
+        } else {
+            for (Where innerWhere : connectedWhere.getWheres()) {
+                if (innerWhere.getConn() == Where.CONN.OR || !(innerWhere instanceof Condition)) {
+                    throw new SqlParseException("USE_MERGE_JOIN only supports AND of EQ conditions");
+                }
+                conditions.add((Condition) innerWhere);
+            }
+        }
+        for (Condition condition : conditions) {
+            if (condition.getOpear() != Condition.OPEAR.EQ) {
+                throw new SqlParseException(String.format("SortMergeJoin should only be with EQ conditions, got:%s on condition:%s", condition.getOpear().name(), condition.toString()));
+            }
+            String firstField = condition.getName();
+            String secondField = condition.getValue().toString();
+            Field t1Field, t2Field;
+            if (firstField.startsWith(t1Alias)) {
+                t1Field = new Field(removeAlias(firstField, t1Alias), null);
+                t2Field = new Field(removeAlias(secondField, t2Alias), null);
+            } else {
+                t1Field = new Field(removeAlias(secondField, t1Alias), null);
+                t2Field = new Field(removeAlias(firstField, t2Alias), null);
+            }
+            comparisonFields.add(new AbstractMap.SimpleEntry<Field, Field>(t1Field, t2Field));
+        }
+        return comparisonFields;
+    }
+
+    private String removeAlias(String field, String alias) {
+        return field.replace(alias + ".", "");
+    }
+}
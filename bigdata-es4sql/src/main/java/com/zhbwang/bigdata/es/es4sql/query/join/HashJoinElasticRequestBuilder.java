@@ -2,6 +2,8 @@ package com.zhbwang.bigdata.es.es4sql.query.join;
 
 import com.zhbwang.bigdata.es.es4sql.domain.Field;
 
+import java.util.AbstractMap;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 
@@ -12,8 +14,19 @@ public class HashJoinElasticRequestBuilder  extends JoinRequestBuilder {
 
     private List<List<Map.Entry<Field,Field>>> t1ToT2FieldsComparison;
     private boolean useTermFiltersOptimization;
+    private boolean useSpillToDisk;
+    private int maxRowsInMemory;
+    private int numOfSpillPartitions;
+    private boolean useBloomFilter;
+    private int maxTermsToPushDown;
+    private int termsFilterChunkSize;
+    private int maxConcurrentTermsFilterChunks;
+    private boolean planByTableCounts;
 
     public HashJoinElasticRequestBuilder() {
+        maxTermsToPushDown = Integer.MAX_VALUE;
+        termsFilterChunkSize = 10000;
+        maxConcurrentTermsFilterChunks = 4;
     }
 
     @Override
@@ -21,6 +34,20 @@ public class HashJoinElasticRequestBuilder  extends JoinRequestBuilder {
       return "HashJoin "+ super.explain();
     }
 
+    @Override
+    public void swapTables() {
+        super.swapTables();
+        List<List<Map.Entry<Field,Field>>> swappedComparison = new ArrayList<>();
+        for (List<Map.Entry<Field,Field>> comparison : t1ToT2FieldsComparison) {
+            List<Map.Entry<Field,Field>> swapped = new ArrayList<>();
+            for (Map.Entry<Field,Field> fields : comparison) {
+                swapped.add(new AbstractMap.SimpleEntry<>(fields.getValue(), fields.getKey()));
+            }
+            swappedComparison.add(swapped);
+        }
+        t1ToT2FieldsComparison = swappedComparison;
+    }
+
     public List<List<Map.Entry<Field,Field>>> getT1ToT2FieldsComparison() {
         return t1ToT2FieldsComparison;
     }
@@ -36,4 +63,69 @@ public class HashJoinElasticRequestBuilder  extends JoinRequestBuilder {
     public void setUseTermFiltersOptimization(boolean useTermFiltersOptimization) {
         this.useTermFiltersOptimization = useTermFiltersOptimization;
     }
+
+    public boolean isUseSpillToDisk() {
+        return useSpillToDisk;
+    }
+
+    public void setUseSpillToDisk(boolean useSpillToDisk) {
+        this.useSpillToDisk = useSpillToDisk;
+    }
+
+    public int getMaxRowsInMemory() {
+        return maxRowsInMemory;
+    }
+
+    public void setMaxRowsInMemory(int maxRowsInMemory) {
+        this.maxRowsInMemory = maxRowsInMemory;
+    }
+
+    public int getNumOfSpillPartitions() {
+        return numOfSpillPartitions;
+    }
+
+    public void setNumOfSpillPartitions(int numOfSpillPartitions) {
+        this.numOfSpillPartitions = numOfSpillPartitions;
+    }
+
+    public boolean isUseBloomFilter() {
+        return useBloomFilter;
+    }
+
+    public void setUseBloomFilter(boolean useBloomFilter) {
+        this.useBloomFilter = useBloomFilter;
+    }
+
+    public int getMaxTermsToPushDown() {
+        return maxTermsToPushDown;
+    }
+
+    public void setMaxTermsToPushDown(int maxTermsToPushDown) {
+        this.maxTermsToPushDown = maxTermsToPushDown;
+    }
+
+    public int getTermsFilterChunkSize() {
+        return termsFilterChunkSize;
+    }
+
+    public void setTermsFilterChunkSize(int termsFilterChunkSize) {
+        this.termsFilterChunkSize = termsFilterChunkSize;
+    }
+
+    public int getMaxConcurrentTermsFilterChunks() {
+        return maxConcurrentTermsFilterChunks;
+    }
+
+    public void setMaxConcurrentTermsFilterChunks(int maxConcurrentTermsFilterChunks) {
+        this.maxConcurrentTermsFilterChunks = maxConcurrentTermsFilterChunks;
+    }
+
+    //the executor plans the join with JoinCostPlanner before running it
+    public boolean isPlanByTableCounts() {
+        return planByTableCounts;
+    }
+
+    public void setPlanByTableCounts(boolean planByTableCounts) {
+        this.planByTableCounts = planByTableCounts;
+    }
 }
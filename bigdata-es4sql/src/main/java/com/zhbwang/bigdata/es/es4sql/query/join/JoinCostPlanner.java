@@ -0,0 +1,109 @@
+package com.zhbwang.bigdata.es.es4sql.query.join;
+
+import com.alibaba.druid.sql.ast.statement.SQLJoinTableSource;
+import com.zhbwang.bigdata.es.es4sql.domain.JoinSelect;
+import com.zhbwang.bigdata.es.es4sql.domain.Select;
+import com.zhbwang.bigdata.es.es4sql.domain.hints.Hint;
+import com.zhbwang.bigdata.es.es4sql.domain.hints.HintType;
+import com.zhbwang.bigdata.es.es4sql.exception.SqlParseException;
+import com.zhbwang.bigdata.es.es4sql.query.DefaultQueryAction;
+import org.elasticsearch.action.search.MultiSearchResponse;
+import org.elasticsearch.action.search.SearchRequestBuilder;
+import org.elasticsearch.action.search.SearchType;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.search.Scroll;
+
+/**
+ * Plans an EQ join from the number of rows each table WHERE matches (size=0 searches on both tables).
+ * Inner joins build the hash on the smaller table , the tables keep their aliases so joined rows are the same.
+ * Build sides too big for the in memory hash are spilled to disk.
+ * The terms filter pushdown is not turned on here , it lowercases string keys and can drop matches of
+ * not analyzed fields , so it stays behind the HASH_WITH_TERMS_FILTER hint.
+ * Planning runs when the join is executed (explain does not search) and only changes the request builder ,
+ * the parsed join select is not changed. Queries with join strategy hints are not planned.
+ * Every planned join pays one extra multi search (the two counts) before it runs ,
+ * a join strategy hint skips it.
+ */
+public class JoinCostPlanner {
+    //HashJoinElasticExecutor keeps at most this many first table rows in memory
+    public static final int MAX_BUILD_ROWS_IN_MEMORY = 100000;
+    private static final int DEFAULT_SPILL_PARTITIONS = 16;
+
+    private Client client;
+    private HashJoinElasticRequestBuilder requestBuilder;
+    private long firstTableRows = -1;
+    private long secondTableRows = -1;
+
+    public JoinCostPlanner(Client client, HashJoinElasticRequestBuilder requestBuilder) {
+        this.client = client;
+        this.requestBuilder = requestBuilder;
+    }
+
+    public static boolean hasJoinStrategyHint(JoinSelect joinSelect) {
+        for (Hint hint : joinSelect.getHints()) {
+            switch (hint.getType()) {
+                case USE_NESTED_LOOPS:
+                case USE_MERGE_JOIN:
+                case HASH_WITH_TERMS_FILTER:
+                case HASH_JOIN_SPILL_TO_DISK:
+                case HASH_JOIN_BLOOM_FILTER:
+                case JOIN_LIMIT:
+                    return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return false if the tables could not be counted , the join is left as written.
+     */
+    public boolean planHashJoin() {
+        if (requestBuilder.getT1ToT2FieldsComparison() == null || requestBuilder.getT1ToT2FieldsComparison().isEmpty()) return false;
+        if (!countTables()) return false;
+
+        if (requestBuilder.getJoinType() != SQLJoinTableSource.JoinType.LEFT_OUTER_JOIN && secondTableRows < firstTableRows) {
+            requestBuilder.swapTables();
+            long buildRows = secondTableRows;
+            secondTableRows = firstTableRows;
+            firstTableRows = buildRows;
+        }
+
+        if (firstTableRows > MAX_BUILD_ROWS_IN_MEMORY) {
+            requestBuilder.setUseSpillToDisk(true);
+            requestBuilder.setMaxRowsInMemory(MAX_BUILD_ROWS_IN_MEMORY);
+            requestBuilder.setNumOfSpillPartitions(DEFAULT_SPILL_PARTITIONS);
+        }
+        return true;
+    }
+
+    public long getFirstTableRows() {
+        return firstTableRows;
+    }
+
+    public long getSecondTableRows() {
+        return secondTableRows;
+    }
+
+    private boolean countTables() {
+        try {
+            MultiSearchResponse.Item[] counts = client.prepareMultiSearch()
+                    .add(createCountRequest(requestBuilder.getFirstTable().getOriginalSelect()))
+                    .add(createCountRequest(requestBuilder.getSecondTable().getOriginalSelect()))
+                    .get().getResponses();
+            if (counts[0].isFailure() || counts[1].isFailure()) return false;
+            firstTableRows = counts[0].getResponse().getHits().getTotalHits();
+            secondTableRows = counts[1].getResponse().getHits().getTotalHits();
+            return true;
+        } catch (SqlParseException | RuntimeException e) {
+            return false;
+        }
+    }
+
+    private SearchRequestBuilder createCountRequest(Select table) throws SqlParseException {
+        DefaultQueryAction queryAction = new DefaultQueryAction(client, table);
+        queryAction.explain();
+        SearchRequestBuilder countRequest = queryAction.getRequestBuilder();
+        countRequest.request().scroll((Scroll) null);
+        return countRequest.setSearchType(SearchType.QUERY_THEN_FETCH).setSize(0);
+    }
+}
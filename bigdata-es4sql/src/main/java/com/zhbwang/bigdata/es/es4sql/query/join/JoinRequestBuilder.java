@@ -1,17 +1,21 @@
 package com.zhbwang.bigdata.es.es4sql.query.join;
 
 import com.alibaba.druid.sql.ast.statement.SQLJoinTableSource;
+import com.zhbwang.bigdata.es.es4sql.domain.Order;
 import com.zhbwang.bigdata.es.es4sql.query.SqlElasticRequestBuilder;
 import org.elasticsearch.action.ActionRequest;
 import org.elasticsearch.action.ActionRequestBuilder;
 import org.elasticsearch.action.ActionResponse;
 import org.elasticsearch.action.search.MultiSearchRequest;
+import org.elasticsearch.common.unit.TimeValue;
 import org.elasticsearch.common.xcontent.ToXContent;
 import org.elasticsearch.common.xcontent.XContentBuilder;
 import org.elasticsearch.common.xcontent.XContentFactory;
 import org.elasticsearch.common.xcontent.XContentType;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Created by Eliran on 15/9/2015.
@@ -23,10 +27,19 @@ public  class JoinRequestBuilder implements SqlElasticRequestBuilder {
     private TableInJoinRequestBuilder secondTable;
     private SQLJoinTableSource.JoinType joinType;
     private int totalLimit;
+    private int scrollPrefetchDepth;
+    private int maxConcurrentShardScrolls;
+    private TimeValue scrollKeepAlive;
+    private boolean streamResults;
+    private List<Order> orderBys;
+    private List<String> hiddenOrderFields;
 
     public JoinRequestBuilder() {
         firstTable = new TableInJoinRequestBuilder();
         secondTable = new TableInJoinRequestBuilder();
+        scrollPrefetchDepth = 1;
+        orderBys = new ArrayList<>();
+        hiddenOrderFields = new ArrayList<>();
     }
 
 
@@ -95,6 +108,21 @@ public  class JoinRequestBuilder implements SqlElasticRequestBuilder {
         return secondTable;
     }
 
+    //tables keep their aliases , so an inner join of the swapped tables returns the same rows
+    public void swapTables() {
+        TableInJoinRequestBuilder first = firstTable;
+        firstTable = secondTable;
+        secondTable = first;
+        multi = null;
+    }
+
+    public List<TableInJoinRequestBuilder> getTables() {
+        List<TableInJoinRequestBuilder> tables = new ArrayList<>();
+        tables.add(firstTable);
+        tables.add(secondTable);
+        return tables;
+    }
+
     public int getTotalLimit() {
         return totalLimit;
     }
@@ -103,4 +131,54 @@ public  class JoinRequestBuilder implements SqlElasticRequestBuilder {
         this.totalLimit = totalLimit;
     }
 
+    public int getScrollPrefetchDepth() {
+        return scrollPrefetchDepth;
+    }
+
+    public void setScrollPrefetchDepth(int scrollPrefetchDepth) {
+        this.scrollPrefetchDepth = scrollPrefetchDepth;
+    }
+
+    //0 means tables are scanned with one scroll over all shards
+    public int getMaxConcurrentShardScrolls() {
+        return maxConcurrentShardScrolls;
+    }
+
+    public void setMaxConcurrentShardScrolls(int maxConcurrentShardScrolls) {
+        this.maxConcurrentShardScrolls = maxConcurrentShardScrolls;
+    }
+
+    //null means the default keep alives
+    public TimeValue getScrollKeepAlive() {
+        return scrollKeepAlive;
+    }
+
+    public void setScrollKeepAlive(TimeValue scrollKeepAlive) {
+        this.scrollKeepAlive = scrollKeepAlive;
+    }
+
+    public List<Order> getOrderBys() {
+        return orderBys;
+    }
+
+    public void setOrderBys(List<Order> orderBys) {
+        this.orderBys = orderBys;
+    }
+
+    public List<String> getHiddenOrderFields() {
+        return hiddenOrderFields;
+    }
+
+    public void setHiddenOrderFields(List<String> hiddenOrderFields) {
+        this.hiddenOrderFields = hiddenOrderFields;
+    }
+
+    public boolean isStreamResults() {
+        return streamResults;
+    }
+
+    public void setStreamResults(boolean streamResults) {
+        this.streamResults = streamResults;
+    }
+
 }
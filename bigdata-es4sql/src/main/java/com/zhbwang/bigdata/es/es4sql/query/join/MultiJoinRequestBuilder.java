@@ -0,0 +1,114 @@
+package com.zhbwang.bigdata.es.es4sql.query.join;
+
+import com.alibaba.druid.sql.ast.statement.SQLJoinTableSource;
+import com.zhbwang.bigdata.es.es4sql.domain.Field;
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.search.MultiSearchRequest;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.common.xcontent.XContentType;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Left-deep join of more than two tables.
+ * Each stage comparison maps a field of the already joined rows ("alias.field") to a field of the stage table.
+ */
+public class MultiJoinRequestBuilder extends JoinRequestBuilder {
+
+    private List<TableInJoinRequestBuilder> nextTables;
+    private List<SQLJoinTableSource.JoinType> nextJoinTypes;
+    private List<List<Map.Entry<Field, Field>>> stagesComparisons;
+    //each stage hash spills partitions to disk when it holds more rows
+    private int maxRowsInMemory;
+    private int numOfSpillPartitions;
+
+    public MultiJoinRequestBuilder() {
+        super();
+        nextTables = new ArrayList<>();
+        nextJoinTypes = new ArrayList<>();
+        stagesComparisons = new ArrayList<>();
+        maxRowsInMemory = JoinCostPlanner.MAX_BUILD_ROWS_IN_MEMORY;
+        numOfSpillPartitions = 16;
+    }
+
+    @Override
+    public ActionRequest request() {
+        if (getMulti() == null) {
+            MultiSearchRequest multi = new MultiSearchRequest();
+            for (TableInJoinRequestBuilder table : getTables()) {
+                multi.add(table.getRequestBuilder());
+            }
+            setMulti(multi);
+        }
+        return getMulti();
+    }
+
+    @Override
+    public String explain() {
+        try {
+            StringBuilder explained = new StringBuilder();
+            List<TableInJoinRequestBuilder> tables = getTables();
+            for (int i = 0; i < tables.size(); i++) {
+                XContentBuilder builder = XContentFactory.contentBuilder(XContentType.JSON).prettyPrint();
+                tables.get(i).getRequestBuilder().internalBuilder().toXContent(builder, ToXContent.EMPTY_PARAMS);
+                explained.append(String.format(" table %d (%s) query:\n%s\n", i + 1, tables.get(i).getAlias(), builder.string()));
+            }
+            return explained.toString();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return null;
+    }
+
+    @Override
+    public List<TableInJoinRequestBuilder> getTables() {
+        List<TableInJoinRequestBuilder> tables = super.getTables();
+        tables.addAll(nextTables);
+        return tables;
+    }
+
+    public List<TableInJoinRequestBuilder> getNextTables() {
+        return nextTables;
+    }
+
+    //join type of each stage , the first stage type is getJoinType()
+    public List<SQLJoinTableSource.JoinType> getStagesJoinTypes() {
+        List<SQLJoinTableSource.JoinType> joinTypes = new ArrayList<>();
+        joinTypes.add(getJoinType());
+        joinTypes.addAll(nextJoinTypes);
+        return joinTypes;
+    }
+
+    public List<SQLJoinTableSource.JoinType> getNextJoinTypes() {
+        return nextJoinTypes;
+    }
+
+    public List<List<Map.Entry<Field, Field>>> getStagesComparisons() {
+        return stagesComparisons;
+    }
+
+    public void setStagesComparisons(List<List<Map.Entry<Field, Field>>> stagesComparisons) {
+        this.stagesComparisons = stagesComparisons;
+    }
+
+    public int getMaxRowsInMemory() {
+        return maxRowsInMemory;
+    }
+
+    public void setMaxRowsInMemory(int maxRowsInMemory) {
+        this.maxRowsInMemory = maxRowsInMemory;
+    }
+
+    public int getNumOfSpillPartitions() {
+        return numOfSpillPartitions;
+    }
+
+    public void setNumOfSpillPartitions(int numOfSpillPartitions) {
+        this.numOfSpillPartitions = numOfSpillPartitions;
+    }
+}
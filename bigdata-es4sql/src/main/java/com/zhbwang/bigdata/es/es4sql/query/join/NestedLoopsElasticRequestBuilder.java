@@ -13,9 +13,15 @@ public class NestedLoopsElasticRequestBuilder extends JoinRequestBuilder {
 
     private Where connectedWhere;
     private int multiSearchMaxSize;
+    private int maxConcurrentMultiSearches;
+    private int targetMultiSearchMillis;
+    private int maxCachedLookups;
     public NestedLoopsElasticRequestBuilder() {
 
         multiSearchMaxSize = 100;
+        maxConcurrentMultiSearches = 1;
+        targetMultiSearchMillis = 0;
+        maxCachedLookups = 10000;
     }
 
     @Override
@@ -42,6 +48,31 @@ public class NestedLoopsElasticRequestBuilder extends JoinRequestBuilder {
         this.multiSearchMaxSize = multiSearchMaxSize;
     }
 
+    public int getMaxConcurrentMultiSearches() {
+        return maxConcurrentMultiSearches;
+    }
+
+    public void setMaxConcurrentMultiSearches(int maxConcurrentMultiSearches) {
+        this.maxConcurrentMultiSearches = maxConcurrentMultiSearches;
+    }
+
+    public int getTargetMultiSearchMillis() {
+        return targetMultiSearchMillis;
+    }
+
+    public void setTargetMultiSearchMillis(int targetMultiSearchMillis) {
+        this.targetMultiSearchMillis = targetMultiSearchMillis;
+    }
+
+    //0 means second table searches are not cached
+    public int getMaxCachedLookups() {
+        return maxCachedLookups;
+    }
+
+    public void setMaxCachedLookups(int maxCachedLookups) {
+        this.maxCachedLookups = maxCachedLookups;
+    }
+
     public Where getConnectedWhere() {
         return connectedWhere;
     }
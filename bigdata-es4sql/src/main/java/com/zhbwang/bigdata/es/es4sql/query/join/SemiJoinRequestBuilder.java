@@ -0,0 +1,79 @@
+package com.zhbwang.bigdata.es.es4sql.query.join;
+
+/**
+ * Outer select with an IN / NOT IN subquery condition , the first table is the outer select (without the condition)
+ * and the second table is the subquery. Only outer rows are returned.
+ */
+public class SemiJoinRequestBuilder extends JoinRequestBuilder {
+
+    private String outerField;
+    private String innerField;
+    private boolean anti;
+    private boolean outerFieldHidden;
+    private int termsFilterChunkSize;
+    private int maxConcurrentTermsFilterChunks;
+
+    public SemiJoinRequestBuilder() {
+        //IN conditions are bool queries of match phrases , chunks stay under the default max clause count (1024)
+        termsFilterChunkSize = 1000;
+        maxConcurrentTermsFilterChunks = 4;
+    }
+
+    @Override
+    public String explain() {
+        String baseExplain = super.explain();
+        String semiJoinExplain = anti ? "Anti Join \n scroll second query into a set , scroll first query and return rows with " + outerField + " not in the set:\n"
+                : "Semi Join \n scroll second query into a set , run first query with chunks of the set as " + outerField + " IN conditions:\n";
+        return semiJoinExplain + baseExplain;
+    }
+
+    public String getOuterField() {
+        return outerField;
+    }
+
+    public void setOuterField(String outerField) {
+        this.outerField = outerField;
+    }
+
+    public String getInnerField() {
+        return innerField;
+    }
+
+    public void setInnerField(String innerField) {
+        this.innerField = innerField;
+    }
+
+    //NOT IN subquery
+    public boolean isAnti() {
+        return anti;
+    }
+
+    public void setAnti(boolean anti) {
+        this.anti = anti;
+    }
+
+    //outer field was only added to the outer select to probe it , it is removed from the returned rows
+    public boolean isOuterFieldHidden() {
+        return outerFieldHidden;
+    }
+
+    public void setOuterFieldHidden(boolean outerFieldHidden) {
+        this.outerFieldHidden = outerFieldHidden;
+    }
+
+    public int getTermsFilterChunkSize() {
+        return termsFilterChunkSize;
+    }
+
+    public void setTermsFilterChunkSize(int termsFilterChunkSize) {
+        this.termsFilterChunkSize = termsFilterChunkSize;
+    }
+
+    public int getMaxConcurrentTermsFilterChunks() {
+        return maxConcurrentTermsFilterChunks;
+    }
+
+    public void setMaxConcurrentTermsFilterChunks(int maxConcurrentTermsFilterChunks) {
+        this.maxConcurrentTermsFilterChunks = maxConcurrentTermsFilterChunks;
+    }
+}
@@ -0,0 +1,30 @@
+package com.zhbwang.bigdata.es.es4sql.query.join;
+
+import com.zhbwang.bigdata.es.es4sql.domain.Field;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Both table requests are sorted by the join fields (in t1ToT2FieldsComparison order).
+ */
+public class SortMergeJoinElasticRequestBuilder extends JoinRequestBuilder {
+
+    private List<Map.Entry<Field,Field>> t1ToT2FieldsComparison;
+
+    public SortMergeJoinElasticRequestBuilder() {
+    }
+
+    @Override
+    public String explain() {
+        return "SortMergeJoin " + super.explain();
+    }
+
+    public List<Map.Entry<Field,Field>> getT1ToT2FieldsComparison() {
+        return t1ToT2FieldsComparison;
+    }
+
+    public void setT1ToT2FieldsComparison(List<Map.Entry<Field,Field>> t1ToT2FieldsComparison) {
+        this.t1ToT2FieldsComparison = t1ToT2FieldsComparison;
+    }
+}
@@ -169,6 +169,11 @@ public abstract class Maker {
 		case IN:
             //todo: value is subquery? here or before
 			values = (Object[]) value;
+			if (cond instanceof MergedEqualities && allNumbers(values)) {
+				// numbers are not analyzed , one terms query matches them like the match phrases
+				x = QueryBuilders.termsQuery(name, values);
+				break;
+			}
 			MatchQueryBuilder[] matchQueries = new MatchQueryBuilder[values.length];
 			for(int i = 0; i < values.length; i++) {
 				matchQueries[i] = QueryBuilders.matchPhraseQuery(name, values[i]);
@@ -184,6 +189,12 @@ public abstract class Maker {
 		case NBETWEEN:
             x = QueryBuilders.rangeQuery(name).gte(((Object[]) value)[0]).lte(((Object[]) value)[1]);
 			break;
+		case RANGE:
+			// from , to , includeLower , includeUpper
+			values = (Object[]) value;
+			x = QueryBuilders.rangeQuery(name).from(values[0]).to(values[1])
+					.includeLower((Boolean) values[2]).includeUpper((Boolean) values[3]);
+			break;
         case GEO_INTERSECTS:
             String wkt = cond.getValue().toString();
             try {
@@ -285,6 +296,13 @@ public abstract class Maker {
 		return x;
 	}
 
+    private boolean allNumbers(Object[] values) {
+        for (Object value : values) {
+            if (!(value instanceof Number)) return false;
+        }
+        return values.length > 0;
+    }
+
     private String[] arrayOfObjectsToStringArray(Object[] values, int from, int to) {
         String[] strings = new String[to - from + 1];
         int counter =0;
@@ -0,0 +1,16 @@
+package com.zhbwang.bigdata.es.es4sql.query.maker;
+
+import com.alibaba.druid.sql.ast.SQLExpr;
+import com.zhbwang.bigdata.es.es4sql.domain.Condition;
+import com.zhbwang.bigdata.es.es4sql.exception.SqlParseException;
+
+/**
+ * An IN that WhereRewriter made from the equalities on one field of an OR group.
+ * When all its values are numbers Maker makes it as one terms query.
+ */
+class MergedEqualities extends Condition {
+
+    MergedEqualities(CONN conn, String name, SQLExpr nameExpr, Object[] values) throws SqlParseException {
+        super(conn, name, nameExpr, OPEAR.IN, values, null, null);
+    }
+}
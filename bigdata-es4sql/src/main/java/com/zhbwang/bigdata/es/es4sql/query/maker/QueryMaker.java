@@ -22,11 +22,20 @@ public class QueryMaker extends Maker {
 	}
 
     public static BoolQueryBuilder explan(Where where,boolean isQuery) throws SqlParseException {
+        return explan(where, isQuery, false);
+    }
+
+    public static BoolQueryBuilder explan(Where where, boolean isQuery, boolean mergeRanges) throws SqlParseException {
         BoolQueryBuilder boolQuery = QueryBuilders.boolQuery();
-        while (where.getWheres().size() == 1) {
-            where = where.getWheres().getFirst();
+        where = WhereRewriter.rewrite(where, mergeRanges);
+        if (where == WhereRewriter.FALSE) {
+            boolQuery.mustNot(QueryBuilders.matchAllQuery());
+        } else if (where != WhereRewriter.TRUE) {
+            while (where.getWheres().size() == 1) {
+                where = where.getWheres().getFirst();
+            }
+            new QueryMaker().explanWhere(boolQuery, where);
         }
-        new QueryMaker().explanWhere(boolQuery, where);
         if(isQuery){
             return boolQuery;
         }
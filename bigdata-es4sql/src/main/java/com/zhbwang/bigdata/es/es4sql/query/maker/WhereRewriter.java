@@ -0,0 +1,328 @@
+package com.zhbwang.bigdata.es.es4sql.query.maker;
+
+import com.alibaba.druid.sql.ast.SQLExpr;
+import com.alibaba.druid.sql.ast.expr.SQLBinaryOpExpr;
+import com.alibaba.druid.sql.ast.expr.SQLCharExpr;
+import com.alibaba.druid.sql.ast.expr.SQLNumericLiteralExpr;
+import com.zhbwang.bigdata.es.es4sql.domain.Condition;
+import com.zhbwang.bigdata.es.es4sql.domain.Condition.OPEAR;
+import com.zhbwang.bigdata.es.es4sql.domain.Where;
+import com.zhbwang.bigdata.es.es4sql.exception.SqlParseException;
+
+import java.math.BigDecimal;
+import java.util.*;
+
+/**
+ * Rewrites a where tree before it is turned into a query : literal only conditions (1 = 1) are folded,
+ * groups are flattened and equalities on the same field of an OR group become one IN.
+ * With MERGE_RANGES hint ranges on the same field of an AND group are merged too , this is opt in because
+ * on a multi valued field the merged range must hold for one value (x = [1, 20] matches x > 5 AND x < 10 , not the merged range).
+ * The parsed tree is not changed , rewritten groups are new Where objects.
+ */
+class WhereRewriter {
+
+    //results of conditions that are always true or always false , they never reach the query
+    static final Where TRUE = new Where(Where.CONN.AND);
+    static final Where FALSE = new Where(Where.CONN.AND);
+
+    private static final Set<OPEAR> RANGE_OPEARS = EnumSet.of(OPEAR.GT, OPEAR.GTE, OPEAR.LT, OPEAR.LTE, OPEAR.BETWEEN, OPEAR.RANGE);
+
+    private WhereRewriter() {
+    }
+
+    static Where rewrite(Where where, boolean mergeRanges) throws SqlParseException {
+        if (where instanceof Condition) {
+            return rewriteCondition((Condition) where);
+        }
+        LinkedList<Where> wheres = where.getWheres();
+        if (wheres.isEmpty()) {
+            return where;
+        }
+        if (wheres.size() == 1) {
+            return withConn(rewrite(wheres.getFirst(), mergeRanges), where.getConn());
+        }
+
+        Where.CONN groupConn = groupConn(where);
+        List<Where> rewritten = new ArrayList<>(wheres.size());
+        for (Where subWhere : wheres) {
+            Where sub = rewrite(subWhere, mergeRanges);
+            if (groupConn == null) {
+                //a group mixing must and should keeps its clauses
+                rewritten.add(sub == TRUE || sub == FALSE ? subWhere : sub);
+            } else if (sub == TRUE || sub == FALSE) {
+                boolean decides = (sub == TRUE) == (groupConn == Where.CONN.OR);
+                if (decides) return sub;
+            } else if (!(sub instanceof Condition) && groupConn(sub) == groupConn) {
+                rewritten.addAll(sub.getWheres());
+            } else {
+                rewritten.add(sub);
+            }
+        }
+
+        if (groupConn == Where.CONN.AND && mergeRanges) {
+            rewritten = mergeRanges(rewritten);
+        } else if (groupConn == Where.CONN.OR) {
+            rewritten = mergeEqualities(rewritten);
+        }
+
+        if (rewritten.isEmpty()) {
+            return groupConn == Where.CONN.AND ? TRUE : FALSE;
+        }
+        if (rewritten.size() == 1) {
+            return withConn(rewritten.get(0), where.getConn());
+        }
+        Where group = new Where(where.getConn());
+        for (Where sub : rewritten) {
+            group.addWhere(sub);
+        }
+        return group;
+    }
+
+    //WhereParser keeps the druid expression of a script condition with literals on both sides as its value expr
+    private static Where rewriteCondition(Condition condition) {
+        if (condition.getOpear() != OPEAR.SCRIPT || !(condition.getValueExpr() instanceof SQLBinaryOpExpr)) {
+            return condition;
+        }
+        SQLBinaryOpExpr comparisonExpr = (SQLBinaryOpExpr) condition.getValueExpr();
+        Integer comparison = compare(literal(comparisonExpr.getLeft()), literal(comparisonExpr.getRight()));
+        if (comparison == null) {
+            return condition;
+        }
+        switch (comparisonExpr.getOperator()) {
+            case Equality:
+                return comparison == 0 ? TRUE : FALSE;
+            case NotEqual:
+            case LessThanOrGreater:
+                return comparison != 0 ? TRUE : FALSE;
+            case GreaterThan:
+                return comparison > 0 ? TRUE : FALSE;
+            case LessThan:
+                return comparison < 0 ? TRUE : FALSE;
+            case GreaterThanOrEqual:
+                return comparison >= 0 ? TRUE : FALSE;
+            case LessThanOrEqual:
+                return comparison <= 0 ? TRUE : FALSE;
+            default:
+                return condition;
+        }
+    }
+
+    //null when the expression is not a number or a string literal
+    private static Object literal(SQLExpr expr) {
+        if (expr instanceof SQLNumericLiteralExpr) {
+            return ((SQLNumericLiteralExpr) expr).getNumber();
+        }
+        if (expr instanceof SQLCharExpr) {
+            return ((SQLCharExpr) expr).getText();
+        }
+        return null;
+    }
+
+    //the conn of all the clauses of the group , null when they are mixed
+    private static Where.CONN groupConn(Where where) {
+        Where.CONN conn = null;
+        for (Where sub : where.getWheres()) {
+            if (conn == null) {
+                conn = sub.getConn();
+            } else if (conn != sub.getConn()) {
+                return null;
+            }
+        }
+        return conn;
+    }
+
+    private static Where withConn(Where where, Where.CONN conn) throws SqlParseException {
+        if (where == TRUE || where == FALSE || where.getConn() == conn) {
+            return where;
+        }
+        if (where instanceof MergedEqualities) {
+            Condition condition = (Condition) where;
+            return new MergedEqualities(conn, condition.getName(), condition.getNameExpr(), (Object[]) condition.getValue());
+        }
+        if (where instanceof Condition) {
+            Condition condition = (Condition) where;
+            return new Condition(conn, condition.getName(), condition.getNameExpr(), condition.getOpear(),
+                    condition.getValue(), condition.getValueExpr(), condition.getRelationshipType());
+        }
+        Where group = new Where(conn);
+        for (Where sub : where.getWheres()) {
+            group.addWhere(sub);
+        }
+        return group;
+    }
+
+    //x > 5 AND x < 10 becomes one range , a bound that can't be compared with the bound already taken stays a condition
+    private static List<Where> mergeRanges(List<Where> wheres) throws SqlParseException {
+        Map<String, RangeBounds> ranges = new LinkedHashMap<>();
+        List<Object> merged = new ArrayList<>(wheres.size());
+        for (Where where : wheres) {
+            Condition condition = plainCondition(where, RANGE_OPEARS);
+            if (condition == null) {
+                merged.add(where);
+                continue;
+            }
+            Object[] bounds = bounds(condition);
+            if (bounds == null) {
+                merged.add(where);
+                continue;
+            }
+            RangeBounds range = ranges.get(condition.getName());
+            if (range == null) {
+                range = new RangeBounds(condition);
+                ranges.put(condition.getName(), range);
+                merged.add(range);
+            } else if (!range.intersect(bounds)) {
+                merged.add(where);
+                continue;
+            }
+            range.conditions++;
+        }
+        if (merged.size() == wheres.size()) {
+            return wheres;
+        }
+
+        List<Where> result = new ArrayList<>(merged.size());
+        for (Object where : merged) {
+            result.add(where instanceof RangeBounds ? ((RangeBounds) where).toCondition() : (Where) where);
+        }
+        return result;
+    }
+
+    //from , to , includeLower , includeUpper of a range condition , null when a bound is not a plain value
+    private static Object[] bounds(Condition condition) {
+        Object value = condition.getValue();
+        switch (condition.getOpear()) {
+            case GT:
+                return isBound(value) ? new Object[]{value, null, false, true} : null;
+            case GTE:
+                return isBound(value) ? new Object[]{value, null, true, true} : null;
+            case LT:
+                return isBound(value) ? new Object[]{null, value, true, false} : null;
+            case LTE:
+                return isBound(value) ? new Object[]{null, value, true, true} : null;
+            case BETWEEN:
+                if (!(value instanceof Object[]) || ((Object[]) value).length != 2) return null;
+                Object[] between = (Object[]) value;
+                return isBound(between[0]) && isBound(between[1]) ? new Object[]{between[0], between[1], true, true} : null;
+            default:
+                return ((Object[]) value).clone();
+        }
+    }
+
+    private static boolean isBound(Object value) {
+        return value instanceof Number || value instanceof String;
+    }
+
+    private static class RangeBounds {
+        private final Condition first;
+        private final Object[] bounds;
+        private int conditions;
+
+        RangeBounds(Condition first) {
+            this.first = first;
+            this.bounds = bounds(first);
+        }
+
+        boolean intersect(Object[] other) {
+            Object[] lower = tighter(bounds[0], (Boolean) bounds[2], other[0], (Boolean) other[2], 1);
+            Object[] upper = tighter(bounds[1], (Boolean) bounds[3], other[1], (Boolean) other[3], -1);
+            if (lower == null || upper == null) {
+                return false;
+            }
+            bounds[0] = lower[0];
+            bounds[2] = lower[1];
+            bounds[1] = upper[0];
+            bounds[3] = upper[1];
+            return true;
+        }
+
+        //the tighter of two bounds on the same side , null when both are set and are not numbers
+        private static Object[] tighter(Object bound, Boolean include, Object otherBound, Boolean otherInclude, int tighterSign) {
+            if (otherBound == null) return new Object[]{bound, include};
+            if (bound == null) return new Object[]{otherBound, otherInclude};
+            Integer comparison = compare(bound, otherBound);
+            if (comparison == null || !(bound instanceof Number)) return null;
+            if (comparison == 0) return new Object[]{bound, include && otherInclude};
+            return comparison * tighterSign > 0 ? new Object[]{bound, include} : new Object[]{otherBound, otherInclude};
+        }
+
+        Where toCondition() throws SqlParseException {
+            if (conditions == 1) {
+                return first;
+            }
+            return new Condition(first.getConn(), first.getName(), first.getNameExpr(), OPEAR.RANGE, bounds, null, null);
+        }
+    }
+
+    //a = 1 OR a = 2 OR a IN (3, 4) becomes a IN (1, 2, 3, 4)
+    private static List<Where> mergeEqualities(List<Where> wheres) throws SqlParseException {
+        Map<String, Set<Object>> values = new LinkedHashMap<>();
+        Map<String, Condition> firsts = new HashMap<>();
+        Map<String, Integer> counts = new HashMap<>();
+        for (Where where : wheres) {
+            Condition condition = plainCondition(where, EnumSet.of(OPEAR.EQ, OPEAR.IN));
+            if (condition == null || !isEquality(condition)) continue;
+            String name = condition.getName();
+            Set<Object> nameValues = values.get(name);
+            if (nameValues == null) {
+                nameValues = new LinkedHashSet<>();
+                values.put(name, nameValues);
+                firsts.put(name, condition);
+                counts.put(name, 0);
+            }
+            if (condition.getOpear() == OPEAR.EQ) {
+                nameValues.add(condition.getValue());
+            } else {
+                nameValues.addAll(Arrays.asList((Object[]) condition.getValue()));
+            }
+            counts.put(name, counts.get(name) + 1);
+        }
+
+        List<Where> result = new ArrayList<>(wheres.size());
+        for (Where where : wheres) {
+            Condition condition = plainCondition(where, EnumSet.of(OPEAR.EQ, OPEAR.IN));
+            if (condition == null || !isEquality(condition) || counts.get(condition.getName()) == 1) {
+                result.add(where);
+            } else if (firsts.get(condition.getName()) == condition) {
+                result.add(new MergedEqualities(condition.getConn(), condition.getName(), condition.getNameExpr(),
+                        values.get(condition.getName()).toArray()));
+            }
+        }
+        return result;
+    }
+
+    private static boolean isEquality(Condition condition) {
+        if (condition.getOpear() == OPEAR.EQ) {
+            return isBound(condition.getValue());
+        }
+        if (!(condition.getValue() instanceof Object[])) {
+            return false;
+        }
+        for (Object value : (Object[]) condition.getValue()) {
+            if (!isBound(value)) return false;
+        }
+        return true;
+    }
+
+    //nested and children conditions are each wrapped in their own query , they are not merged
+    private static Condition plainCondition(Where where, Set<OPEAR> opears) {
+        if (!(where instanceof Condition)) return null;
+        Condition condition = (Condition) where;
+        if (condition.isNested() || condition.isChildren() || !opears.contains(condition.getOpear())) return null;
+        return condition;
+    }
+
+    private static Integer compare(Object left, Object right) {
+        if (left instanceof Number && right instanceof Number) {
+            try {
+                return new BigDecimal(left.toString()).compareTo(new BigDecimal(right.toString()));
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+        if (left instanceof String && right instanceof String) {
+            return ((String) left).compareTo((String) right);
+        }
+        return null;
+    }
+}
@@ -1,5 +1,6 @@
 package com.zhbwang.bigdata.es.es4sql.query.multi;
 
+import com.alibaba.druid.sql.ast.statement.SQLUnionOperator;
 import com.zhbwang.bigdata.es.es4sql.domain.Field;
 import com.zhbwang.bigdata.es.es4sql.domain.Select;
 import com.zhbwang.bigdata.es.es4sql.query.QueryAction;
@@ -28,17 +29,31 @@ public class MultiQueryAction extends QueryAction {
         if(!isValidMultiSelectReturnFields()){
             throw new SqlParseException("on multi query fields/aliases of one table should be subset of other");
         }
+        SQLUnionOperator operation = this.multiQuerySelect.getOperation();
+        boolean twoQueriesOperation = operation == SQLUnionOperator.MINUS || operation == SQLUnionOperator.EXCEPT || operation == SQLUnionOperator.INTERSECT;
+        if(twoQueriesOperation && this.multiQuerySelect.getSelects().size() != 2){
+            throw new SqlParseException(operation.name.toLowerCase() + " supports only two queries");
+        }
         MultiQueryRequestBuilder requestBuilder = new MultiQueryRequestBuilder(this.multiQuerySelect);
-        requestBuilder.setFirstSearchRequest(createRequestBuilder(this.multiQuerySelect.getFirstSelect()));
-        requestBuilder.setSecondSearchRequest(createRequestBuilder(this.multiQuerySelect.getSecondSelect()));
-        requestBuilder.fillTableAliases(this.multiQuerySelect.getFirstSelect().getFields(),this.multiQuerySelect.getSecondSelect().getFields());
+        for(Select select : this.multiQuerySelect.getSelects()){
+            requestBuilder.addSearchRequest(createRequestBuilder(select));
+            requestBuilder.fillTableAliases(select.getFields());
+        }
 
         return requestBuilder;
     }
 
     private boolean isValidMultiSelectReturnFields() {
         List<Field> firstQueryFields = multiQuerySelect.getFirstSelect().getFields();
-        List<Field> secondQueryFields = multiQuerySelect.getSecondSelect().getFields();
+        for(Select select : multiQuerySelect.getSelects()){
+            if(!isValidReturnFields(firstQueryFields, select.getFields())){
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean isValidReturnFields(List<Field> firstQueryFields, List<Field> secondQueryFields) {
         if(firstQueryFields.size() > secondQueryFields.size()){
             return isSubsetFields(firstQueryFields, secondQueryFields);
         }
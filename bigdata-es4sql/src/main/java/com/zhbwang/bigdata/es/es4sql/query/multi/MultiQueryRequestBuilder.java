@@ -14,6 +14,8 @@ import org.elasticsearch.common.xcontent.XContentFactory;
 import org.elasticsearch.common.xcontent.XContentType;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -23,10 +25,8 @@ import java.util.Map;
  */
 public class MultiQueryRequestBuilder implements SqlElasticRequestBuilder {
 
-    private SearchRequestBuilder firstSearchRequest;
-    private SearchRequestBuilder secondSearchRequest;
-    private Map<String,String> firstTableFieldToAlias;
-    private Map<String,String> secondTableFieldToAlias;
+    private List<SearchRequestBuilder> searchRequests;
+    private List<Map<String,String>> tablesFieldToAlias;
     private MultiQuerySelect multiQuerySelect;
     private SQLUnionOperator relation;
 
@@ -34,8 +34,8 @@ public class MultiQueryRequestBuilder implements SqlElasticRequestBuilder {
     public MultiQueryRequestBuilder(MultiQuerySelect multiQuerySelect) {
         this.multiQuerySelect = multiQuerySelect;
         this.relation = multiQuerySelect.getOperation();
-        this.firstTableFieldToAlias = new HashMap<>();
-        this.secondTableFieldToAlias = new HashMap<>();
+        this.searchRequests = new ArrayList<>();
+        this.tablesFieldToAlias = new ArrayList<>();
     }
 
     @Override
@@ -48,14 +48,21 @@ public class MultiQueryRequestBuilder implements SqlElasticRequestBuilder {
     public String explain() {
 
         try {
-            XContentBuilder firstBuilder = XContentFactory.contentBuilder(XContentType.JSON).prettyPrint();
-            this.firstSearchRequest.internalBuilder().toXContent(firstBuilder, ToXContent.EMPTY_PARAMS);
+            if (this.searchRequests.size() == 2) {
+                XContentBuilder firstBuilder = XContentFactory.contentBuilder(XContentType.JSON).prettyPrint();
+                getFirstSearchRequest().internalBuilder().toXContent(firstBuilder, ToXContent.EMPTY_PARAMS);
 
-            XContentBuilder secondBuilder = XContentFactory.contentBuilder(XContentType.JSON).prettyPrint();
-            this.secondSearchRequest.internalBuilder().toXContent(secondBuilder, ToXContent.EMPTY_PARAMS);
-            String explained = String.format("performing %s on :\n left query:\n%s\n right query:\n%s", this.relation.name,firstBuilder.string(), secondBuilder.string());
-
-            return explained;
+                XContentBuilder secondBuilder = XContentFactory.contentBuilder(XContentType.JSON).prettyPrint();
+                getSecondSearchRequest().internalBuilder().toXContent(secondBuilder, ToXContent.EMPTY_PARAMS);
+                return String.format("performing %s on :\n left query:\n%s\n right query:\n%s", this.relation.name, firstBuilder.string(), secondBuilder.string());
+            }
+            StringBuilder explained = new StringBuilder(String.format("performing %s on :", this.relation.name));
+            for (int i = 0; i < this.searchRequests.size(); i++) {
+                XContentBuilder builder = XContentFactory.contentBuilder(XContentType.JSON).prettyPrint();
+                this.searchRequests.get(i).internalBuilder().toXContent(builder, ToXContent.EMPTY_PARAMS);
+                explained.append(String.format("\n query %d:\n%s", i + 1, builder.string()));
+            }
+            return explained.toString();
         } catch (IOException e) {
             e.printStackTrace();
         }
@@ -74,28 +81,30 @@ public class MultiQueryRequestBuilder implements SqlElasticRequestBuilder {
 
 
     public SearchRequestBuilder getFirstSearchRequest() {
-        return firstSearchRequest;
+        return searchRequests.get(0);
     }
 
     public SearchRequestBuilder getSecondSearchRequest() {
-        return secondSearchRequest;
+        return searchRequests.get(1);
     }
 
-    public SQLUnionOperator getRelation() {
-        return relation;
+    //one request for each select , by the selects order
+    public List<SearchRequestBuilder> getSearchRequests() {
+        return searchRequests;
     }
 
-    public void setFirstSearchRequest(SearchRequestBuilder firstSearchRequest) {
-        this.firstSearchRequest = firstSearchRequest;
+    public SQLUnionOperator getRelation() {
+        return relation;
     }
 
-    public void setSecondSearchRequest(SearchRequestBuilder secondSearchRequest) {
-        this.secondSearchRequest = secondSearchRequest;
+    public void addSearchRequest(SearchRequestBuilder searchRequest) {
+        this.searchRequests.add(searchRequest);
     }
 
-    public void fillTableAliases(List<Field> firstTableFields, List<Field> secondTableFields) {
-        fillTableToAlias(this.firstTableFieldToAlias,firstTableFields);
-        fillTableToAlias(this.secondTableFieldToAlias,secondTableFields);
+    public void fillTableAliases(List<Field> tableFields) {
+        Map<String,String> fieldToAlias = new HashMap<>();
+        fillTableToAlias(fieldToAlias,tableFields);
+        this.tablesFieldToAlias.add(fieldToAlias);
     }
 
     private void fillTableToAlias(Map<String, String> fieldToAlias, List<Field> fields) {
@@ -107,11 +116,15 @@ public class MultiQueryRequestBuilder implements SqlElasticRequestBuilder {
     }
 
     public Map<String, String> getFirstTableFieldToAlias() {
-        return firstTableFieldToAlias;
+        return tablesFieldToAlias.get(0);
     }
 
     public Map<String, String> getSecondTableFieldToAlias() {
-        return secondTableFieldToAlias;
+        return tablesFieldToAlias.get(1);
+    }
+
+    public Map<String, String> getTableFieldToAlias(int tableIndex) {
+        return tablesFieldToAlias.get(tableIndex);
     }
 
     public Select getOriginalSelect(boolean first){
@@ -122,4 +135,40 @@ public class MultiQueryRequestBuilder implements SqlElasticRequestBuilder {
             return this.multiQuerySelect.getSecondSelect();
         }
     }
+
+    /**
+     * Fields the rows of the first two tables are compared by (minus , intersect) , on the same order for both tables.
+     * Ordered by the first table field names (or aliases) , each table has its own field behind a shared alias.
+     */
+    public String[] getComparedFields(boolean first){
+        List<String> fieldsOrAliases = new ArrayList<>();
+        Map<String, String> firstTableFieldToAlias = getFirstTableFieldToAlias();
+        for(Field field : getOriginalSelect(true).getFields()){
+            if(firstTableFieldToAlias.containsKey(field.getName())){
+                fieldsOrAliases.add(field.getAlias());
+            }
+            else {
+                fieldsOrAliases.add(field.getName());
+            }
+        }
+        Collections.sort(fieldsOrAliases);
+
+        Map<String,String> aliasToField = new HashMap<>();
+        for(Map.Entry<String, String> entry : (first ? firstTableFieldToAlias : getSecondTableFieldToAlias()).entrySet()){
+            aliasToField.put(entry.getValue(), entry.getKey());
+        }
+        String[] fields = new String[fieldsOrAliases.size()];
+        for(int i = 0; i < fields.length ; i++) {
+            String field = fieldsOrAliases.get(i);
+            if(aliasToField.containsKey(field)){
+                field = aliasToField.get(field);
+            }
+            fields[i] = field;
+        }
+        return fields;
+    }
+
+    public List<Select> getOriginalSelects(){
+        return this.multiQuerySelect.getSelects();
+    }
 }
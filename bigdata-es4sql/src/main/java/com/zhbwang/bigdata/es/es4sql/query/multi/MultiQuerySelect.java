@@ -3,18 +3,26 @@ package com.zhbwang.bigdata.es.es4sql.query.multi;
 import com.alibaba.druid.sql.ast.statement.SQLUnionOperator;
 import com.zhbwang.bigdata.es.es4sql.domain.Select;
 
+import java.util.ArrayList;
+import java.util.List;
+
 /**
  * Created by Eliran on 19/8/2016.
  */
 public class MultiQuerySelect {
     private SQLUnionOperator operation;
-    private Select firstSelect;
-    private Select secondSelect;
+    private List<Select> selects;
 
     public MultiQuerySelect(SQLUnionOperator operation, Select firstSelect, Select secondSelect) {
         this.operation = operation;
-        this.firstSelect = firstSelect;
-        this.secondSelect = secondSelect;
+        this.selects = new ArrayList<>();
+        this.selects.add(firstSelect);
+        this.selects.add(secondSelect);
+    }
+
+    public MultiQuerySelect(SQLUnionOperator operation, List<Select> selects) {
+        this.operation = operation;
+        this.selects = selects;
     }
 
     public SQLUnionOperator getOperation() {
@@ -22,10 +30,15 @@ public class MultiQuerySelect {
     }
 
     public Select getFirstSelect() {
-        return firstSelect;
+        return selects.get(0);
     }
 
     public Select getSecondSelect() {
-        return secondSelect;
+        return selects.get(1);
+    }
+
+    //all the selects by their order in the query
+    public List<Select> getSelects() {
+        return selects;
     }
 }
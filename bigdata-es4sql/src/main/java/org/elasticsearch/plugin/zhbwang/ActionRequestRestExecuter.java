@@ -8,6 +8,7 @@ import org.elasticsearch.client.Client;
 import org.elasticsearch.rest.RestChannel;
 import org.elasticsearch.rest.action.support.RestStatusToXContentListener;
 import com.zhbwang.bigdata.es.es4sql.exception.SqlParseException;
+import com.zhbwang.bigdata.es.es4sql.query.SqlElasticCountRequestBuilder;
 import com.zhbwang.bigdata.es.es4sql.query.SqlElasticDeleteByQueryRequestBuilder;
 import com.zhbwang.bigdata.es.es4sql.query.SqlElasticRequestBuilder;
 import com.zhbwang.bigdata.es.es4sql.query.join.JoinRequestBuilder;
@@ -39,6 +40,9 @@ public class ActionRequestRestExecuter {
         if(requestBuilder instanceof JoinRequestBuilder){
             executeJoinRequestAndSendResponse();
         }
+		else if (requestBuilder instanceof SqlElasticCountRequestBuilder) {
+			client.search((SearchRequest) request, ((SqlElasticCountRequestBuilder) requestBuilder).withCount(new RestStatusToXContentListener<SearchResponse>(channel)));
+		}
 		else if (request instanceof SearchRequest) {
 			client.search((SearchRequest) request, new RestStatusToXContentListener<SearchResponse>(channel));
 		} else if (requestBuilder instanceof SqlElasticDeleteByQueryRequestBuilder) {
@@ -56,8 +60,7 @@ public class ActionRequestRestExecuter {
 
     private void executeJoinRequestAndSendResponse() throws IOException, SqlParseException {
         ElasticJoinExecutor executor = ElasticJoinExecutor.createJoinExecutor(client, requestBuilder);
-        executor.run();
-        executor.sendResponse(channel);
+        executor.runAndSendResponse(channel);
     }
 
 }
@@ -0,0 +1,31 @@
+package org.elasticsearch.plugin.zhbwang;
+
+import org.elasticsearch.search.internal.InternalSearchHit;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Join results kept in memory in join order , for responses that need all the hits (rest response , jdbc , csv).
+ */
+public class BufferedJoinedHits implements JoinedHitsSink {
+    private final List<InternalSearchHit> hits;
+
+    public BufferedJoinedHits() {
+        this.hits = new ArrayList<>();
+    }
+
+    @Override
+    public void add(InternalSearchHit hit) {
+        hits.add(hit);
+    }
+
+    @Override
+    public int size() {
+        return hits.size();
+    }
+
+    public List<InternalSearchHit> getHits() {
+        return hits;
+    }
+}
@@ -0,0 +1,227 @@
+package org.elasticsearch.plugin.zhbwang;
+
+import org.elasticsearch.ExceptionsHelper;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.search.SearchType;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.search.SearchHit;
+
+import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Runs several scroll searches , up to maxConcurrentScrolls of them in parallel , and returns their pages as they come.
+ * Each running scroll has at most one page waiting for the caller, so the memory used is bounded by the running scrolls pages.
+ * Requests should already have their search type , scroll keep alive and size. A request that is not SCAN
+ * returns its first page with the search response.
+ * Scrolls of stopped searches are cleared.
+ */
+public class ConcurrentScrollsSearch implements HitsPagesReader {
+    private final Client client;
+    private final Deque<SearchRequest> pendingScrolls;
+    private final Map<SearchRequest, Integer> searchIndexes;
+    private final int maxConcurrentScrolls;
+    private final TimeValue keepAlive;
+    private final MetaSearchResult metaResults;
+    private final BlockingQueue<Object> pages;
+    private final Set<String> returnedHits;
+    private final Set<Integer> stoppedSearches;
+    private int runningScrolls;
+    private boolean stopped;
+    private int lastPageSearchIndex;
+
+    /**
+     * @param removeDuplicates a hit returned by more than one of the searches is returned once.
+     * @param metaResults shards of each search first response are added to it , may be null.
+     */
+    public ConcurrentScrollsSearch(Client client, List<SearchRequest> requests, int maxConcurrentScrolls, TimeValue keepAlive, boolean removeDuplicates, MetaSearchResult metaResults) {
+        this.client = client;
+        this.pendingScrolls = new ArrayDeque<>(requests);
+        this.searchIndexes = new IdentityHashMap<>();
+        for (int i = 0; i < requests.size(); i++) {
+            searchIndexes.put(requests.get(i), i);
+        }
+        this.stoppedSearches = new HashSet<>();
+        this.maxConcurrentScrolls = maxConcurrentScrolls;
+        this.keepAlive = keepAlive;
+        this.metaResults = metaResults;
+        this.pages = new LinkedBlockingQueue<>();
+        this.returnedHits = removeDuplicates ? new HashSet<String>() : null;
+        this.runningScrolls = 0;
+        this.stopped = false;
+        startScrollsIfNeeded();
+    }
+
+    /**
+     * Returns the next page of hits of any search , an empty page when all searches are done.
+     */
+    @Override
+    public SearchHit[] nextPage() {
+        while (true) {
+            synchronized (this) {
+                if (runningScrolls == 0 && pendingScrolls.isEmpty() && pages.isEmpty()) return new SearchHit[0];
+            }
+            Object page;
+            try {
+                page = pages.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                stop();
+                throw new RuntimeException("interrupted while waiting for scroll page", e);
+            }
+            if (page instanceof Throwable) {
+                stop();
+                throw ExceptionsHelper.convertToRuntime((Throwable) page);
+            }
+            ScrollPage scrollPage = (ScrollPage) page;
+            SearchResponse response = scrollPage.response;
+            SearchHit[] hits = response.getHits().getHits();
+            boolean searchStopped;
+            synchronized (this) {
+                searchStopped = stoppedSearches.contains(scrollPage.searchIndex);
+            }
+            if (hits.length == 0 || searchStopped) {
+                if (hits.length > 0) clearScroll(response.getScrollId());
+                synchronized (this) {
+                    runningScrolls--;
+                }
+                startScrollsIfNeeded();
+                continue;
+            }
+            scroll(response.getScrollId(), scrollPage.searchIndex);
+            hits = removeAlreadyReturned(hits);
+            if (hits.length > 0) {
+                lastPageSearchIndex = scrollPage.searchIndex;
+                return hits;
+            }
+        }
+    }
+
+    public int getNumOfSearches() {
+        return searchIndexes.size();
+    }
+
+    /**
+     * Index (in the requests list) of the search the last returned page belongs to.
+     */
+    public int getLastPageSearchIndex() {
+        return lastPageSearchIndex;
+    }
+
+    /**
+     * The search is not scrolled anymore , its pages that are already in flight are dropped.
+     */
+    public synchronized void stopSearch(int searchIndex) {
+        if (!stoppedSearches.add(searchIndex)) return;
+        Iterator<SearchRequest> pending = pendingScrolls.iterator();
+        while (pending.hasNext()) {
+            if (searchIndexes.get(pending.next()) == searchIndex) pending.remove();
+        }
+    }
+
+    /**
+     * No more searches are started and pages still in flight are dropped.
+     */
+    @Override
+    public synchronized void stop() {
+        stopped = true;
+        pendingScrolls.clear();
+        for (Object page : pages) {
+            if (page instanceof ScrollPage) clearScroll(((ScrollPage) page).response.getScrollId());
+        }
+        pages.clear();
+    }
+
+    private SearchHit[] removeAlreadyReturned(SearchHit[] hits) {
+        if (returnedHits == null) return hits;
+        List<SearchHit> newHits = new ArrayList<>(hits.length);
+        for (SearchHit hit : hits) {
+            if (returnedHits.add(hit.getIndex() + "/" + hit.getType() + "/" + hit.getId())) newHits.add(hit);
+        }
+        return newHits.size() == hits.length ? hits : newHits.toArray(new SearchHit[newHits.size()]);
+    }
+
+    private void startScrollsIfNeeded() {
+        List<SearchRequest> toStart = new ArrayList<>();
+        synchronized (this) {
+            while (!stopped && runningScrolls < maxConcurrentScrolls && !pendingScrolls.isEmpty()) {
+                toStart.add(pendingScrolls.poll());
+                runningScrolls++;
+            }
+        }
+        for (SearchRequest request : toStart) {
+            final int searchIndex = searchIndexes.get(request);
+            final boolean scan = request.searchType() == SearchType.SCAN;
+            client.search(request, new ActionListener<SearchResponse>() {
+                @Override
+                public void onResponse(SearchResponse response) {
+                    if (metaResults != null) {
+                        synchronized (metaResults) {
+                            metaResults.addSuccessfulShards(response.getSuccessfulShards());
+                            metaResults.addFailedShards(response.getFailedShards());
+                            metaResults.addTotalNumOfShards(response.getTotalShards());
+                            metaResults.updateTimeOut(response.isTimedOut());
+                        }
+                    }
+                    if (scan) {
+                        scroll(response.getScrollId(), searchIndex);
+                    } else {
+                        addPage(searchIndex, response);
+                    }
+                }
+
+                @Override
+                public void onFailure(Throwable e) {
+                    pages.add(e);
+                }
+            });
+        }
+    }
+
+    private void scroll(String scrollId, final int searchIndex) {
+        synchronized (this) {
+            if (stopped) {
+                clearScroll(scrollId);
+                return;
+            }
+        }
+        client.prepareSearchScroll(scrollId).setScroll(keepAlive).execute(new ActionListener<SearchResponse>() {
+            @Override
+            public void onResponse(SearchResponse response) {
+                addPage(searchIndex, response);
+            }
+
+            @Override
+            public void onFailure(Throwable e) {
+                pages.add(e);
+            }
+        });
+    }
+
+    private synchronized void addPage(int searchIndex, SearchResponse response) {
+        if (stopped) {
+            clearScroll(response.getScrollId());
+            return;
+        }
+        pages.add(new ScrollPage(searchIndex, response));
+    }
+
+    //the scroll context is freed now instead of when its keep alive ends , failures are ignored
+    private void clearScroll(String scrollId) {
+        ElasticUtils.clearScroll(client, scrollId);
+    }
+
+    private static class ScrollPage {
+        private final int searchIndex;
+        private final SearchResponse response;
+
+        private ScrollPage(int searchIndex, SearchResponse response) {
+            this.searchIndex = searchIndex;
+            this.response = response;
+        }
+    }
+}
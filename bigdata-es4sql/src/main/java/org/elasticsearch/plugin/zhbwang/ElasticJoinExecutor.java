@@ -14,11 +14,15 @@ import org.elasticsearch.search.SearchHits;
 import org.elasticsearch.search.internal.InternalSearchHit;
 import org.elasticsearch.search.internal.InternalSearchHits;
 import com.zhbwang.bigdata.es.es4sql.domain.Field;
+import com.zhbwang.bigdata.es.es4sql.domain.Order;
 import com.zhbwang.bigdata.es.es4sql.exception.SqlParseException;
 import com.zhbwang.bigdata.es.es4sql.query.SqlElasticRequestBuilder;
 import com.zhbwang.bigdata.es.es4sql.query.join.HashJoinElasticRequestBuilder;
 import com.zhbwang.bigdata.es.es4sql.query.join.JoinRequestBuilder;
+import com.zhbwang.bigdata.es.es4sql.query.join.MultiJoinRequestBuilder;
 import com.zhbwang.bigdata.es.es4sql.query.join.NestedLoopsElasticRequestBuilder;
+import com.zhbwang.bigdata.es.es4sql.query.join.SemiJoinRequestBuilder;
+import com.zhbwang.bigdata.es.es4sql.query.join.SortMergeJoinElasticRequestBuilder;
 import com.zhbwang.bigdata.es.es4sql.query.join.TableInJoinRequestBuilder;
 
 import java.io.IOException;
@@ -33,14 +37,32 @@ public abstract class ElasticJoinExecutor implements ElasticHitsExecutor {
     protected final int MAX_RESULTS_ON_ONE_FETCH = 10000;
     private Set<String> aliasesOnReturn;
     private boolean allFieldsReturn;
+    private boolean streamResults;
+    private StreamingJoinedHits streamedResults;
+    private BufferedJoinedHits bufferedResults;
+    private List<Order> orderBys;
+    private List<String> hiddenOrderFields;
+    private int totalLimit;
+    private TopNJoinedHits topNResults;
+    private TimeValue scrollKeepAlive;
+    private int maxConcurrentShardScrolls;
+    private int scrollPrefetchDepth;
 
     protected ElasticJoinExecutor(JoinRequestBuilder requestBuilder) {
         metaResults = new MetaSearchResult();
         aliasesOnReturn = new HashSet<>();
-        List<Field> firstTableReturnedField = requestBuilder.getFirstTable().getReturnedFields();
-        List<Field> secondTableReturnedField = requestBuilder.getSecondTable().getReturnedFields();
-        allFieldsReturn = (firstTableReturnedField == null || firstTableReturnedField.size() == 0)
-                            && (secondTableReturnedField == null || secondTableReturnedField.size() == 0);
+        allFieldsReturn = true;
+        for (TableInJoinRequestBuilder table : requestBuilder.getTables()) {
+            List<Field> returnedFields = table.getReturnedFields();
+            if (returnedFields != null && returnedFields.size() > 0) allFieldsReturn = false;
+        }
+        streamResults = requestBuilder.isStreamResults();
+        orderBys = requestBuilder.getOrderBys();
+        hiddenOrderFields = requestBuilder.getHiddenOrderFields();
+        totalLimit = requestBuilder.getTotalLimit();
+        scrollKeepAlive = requestBuilder.getScrollKeepAlive();
+        maxConcurrentShardScrolls = requestBuilder.getMaxConcurrentShardScrolls();
+        scrollPrefetchDepth = requestBuilder.getScrollPrefetchDepth();
     }
 
     public void  sendResponse(RestChannel channel){
@@ -55,7 +77,8 @@ public abstract class ElasticJoinExecutor implements ElasticHitsExecutor {
 
     public void run() throws IOException, SqlParseException {
         long timeBefore = System.currentTimeMillis();
-        List<InternalSearchHit> combinedSearchHits =  innerRun();
+        innerRun();
+        List<InternalSearchHit> combinedSearchHits = topNResults != null ? topNResults.getSortedHits() : bufferedResults.getHits();
         int resultsSize = combinedSearchHits.size();
         InternalSearchHit[] hits = combinedSearchHits.toArray(new InternalSearchHit[resultsSize]);
         this.results = new InternalSearchHits(hits, resultsSize,1.0f);
@@ -64,12 +87,53 @@ public abstract class ElasticJoinExecutor implements ElasticHitsExecutor {
     }
 
 
-    protected abstract List<InternalSearchHit> innerRun() throws IOException, SqlParseException;
+    /**
+     * Runs the join and sends the response. With STREAM_JOIN_RESULTS hint each joined row is written to
+     * the channel output when it is produced, instead of collecting all hits and building the json at the end.
+     * Ordered joins are not streamed , their rows are only known when the join ends.
+     */
+    public void runAndSendResponse(RestChannel channel) throws IOException, SqlParseException {
+        if (!streamResults || isOrderedJoin()) {
+            run();
+            sendResponse(channel);
+            return;
+        }
+        long timeBefore = System.currentTimeMillis();
+        this.streamedResults = new StreamingJoinedHits(channel.newBuilder());
+        innerRun();
+        this.metaResults.setTookImMilli(System.currentTimeMillis() - timeBefore);
+        channel.sendResponse(new BytesRestResponse(RestStatus.OK, streamedResults.finish(metaResults)));
+    }
+
+    protected JoinedHitsSink createResultsSink() {
+        if (isOrderedJoin()) {
+            topNResults = new TopNJoinedHits(orderBys, hiddenOrderFields, totalLimit);
+            return topNResults;
+        }
+        if (streamedResults != null) return streamedResults;
+        bufferedResults = new BufferedJoinedHits();
+        return bufferedResults;
+    }
+
+    protected boolean isOrderedJoin() {
+        return orderBys != null && !orderBys.isEmpty();
+    }
+
+    //ordered joins have to see all the joined rows , the top-N list keeps only totalLimit of them
+    protected int getResultsLimit() {
+        return isOrderedJoin() ? Integer.MAX_VALUE : totalLimit;
+    }
+
+    protected abstract void innerRun() throws IOException, SqlParseException;
 
     public SearchHits getHits(){
         return results;
     }
 
+    public MetaSearchResult getMetaResults() {
+        return metaResults;
+    }
+
     public static ElasticJoinExecutor createJoinExecutor(Client client, SqlElasticRequestBuilder requestBuilder){
         if(requestBuilder instanceof HashJoinElasticRequestBuilder) {
             HashJoinElasticRequestBuilder hashJoin = (HashJoinElasticRequestBuilder) requestBuilder;
@@ -79,16 +143,27 @@ public abstract class ElasticJoinExecutor implements ElasticHitsExecutor {
             NestedLoopsElasticRequestBuilder nestedLoops = (NestedLoopsElasticRequestBuilder) requestBuilder;
             return  new NestedLoopsElasticExecutor(client,nestedLoops);
         }
+        else if (requestBuilder instanceof SortMergeJoinElasticRequestBuilder){
+            SortMergeJoinElasticRequestBuilder sortMergeJoin = (SortMergeJoinElasticRequestBuilder) requestBuilder;
+            return new SortMergeJoinElasticExecutor(client, sortMergeJoin);
+        }
+        else if (requestBuilder instanceof MultiJoinRequestBuilder){
+            MultiJoinRequestBuilder multiJoin = (MultiJoinRequestBuilder) requestBuilder;
+            return new MultiJoinElasticExecutor(client, multiJoin);
+        }
+        else if (requestBuilder instanceof SemiJoinRequestBuilder){
+            SemiJoinRequestBuilder semiJoin = (SemiJoinRequestBuilder) requestBuilder;
+            return new SemiJoinElasticExecutor(client, semiJoin);
+        }
         else {
             throw new RuntimeException("Unsuported requestBuilder of type: " + requestBuilder.getClass());
         }
     }
 
-    protected void mergeSourceAndAddAliases(Map<String,Object> secondTableHitSource, InternalSearchHit searchHit,String t1Alias,String t2Alias) {
-        Map<String,Object> results = mapWithAliases(searchHit.getSource(), t1Alias);
-        results.putAll(mapWithAliases(secondTableHitSource, t2Alias));
-        searchHit.getSource().clear();
-        searchHit.getSource().putAll(results);
+    //the joined row references both sources , "alias.field" keys are resolved when the row is read.
+    protected InternalSearchHit createJoinedHit(int docId, String id, Text type, SearchHit firstTableHit, String t1Alias, Map<String,Object> secondTableHitSource, String t2Alias) {
+        JoinedSearchHit.JoinedSource joinedSource = new JoinedSearchHit.JoinedSource(firstTableHit.sourceAsMap(), t1Alias, secondTableHitSource, t2Alias, aliasesOnReturn);
+        return new JoinedSearchHit(docId, id, type, firstTableHit.getFields(), joinedSource);
     }
 
     protected Map<String,Object> mapWithAliases(Map<String, Object> source, String alias) {
@@ -102,11 +177,19 @@ public abstract class ElasticJoinExecutor implements ElasticHitsExecutor {
     }
 
     protected void  onlyReturnedFields(Map<String, Object> fieldsMap, List<Field> required,boolean allRequired) {
-        HashMap<String,Object> filteredMap = new HashMap<>();
+        Map<String,Object> filteredMap = returnedFieldsSource(fieldsMap, required, allRequired);
+        if(filteredMap == fieldsMap) return;
+        fieldsMap.clear();
+        fieldsMap.putAll(filteredMap);
+
+    }
+
+    //same as onlyReturnedFields without changing the source , returns the source itself when all fields are returned
+    protected Map<String, Object> returnedFieldsSource(Map<String, Object> fieldsMap, List<Field> required,boolean allRequired) {
         if(allFieldsReturn || allRequired) {
-            filteredMap.putAll(fieldsMap);
-            return;
+            return fieldsMap;
         }
+        HashMap<String,Object> filteredMap = new HashMap<>();
         for(Field field: required){
             String name = field.getName();
             String returnName = name;
@@ -117,9 +200,7 @@ public abstract class ElasticJoinExecutor implements ElasticHitsExecutor {
             }
             filteredMap.put(returnName, deepSearchInMap(fieldsMap, name));
         }
-        fieldsMap.clear();
-        fieldsMap.putAll(filteredMap);
-
+        return filteredMap;
     }
 
     protected Object deepSearchInMap(Map<String, Object> fieldsMap, String name) {
@@ -139,7 +220,7 @@ public abstract class ElasticJoinExecutor implements ElasticHitsExecutor {
     }
 
 
-    protected void addUnmatchedResults(List<InternalSearchHit> combinedResults, Collection<SearchHitsResult> firstTableSearchHits, List<Field> secondTableReturnedFields,int currentNumOfIds, int totalLimit,String t1Alias,String t2Alias) {
+    protected void addUnmatchedResults(JoinedHitsSink combinedResults, Collection<SearchHitsResult> firstTableSearchHits, List<Field> secondTableReturnedFields,int currentNumOfIds, int totalLimit,String t1Alias,String t2Alias) {
         boolean limitReached = false;
         for(SearchHitsResult hitsResult : firstTableSearchHits){
             if(!hitsResult.isMatchedWithOtherTable())
@@ -163,16 +244,9 @@ public abstract class ElasticJoinExecutor implements ElasticHitsExecutor {
         String unmatchedId = hit.id() + "|0";
         Text unamatchedType = new Text(hit.getType() + "|null");
 
-        InternalSearchHit searchHit = new InternalSearchHit(docId, unmatchedId, unamatchedType, hit.getFields());
-
-        searchHit.sourceRef(hit.getSourceRef());
-        searchHit.sourceAsMap().clear();
-        searchHit.sourceAsMap().putAll(hit.sourceAsMap());
         Map<String,Object> emptySecondTableHitSource = createNullsSource(secondTableReturnedFields);
 
-        mergeSourceAndAddAliases(emptySecondTableHitSource, searchHit,t1Alias,t2Alias);
-
-        return searchHit;
+        return createJoinedHit(docId, unmatchedId, unamatchedType, hit, t1Alias, emptySecondTableHitSource, t2Alias);
     }
 
     protected Map<String, Object> createNullsSource(List<Field> secondTableReturnedFields) {
@@ -192,18 +266,35 @@ public abstract class ElasticJoinExecutor implements ElasticHitsExecutor {
         this.metaResults.updateTimeOut(searchResponse.isTimedOut());
     }
 
+    protected TimeValue getFirstScrollKeepAlive() {
+        return scrollKeepAlive != null ? scrollKeepAlive : ElasticUtils.DEFAULT_FIRST_SCROLL_KEEP_ALIVE;
+    }
+
+    protected TimeValue getScrollKeepAlive() {
+        return scrollKeepAlive != null ? scrollKeepAlive : ElasticUtils.DEFAULT_SCROLL_KEEP_ALIVE;
+    }
+
     protected SearchResponse scrollOneTimeWithMax(Client client,TableInJoinRequestBuilder tableRequest) {
         SearchResponse responseWithHits;SearchRequestBuilder scrollRequest = tableRequest.getRequestBuilder()
-                .setScroll(new TimeValue(60000))
+                .setScroll(getFirstScrollKeepAlive())
                 .setSize(MAX_RESULTS_ON_ONE_FETCH);
         boolean ordered = tableRequest.getOriginalSelect().isOrderdSelect();
         if(!ordered) scrollRequest.setSearchType(SearchType.SCAN);
         responseWithHits = scrollRequest.get();
         //on ordered select - not using SCAN , elastic returns hits on first scroll
         if(!ordered)
-            responseWithHits = client.prepareSearchScroll(responseWithHits.getScrollId()).setScroll(new TimeValue(600000)).get();
+            responseWithHits = client.prepareSearchScroll(responseWithHits.getScrollId()).setScroll(getScrollKeepAlive()).get();
         return responseWithHits;
     }
 
+    //pages of the table hits , with PARALLEL_SHARD_SCROLL hint unordered tables are scrolled on each shard in parallel
+    protected HitsPagesReader scrollTable(Client client, TableInJoinRequestBuilder tableRequest) {
+        if (maxConcurrentShardScrolls > 0 && !tableRequest.getOriginalSelect().isOrderdSelect()) {
+            return new ParallelShardScroller(client, tableRequest.getRequestBuilder(), MAX_RESULTS_ON_ONE_FETCH, maxConcurrentShardScrolls, getScrollKeepAlive(), metaResults);
+        }
+        SearchResponse firstResponse = scrollOneTimeWithMax(client, tableRequest);
+        updateMetaSearchResults(firstResponse);
+        return new ScrollHitsReader(client, firstResponse, getScrollKeepAlive(), scrollPrefetchDepth);
+    }
 
 }
@@ -1,6 +1,8 @@
 package org.elasticsearch.plugin.zhbwang;
 
 import com.google.common.collect.ImmutableMap;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.search.ClearScrollResponse;
 import org.elasticsearch.action.search.SearchRequestBuilder;
 import org.elasticsearch.action.search.SearchResponse;
 import org.elasticsearch.action.search.SearchType;
@@ -20,17 +22,39 @@ import java.util.HashMap;
  * Created by Eliran on 2/9/2016.
  */
 public class ElasticUtils {
+    //keep alive of the first scroll request and of the scroll pages , when SCROLL_KEEP_ALIVE hint is not used
+    public static final TimeValue DEFAULT_FIRST_SCROLL_KEEP_ALIVE = new TimeValue(60000);
+    public static final TimeValue DEFAULT_SCROLL_KEEP_ALIVE = new TimeValue(600000);
+
+    //frees the scroll contexts without waiting , if it fails they expire with their keep alive
+    public static void clearScroll(Client client, String scrollId) {
+        if (scrollId == null) return;
+        client.prepareClearScroll().addScrollId(scrollId).execute(new ActionListener<ClearScrollResponse>() {
+            @Override
+            public void onResponse(ClearScrollResponse response) {
+            }
+
+            @Override
+            public void onFailure(Throwable e) {
+            }
+        });
+    }
 
     public static SearchResponse scrollOneTimeWithHits(Client client, SearchRequestBuilder requestBuilder, Select originalSelect, int resultSize) {
+        return scrollOneTimeWithHits(client, requestBuilder, originalSelect, resultSize, null);
+    }
+
+    //keepAlive null means the default keep alives
+    public static SearchResponse scrollOneTimeWithHits(Client client, SearchRequestBuilder requestBuilder, Select originalSelect, int resultSize, TimeValue keepAlive) {
         SearchResponse responseWithHits;SearchRequestBuilder scrollRequest = requestBuilder
-                .setScroll(new TimeValue(60000))
+                .setScroll(keepAlive != null ? keepAlive : DEFAULT_FIRST_SCROLL_KEEP_ALIVE)
                 .setSize(resultSize);
         boolean ordered = originalSelect.isOrderdSelect();
         if(!ordered) scrollRequest.setSearchType(SearchType.SCAN);
         responseWithHits = scrollRequest.get();
         //on ordered select - not using SCAN , elastic returns hits on first scroll
         if(!ordered) {
-            responseWithHits = client.prepareSearchScroll(responseWithHits.getScrollId()).setScroll(new TimeValue(600000)).get();
+            responseWithHits = client.prepareSearchScroll(responseWithHits.getScrollId()).setScroll(keepAlive != null ? keepAlive : DEFAULT_SCROLL_KEEP_ALIVE).get();
         }
         return responseWithHits;
     }
@@ -62,6 +86,21 @@ public class ElasticUtils {
         builder.field("_shards", ImmutableMap.of("total", metaResults.getTotalNumOfShards(),
                 "successful", metaResults.getSuccessfulShards()
                 , "failed", metaResults.getFailedShards()));
+        if (metaResults.isUsedLookupCache()) {
+            builder.field("lookup_cache", ImmutableMap.of("hits", metaResults.getLookupCacheHits(), "misses", metaResults.getLookupCacheMisses()));
+        }
+        if (metaResults.getSpilledPartitions() > 0) {
+            builder.field("spilled_partitions", metaResults.getSpilledPartitions());
+        }
+        if (metaResults.getBloomFilteredHits() > 0) {
+            builder.field("bloom_filtered_hits", metaResults.getBloomFilteredHits());
+        }
+        if (metaResults.getTermsFilterChunks() > 0) {
+            builder.field("terms_filter_chunks", metaResults.getTermsFilterChunks());
+        }
+        if (metaResults.getShardScrolls() > 0) {
+            builder.field("shard_scrolls", metaResults.getShardScrolls());
+        }
         builder.field("hits",hits) ;
         builder.endObject();
 
@@ -0,0 +1,84 @@
+package org.elasticsearch.plugin.zhbwang;
+
+/**
+ * Open addressing (linear probing) set of 128 bit row fingerprints.
+ * Fingerprints are kept in two primitive arrays , 16 bytes a row with no object for each row.
+ * An all zeros slot is empty , the all zeros fingerprint itself is kept in a flag.
+ */
+public class FingerprintSet {
+    private long[] highs;
+    private long[] lows;
+    private int mask;
+    private int size;
+    private boolean containsZero;
+
+    public FingerprintSet() {
+        this(1024);
+    }
+
+    public FingerprintSet(int expectedSize) {
+        int capacity = Integer.highestOneBit(Math.max(expectedSize, 8) * 2 - 1) << 1;
+        this.highs = new long[capacity];
+        this.lows = new long[capacity];
+        this.mask = capacity - 1;
+    }
+
+    /**
+     * @return false if the fingerprint was already in the set.
+     */
+    public boolean add(RowFingerprint fingerprint) {
+        long high = fingerprint.getHigh();
+        long low = fingerprint.getLow();
+        if (high == 0 && low == 0) {
+            if (containsZero) return false;
+            containsZero = true;
+            size++;
+            return true;
+        }
+        int slot = findSlot(high, low);
+        if (highs[slot] != 0 || lows[slot] != 0) return false;
+        highs[slot] = high;
+        lows[slot] = low;
+        size++;
+        //load factor of 0.5 keeps probing short
+        if (size * 2 > highs.length) grow();
+        return true;
+    }
+
+    public boolean contains(RowFingerprint fingerprint) {
+        long high = fingerprint.getHigh();
+        long low = fingerprint.getLow();
+        if (high == 0 && low == 0) return containsZero;
+        int slot = findSlot(high, low);
+        return highs[slot] != 0 || lows[slot] != 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    //slot of the fingerprint , or the empty slot it should be put in
+    private int findSlot(long high, long low) {
+        //fingerprints are murmur3 bits , low bits are already well mixed
+        int slot = (int) low & mask;
+        while (highs[slot] != 0 || lows[slot] != 0) {
+            if (highs[slot] == high && lows[slot] == low) return slot;
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private void grow() {
+        long[] oldHighs = highs;
+        long[] oldLows = lows;
+        highs = new long[oldHighs.length * 2];
+        lows = new long[oldLows.length * 2];
+        mask = highs.length - 1;
+        for (int i = 0; i < oldHighs.length; i++) {
+            if (oldHighs[i] == 0 && oldLows[i] == 0) continue;
+            int slot = findSlot(oldHighs[i], oldLows[i]);
+            highs[slot] = oldHighs[i];
+            lows[slot] = oldLows[i];
+        }
+    }
+}
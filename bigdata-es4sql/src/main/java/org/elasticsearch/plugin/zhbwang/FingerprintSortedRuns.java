@@ -0,0 +1,313 @@
+package org.elasticsearch.plugin.zhbwang;
+
+import org.elasticsearch.common.io.stream.InputStreamStreamInput;
+import org.elasticsearch.common.io.stream.OutputStreamStreamOutput;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * External sort of rows by their fingerprint: rows are buffered until maxRowsInMemory,
+ * then the buffer is sorted and spilled to a temp file as a sorted run.
+ * The runs (and the rows left in memory) are read back as one sorted stream by a k-way merge.
+ * A merge reads at most maxMergeFanIn runs at once , when there are more runs they are first merged
+ * in groups into bigger runs , so the open files stay bounded.
+ */
+public class FingerprintSortedRuns implements Closeable {
+    private static final Comparator<SortedRow> FINGERPRINT_ORDER = new Comparator<SortedRow>() {
+        @Override
+        public int compare(SortedRow row1, SortedRow row2) {
+            return compareFingerprints(row1.fingerprint, row2.fingerprint);
+        }
+    };
+
+    public static final int DEFAULT_MAX_MERGE_FAN_IN = 64;
+
+    private int maxRowsInMemory;
+    private int maxMergeFanIn;
+    private List<SortedRow> rowsInMemory;
+    private List<RunFile> runs;
+
+    public FingerprintSortedRuns(int maxRowsInMemory) {
+        this(maxRowsInMemory, DEFAULT_MAX_MERGE_FAN_IN);
+    }
+
+    public FingerprintSortedRuns(int maxRowsInMemory, int maxMergeFanIn) {
+        this.maxRowsInMemory = maxRowsInMemory;
+        this.maxMergeFanIn = Math.max(maxMergeFanIn, 2);
+        this.rowsInMemory = new ArrayList<>();
+        this.runs = new ArrayList<>();
+    }
+
+    public static int compareFingerprints(RowFingerprint fingerprint1, RowFingerprint fingerprint2) {
+        int compareHigh = Long.compare(fingerprint1.getHigh(), fingerprint2.getHigh());
+        if (compareHigh != 0) return compareHigh;
+        return Long.compare(fingerprint1.getLow(), fingerprint2.getLow());
+    }
+
+    public void add(SortedRow row) throws IOException {
+        rowsInMemory.add(row);
+        if (rowsInMemory.size() >= maxRowsInMemory) {
+            spillRun();
+        }
+    }
+
+    public int getNumOfRuns() {
+        return runs.size();
+    }
+
+    /**
+     * All the added rows , in fingerprint order. No rows should be added after it is called.
+     */
+    public SortedRowsIterator sortedRows() throws IOException {
+        Collections.sort(rowsInMemory, FINGERPRINT_ORDER);
+        //the rows in memory are one more source of the last merge
+        while (runs.size() > maxMergeFanIn - 1) {
+            mergeRunsPass();
+        }
+        List<Iterator<SortedRow>> sources = new ArrayList<>(runs.size() + 1);
+        for (RunFile run : runs) {
+            sources.add(run.rows());
+        }
+        sources.add(rowsInMemory.iterator());
+        return new SortedRowsIterator(sources);
+    }
+
+    @Override
+    public void close() {
+        for (RunFile run : runs) {
+            run.delete();
+        }
+        runs.clear();
+        rowsInMemory = null;
+    }
+
+    private void spillRun() throws IOException {
+        Collections.sort(rowsInMemory, FINGERPRINT_ORDER);
+        runs.add(writeRun(rowsInMemory.iterator()));
+        rowsInMemory = new ArrayList<>();
+    }
+
+    //each group of maxMergeFanIn runs is merged into one run
+    private void mergeRunsPass() throws IOException {
+        List<RunFile> mergedRuns = new ArrayList<>();
+        try {
+            while (!runs.isEmpty()) {
+                List<RunFile> group = new ArrayList<>(runs.subList(0, Math.min(maxMergeFanIn, runs.size())));
+                if (group.size() == 1) {
+                    mergedRuns.add(group.get(0));
+                    runs.remove(0);
+                    continue;
+                }
+                List<Iterator<SortedRow>> sources = new ArrayList<>(group.size());
+                for (RunFile run : group) {
+                    sources.add(run.rows());
+                }
+                mergedRuns.add(writeRun(new SortedRowsIterator(sources)));
+                for (RunFile run : group) {
+                    run.delete();
+                }
+                runs.subList(0, group.size()).clear();
+            }
+        } finally {
+            runs.addAll(mergedRuns);
+        }
+    }
+
+    //a run that could not be written is deleted
+    private RunFile writeRun(Iterator<SortedRow> rows) throws IOException {
+        RunFile run = new RunFile();
+        boolean written = false;
+        try {
+            while (rows.hasNext()) {
+                run.write(rows.next());
+            }
+            run.closeWriter();
+            written = true;
+        } finally {
+            if (!written) run.delete();
+        }
+        return run;
+    }
+
+    /**
+     * A row fingerprint , with the values and hit identity of the row when the row may be returned.
+     */
+    public static class SortedRow {
+        private RowFingerprint fingerprint;
+        private String id;
+        private String type;
+        private Object[] values;
+
+        public SortedRow(RowFingerprint fingerprint) {
+            this(fingerprint, null, null, null);
+        }
+
+        public SortedRow(RowFingerprint fingerprint, String id, String type, Object[] values) {
+            this.fingerprint = fingerprint;
+            this.id = id;
+            this.type = type;
+            this.values = values;
+        }
+
+        public RowFingerprint getFingerprint() {
+            return fingerprint;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public String getType() {
+            return type;
+        }
+
+        public Object[] getValues() {
+            return values;
+        }
+    }
+
+    private static class RunFile {
+        private File file;
+        private StreamOutput out;
+        private StreamInput in;
+        private int rows;
+
+        private RunFile() throws IOException {
+            this.file = File.createTempFile("sql-multi-query-", ".spill");
+            try {
+                this.out = new OutputStreamStreamOutput(new BufferedOutputStream(new FileOutputStream(file)));
+            } catch (IOException e) {
+                file.delete();
+                throw e;
+            }
+            this.rows = 0;
+        }
+
+        private void write(SortedRow row) throws IOException {
+            out.writeLong(row.fingerprint.getHigh());
+            out.writeLong(row.fingerprint.getLow());
+            out.writeBoolean(row.values != null);
+            if (row.values != null) {
+                out.writeString(row.id);
+                out.writeString(row.type);
+                out.writeVInt(row.values.length);
+                for (Object value : row.values) {
+                    out.writeGenericValue(value);
+                }
+            }
+            rows++;
+        }
+
+        private Iterator<SortedRow> rows() throws IOException {
+            in = new InputStreamStreamInput(new BufferedInputStream(new FileInputStream(file)));
+            return new Iterator<SortedRow>() {
+                private int rowsLeft = rows;
+
+                @Override
+                public boolean hasNext() {
+                    return rowsLeft > 0;
+                }
+
+                @Override
+                public SortedRow next() {
+                    if (rowsLeft <= 0) throw new NoSuchElementException();
+                    rowsLeft--;
+                    try {
+                        return readRow(in);
+                    } catch (IOException e) {
+                        throw new RuntimeException("could not read spilled multi query run", e);
+                    }
+                }
+
+                @Override
+                public void remove() {
+                    throw new UnsupportedOperationException();
+                }
+            };
+        }
+
+        private void closeWriter() throws IOException {
+            if (out != null) {
+                out.close();
+                out = null;
+            }
+        }
+
+        //a merge that was stopped early leaves the run open
+        private void delete() {
+            try {
+                closeWriter();
+                if (in != null) in.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            file.delete();
+        }
+    }
+
+    private static SortedRow readRow(StreamInput in) throws IOException {
+        RowFingerprint fingerprint = new RowFingerprint(in.readLong(), in.readLong());
+        if (!in.readBoolean()) return new SortedRow(fingerprint);
+        String id = in.readString();
+        String type = in.readString();
+        Object[] values = new Object[in.readVInt()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = in.readGenericValue();
+        }
+        return new SortedRow(fingerprint, id, type, values);
+    }
+
+    /**
+     * K-way merge of sorted runs , one row of each run is kept in memory.
+     */
+    public static class SortedRowsIterator implements Iterator<SortedRow> {
+        private PriorityQueue<RunHead> heads;
+
+        private SortedRowsIterator(List<Iterator<SortedRow>> sources) {
+            this.heads = new PriorityQueue<>(Math.max(sources.size(), 1), new Comparator<RunHead>() {
+                @Override
+                public int compare(RunHead head1, RunHead head2) {
+                    return FINGERPRINT_ORDER.compare(head1.row, head2.row);
+                }
+            });
+            for (Iterator<SortedRow> source : sources) {
+                if (source.hasNext()) heads.add(new RunHead(source.next(), source));
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return !heads.isEmpty();
+        }
+
+        @Override
+        public SortedRow next() {
+            RunHead head = heads.poll();
+            if (head == null) throw new NoSuchElementException();
+            SortedRow row = head.row;
+            if (head.source.hasNext()) {
+                head.row = head.source.next();
+                heads.add(head);
+            }
+            return row;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    private static class RunHead {
+        private SortedRow row;
+        private Iterator<SortedRow> source;
+
+        private RunHead(SortedRow row, Iterator<SortedRow> source) {
+            this.row = row;
+            this.source = source;
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package org.elasticsearch.plugin.zhbwang;
+
+import com.google.common.hash.BloomFilter;
+import com.google.common.hash.Funnel;
+import com.google.common.hash.PrimitiveSink;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Bloom filter of the first table join keys (one per comparison).
+ * Second table hits whose keys are not in the filter of any comparison can't match and are dropped on arrival.
+ */
+public class HashJoinBloomFilter {
+    private static final double FALSE_POSITIVE_PROBABILITY = 0.01;
+
+    private Map<String, BloomFilter<HashJoinKey>> comparisonIdToFilter;
+
+    public HashJoinBloomFilter(Collection<String> comparisonIds, int expectedInsertions) {
+        this.comparisonIdToFilter = new HashMap<>();
+        for (String comparisonId : comparisonIds) {
+            comparisonIdToFilter.put(comparisonId, BloomFilter.create(HashJoinKeyFunnel.INSTANCE, Math.max(expectedInsertions, 1), FALSE_POSITIVE_PROBABILITY));
+        }
+    }
+
+    public void put(String comparisonId, HashJoinKey key) {
+        comparisonIdToFilter.get(comparisonId).put(key);
+    }
+
+    public boolean mightContain(String comparisonId, HashJoinKey key) {
+        return comparisonIdToFilter.get(comparisonId).mightContain(key);
+    }
+
+    //values are already normalized by HashJoinKey , so equal keys feed the same bytes
+    private enum HashJoinKeyFunnel implements Funnel<HashJoinKey> {
+        INSTANCE;
+
+        @Override
+        public void funnel(HashJoinKey key, PrimitiveSink into) {
+            for (Object value : key.getValues()) {
+                if (value == null) {
+                    into.putByte((byte) 0);
+                } else if (value instanceof Long) {
+                    into.putByte((byte) 1).putLong((Long) value);
+                } else if (value instanceof Double) {
+                    into.putByte((byte) 2).putDouble((Double) value);
+                } else if (value instanceof String) {
+                    into.putByte((byte) 3).putUnencodedChars((String) value);
+                } else if (value instanceof Boolean) {
+                    into.putByte((byte) 4).putBoolean((Boolean) value);
+                } else {
+                    into.putByte((byte) 5).putInt(value.hashCode());
+                }
+            }
+        }
+    }
+}
@@ -10,7 +10,7 @@ import java.util.*;
  */
 public class HashJoinComparisonStructure {
     private HashMap<String,List<Map.Entry<Field,Field>>> comparisonIDtoComparisonFields;
-    private HashMap<String,HashMap<String,SearchHitsResult>> comparisonIDtoComparisonHash;
+    private HashMap<String,HashMap<HashJoinKey,SearchHitsResult>> comparisonIDtoComparisonHash;
 
     public HashJoinComparisonStructure(List<List<Map.Entry<Field, Field>>> t1ToT2FieldsComparisons) {
         comparisonIDtoComparisonFields = new HashMap<>();
@@ -18,13 +18,22 @@ public class HashJoinComparisonStructure {
         if(t1ToT2FieldsComparisons == null || t1ToT2FieldsComparisons.size()  == 0){
             String comparisonId = UUID.randomUUID().toString();
             this.comparisonIDtoComparisonFields.put(comparisonId,new ArrayList<Map.Entry<Field,Field>>());
-            this.comparisonIDtoComparisonHash.put(comparisonId,new HashMap<String, SearchHitsResult>());
+            this.comparisonIDtoComparisonHash.put(comparisonId,new HashMap<HashJoinKey, SearchHitsResult>());
         }
         for (List<Map.Entry<Field,Field>> comparisonFields : t1ToT2FieldsComparisons){
             String comparisonId = UUID.randomUUID().toString();
             //maby from field to List<IDS> ?
             this.comparisonIDtoComparisonFields.put(comparisonId,comparisonFields);
-            this.comparisonIDtoComparisonHash.put(comparisonId, new HashMap<String, SearchHitsResult>());
+            this.comparisonIDtoComparisonHash.put(comparisonId, new HashMap<HashJoinKey, SearchHitsResult>());
+        }
+    }
+
+    //shares the comparison ids of another structure, so keys can move between structures.
+    public HashJoinComparisonStructure(HashMap<String, List<Map.Entry<Field, Field>>> comparisonIDtoComparisonFields) {
+        this.comparisonIDtoComparisonFields = comparisonIDtoComparisonFields;
+        this.comparisonIDtoComparisonHash = new HashMap<>();
+        for (String comparisonId : comparisonIDtoComparisonFields.keySet()) {
+            this.comparisonIDtoComparisonHash.put(comparisonId, new HashMap<HashJoinKey, SearchHitsResult>());
         }
     }
 
@@ -32,8 +41,8 @@ public class HashJoinComparisonStructure {
         return comparisonIDtoComparisonFields;
     }
 
-    public void insertIntoComparisonHash(String comparisonID,String comparisonKey,InternalSearchHit hit){
-        HashMap<String, SearchHitsResult> comparisonHash = this.comparisonIDtoComparisonHash.get(comparisonID);
+    public void insertIntoComparisonHash(String comparisonID,HashJoinKey comparisonKey,InternalSearchHit hit){
+        HashMap<HashJoinKey, SearchHitsResult> comparisonHash = this.comparisonIDtoComparisonHash.get(comparisonID);
         SearchHitsResult currentSearchHitsResult = comparisonHash.get(comparisonKey);
         if(currentSearchHitsResult == null) {
             currentSearchHitsResult = new SearchHitsResult(new ArrayList<InternalSearchHit>(),false);
@@ -42,15 +51,19 @@ public class HashJoinComparisonStructure {
         currentSearchHitsResult.getSearchHits().add(hit);
     }
 
-    public SearchHitsResult searchForMatchingSearchHits(String comparisonID,String comparisonKey){
-        HashMap<String, SearchHitsResult> comparisonHash = this.comparisonIDtoComparisonHash.get(comparisonID);
+    public SearchHitsResult searchForMatchingSearchHits(String comparisonID,HashJoinKey comparisonKey){
+        HashMap<HashJoinKey, SearchHitsResult> comparisonHash = this.comparisonIDtoComparisonHash.get(comparisonID);
         return comparisonHash.get(comparisonKey);
     }
 
+    public HashMap<HashJoinKey, SearchHitsResult> getComparisonHash(String comparisonID){
+        return this.comparisonIDtoComparisonHash.get(comparisonID);
+    }
+
     public List<SearchHitsResult> getAllSearchHits(){
         List<SearchHitsResult> allSearchHits = new ArrayList<>();
 
-        for(HashMap<String, SearchHitsResult> comparisonHash : this.comparisonIDtoComparisonHash.values())
+        for(HashMap<HashJoinKey, SearchHitsResult> comparisonHash : this.comparisonIDtoComparisonHash.values())
             allSearchHits.addAll(comparisonHash.values());
         return allSearchHits;
     }
@@ -1,12 +1,11 @@
 package org.elasticsearch.plugin.zhbwang;
 
 import com.alibaba.druid.sql.ast.statement.SQLJoinTableSource;
+import com.carrotsearch.hppc.LongHashSet;
 import org.elasticsearch.action.search.SearchRequestBuilder;
 import org.elasticsearch.action.search.SearchResponse;
-import org.elasticsearch.action.search.SearchType;
 import org.elasticsearch.client.Client;
 import org.elasticsearch.common.text.Text;
-import org.elasticsearch.common.unit.TimeValue;
 import org.elasticsearch.index.query.BoolQueryBuilder;
 import org.elasticsearch.index.query.QueryBuilders;
 import org.elasticsearch.search.SearchHit;
@@ -15,7 +14,9 @@ import com.zhbwang.bigdata.es.es4sql.domain.Field;
 import com.zhbwang.bigdata.es.es4sql.domain.Select;
 import com.zhbwang.bigdata.es.es4sql.domain.Where;
 import com.zhbwang.bigdata.es.es4sql.exception.SqlParseException;
+import com.zhbwang.bigdata.es.es4sql.query.DefaultQueryAction;
 import com.zhbwang.bigdata.es.es4sql.query.join.HashJoinElasticRequestBuilder;
+import com.zhbwang.bigdata.es.es4sql.query.join.JoinCostPlanner;
 import com.zhbwang.bigdata.es.es4sql.query.join.TableInJoinRequestBuilder;
 import com.zhbwang.bigdata.es.es4sql.query.maker.QueryMaker;
 
@@ -33,55 +34,96 @@ public class HashJoinElasticExecutor extends ElasticJoinExecutor {
     private boolean useQueryTermsFilterOptimization = false;
     private final int MAX_RESULTS_FOR_FIRST_TABLE = 100000;
     HashJoinComparisonStructure hashJoinComparisonStructure;
-    private Set<String> alreadyMatched;
+    //(first table ordinal , second table ordinal) pairs , only needed when OR comparisons can match a pair twice.
+    private LongHashSet alreadyMatched;
+    private int secondTableOrdinal;
+    private HashJoinSpillingStructure spillingStructure;
+    private HashJoinBloomFilter bloomFilter;
+    //distinct terms of each second table field , the terms filter is dropped when one of them has too many
+    private Map<String, Set<Object>> distinctTermsPerKey = new HashMap<>();
+    private boolean termsFilterOverflow;
+    private List<SearchRequestBuilder> termsFilterChunkRequests;
+    private SearchHit lastSecondTableHit;
+    private Map<String, Object> lastSecondTableSource;
+    private JoinCostPlanner costPlanner;
 
     public HashJoinElasticExecutor(Client client, HashJoinElasticRequestBuilder requestBuilder) {
         super(requestBuilder);
         this.client = client;
         this.requestBuilder = requestBuilder;
-        this.useQueryTermsFilterOptimization = requestBuilder.isUseTermFiltersOptimization();
-        this.hashJoinComparisonStructure = new HashJoinComparisonStructure(requestBuilder.getT1ToT2FieldsComparison());
-        this.alreadyMatched = new HashSet<>();
     }
 
-    public List<InternalSearchHit> innerRun() throws IOException, SqlParseException {
+    public void innerRun() throws IOException, SqlParseException {
+        //the tables are counted only when the join runs , the plan can swap them and turn on spilling
+        if (requestBuilder.isPlanByTableCounts()) {
+            this.costPlanner = new JoinCostPlanner(client, requestBuilder);
+            this.costPlanner.planHashJoin();
+        }
+        //bloom filter mode collects the terms too , but only pushes them down under maxTermsToPushDown
+        this.useQueryTermsFilterOptimization = requestBuilder.isUseTermFiltersOptimization() || requestBuilder.isUseBloomFilter();
+        this.hashJoinComparisonStructure = new HashJoinComparisonStructure(requestBuilder.getT1ToT2FieldsComparison());
+        if (this.hashJoinComparisonStructure.getComparisons().size() > 1) {
+            this.alreadyMatched = new LongHashSet();
+        }
 
         Map<String, Map<String, List<Object>>> optimizationTermsFilterStructure =
                 initOptimizationStructure();
 
         updateFirstTableLimitIfNeeded();
         TableInJoinRequestBuilder firstTableRequest = requestBuilder.getFirstTable();
-        createKeyToResultsAndFillOptimizationStructure(optimizationTermsFilterStructure, firstTableRequest);
+        if (requestBuilder.isUseSpillToDisk()) {
+            this.spillingStructure = new HashJoinSpillingStructure(this.hashJoinComparisonStructure.getComparisons(),
+                    requestBuilder.getMaxRowsInMemory(), requestBuilder.getNumOfSpillPartitions());
+        }
+        try {
+            createKeyToResultsAndFillOptimizationStructure(optimizationTermsFilterStructure, firstTableRequest);
+
+            TableInJoinRequestBuilder secondTableRequest = requestBuilder.getSecondTable();
+            if (needToOptimize(optimizationTermsFilterStructure)) {
+                List<BoolQueryBuilder> termsFilterChunks = createTermsFilterChunks(optimizationTermsFilterStructure);
+                if (termsFilterChunks.size() > 1) {
+                    this.termsFilterChunkRequests = createTermsFilterChunkRequests(termsFilterChunks, secondTableRequest);
+                } else {
+                    updateRequestWithTermsFilter(optimizationTermsFilterStructure, secondTableRequest);
+                }
+            }
 
-        TableInJoinRequestBuilder secondTableRequest = requestBuilder.getSecondTable();
-        if (needToOptimize(optimizationTermsFilterStructure)) {
-            updateRequestWithTermsFilter(optimizationTermsFilterStructure, secondTableRequest);
+            JoinedHitsSink combinedResult = createCombinedResults(secondTableRequest);
+
+            int currentNumOfResults = combinedResult.size();
+            int totalLimit = getResultsLimit();
+            if (requestBuilder.getJoinType() == SQLJoinTableSource.JoinType.LEFT_OUTER_JOIN && currentNumOfResults < totalLimit) {
+                String t1Alias = requestBuilder.getFirstTable().getAlias();
+                String t2Alias = requestBuilder.getSecondTable().getAlias();
+                //todo: for each till Limit
+                addUnmatchedResults(combinedResult, getAllFirstTableSearchHits(),
+                        requestBuilder.getSecondTable().getReturnedFields(),
+                        currentNumOfResults, totalLimit,
+                        t1Alias,
+                        t2Alias);
+            }
+        } finally {
+            if (this.spillingStructure != null) {
+                this.spillingStructure.close();
+            }
         }
+    }
 
-        List<InternalSearchHit> combinedResult = createCombinedResults(secondTableRequest);
+    //null if the join had strategy hints , the planned tables are on getRequestBuilder()
+    public JoinCostPlanner getCostPlanner() {
+        return costPlanner;
+    }
 
-        int currentNumOfResults = combinedResult.size();
-        int totalLimit = requestBuilder.getTotalLimit();
-        if (requestBuilder.getJoinType() == SQLJoinTableSource.JoinType.LEFT_OUTER_JOIN && currentNumOfResults < totalLimit) {
-            String t1Alias = requestBuilder.getFirstTable().getAlias();
-            String t2Alias = requestBuilder.getSecondTable().getAlias();
-            //todo: for each till Limit
-            addUnmatchedResults(combinedResult, this.hashJoinComparisonStructure.getAllSearchHits(),
-                    requestBuilder.getSecondTable().getReturnedFields(),
-                    currentNumOfResults, totalLimit,
-                    t1Alias,
-                    t2Alias);
-        }
-        if(firstTableRequest.getOriginalSelect().isOrderdSelect()){
-            Collections.sort(combinedResult,new Comparator<InternalSearchHit>() {
-                @Override
-                public int compare(InternalSearchHit o1, InternalSearchHit o2) {
-                    return o1.docId() - o2.docId();
-                }
-            });
+    public HashJoinElasticRequestBuilder getRequestBuilder() {
+        return requestBuilder;
+    }
 
+    private List<SearchHitsResult> getAllFirstTableSearchHits() {
+        if (this.spillingStructure == null) {
+            return this.hashJoinComparisonStructure.getAllSearchHits();
         }
-        return combinedResult;
+        //unmatched hits of spilled partitions were already added when the partition was joined
+        return this.spillingStructure.getAllInMemorySearchHits();
     }
 
     private Map<String, Map<String, List<Object>>> initOptimizationStructure() {
@@ -93,7 +135,8 @@ public class HashJoinElasticExecutor extends ElasticJoinExecutor {
     }
 
     private void updateFirstTableLimitIfNeeded() {
-        if (requestBuilder.getJoinType() == SQLJoinTableSource.JoinType.LEFT_OUTER_JOIN) {
+        //ordered joins need all the first table hits , the top-N is chosen after joining
+        if (requestBuilder.getJoinType() == SQLJoinTableSource.JoinType.LEFT_OUTER_JOIN && !isOrderedJoin()) {
             Integer firstTableHintLimit = requestBuilder.getFirstTable().getHintLimit();
             int totalLimit = requestBuilder.getTotalLimit();
             if (firstTableHintLimit == null || firstTableHintLimit > totalLimit) {
@@ -102,117 +145,211 @@ public class HashJoinElasticExecutor extends ElasticJoinExecutor {
         }
     }
 
-    private List<InternalSearchHit> createCombinedResults( TableInJoinRequestBuilder secondTableRequest) {
-        List<InternalSearchHit> combinedResult = new ArrayList<>();
-        int resultIds = 0;
-        int totalLimit = this.requestBuilder.getTotalLimit();
+    private JoinedHitsSink createCombinedResults( TableInJoinRequestBuilder secondTableRequest) throws IOException {
+        JoinedHitsSink combinedResult = createResultsSink();
+        int totalLimit = getResultsLimit();
         Integer hintLimit = secondTableRequest.getHintLimit();
-        SearchResponse searchResponse;
-        boolean finishedScrolling;
-        if (hintLimit != null && hintLimit < MAX_RESULTS_ON_ONE_FETCH) {
-            searchResponse = secondTableRequest.getRequestBuilder().setSize(hintLimit).get();
-            finishedScrolling = true;
+        SearchHit[] secondTableHits;
+        HitsPagesReader pagesReader;
+        if (this.termsFilterChunkRequests != null) {
+            pagesReader = new TermsFilterChunksSearch(client, this.termsFilterChunkRequests,
+                    requestBuilder.getMaxConcurrentTermsFilterChunks(), MAX_RESULTS_ON_ONE_FETCH, getScrollKeepAlive(), metaResults);
+            secondTableHits = pagesReader.nextPage();
+        } else if (hintLimit != null && hintLimit < MAX_RESULTS_ON_ONE_FETCH) {
+            SearchResponse searchResponse = secondTableRequest.getRequestBuilder().setSize(hintLimit).get();
+            updateMetaSearchResults(searchResponse);
+            pagesReader = null;
+            secondTableHits = searchResponse.getHits().getHits();
         } else {
-            searchResponse = secondTableRequest.getRequestBuilder()
-                    .setSearchType(SearchType.SCAN)
-                    .setScroll(new TimeValue(60000))
-                    .setSize(MAX_RESULTS_ON_ONE_FETCH).get();
-            searchResponse = client.prepareSearchScroll(searchResponse.getScrollId()).setScroll(new TimeValue(600000)).get();
-            finishedScrolling = false;
+            //next page is fetched while this one is probed
+            pagesReader = scrollTable(client, secondTableRequest);
+            secondTableHits = pagesReader.nextPage();
         }
-        updateMetaSearchResults(searchResponse);
 
         boolean limitReached = false;
         int fetchedSoFarFromSecondTable = 0;
+        long bloomFilteredHits = 0;
         while (!limitReached) {
-            SearchHit[] secondTableHits = searchResponse.getHits().getHits();
             fetchedSoFarFromSecondTable += secondTableHits.length;
             for (SearchHit secondTableHit : secondTableHits) {
                 if (limitReached) break;
+                int ordinal = ++secondTableOrdinal;
                 //todo: need to run on comparisons. for each comparison check if exists and add.
                 HashMap<String, List<Map.Entry<Field, Field>>> comparisons = this.hashJoinComparisonStructure.getComparisons();
 
                 for (Map.Entry<String, List<Map.Entry<Field, Field>>> comparison : comparisons.entrySet()) {
                     String comparisonID = comparison.getKey();
                     List<Map.Entry<Field, Field>> t1ToT2FieldsComparison = comparison.getValue();
-                    String key = getComparisonKey(t1ToT2FieldsComparison, secondTableHit, false, null);
-
-                    SearchHitsResult searchHitsResult = this.hashJoinComparisonStructure.searchForMatchingSearchHits(comparisonID, key);
-
-                    if (searchHitsResult != null && searchHitsResult.getSearchHits().size() > 0) {
-                        searchHitsResult.setMatchedWithOtherTable(true);
-                        List<InternalSearchHit> searchHits = searchHitsResult.getSearchHits();
-                        for (InternalSearchHit matchingHit : searchHits) {
-                            String combinedId = matchingHit.id() + "|" + secondTableHit.getId();
-                            //in order to prevent same matching when using OR on hashJoins.
-                            if(this.alreadyMatched.contains(combinedId)){
-                                continue;
-                            }
-                            else {
-                                this.alreadyMatched.add(combinedId);
-                            }
-
-                            Map<String,Object> copiedSource = new HashMap<String,Object>();
-                            copyMaps(copiedSource,secondTableHit.sourceAsMap());
-                            onlyReturnedFields(copiedSource, secondTableRequest.getReturnedFields(),secondTableRequest.getOriginalSelect().isSelectAll());
-
-
-
-                            InternalSearchHit searchHit = new InternalSearchHit(matchingHit.docId(), combinedId, new Text(matchingHit.getType() + "|" + secondTableHit.getType()), matchingHit.getFields());
-                            searchHit.sourceRef(matchingHit.getSourceRef());
-                            searchHit.sourceAsMap().clear();
-                            searchHit.sourceAsMap().putAll(matchingHit.sourceAsMap());
-                            String t1Alias = requestBuilder.getFirstTable().getAlias();
-                            String t2Alias = requestBuilder.getSecondTable().getAlias();
-                            mergeSourceAndAddAliases(copiedSource, searchHit, t1Alias, t2Alias);
-
-                            combinedResult.add(searchHit);
-                            resultIds++;
-                            if (resultIds >= totalLimit) {
-                                limitReached = true;
-                                break;
-                            }
+                    HashJoinKey key = getComparisonKey(t1ToT2FieldsComparison, secondTableHit, false, null);
+                    if (this.bloomFilter != null && !this.bloomFilter.mightContain(comparisonID, key)) {
+                        bloomFilteredHits++;
+                        continue;
+                    }
+
+                    SearchHitsResult searchHitsResult;
+                    if (this.spillingStructure != null) {
+                        int partition = this.spillingStructure.getPartition(key);
+                        if (this.spillingStructure.isSpilled(partition)) {
+                            this.spillingStructure.spillSecondTableHit(partition, comparisonID, key, ordinal, secondTableHit);
+                            continue;
                         }
+                        searchHitsResult = this.spillingStructure.searchForMatchingSearchHits(partition, comparisonID, key);
+                    } else {
+                        searchHitsResult = this.hashJoinComparisonStructure.searchForMatchingSearchHits(comparisonID, key);
+                    }
+
+                    if (addMatchingResults(combinedResult, secondTableHit, ordinal, searchHitsResult, secondTableRequest, totalLimit)) {
+                        limitReached = true;
+                        break;
                     }
                 }
             }
-            if (!finishedScrolling) {
-                if (secondTableHits.length > 0 && (hintLimit == null || fetchedSoFarFromSecondTable >= hintLimit)) {
-                    searchResponse = client.prepareSearchScroll(searchResponse.getScrollId()).setScroll(new TimeValue(600000)).execute().actionGet();
-                } else break;
-            } else {
-                break;
-            }
+            if (pagesReader != null && secondTableHits.length > 0 && (hintLimit == null || fetchedSoFarFromSecondTable < hintLimit)) {
+                secondTableHits = pagesReader.nextPage();
+            } else break;
+        }
+        if (pagesReader != null) {
+            pagesReader.stop();
+        }
+        if (this.bloomFilter != null) {
+            metaResults.addBloomFilteredHits(bloomFilteredHits);
+        }
+        if (this.spillingStructure != null) {
+            metaResults.addSpilledPartitions(this.spillingStructure.getSpilledPartitions().size());
+        }
+        if (!limitReached && this.spillingStructure != null) {
+            combineSpilledPartitions(combinedResult, secondTableRequest, totalLimit);
         }
         return combinedResult;
     }
 
-    private void copyMaps(Map<String, Object> into, Map<String, Object> from) {
-        for(Map.Entry<String,Object> keyAndValue : from.entrySet())
-            into.put(keyAndValue.getKey(),keyAndValue.getValue());
+    //joins each spilled partition on its own , so only one partition of the first table is in memory at a time.
+    private void combineSpilledPartitions(final JoinedHitsSink combinedResult, final TableInJoinRequestBuilder secondTableRequest, final int totalLimit) throws IOException {
+        final boolean leftJoin = requestBuilder.getJoinType() == SQLJoinTableSource.JoinType.LEFT_OUTER_JOIN;
+        this.spillingStructure.joinSpilledPartitions(new HashJoinSpillingStructure.SpilledPartitionJoiner() {
+            @Override
+            public boolean joinRow(HashJoinSpillingStructure.SpilledRow secondTableRow, SearchHitsResult matchingRows) {
+                return addMatchingResults(combinedResult, secondTableRow.getHit(), secondTableRow.getHit().docId(), matchingRows, secondTableRequest, totalLimit);
+            }
+
+            //ordered joins keep only the top-N of the unmatched hits
+            @Override
+            public boolean addUnmatched(List<SearchHitsResult> firstTableRows) {
+                if (!leftJoin) return false;
+                addUnmatchedResults(combinedResult, firstTableRows, secondTableRequest.getReturnedFields(), combinedResult.size(), totalLimit,
+                        requestBuilder.getFirstTable().getAlias(), secondTableRequest.getAlias());
+                return combinedResult.size() >= totalLimit;
+            }
+        });
     }
 
-    private void createKeyToResultsAndFillOptimizationStructure(Map<String,Map<String, List<Object>>> optimizationTermsFilterStructure, TableInJoinRequestBuilder firstTableRequest) {
+    private boolean addMatchingResults(JoinedHitsSink combinedResult, SearchHit secondTableHit, int secondTableOrdinal, SearchHitsResult searchHitsResult, TableInJoinRequestBuilder secondTableRequest, int totalLimit) {
+        if (searchHitsResult == null || searchHitsResult.getSearchHits().size() == 0) {
+            return false;
+        }
+        searchHitsResult.setMatchedWithOtherTable(true);
+        List<InternalSearchHit> searchHits = searchHitsResult.getSearchHits();
+        Map<String, Object> secondTableSource = secondTableReturnedSource(secondTableHit, secondTableRequest);
+        for (InternalSearchHit matchingHit : searchHits) {
+            //in order to prevent same matching when using OR on hashJoins.
+            if (this.alreadyMatched != null && !this.alreadyMatched.add(((long) matchingHit.docId() << 32) | (secondTableOrdinal & 0xFFFFFFFFL))) {
+                continue;
+            }
+            String combinedId = matchingHit.id() + "|" + secondTableHit.getId();
+
+            String t1Alias = requestBuilder.getFirstTable().getAlias();
+            String t2Alias = requestBuilder.getSecondTable().getAlias();
+            InternalSearchHit searchHit = createJoinedHit(matchingHit.docId(), combinedId, new Text(matchingHit.getType() + "|" + secondTableHit.getType()), matchingHit, t1Alias, secondTableSource, t2Alias);
+
+            combinedResult.add(searchHit);
+            if (combinedResult.size() >= totalLimit) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    //the second table hit is filtered once , it may match several first table hits and comparisons
+    private Map<String, Object> secondTableReturnedSource(SearchHit secondTableHit, TableInJoinRequestBuilder secondTableRequest) {
+        if (secondTableHit != this.lastSecondTableHit) {
+            this.lastSecondTableSource = returnedFieldsSource(secondTableHit.sourceAsMap(), secondTableRequest.getReturnedFields(), secondTableRequest.getOriginalSelect().isSelectAll());
+            this.lastSecondTableHit = secondTableHit;
+        }
+        return this.lastSecondTableSource;
+    }
+
+    private void createKeyToResultsAndFillOptimizationStructure(Map<String,Map<String, List<Object>>> optimizationTermsFilterStructure, TableInJoinRequestBuilder firstTableRequest) throws IOException {
+        if (this.spillingStructure != null) {
+            scrollAndPartitionFirstTable(optimizationTermsFilterStructure, firstTableRequest);
+            return;
+        }
         List<SearchHit> firstTableHits = fetchAllHits(firstTableRequest);
+        initBloomFilterIfNeeded(firstTableHits.size());
+        insertFirstTableHits(optimizationTermsFilterStructure, firstTableRequest, firstTableHits.toArray(new SearchHit[firstTableHits.size()]), 1);
+    }
 
-        int resultIds = 1;
+    private void initBloomFilterIfNeeded(long expectedInsertions) {
+        if (requestBuilder.isUseBloomFilter()) {
+            this.bloomFilter = new HashJoinBloomFilter(this.hashJoinComparisonStructure.getComparisons().keySet(), (int) Math.min(expectedInsertions, Integer.MAX_VALUE));
+        }
+    }
+
+    private int insertFirstTableHits(Map<String,Map<String, List<Object>>> optimizationTermsFilterStructure, TableInJoinRequestBuilder firstTableRequest, SearchHit[] firstTableHits, int resultIds) throws IOException {
         for (SearchHit hit : firstTableHits) {
+            //same docId on all comparisons , it is the first table ordinal of alreadyMatched
+            int docId = resultIds++;
             HashMap<String, List<Map.Entry<Field, Field>>> comparisons = this.hashJoinComparisonStructure.getComparisons();
             for (Map.Entry<String, List<Map.Entry<Field, Field>>> comparison : comparisons.entrySet()) {
                 String comparisonID = comparison.getKey();
                 List<Map.Entry<Field, Field>> t1ToT2FieldsComparison = comparison.getValue();
 
-                String key = getComparisonKey(t1ToT2FieldsComparison, hit, true, optimizationTermsFilterStructure.get(comparisonID));
+                HashJoinKey key = getComparisonKey(t1ToT2FieldsComparison, hit, true, optimizationTermsFilterStructure.get(comparisonID));
 
                 //int docid , id
-                InternalSearchHit searchHit = new InternalSearchHit(resultIds, hit.id(), new Text(hit.getType()), hit.getFields());
+                InternalSearchHit searchHit = new InternalSearchHit(docId, hit.id(), new Text(hit.getType()), hit.getFields());
                 searchHit.sourceRef(hit.getSourceRef());
 
                 onlyReturnedFields(searchHit.sourceAsMap(), firstTableRequest.getReturnedFields(),firstTableRequest.getOriginalSelect().isSelectAll());
-                resultIds++;
-                this.hashJoinComparisonStructure.insertIntoComparisonHash(comparisonID, key, searchHit);
+                if (this.bloomFilter != null) {
+                    this.bloomFilter.put(comparisonID, key);
+                }
+                if (this.spillingStructure != null) {
+                    this.spillingStructure.insertIntoComparisonHash(comparisonID, key, searchHit);
+                } else {
+                    this.hashJoinComparisonStructure.insertIntoComparisonHash(comparisonID, key, searchHit);
+                }
+            }
+        }
+        return resultIds;
+    }
+
+    //no MAX_RESULTS_FOR_FIRST_TABLE here , partitions that don't fit in memory are spilled to disk.
+    private void scrollAndPartitionFirstTable(Map<String,Map<String, List<Object>>> optimizationTermsFilterStructure, TableInJoinRequestBuilder firstTableRequest) throws IOException {
+        Integer hintLimit = firstTableRequest.getHintLimit();
+        if (hintLimit != null && hintLimit < MAX_RESULTS_ON_ONE_FETCH) {
+            List<SearchHit> firstTableHits = fetchAllHits(firstTableRequest);
+            initBloomFilterIfNeeded(firstTableHits.size());
+            insertFirstTableHits(optimizationTermsFilterStructure, firstTableRequest, firstTableHits.toArray(new SearchHit[firstTableHits.size()]), 1);
+            return;
+        }
+        SearchResponse scrollResp = scrollOneTimeWithMax(client, firstTableRequest);
+        updateMetaSearchResults(scrollResp);
+        long totalHits = scrollResp.getHits().getTotalHits();
+        initBloomFilterIfNeeded(hintLimit == null ? totalHits : Math.min(totalHits, hintLimit));
+        PrefetchingScrollReader scrollReader = new PrefetchingScrollReader(client, scrollResp, getScrollKeepAlive(), requestBuilder.getScrollPrefetchDepth());
+        SearchHit[] hits = scrollResp.getHits().getHits();
+        int resultIds = 1;
+        int curentNumOfResults = 0;
+        while (hits.length != 0 && (hintLimit == null || curentNumOfResults < hintLimit)) {
+            if (hintLimit != null && curentNumOfResults + hits.length > hintLimit) {
+                hits = Arrays.copyOf(hits, hintLimit - curentNumOfResults);
             }
+            curentNumOfResults += hits.length;
+            resultIds = insertFirstTableHits(optimizationTermsFilterStructure, firstTableRequest, hits, resultIds);
+            if (hintLimit != null && curentNumOfResults >= hintLimit) break;
+            hits = scrollReader.next().getHits().getHits();
         }
+        scrollReader.stop();
     }
 
     private List<SearchHit> fetchAllHits(TableInJoinRequestBuilder tableInJoinRequest) {
@@ -228,12 +365,10 @@ public class HashJoinElasticExecutor extends ElasticJoinExecutor {
     }
 
     private List<SearchHit> scrollTillLimit(TableInJoinRequestBuilder tableInJoinRequest, Integer hintLimit) {
-        SearchResponse scrollResp = scrollOneTimeWithMax(client,tableInJoinRequest);
-
-        updateMetaSearchResults(scrollResp);
+        HitsPagesReader pagesReader = scrollTable(client, tableInJoinRequest);
         List<SearchHit> hitsWithScan = new ArrayList<>();
         int curentNumOfResults = 0;
-        SearchHit[] hits = scrollResp.getHits().hits();
+        SearchHit[] hits = pagesReader.nextPage();
 
         if (hintLimit == null) hintLimit = MAX_RESULTS_FOR_FIRST_TABLE;
 
@@ -245,15 +380,18 @@ public class HashJoinElasticExecutor extends ElasticJoinExecutor {
                 System.out.println("too many results for first table, stoping at:" + curentNumOfResults);
                 break;
             }
-            scrollResp = client.prepareSearchScroll(scrollResp.getScrollId()).setScroll(new TimeValue(600000)).execute().actionGet();
-            hits = scrollResp.getHits().getHits();
+            if (curentNumOfResults >= hintLimit) break;
+            hits = pagesReader.nextPage();
         }
+        pagesReader.stop();
         return hitsWithScan;
     }
 
     private boolean needToOptimize(Map<String,Map<String, List<Object>>> optimizationTermsFilterStructure) {
         if(! useQueryTermsFilterOptimization && optimizationTermsFilterStructure != null && optimizationTermsFilterStructure.size() > 0)
             return false;
+        if(termsFilterOverflow)
+            return false;
         boolean allEmpty = true;
         for(Map<String,List<Object>> optimization : optimizationTermsFilterStructure.values()){
             if(optimization.size() > 0){
@@ -288,9 +426,60 @@ public class HashJoinElasticExecutor extends ElasticJoinExecutor {
         secondTableRequest.getRequestBuilder().setQuery(boolQuery);
     }
 
-    private String getComparisonKey(List<Map.Entry<Field, Field>> t1ToT2FieldsComparison, SearchHit hit, boolean firstTable, Map<String, List<Object>> optimizationTermsFilterStructure) {
-        String key = "";
+    /**
+     * One terms query per chunk of at most termsFilterChunkSize values , chunks are split on the field
+     * with the most values of each comparison (the other fields terms are kept whole).
+     * A comparison without values matches everything , so it is not chunked.
+     */
+    private List<BoolQueryBuilder> createTermsFilterChunks(Map<String,Map<String, List<Object>>> optimizationTermsFilterStructure) {
+        int chunkSize = requestBuilder.getTermsFilterChunkSize();
+        List<BoolQueryBuilder> chunks = new ArrayList<>();
+        for (Map<String, List<Object>> optimization : optimizationTermsFilterStructure.values()) {
+            if (optimization.isEmpty()) return Collections.singletonList(QueryBuilders.boolQuery());
+            String chunkedField = null;
+            Map<String, List<Object>> distinctValues = new HashMap<>();
+            for (Map.Entry<String, List<Object>> keyToValues : optimization.entrySet()) {
+                List<Object> values = new ArrayList<>(new LinkedHashSet<>(keyToValues.getValue()));
+                distinctValues.put(keyToValues.getKey(), values);
+                if (chunkedField == null || values.size() > distinctValues.get(chunkedField).size()) {
+                    chunkedField = keyToValues.getKey();
+                }
+            }
+            List<Object> chunkedValues = distinctValues.get(chunkedField);
+            for (int from = 0; from < chunkedValues.size(); from += chunkSize) {
+                BoolQueryBuilder chunk = QueryBuilders.boolQuery();
+                chunk.must(QueryBuilders.termsQuery(chunkedField, chunkedValues.subList(from, Math.min(from + chunkSize, chunkedValues.size()))));
+                for (Map.Entry<String, List<Object>> keyToValues : distinctValues.entrySet()) {
+                    if (!keyToValues.getKey().equals(chunkedField)) {
+                        chunk.must(QueryBuilders.termsQuery(keyToValues.getKey(), keyToValues.getValue()));
+                    }
+                }
+                chunks.add(chunk);
+            }
+        }
+        return chunks;
+    }
+
+    private List<SearchRequestBuilder> createTermsFilterChunkRequests(List<BoolQueryBuilder> termsFilterChunks, TableInJoinRequestBuilder secondTableRequest) throws SqlParseException {
+        Select select = secondTableRequest.getOriginalSelect();
+        List<SearchRequestBuilder> chunkRequests = new ArrayList<>();
+        for (BoolQueryBuilder chunk : termsFilterChunks) {
+            DefaultQueryAction queryAction = new DefaultQueryAction(client, select);
+            queryAction.explain();
+            BoolQueryBuilder boolQuery;
+            if (select.getWhere() != null) {
+                boolQuery = QueryMaker.explan(select.getWhere(), false);
+                boolQuery.must(chunk);
+            } else boolQuery = chunk;
+            chunkRequests.add(queryAction.getRequestBuilder().setQuery(boolQuery));
+        }
+        return chunkRequests;
+    }
+
+    private HashJoinKey getComparisonKey(List<Map.Entry<Field, Field>> t1ToT2FieldsComparison, SearchHit hit, boolean firstTable, Map<String, List<Object>> optimizationTermsFilterStructure) {
+        Object[] values = new Object[t1ToT2FieldsComparison.size()];
         Map<String, Object> sourceAsMap = hit.sourceAsMap();
+        int i = 0;
         for (Map.Entry<Field, Field> t1ToT2 : t1ToT2FieldsComparison) {
             //todo: change to our function find if key contains '.'
             String name;
@@ -298,15 +487,13 @@ public class HashJoinElasticExecutor extends ElasticJoinExecutor {
             else name = t1ToT2.getValue().getName();
 
             Object data = deepSearchInMap(sourceAsMap, name);
-            if (firstTable && useQueryTermsFilterOptimization) {
+            if (firstTable && useQueryTermsFilterOptimization && !termsFilterOverflow) {
                 updateOptimizationData(optimizationTermsFilterStructure, data, t1ToT2.getValue().getName());
             }
-            if (data == null)
-                key += "|null|";
-            else
-                key += "|" + data.toString() + "|";
+            values[i] = data;
+            i++;
         }
-        return key;
+        return new HashJoinKey(values);
     }
 
     private void updateOptimizationData(Map<String, List<Object>> optimizationTermsFilterStructure, Object data, String queryOptimizationKey) {
@@ -319,7 +506,20 @@ public class HashJoinElasticExecutor extends ElasticJoinExecutor {
             //todo: analyzed or not analyzed check..
             data = ((String) data).toLowerCase();
         }
-        if(data!=null)
-            values.add(data);
+        if (data == null)
+            return;
+        Set<Object> distinctTerms = distinctTermsPerKey.get(queryOptimizationKey);
+        if (distinctTerms == null) {
+            distinctTerms = new HashSet<>();
+            distinctTermsPerKey.put(queryOptimizationKey, distinctTerms);
+        }
+        //repeated keys of the first table don't count , only the largest distinct terms count matters
+        if (distinctTerms.add(data) && distinctTerms.size() > requestBuilder.getMaxTermsToPushDown()) {
+            //too many terms for one request , the bloom filter (if used) still drops the non matching hits
+            termsFilterOverflow = true;
+            distinctTermsPerKey = null;
+            return;
+        }
+        values.add(data);
     }
 }
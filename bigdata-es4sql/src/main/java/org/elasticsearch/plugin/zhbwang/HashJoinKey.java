@@ -0,0 +1,83 @@
+package org.elasticsearch.plugin.zhbwang;
+
+import java.util.Arrays;
+
+/**
+ * Composite join key over the raw values of the compared fields.
+ * Hash is computed once, and integral numbers are widened to long so an Integer and a Long
+ * with the same value match (as they did when keys were built from toString()).
+ * For the same reason a string holding a number in its toString() form ("1", "1.5") is read as that number,
+ * so a keyword field still joins with a numeric field.
+ */
+public final class HashJoinKey {
+    private final Object[] values;
+    private final int hash;
+
+    public HashJoinKey(Object[] values) {
+        for (int i = 0; i < values.length; i++) {
+            values[i] = normalize(values[i]);
+        }
+        this.values = values;
+        this.hash = Arrays.hashCode(values);
+    }
+
+    public Object[] getValues() {
+        return values;
+    }
+
+    static Object normalize(Object value) {
+        if (value instanceof Integer || value instanceof Short || value instanceof Byte) {
+            return ((Number) value).longValue();
+        }
+        if (value instanceof Float) {
+            return Double.valueOf(value.toString());
+        }
+        if (value instanceof String) {
+            return parseNumber((String) value);
+        }
+        return value;
+    }
+
+    //the number if the string is exactly its toString() , the string otherwise ("01" or "1e3" stay strings)
+    private static Object parseNumber(String value) {
+        if (value.isEmpty() || value.length() > 32) return value;
+        boolean integral = true;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '.' || c == 'E') {
+                integral = false;
+            } else if ((c < '0' || c > '9') && c != '-') {
+                return value;
+            }
+        }
+        try {
+            if (integral) {
+                long number = Long.parseLong(value);
+                return Long.toString(number).equals(value) ? (Object) number : value;
+            }
+            double number = Double.parseDouble(value);
+            return Double.toString(number).equals(value) ? (Object) number : value;
+        } catch (NumberFormatException e) {
+            return value;
+        }
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+
+        HashJoinKey that = (HashJoinKey) o;
+        return hash == that.hash && Arrays.equals(values, that.values);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        return Arrays.toString(values);
+    }
+}
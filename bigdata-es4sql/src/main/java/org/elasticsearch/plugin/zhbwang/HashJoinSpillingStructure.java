@@ -0,0 +1,430 @@
+package org.elasticsearch.plugin.zhbwang;
+
+import com.zhbwang.bigdata.es.es4sql.domain.Field;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.io.stream.InputStreamStreamInput;
+import org.elasticsearch.common.io.stream.OutputStreamStreamOutput;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.text.Text;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.SearchHitField;
+import org.elasticsearch.search.internal.InternalSearchHit;
+import org.elasticsearch.search.internal.InternalSearchHitField;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Grace hash join storage: first table hits are partitioned by their comparison key,
+ * partitions are kept in memory until maxRowsInMemory is crossed and then spilled to temp files.
+ * Second table hits that fall on a spilled partition are spilled too, and each spilled partition
+ * is joined later on its own. A spilled partition that is still over maxRowsInMemory is partitioned
+ * again with another hash seed before it is loaded.
+ */
+public class HashJoinSpillingStructure implements Closeable {
+    //keys that still fall on one partition after this many repartitions hash alike , they are loaded as they are
+    private static final int MAX_REPARTITION_LEVELS = 4;
+    private HashMap<String, List<Map.Entry<Field, Field>>> comparisons;
+    private int maxRowsInMemory;
+    private int numOfPartitions;
+    private int level;
+    private int rowsInMemory;
+    private HashJoinComparisonStructure[] inMemoryPartitions;
+    private int[] partitionRowsInMemory;
+    private SpillFile[] firstTableFiles;
+    private SpillFile[] secondTableFiles;
+
+    public HashJoinSpillingStructure(HashMap<String, List<Map.Entry<Field, Field>>> comparisons, int maxRowsInMemory, int numOfPartitions) {
+        this(comparisons, maxRowsInMemory, numOfPartitions, 0);
+    }
+
+    private HashJoinSpillingStructure(HashMap<String, List<Map.Entry<Field, Field>>> comparisons, int maxRowsInMemory, int numOfPartitions, int level) {
+        this.comparisons = comparisons;
+        this.maxRowsInMemory = maxRowsInMemory;
+        this.numOfPartitions = numOfPartitions;
+        this.level = level;
+        this.rowsInMemory = 0;
+        this.inMemoryPartitions = new HashJoinComparisonStructure[numOfPartitions];
+        this.partitionRowsInMemory = new int[numOfPartitions];
+        this.firstTableFiles = new SpillFile[numOfPartitions];
+        this.secondTableFiles = new SpillFile[numOfPartitions];
+        for (int i = 0; i < numOfPartitions; i++) {
+            inMemoryPartitions[i] = new HashJoinComparisonStructure(comparisons);
+        }
+    }
+
+    //the hash is mixed again (murmur3 finalizer) , otherwise all keys of a partition share the same low bits inside its HashMap.
+    //each repartition level seeds it differently , so keys of one partition are spread on the next level
+    public int getPartition(HashJoinKey comparisonKey) {
+        int hash = comparisonKey.hashCode() ^ (level * 0x9E3779B9);
+        hash ^= hash >>> 16;
+        hash *= 0x85EBCA6B;
+        hash ^= hash >>> 13;
+        hash *= 0xC2B2AE35;
+        hash ^= hash >>> 16;
+        return (hash & Integer.MAX_VALUE) % numOfPartitions;
+    }
+
+    public boolean isSpilled(int partition) {
+        return firstTableFiles[partition] != null;
+    }
+
+    public void insertIntoComparisonHash(String comparisonID, HashJoinKey comparisonKey, InternalSearchHit hit) throws IOException {
+        int partition = getPartition(comparisonKey);
+        if (isSpilled(partition)) {
+            firstTableFiles[partition].write(comparisonID, comparisonKey, hit.docId(), hit, true);
+            return;
+        }
+        inMemoryPartitions[partition].insertIntoComparisonHash(comparisonID, comparisonKey, hit);
+        partitionRowsInMemory[partition]++;
+        rowsInMemory++;
+        if (rowsInMemory > maxRowsInMemory) {
+            spillLargestPartition();
+        }
+    }
+
+    public SearchHitsResult searchForMatchingSearchHits(int partition, String comparisonID, HashJoinKey comparisonKey) {
+        return inMemoryPartitions[partition].searchForMatchingSearchHits(comparisonID, comparisonKey);
+    }
+
+    //ordinal is kept as the docId of the spilled hit
+    public void spillSecondTableHit(int partition, String comparisonID, HashJoinKey comparisonKey, int ordinal, SearchHit hit) throws IOException {
+        if (secondTableFiles[partition] == null) {
+            secondTableFiles[partition] = new SpillFile();
+        }
+        secondTableFiles[partition].write(comparisonID, comparisonKey, ordinal, hit, false);
+    }
+
+    public List<SearchHitsResult> getAllInMemorySearchHits() {
+        List<SearchHitsResult> allSearchHits = new ArrayList<>();
+        for (int i = 0; i < numOfPartitions; i++) {
+            if (!isSpilled(i)) allSearchHits.addAll(inMemoryPartitions[i].getAllSearchHits());
+        }
+        return allSearchHits;
+    }
+
+    public List<Integer> getSpilledPartitions() {
+        List<Integer> spilled = new ArrayList<>();
+        for (int i = 0; i < numOfPartitions; i++) {
+            if (isSpilled(i)) spilled.add(i);
+        }
+        return spilled;
+    }
+
+    /**
+     * Joins the spilled partitions one at a time. A first table partition over maxRowsInMemory is partitioned again
+     * with the next hash seed and joined the same way , so no more than maxRowsInMemory first table rows are loaded at once
+     * (unless MAX_REPARTITION_LEVELS is reached).
+     * @return true if the joiner reached its limit
+     */
+    public boolean joinSpilledPartitions(SpilledPartitionJoiner joiner) throws IOException {
+        for (int partition : getSpilledPartitions()) {
+            boolean limitReached;
+            if (firstTableFiles[partition].rows > maxRowsInMemory && level < MAX_REPARTITION_LEVELS) {
+                limitReached = joinRepartitioned(partition, joiner);
+            } else {
+                limitReached = joinLoadedPartition(partition, joiner);
+            }
+            releasePartition(partition);
+            if (limitReached) return true;
+        }
+        return false;
+    }
+
+    private boolean joinLoadedPartition(int partition, SpilledPartitionJoiner joiner) throws IOException {
+        HashJoinComparisonStructure partitionStructure = loadSpilledPartition(partition);
+        boolean limitReached = false;
+        SpilledRowsIterator spilledRows = spilledSecondTableRows(partition);
+        try {
+            while (spilledRows.hasNext() && !limitReached) {
+                SpilledRow row = spilledRows.next();
+                limitReached = joiner.joinRow(row, partitionStructure.searchForMatchingSearchHits(row.comparisonID, row.comparisonKey));
+            }
+        } finally {
+            spilledRows.close();
+        }
+        //unmatched rows are added before the partition is released
+        return limitReached || joiner.addUnmatched(partitionStructure.getAllSearchHits());
+    }
+
+    private boolean joinRepartitioned(int partition, SpilledPartitionJoiner joiner) throws IOException {
+        HashJoinSpillingStructure repartitioned = repartition(partition);
+        try {
+            SpilledRowsIterator spilledRows = spilledSecondTableRows(partition);
+            try {
+                while (spilledRows.hasNext()) {
+                    SpilledRow row = spilledRows.next();
+                    int subPartition = repartitioned.getPartition(row.comparisonKey);
+                    if (repartitioned.isSpilled(subPartition)) {
+                        repartitioned.spillSecondTableHit(subPartition, row.comparisonID, row.comparisonKey, row.hit.docId(), row.hit);
+                        continue;
+                    }
+                    if (joiner.joinRow(row, repartitioned.searchForMatchingSearchHits(subPartition, row.comparisonID, row.comparisonKey))) {
+                        return true;
+                    }
+                }
+            } finally {
+                spilledRows.close();
+            }
+            //the in memory partitions are finished and released before the spilled ones are loaded
+            if (joiner.addUnmatched(repartitioned.getAllInMemorySearchHits())) return true;
+            repartitioned.releaseInMemoryPartitions();
+            return repartitioned.joinSpilledPartitions(joiner);
+        } finally {
+            repartitioned.close();
+        }
+    }
+
+    //the first table rows of a spilled partition , partitioned with the next level seed (spilling the partitions that don't fit)
+    private HashJoinSpillingStructure repartition(int partition) throws IOException {
+        HashJoinSpillingStructure repartitioned = new HashJoinSpillingStructure(comparisons, maxRowsInMemory, numOfPartitions, level + 1);
+        SpillFile spillFile = firstTableFiles[partition];
+        StreamInput in = spillFile.openForRead();
+        boolean done = false;
+        try {
+            for (int i = 0; i < spillFile.rows; i++) {
+                SpilledRow row = readRow(in);
+                repartitioned.insertIntoComparisonHash(row.comparisonID, row.comparisonKey, row.hit);
+            }
+            done = true;
+        } finally {
+            in.close();
+            if (!done) repartitioned.close();
+        }
+        return repartitioned;
+    }
+
+    private void releaseInMemoryPartitions() {
+        for (int i = 0; i < numOfPartitions; i++) {
+            if (isSpilled(i)) continue;
+            inMemoryPartitions[i] = new HashJoinComparisonStructure(comparisons);
+            partitionRowsInMemory[i] = 0;
+        }
+        rowsInMemory = 0;
+    }
+
+    /**
+     * Reads a spilled partition of the first table back into a comparison structure.
+     */
+    public HashJoinComparisonStructure loadSpilledPartition(int partition) throws IOException {
+        HashJoinComparisonStructure structure = new HashJoinComparisonStructure(comparisons);
+        SpillFile spillFile = firstTableFiles[partition];
+        StreamInput in = spillFile.openForRead();
+        try {
+            for (int i = 0; i < spillFile.rows; i++) {
+                SpilledRow row = readRow(in);
+                structure.insertIntoComparisonHash(row.comparisonID, row.comparisonKey, row.hit);
+            }
+        } finally {
+            in.close();
+        }
+        return structure;
+    }
+
+    /**
+     * Streams the spilled second table hits of a partition, one row at a time.
+     */
+    public SpilledRowsIterator spilledSecondTableRows(int partition) throws IOException {
+        SpillFile spillFile = secondTableFiles[partition];
+        if (spillFile == null) return new SpilledRowsIterator(null, 0);
+        return new SpilledRowsIterator(spillFile.openForRead(), spillFile.rows);
+    }
+
+    public void releasePartition(int partition) {
+        deleteQuietly(firstTableFiles[partition]);
+        deleteQuietly(secondTableFiles[partition]);
+        secondTableFiles[partition] = null;
+    }
+
+    @Override
+    public void close() {
+        for (int i = 0; i < numOfPartitions; i++) {
+            deleteQuietly(firstTableFiles[i]);
+            deleteQuietly(secondTableFiles[i]);
+            inMemoryPartitions[i] = null;
+        }
+    }
+
+    private void spillLargestPartition() throws IOException {
+        int largest = -1;
+        for (int i = 0; i < numOfPartitions; i++) {
+            if (isSpilled(i)) continue;
+            if (largest == -1 || partitionRowsInMemory[i] > partitionRowsInMemory[largest]) largest = i;
+        }
+        if (largest == -1) return;
+        SpillFile spillFile = new SpillFile();
+        HashJoinComparisonStructure structure = inMemoryPartitions[largest];
+        for (String comparisonID : comparisons.keySet()) {
+            for (Map.Entry<HashJoinKey, SearchHitsResult> keyToHits : structure.getComparisonHash(comparisonID).entrySet()) {
+                for (InternalSearchHit hit : keyToHits.getValue().getSearchHits()) {
+                    spillFile.write(comparisonID, keyToHits.getKey(), hit.docId(), hit, true);
+                }
+            }
+        }
+        firstTableFiles[largest] = spillFile;
+        inMemoryPartitions[largest] = new HashJoinComparisonStructure(comparisons);
+        rowsInMemory -= partitionRowsInMemory[largest];
+        partitionRowsInMemory[largest] = 0;
+    }
+
+    private void deleteQuietly(SpillFile spillFile) {
+        if (spillFile == null) return;
+        try {
+            spillFile.closeWriter();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        spillFile.file.delete();
+    }
+
+    //first table hits were already filtered by onlyReturnedFields, so their source is rebuilt from sourceAsMap.
+    static void writeRow(StreamOutput out, String comparisonID, HashJoinKey comparisonKey, int docId, SearchHit hit, boolean sourceFromMap) throws IOException {
+        out.writeString(comparisonID);
+        Object[] keyValues = comparisonKey.getValues();
+        out.writeVInt(keyValues.length);
+        for (Object keyValue : keyValues) {
+            out.writeGenericValue(keyValue);
+        }
+        out.writeInt(docId);
+        out.writeString(hit.id());
+        out.writeString(hit.getType());
+        BytesReference source;
+        if (sourceFromMap) {
+            Map<String, Object> sourceAsMap = hit.sourceAsMap();
+            source = sourceAsMap == null ? null : XContentFactory.jsonBuilder().map(sourceAsMap).bytes();
+        } else source = hit.getSourceRef();
+        out.writeBoolean(source != null);
+        if (source != null) out.writeBytesReference(source);
+        Map<String, SearchHitField> fields = hit.getFields();
+        out.writeVInt(fields == null ? 0 : fields.size());
+        if (fields != null) {
+            for (SearchHitField field : fields.values()) {
+                new InternalSearchHitField(field.getName(), field.getValues()).writeTo(out);
+            }
+        }
+    }
+
+    static SpilledRow readRow(StreamInput in) throws IOException {
+        String comparisonID = in.readString();
+        Object[] keyValues = new Object[in.readVInt()];
+        for (int i = 0; i < keyValues.length; i++) {
+            keyValues[i] = in.readGenericValue();
+        }
+        HashJoinKey comparisonKey = new HashJoinKey(keyValues);
+        int docId = in.readInt();
+        String id = in.readString();
+        String type = in.readString();
+        BytesReference source = in.readBoolean() ? in.readBytesReference() : null;
+        int numOfFields = in.readVInt();
+        Map<String, SearchHitField> fields = new HashMap<>();
+        for (int i = 0; i < numOfFields; i++) {
+            InternalSearchHitField field = InternalSearchHitField.readSearchHitField(in);
+            fields.put(field.name(), field);
+        }
+        InternalSearchHit hit = new InternalSearchHit(docId, id, new Text(type), fields);
+        hit.sourceRef(source);
+        return new SpilledRow(comparisonID, comparisonKey, hit);
+    }
+
+    private static class SpillFile {
+        private File file;
+        private StreamOutput out;
+        private int rows;
+
+        private SpillFile() throws IOException {
+            this.file = File.createTempFile("sql-hash-join-", ".spill");
+            this.out = new OutputStreamStreamOutput(new BufferedOutputStream(new FileOutputStream(file)));
+            this.rows = 0;
+        }
+
+        private void write(String comparisonID, HashJoinKey comparisonKey, int docId, SearchHit hit, boolean sourceFromMap) throws IOException {
+            writeRow(out, comparisonID, comparisonKey, docId, hit, sourceFromMap);
+            rows++;
+        }
+
+        private StreamInput openForRead() throws IOException {
+            closeWriter();
+            return new InputStreamStreamInput(new BufferedInputStream(new FileInputStream(file)));
+        }
+
+        private void closeWriter() throws IOException {
+            if (out != null) {
+                out.close();
+                out = null;
+            }
+        }
+    }
+
+    public static class SpilledRow {
+        private String comparisonID;
+        private HashJoinKey comparisonKey;
+        private InternalSearchHit hit;
+
+        SpilledRow(String comparisonID, HashJoinKey comparisonKey, InternalSearchHit hit) {
+            this.comparisonID = comparisonID;
+            this.comparisonKey = comparisonKey;
+            this.hit = hit;
+        }
+
+        public String getComparisonID() {
+            return comparisonID;
+        }
+
+        public HashJoinKey getComparisonKey() {
+            return comparisonKey;
+        }
+
+        public InternalSearchHit getHit() {
+            return hit;
+        }
+    }
+
+    /**
+     * What an executor does with the rows of a spilled partition , both methods return true when the limit is reached.
+     */
+    public interface SpilledPartitionJoiner {
+        //matchingRows is null if no first table row has the key of the second table row
+        boolean joinRow(SpilledRow secondTableRow, SearchHitsResult matchingRows) throws IOException;
+
+        //called with the first table rows of each joined partition , only outer joins add the unmatched ones
+        boolean addUnmatched(List<SearchHitsResult> firstTableRows) throws IOException;
+    }
+
+    public static class SpilledRowsIterator implements Iterator<SpilledRow>, Closeable {
+        private StreamInput in;
+        private int rowsLeft;
+
+        private SpilledRowsIterator(StreamInput in, int rows) {
+            this.in = in;
+            this.rowsLeft = rows;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return rowsLeft > 0;
+        }
+
+        @Override
+        public SpilledRow next() {
+            if (rowsLeft <= 0) throw new NoSuchElementException();
+            rowsLeft--;
+            try {
+                return readRow(in);
+            } catch (IOException e) {
+                throw new RuntimeException("could not read spilled hash join partition", e);
+            }
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (in != null) in.close();
+        }
+    }
+}
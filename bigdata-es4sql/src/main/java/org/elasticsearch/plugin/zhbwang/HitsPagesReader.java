@@ -0,0 +1,19 @@
+package org.elasticsearch.plugin.zhbwang;
+
+import org.elasticsearch.search.SearchHit;
+
+/**
+ * Pages of hits of a table scan , however the scan is done.
+ */
+public interface HitsPagesReader {
+
+    /**
+     * Returns the next page of hits , an empty page when there are no more hits.
+     */
+    SearchHit[] nextPage();
+
+    /**
+     * No more pages are fetched.
+     */
+    void stop();
+}
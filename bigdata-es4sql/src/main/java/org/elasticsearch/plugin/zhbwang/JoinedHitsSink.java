@@ -0,0 +1,16 @@
+package org.elasticsearch.plugin.zhbwang;
+
+import org.elasticsearch.search.internal.InternalSearchHit;
+
+/**
+ * Where a join executor puts its joined rows.
+ * Rows are buffered for the response (BufferedJoinedHits) , kept only while they are in the top-N of an ordered join ,
+ * or written to the response output when they are produced (StreamingJoinedHits).
+ */
+public interface JoinedHitsSink {
+
+    void add(InternalSearchHit hit);
+
+    //number of rows added so far , executors stop at their results limit
+    int size();
+}
@@ -0,0 +1,211 @@
+package org.elasticsearch.plugin.zhbwang;
+
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.text.Text;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.search.SearchHitField;
+import org.elasticsearch.search.internal.InternalSearchHit;
+
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * Joined row that references the (already filtered) sources of both tables instead of copying them.
+ * sourceAsMap() is a view with "alias.field" keys resolved on lookup , the json source is only built if asked for.
+ */
+public class JoinedSearchHit extends InternalSearchHit {
+    private final JoinedSource joinedSource;
+    private BytesReference sourceBytes;
+
+    public JoinedSearchHit(int docId, String id, Text type, Map<String, SearchHitField> fields, JoinedSource joinedSource) {
+        super(docId, id, type, fields);
+        this.joinedSource = joinedSource;
+    }
+
+    @Override
+    public Map<String, Object> sourceAsMap() {
+        return joinedSource;
+    }
+
+    @Override
+    public Map<String, Object> getSource() {
+        return joinedSource;
+    }
+
+    @Override
+    public boolean isSourceEmpty() {
+        return false;
+    }
+
+    @Override
+    public BytesReference sourceRef() {
+        if (sourceBytes == null) {
+            try {
+                sourceBytes = XContentFactory.jsonBuilder().map(joinedSource).bytes();
+            } catch (IOException e) {
+                throw new RuntimeException("could not build joined source", e);
+            }
+        }
+        return sourceBytes;
+    }
+
+    @Override
+    public BytesReference getSourceRef() {
+        return sourceRef();
+    }
+
+    @Override
+    public byte[] source() {
+        return sourceRef().toBytes();
+    }
+
+    @Override
+    public String sourceAsString() {
+        return sourceRef().toUtf8();
+    }
+
+    @Override
+    public String getSourceAsString() {
+        return sourceAsString();
+    }
+
+    /**
+     * Map view of two sources , same keys as prefixing each of them with its alias (fields in keepNames are not prefixed).
+     * On the same key the second source wins. The first change copies the view into a map of its own,
+     * so the underlying sources (shared by other rows) are never modified.
+     */
+    public static class JoinedSource extends AbstractMap<String, Object> {
+        private final Map<String, Object> firstSource;
+        private final String firstAlias;
+        private final Map<String, Object> secondSource;
+        private final String secondAlias;
+        private final Set<String> keepNames;
+        private Map<String, Object> copy;
+
+        public JoinedSource(Map<String, Object> firstSource, String firstAlias, Map<String, Object> secondSource, String secondAlias, Set<String> keepNames) {
+            this.firstSource = firstSource;
+            this.firstAlias = firstAlias;
+            this.secondSource = secondSource;
+            this.secondAlias = secondAlias;
+            this.keepNames = keepNames;
+        }
+
+        @Override
+        public Object get(Object key) {
+            if (copy != null) return copy.get(key);
+            if (!(key instanceof String)) return null;
+            String name = sourceName(secondSource, secondAlias, (String) key);
+            if (name != null) return secondSource.get(name);
+            name = sourceName(firstSource, firstAlias, (String) key);
+            return name == null ? null : firstSource.get(name);
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            if (copy != null) return copy.containsKey(key);
+            if (!(key instanceof String)) return false;
+            return sourceName(secondSource, secondAlias, (String) key) != null || sourceName(firstSource, firstAlias, (String) key) != null;
+        }
+
+        @Override
+        public Object put(String key, Object value) {
+            return copy().put(key, value);
+        }
+
+        @Override
+        public Object remove(Object key) {
+            return copy().remove(key);
+        }
+
+        @Override
+        public void clear() {
+            copy().clear();
+        }
+
+        @Override
+        public Set<Entry<String, Object>> entrySet() {
+            if (copy != null) return copy.entrySet();
+            return new AbstractSet<Entry<String, Object>>() {
+                @Override
+                public Iterator<Entry<String, Object>> iterator() {
+                    return new JoinedEntriesIterator();
+                }
+
+                @Override
+                public int size() {
+                    int size = secondSource.size();
+                    for (String name : firstSource.keySet()) {
+                        if (!hiddenBySecond(name)) size++;
+                    }
+                    return size;
+                }
+            };
+        }
+
+        private Map<String, Object> copy() {
+            if (copy == null) {
+                Map<String, Object> copied = new HashMap<>();
+                for (Entry<String, Object> entry : entrySet()) {
+                    copied.put(entry.getKey(), entry.getValue());
+                }
+                copy = copied;
+            }
+            return copy;
+        }
+
+        //the source field name behind a joined key , null if the source doesn't have it
+        private String sourceName(Map<String, Object> source, String alias, String key) {
+            if (keepNames.contains(key) && source.containsKey(key)) return key;
+            if (key.length() > alias.length() + 1 && key.startsWith(alias) && key.charAt(alias.length()) == '.') {
+                String name = key.substring(alias.length() + 1);
+                if (!keepNames.contains(name) && source.containsKey(name)) return name;
+            }
+            return null;
+        }
+
+        private String joinedKey(String alias, String name) {
+            return keepNames.contains(name) ? name : alias + "." + name;
+        }
+
+        private boolean hiddenBySecond(String firstSourceName) {
+            return sourceName(secondSource, secondAlias, joinedKey(firstAlias, firstSourceName)) != null;
+        }
+
+        private class JoinedEntriesIterator implements Iterator<Entry<String, Object>> {
+            private Iterator<Entry<String, Object>> current = firstSource.entrySet().iterator();
+            private boolean onSecond = false;
+            private Entry<String, Object> next = findNext();
+
+            private Entry<String, Object> findNext() {
+                while (true) {
+                    while (current.hasNext()) {
+                        Entry<String, Object> entry = current.next();
+                        if (onSecond) return new SimpleImmutableEntry<>(joinedKey(secondAlias, entry.getKey()), entry.getValue());
+                        if (!hiddenBySecond(entry.getKey())) return new SimpleImmutableEntry<>(joinedKey(firstAlias, entry.getKey()), entry.getValue());
+                    }
+                    if (onSecond) return null;
+                    onSecond = true;
+                    current = secondSource.entrySet().iterator();
+                }
+            }
+
+            @Override
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            @Override
+            public Entry<String, Object> next() {
+                if (next == null) throw new NoSuchElementException();
+                Entry<String, Object> entry = next;
+                next = findNext();
+                return entry;
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        }
+    }
+}
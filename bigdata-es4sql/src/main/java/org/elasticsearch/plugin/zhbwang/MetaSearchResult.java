@@ -9,6 +9,13 @@ public class MetaSearchResult {
     private int successfulShards;
     private int failedShards;
     private boolean isTimedOut;
+    private boolean usedLookupCache;
+    private long lookupCacheHits;
+    private long lookupCacheMisses;
+    private int spilledPartitions;
+    private long bloomFilteredHits;
+    private int termsFilterChunks;
+    private int shardScrolls;
 
     public MetaSearchResult() {
         totalNumOfShards = 0;
@@ -57,4 +64,54 @@ public class MetaSearchResult {
         this.isTimedOut = this.isTimedOut || isTimedOut;
     }
 
+    public boolean isUsedLookupCache() {
+        return usedLookupCache;
+    }
+
+    public long getLookupCacheHits() {
+        return lookupCacheHits;
+    }
+
+    public long getLookupCacheMisses() {
+        return lookupCacheMisses;
+    }
+
+    public void addLookupCacheStats(long hits, long misses){
+        this.usedLookupCache = true;
+        this.lookupCacheHits += hits;
+        this.lookupCacheMisses += misses;
+    }
+
+    public int getSpilledPartitions() {
+        return spilledPartitions;
+    }
+
+    public void addSpilledPartitions(int partitions){
+        this.spilledPartitions += partitions;
+    }
+
+    public long getBloomFilteredHits() {
+        return bloomFilteredHits;
+    }
+
+    public void addBloomFilteredHits(long hits){
+        this.bloomFilteredHits += hits;
+    }
+
+    public int getTermsFilterChunks() {
+        return termsFilterChunks;
+    }
+
+    public void addTermsFilterChunks(int chunks){
+        this.termsFilterChunks += chunks;
+    }
+
+    public int getShardScrolls() {
+        return shardScrolls;
+    }
+
+    public void addShardScrolls(int scrolls){
+        this.shardScrolls += scrolls;
+    }
+
 }
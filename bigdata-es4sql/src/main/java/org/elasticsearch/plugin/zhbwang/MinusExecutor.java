@@ -1,5 +1,6 @@
 package org.elasticsearch.plugin.zhbwang;
 
+import org.elasticsearch.action.search.SearchRequestBuilder;
 import org.elasticsearch.action.search.SearchResponse;
 import org.elasticsearch.client.Client;
 import org.elasticsearch.common.text.Text;
@@ -39,16 +40,20 @@ public class MinusExecutor implements ElasticHitsExecutor {
     private int maxDocsToFetchOnEachScrollShard;
     private String[] fieldsOrderFirstTable;
     private String[] fieldsOrderSecondTable;
-    private String seperator;
+    private int termsFilterChunkSize;
+    private int maxConcurrentTermsFilterChunks;
+    private int maxConcurrentShardScrolls;
+    private TimeValue scrollKeepAlive;
     public MinusExecutor(Client client, MultiQueryRequestBuilder builder) {
         this.client = client;
         this.builder = builder;
         this.useTermsOptimization = false;
         this.termsOptimizationWithToLower = false;
         this.useScrolling = false;
+        this.termsFilterChunkSize = 10000;
+        this.maxConcurrentTermsFilterChunks = 4;
         parseHintsIfAny(builder.getOriginalSelect(true).getHints());
         fillFieldsOrder();
-        seperator = UUID.randomUUID().toString();
     }
 
     @Override
@@ -59,22 +64,25 @@ public class MinusExecutor implements ElasticHitsExecutor {
         if (this.useTermsOptimization && !this.useScrolling) {
             throw new SqlParseException("terms optimization work only with scrolling add scrolling hint");
         }
+        //only the compared fields are fetched
+        onlyComparedFieldsSource(this.builder.getFirstSearchRequest(), this.fieldsOrderFirstTable);
+        onlyComparedFieldsSource(this.builder.getSecondSearchRequest(), this.fieldsOrderSecondTable);
         if(!this.useScrolling || !this.useTermsOptimization){
-            Set<ComperableHitResult> comperableHitResults;
+            List<InternalSearchHit> minusHitsList;
             if(!this.useScrolling){
-                //1. get results from first search , put in set
-                //2. get reults from second search
-                //2.1 for each result remove from set
-                comperableHitResults = simpleOneTimeQueryEach();
+                //1. get results from first search , if none we are done
+                //2. get results from second search , put their fingerprints in set
+                //3. return first search results their fingerprint is not in set
+                minusHitsList = simpleOneTimeQueryEach();
             }
             else {
                 //if scrolling
-                //1. get all results in scrolls (till some limit) . put on set
-                //2. scroll on second table
-                //3. on each scroll result remove items from set
-                comperableHitResults = runWithScrollings();
+                //1. scroll on second table (till some limit) , put fingerprints in set
+                //2. scroll on first table , return the results their fingerprint is not in set
+                minusHitsList = runWithScrollings();
             }
-            fillMinusHitsFromResults(comperableHitResults);
+            int totalSize = minusHitsList.size();
+            this.minusHits = new InternalSearchHits(minusHitsList.toArray(new InternalSearchHit[totalSize]), totalSize, 1.0f);
             return;
         }
 
@@ -125,109 +133,121 @@ public class MinusExecutor implements ElasticHitsExecutor {
         this.minusHits = new InternalSearchHits(unionHitsArr, totalSize,1.0f);
     }
 
-    private void fillMinusHitsFromResults(Set<ComperableHitResult> comperableHitResults) {
-        int currentId = 1;
+    //rows are compared by 128 bit fingerprints of the compared fields values , a set of them takes 16 bytes a row.
+    //the second table is read first , so only first table rows that are left are kept (with the compared fields only)
+    private List<InternalSearchHit> runWithScrollings() {
         List<InternalSearchHit> minusHitsList = new ArrayList<>();
-        for(ComperableHitResult result : comperableHitResults){
-            ArrayList<Object> values = new ArrayList<Object>();
-            values.add(result);
-            SearchHit originalHit = result.getOriginalHit();
-            InternalSearchHit searchHit = new InternalSearchHit(currentId,originalHit.id(), new Text(originalHit.getType()), originalHit.fields());
-            searchHit.sourceRef(originalHit.getSourceRef());
-            searchHit.sourceAsMap().clear();
-            Map<String, Object> sourceAsMap = result.getFlattenMap();
-            for(Map.Entry<String,String> entry : this.builder.getFirstTableFieldToAlias().entrySet()){
-                if(sourceAsMap.containsKey(entry.getKey())){
-                    Object value = sourceAsMap.get(entry.getKey());
-                    sourceAsMap.remove(entry.getKey());
-                    sourceAsMap.put(entry.getValue(),value);
-                }
-            }
-
-            searchHit.sourceAsMap().putAll(sourceAsMap);
-            currentId++;
-            minusHitsList.add(searchHit);
+        if(this.builder.getFirstSearchRequest().setSize(0).get().getHits().getTotalHits() == 0){
+            return minusHitsList;
         }
-        int totalSize = currentId - 1;
-        InternalSearchHit[] unionHitsArr = minusHitsList.toArray(new InternalSearchHit[totalSize]);
-        this.minusHits = new InternalSearchHits(unionHitsArr, totalSize,1.0f);
-    }
-
-    private Set<ComperableHitResult> runWithScrollings() {
 
-        SearchResponse scrollResp = ElasticUtils.scrollOneTimeWithHits(this.client, this.builder.getFirstSearchRequest(),
-                builder.getOriginalSelect(true), this.maxDocsToFetchOnEachScrollShard);
-        Set<ComperableHitResult> results = new HashSet<>();
-
-        SearchHit[] hits = scrollResp.getHits().hits();
-        if(hits == null || hits.length == 0){
-            return new HashSet<>();
+        FingerprintSet secondTableRows = new FingerprintSet();
+        HitsPagesReader secondTablePages = scrollTable(this.builder.getSecondSearchRequest(), builder.getOriginalSelect(false));
+        SearchHit[] hits = secondTablePages.nextPage();
+        int totalDocsFetchedFromSecondTable = 0;
+        while (hits.length != 0) {
+            totalDocsFetchedFromSecondTable += hits.length;
+            fillFingerprintsFromHits(this.fieldsOrderSecondTable, hits, secondTableRows);
+            if(totalDocsFetchedFromSecondTable > this.maxDocsToFetchOnSecondTable){
+                break;
+            }
+            hits = secondTablePages.nextPage();
         }
-        int totalDocsFetchedFromFirstTable = 0;
+        secondTablePages.stop();
 
-        //fetch from first table . fill set.
-        while (hits != null && hits.length != 0 ) {
+        FingerprintSet returnedRows = new FingerprintSet();
+        HitsPagesReader firstTablePages = scrollTable(this.builder.getFirstSearchRequest(), builder.getOriginalSelect(true));
+        hits = firstTablePages.nextPage();
+        int totalDocsFetchedFromFirstTable = 0;
+        while (hits.length != 0) {
             totalDocsFetchedFromFirstTable += hits.length;
-            fillComperableSetFromHits(this.fieldsOrderFirstTable,hits,results);
+            addMinusHits(hits, secondTableRows, returnedRows, minusHitsList);
             if(totalDocsFetchedFromFirstTable > this.maxDocsToFetchOnFirstTable){
                 break;
             }
-            scrollResp = client.prepareSearchScroll(scrollResp.getScrollId()).setScroll(new TimeValue(600000)).execute().actionGet();
-            hits = scrollResp.getHits().getHits();
+            hits = firstTablePages.nextPage();
         }
-         scrollResp = ElasticUtils.scrollOneTimeWithHits(this.client, this.builder.getSecondSearchRequest(),
-                 builder.getOriginalSelect(false), this.maxDocsToFetchOnEachScrollShard);
-
+        firstTablePages.stop();
+        return minusHitsList;
+    }
 
-        hits = scrollResp.getHits().hits();
-        if(hits == null || hits.length == 0){
-            return results;
-        }
-        int totalDocsFetchedFromSecondTable = 0;
-        while (hits!= null && hits.length != 0 ) {
-            totalDocsFetchedFromSecondTable += hits.length;
-            removeValuesFromSetAccordingToHits(this.fieldsOrderSecondTable,results,hits);
-            if(totalDocsFetchedFromSecondTable > this.maxDocsToFetchOnSecondTable){
-                break;
-            }
-            scrollResp = client.prepareSearchScroll(scrollResp.getScrollId()).setScroll(new TimeValue(600000)).execute().actionGet();
-            hits = scrollResp.getHits().getHits();
+    //pages of a table scroll , with PARALLEL_SHARD_SCROLL hint unordered tables are scrolled on each shard in parallel
+    private HitsPagesReader scrollTable(SearchRequestBuilder requestBuilder, Select originalSelect) {
+        if (this.maxConcurrentShardScrolls > 0 && !originalSelect.isOrderdSelect()) {
+            return new ParallelShardScroller(this.client, requestBuilder, this.maxDocsToFetchOnEachScrollShard, this.maxConcurrentShardScrolls, getScrollKeepAlive(), null);
         }
+        SearchResponse firstResponse = ElasticUtils.scrollOneTimeWithHits(this.client, requestBuilder, originalSelect, this.maxDocsToFetchOnEachScrollShard, this.scrollKeepAlive);
+        return new ScrollHitsReader(this.client, firstResponse, getScrollKeepAlive(), 0);
+    }
 
-        return results;
+    private TimeValue getScrollKeepAlive() {
+        return this.scrollKeepAlive != null ? this.scrollKeepAlive : ElasticUtils.DEFAULT_SCROLL_KEEP_ALIVE;
     }
 
-    private Set<ComperableHitResult> simpleOneTimeQueryEach() {
+    private List<InternalSearchHit> simpleOneTimeQueryEach() {
+        List<InternalSearchHit> minusHitsList = new ArrayList<>();
         SearchHit[] firstTableHits = this.builder.getFirstSearchRequest().get().getHits().getHits();
         if(firstTableHits == null || firstTableHits.length == 0){
-            return new HashSet<>();
+            return minusHitsList;
         }
 
-        Set<ComperableHitResult> result = new HashSet<>();
-        fillComperableSetFromHits(this.fieldsOrderFirstTable, firstTableHits, result);
+        FingerprintSet secondTableRows = new FingerprintSet();
         SearchHit[] secondTableHits = this.builder.getSecondSearchRequest().get().getHits().getHits();
-        if(secondTableHits == null || secondTableHits.length == 0){
-            return result;
+        if(secondTableHits != null){
+            fillFingerprintsFromHits(this.fieldsOrderSecondTable, secondTableHits, secondTableRows);
         }
-        removeValuesFromSetAccordingToHits(this.fieldsOrderSecondTable,result,secondTableHits);
-        return result;
+        addMinusHits(firstTableHits, secondTableRows, new FingerprintSet(), minusHitsList);
+        return minusHitsList;
     }
 
-    private void removeValuesFromSetAccordingToHits(String[] fieldsOrder, Set<ComperableHitResult> set, SearchHit[] hits) {
+    private void fillFingerprintsFromHits(String[] fieldsOrder, SearchHit[] hits, FingerprintSet setToFill) {
         for(SearchHit hit: hits){
-            ComperableHitResult comperableHitResult = new ComperableHitResult(hit,fieldsOrder,this.seperator);
-            if(!comperableHitResult.isAllNull()) {
-                set.remove(comperableHitResult);
+            Object[] values = getComparedValues(hit, fieldsOrder);
+            if(values != null) {
+                setToFill.add(RowFingerprint.ofValues(values));
             }
         }
     }
 
-    private void fillComperableSetFromHits(String[] fieldsOrder, SearchHit[] hits, Set<ComperableHitResult> setToFill) {
+    //first table hits that are not in the second table and were not returned yet
+    private void addMinusHits(SearchHit[] hits, FingerprintSet secondTableRows, FingerprintSet returnedRows, List<InternalSearchHit> minusHitsList) {
         for(SearchHit hit: hits){
-            ComperableHitResult comperableHitResult = new ComperableHitResult(hit,fieldsOrder,this.seperator);
-            if(!comperableHitResult.isAllNull()) {
-                setToFill.add(comperableHitResult);
-            }
+            Object[] values = getComparedValues(hit, this.fieldsOrderFirstTable);
+            if(values == null) continue;
+            RowFingerprint fingerprint = RowFingerprint.ofValues(values);
+            if(secondTableRows.contains(fingerprint) || !returnedRows.add(fingerprint)) continue;
+            minusHitsList.add(createMinusHit(hit, values, minusHitsList.size() + 1));
+        }
+    }
+
+    //null when all the values are null
+    private Object[] getComparedValues(SearchHit hit, String[] fieldsOrder) {
+        Map<String, Object> hitAsMap = hit.sourceAsMap();
+        Object[] values = new Object[fieldsOrder.length];
+        boolean isAllNull = true;
+        for(int i = 0; i < fieldsOrder.length; i++){
+            values[i] = Util.deepSearchInMap(hitAsMap, fieldsOrder[i]);
+            if(values[i] != null) isAllNull = false;
+        }
+        return isAllNull ? null : values;
+    }
+
+    private InternalSearchHit createMinusHit(SearchHit originalHit, Object[] values, int currentId) {
+        InternalSearchHit searchHit = new InternalSearchHit(currentId,originalHit.id(), new Text(originalHit.getType()), originalHit.fields());
+        searchHit.sourceRef(originalHit.getSourceRef());
+        searchHit.sourceAsMap().clear();
+        Map<String, String> fieldToAlias = this.builder.getFirstTableFieldToAlias();
+        for(int i = 0; i < values.length; i++){
+            if(values[i] == null) continue;
+            String field = this.fieldsOrderFirstTable[i];
+            searchHit.sourceAsMap().put(fieldToAlias.containsKey(field) ? fieldToAlias.get(field) : field, values[i]);
+        }
+        return searchHit;
+    }
+
+    private void onlyComparedFieldsSource(SearchRequestBuilder requestBuilder, String[] fieldsOrder) {
+        if(fieldsOrder.length > 0){
+            requestBuilder.setFetchSource(fieldsOrder, null);
         }
     }
 
@@ -250,11 +270,10 @@ public class MinusExecutor implements ElasticHitsExecutor {
     //1.1.1 on each result remove from miniSet
     //1.1.2 add all results left from miniset to bigset
     private MinusOneFieldAndOptimizationResult runWithScrollingAndAddFilter(String firstFieldName ,String secondFieldName) throws SqlParseException {
-        SearchResponse scrollResp = ElasticUtils.scrollOneTimeWithHits(this.client, this.builder.getFirstSearchRequest(),
-                builder.getOriginalSelect(true), this.maxDocsToFetchOnEachScrollShard);
+        HitsPagesReader firstTablePages = scrollTable(this.builder.getFirstSearchRequest(), builder.getOriginalSelect(true));
         Set<Object> results = new HashSet<>();
         int currentNumOfResults = 0;
-        SearchHit[] hits = scrollResp.getHits().hits();
+        SearchHit[] hits = firstTablePages.nextPage();
         SearchHit someHit = null;
         if(hits.length!=0){
             //we need some hit for creating InnerResults.
@@ -267,37 +286,34 @@ public class MinusExecutor implements ElasticHitsExecutor {
             totalDocsFetchedFromFirstTable+=hits.length;
             Set<Object> currentSetFromResults = new HashSet<>();
             fillSetFromHits(firstFieldName, hits, currentSetFromResults);
-            //fetch from second
-            Select secondQuerySelect = this.builder.getOriginalSelect(false);
-            Where where = createWhereWithOrigianlAndTermsFilter(secondFieldName, originalWhereSecondTable, currentSetFromResults);
-            secondQuerySelect.setWhere(where);
-            DefaultQueryAction queryAction = new DefaultQueryAction(this.client, secondQuerySelect);
-            queryAction.explain();
+            //fetch from second , the terms are split to chunks that run in parallel
+            List<SearchRequestBuilder> chunkRequests = createTermsFilterChunkRequests(secondFieldName, originalWhereSecondTable, currentSetFromResults);
             if(totalDocsFetchedFromSecondTable > this.maxDocsToFetchOnSecondTable){
                 break;
             }
-            SearchResponse responseForSecondTable = ElasticUtils.scrollOneTimeWithHits(this.client, queryAction.getRequestBuilder(), secondQuerySelect, this.maxDocsToFetchOnEachScrollShard);
-            SearchHits secondQuerySearchHits = responseForSecondTable.getHits();
+            TermsFilterChunksSearch chunksSearch = new TermsFilterChunksSearch(this.client, chunkRequests,
+                    this.maxConcurrentTermsFilterChunks, this.maxDocsToFetchOnEachScrollShard,
+                    getScrollKeepAlive(), null);
 
-            SearchHit[] secondQueryHits = secondQuerySearchHits.getHits();
+            SearchHit[] secondQueryHits = chunksSearch.nextPage();
             while(secondQueryHits.length > 0){
                 totalDocsFetchedFromSecondTable+=secondQueryHits.length;
                 removeValuesFromSetAccordingToHits(secondFieldName, currentSetFromResults, secondQueryHits);
                 if(totalDocsFetchedFromSecondTable > this.maxDocsToFetchOnSecondTable){
                     break;
                 }
-                responseForSecondTable = client.prepareSearchScroll(responseForSecondTable.getScrollId()).setScroll(new TimeValue(600000)).execute().actionGet();
-                secondQueryHits = responseForSecondTable.getHits().getHits();
+                secondQueryHits = chunksSearch.nextPage();
             }
+            chunksSearch.stop();
             results.addAll(currentSetFromResults);
             if(totalDocsFetchedFromFirstTable > this.maxDocsToFetchOnFirstTable){
                 System.out.println("too many results for first table, stoping at:" + totalDocsFetchedFromFirstTable);
                 break;
             }
 
-            scrollResp = client.prepareSearchScroll(scrollResp.getScrollId()).setScroll(new TimeValue(600000)).execute().actionGet();
-            hits = scrollResp.getHits().getHits();
+            hits = firstTablePages.nextPage();
         }
+        firstTablePages.stop();
         return new MinusOneFieldAndOptimizationResult(results,someHit);
 
 
@@ -323,7 +339,21 @@ public class MinusExecutor implements ElasticHitsExecutor {
         }
     }
 
-    private Where createWhereWithOrigianlAndTermsFilter(String secondFieldName, Where originalWhereSecondTable, Set<Object> currentSetFromResults) throws SqlParseException {
+    private List<SearchRequestBuilder> createTermsFilterChunkRequests(String secondFieldName, Where originalWhereSecondTable, Set<Object> currentSetFromResults) throws SqlParseException {
+        Select secondQuerySelect = this.builder.getOriginalSelect(false);
+        List<Object> values = new ArrayList<>(currentSetFromResults);
+        List<SearchRequestBuilder> chunkRequests = new ArrayList<>();
+        for(int from = 0; from < values.size(); from += this.termsFilterChunkSize){
+            List<Object> chunk = values.subList(from, Math.min(from + this.termsFilterChunkSize, values.size()));
+            secondQuerySelect.setWhere(createWhereWithOrigianlAndTermsFilter(secondFieldName, originalWhereSecondTable, chunk));
+            DefaultQueryAction queryAction = new DefaultQueryAction(this.client, secondQuerySelect);
+            queryAction.explain();
+            chunkRequests.add(queryAction.getRequestBuilder().setFetchSource(new String[]{secondFieldName}, null));
+        }
+        return chunkRequests;
+    }
+
+    private Where createWhereWithOrigianlAndTermsFilter(String secondFieldName, Where originalWhereSecondTable, Collection<Object> currentSetFromResults) throws SqlParseException {
         Where where = Where.newInstance();
         where.setConn(Where.CONN.AND);
         where.addWhere(originalWhereSecondTable);
@@ -331,7 +361,7 @@ public class MinusExecutor implements ElasticHitsExecutor {
         return where;
     }
 
-    private Where buildTermsFilterFromResults(Set<Object> results,String fieldName) throws SqlParseException {
+    private Where buildTermsFilterFromResults(Collection<Object> results,String fieldName) throws SqlParseException {
         return new Condition(Where.CONN.AND ,fieldName,null, Condition.OPEAR.IN_TERMS,results.toArray(),null);
     }
 
@@ -348,44 +378,8 @@ public class MinusExecutor implements ElasticHitsExecutor {
     }
 
     private void fillFieldsOrder() {
-        List<String> fieldsOrAliases = new ArrayList<>();
-        Map<String, String> firstTableFieldToAlias = this.builder.getFirstTableFieldToAlias();
-        List<Field> firstTableFields = this.builder.getOriginalSelect(true).getFields();
-
-        for(Field field : firstTableFields){
-            if(firstTableFieldToAlias.containsKey(field.getName())){
-                fieldsOrAliases.add(field.getAlias());
-            }
-            else {
-                fieldsOrAliases.add(field.getName());
-            }
-        }
-        Collections.sort(fieldsOrAliases);
-
-        int fieldsSize = fieldsOrAliases.size();
-        this.fieldsOrderFirstTable = new String[fieldsSize];
-        fillFieldsArray(fieldsOrAliases, firstTableFieldToAlias, this.fieldsOrderFirstTable);
-        this.fieldsOrderSecondTable = new String[fieldsSize];
-        fillFieldsArray(fieldsOrAliases, this.builder.getSecondTableFieldToAlias(), this.fieldsOrderSecondTable);
-    }
-
-    private void fillFieldsArray(List<String> fieldsOrAliases, Map<String, String> fieldsToAlias, String[] fields) {
-        Map<String,String> aliasToField = inverseMap(fieldsToAlias);
-        for(int i = 0; i < fields.length ; i++) {
-            String field = fieldsOrAliases.get(i);
-            if(aliasToField.containsKey(field)){
-                field = aliasToField.get(field);
-            }
-            fields[i] = field;
-        }
-    }
-
-    private Map<String, String> inverseMap(Map<String, String> mapToInverse) {
-        Map<String, String> inversedMap = new HashMap<>();
-        for(Map.Entry<String, String> entry : mapToInverse.entrySet()){
-            inversedMap.put(entry.getValue(), entry.getKey());
-        }
-        return inversedMap;
+        this.fieldsOrderFirstTable = this.builder.getComparedFields(true);
+        this.fieldsOrderSecondTable = this.builder.getComparedFields(false);
     }
 
     private void parseHintsIfAny(List<Hint> hints) {
@@ -404,6 +398,17 @@ public class MinusExecutor implements ElasticHitsExecutor {
                 this.maxDocsToFetchOnSecondTable = (int) params[1];
                 this.maxDocsToFetchOnEachScrollShard = (int) params[2];
             }
+            else if (hint.getType() == HintType.TERMS_FILTER_CHUNKS){
+                Object[] params = hint.getParams();
+                this.termsFilterChunkSize = (int) params[0];
+                this.maxConcurrentTermsFilterChunks = (int) params[1];
+            }
+            else if (hint.getType() == HintType.PARALLEL_SHARD_SCROLL){
+                this.maxConcurrentShardScrolls = (int) hint.getParams()[0];
+            }
+            else if (hint.getType() == HintType.SCROLL_KEEP_ALIVE){
+                this.scrollKeepAlive = new TimeValue((int) hint.getParams()[0]);
+            }
         }
     }
 
@@ -0,0 +1,313 @@
+package org.elasticsearch.plugin.zhbwang;
+
+import com.alibaba.druid.sql.ast.statement.SQLJoinTableSource;
+import com.zhbwang.bigdata.es.es4sql.domain.Field;
+import com.zhbwang.bigdata.es.es4sql.exception.SqlParseException;
+import com.zhbwang.bigdata.es.es4sql.query.join.MultiJoinRequestBuilder;
+import com.zhbwang.bigdata.es.es4sql.query.join.TableInJoinRequestBuilder;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.text.Text;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.SearchHitField;
+import org.elasticsearch.search.internal.InternalSearchHit;
+
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * Left-deep pipeline of hash joins over more than two tables.
+ * The first table is hashed on the first stage keys , each stage scrolls its table as the probe side and inserts
+ * the joined rows straight into the hash of the next stage , the last stage produces the results.
+ * Joined rows keep only the returned fields and the fields that later stages still join on.
+ * Stage hashes are HashJoinSpillingStructure , partitions are spilled to disk above maxRowsInMemory rows.
+ */
+public class MultiJoinElasticExecutor extends ElasticJoinExecutor {
+    private static final String STAGE_COMPARISON = "stage";
+    //source key of a row with the values of its join fields
+    private static final String JOIN_FIELDS = "_join_fields";
+    private static final BytesReference EMPTY_SOURCE = new BytesArray("{}");
+    private MultiJoinRequestBuilder requestBuilder;
+    private Client client;
+    private List<TableInJoinRequestBuilder> tables;
+    private List<SQLJoinTableSource.JoinType> stagesJoinTypes;
+    private List<List<Map.Entry<Field, Field>>> stagesComparisons;
+    //for each table , "alias.field" -> field of the join fields other stages need from it
+    private List<Map<String, String>> tablesJoinFields;
+    private Map<String, Integer> joinFieldLastStage;
+    private int resultIds;
+    //rows inserted into the hash of each stage
+    private int[] stageRows;
+
+    public MultiJoinElasticExecutor(Client client, MultiJoinRequestBuilder requestBuilder) {
+        super(requestBuilder);
+        this.client = client;
+        this.requestBuilder = requestBuilder;
+        this.tables = requestBuilder.getTables();
+        this.stagesJoinTypes = requestBuilder.getStagesJoinTypes();
+        this.stagesComparisons = requestBuilder.getStagesComparisons();
+        this.stageRows = new int[stagesComparisons.size()];
+        this.joinFieldLastStage = new HashMap<>();
+        for (int stage = 0; stage < stagesComparisons.size(); stage++) {
+            for (Map.Entry<Field, Field> comparison : stagesComparisons.get(stage)) {
+                joinFieldLastStage.put(comparison.getKey().getName(), stage);
+            }
+        }
+        this.tablesJoinFields = new ArrayList<>();
+        for (TableInJoinRequestBuilder table : tables) {
+            String prefix = table.getAlias() + ".";
+            Map<String, String> joinFields = new HashMap<>();
+            for (String joinField : joinFieldLastStage.keySet()) {
+                if (joinField.startsWith(prefix)) joinFields.put(joinField, joinField.substring(prefix.length()));
+            }
+            tablesJoinFields.add(joinFields);
+        }
+    }
+
+    @Override
+    protected void innerRun() throws IOException, SqlParseException {
+        JoinedHitsSink combinedResults = createResultsSink();
+        int lastStage = stagesComparisons.size() - 1;
+        HashJoinSpillingStructure stageHash = createStageHash();
+        HashJoinSpillingStructure nextStageHash = null;
+        try {
+            TableHitsReader firstTableReader = new TableHitsReader(tables.get(0));
+            SearchHit[] hits = firstTableReader.nextPage();
+            while (hits.length > 0) {
+                for (SearchHit hit : hits) {
+                    insertIntoStageHash(stageHash, createRow(hit, 0), 0);
+                }
+                hits = firstTableReader.nextPage();
+            }
+
+            boolean limitReached = false;
+            for (int stage = 0; stage <= lastStage && !limitReached && stageRows[stage] > 0; stage++) {
+                if (stage < lastStage) nextStageHash = createStageHash();
+                limitReached = probeStage(stage, stageHash, nextStageHash, combinedResults);
+                stageHash.close();
+                stageHash = nextStageHash;
+                nextStageHash = null;
+            }
+        } finally {
+            if (stageHash != null) stageHash.close();
+            if (nextStageHash != null) nextStageHash.close();
+        }
+    }
+
+    private HashJoinSpillingStructure createStageHash() {
+        HashMap<String, List<Map.Entry<Field, Field>>> comparisons = new HashMap<>();
+        comparisons.put(STAGE_COMPARISON, null);
+        return new HashJoinSpillingStructure(comparisons, requestBuilder.getMaxRowsInMemory(), requestBuilder.getNumOfSpillPartitions());
+    }
+
+    //joined rows go to nextStageHash , or to the results on the last stage (nextStageHash is null).
+    //probe hits of spilled partitions are spilled too and joined one partition at a time , returns true when the limit is reached
+    private boolean probeStage(int stage, HashJoinSpillingStructure stageHash, final HashJoinSpillingStructure nextStageHash, final JoinedHitsSink combinedResults) throws IOException {
+        final int nextStage = stage + 1;
+        TableInJoinRequestBuilder stageTable = tables.get(nextStage);
+        List<Map.Entry<Field, Field>> comparison = stagesComparisons.get(stage);
+        boolean limitReached = false;
+        int ordinal = 0;
+        TableHitsReader reader = new TableHitsReader(stageTable);
+        SearchHit[] hits = reader.nextPage();
+        while (hits.length > 0 && !limitReached) {
+            for (SearchHit hit : hits) {
+                HashJoinKey key = getStageTableKey(comparison, hit);
+                if (key == null) continue;
+                int partition = stageHash.getPartition(key);
+                if (stageHash.isSpilled(partition)) {
+                    stageHash.spillSecondTableHit(partition, STAGE_COMPARISON, key, ++ordinal, hit);
+                    continue;
+                }
+                SearchHitsResult matchingRows = stageHash.searchForMatchingSearchHits(partition, STAGE_COMPARISON, key);
+                if (joinMatchingRows(matchingRows, hit, nextStage, nextStageHash, combinedResults)) {
+                    limitReached = true;
+                    break;
+                }
+            }
+            if (!limitReached) hits = reader.nextPage();
+        }
+        reader.stop();
+        metaResults.addSpilledPartitions(stageHash.getSpilledPartitions().size());
+
+        final boolean leftJoin = stagesJoinTypes.get(stage) == SQLJoinTableSource.JoinType.LEFT_OUTER_JOIN;
+        if (!limitReached) {
+            limitReached = stageHash.joinSpilledPartitions(new HashJoinSpillingStructure.SpilledPartitionJoiner() {
+                @Override
+                public boolean joinRow(HashJoinSpillingStructure.SpilledRow secondTableRow, SearchHitsResult matchingRows) throws IOException {
+                    return joinMatchingRows(matchingRows, secondTableRow.getHit(), nextStage, nextStageHash, combinedResults);
+                }
+
+                @Override
+                public boolean addUnmatched(List<SearchHitsResult> firstTableRows) throws IOException {
+                    return leftJoin && addUnmatchedRows(firstTableRows, nextStage, nextStageHash, combinedResults);
+                }
+            });
+        }
+        if (leftJoin && !limitReached) {
+            limitReached = addUnmatchedRows(stageHash.getAllInMemorySearchHits(), nextStage, nextStageHash, combinedResults);
+        }
+        return limitReached;
+    }
+
+    private boolean joinMatchingRows(SearchHitsResult matchingRows, SearchHit stageHit, int nextStage, HashJoinSpillingStructure nextStageHash, JoinedHitsSink combinedResults) throws IOException {
+        if (matchingRows == null) return false;
+        matchingRows.setMatchedWithOtherTable(true);
+        InternalSearchHit stageRow = createRow(stageHit, nextStage);
+        for (InternalSearchHit matchingRow : matchingRows.getSearchHits()) {
+            if (addJoinedRow(joinRows(matchingRow, stageRow, nextStage), nextStage, nextStageHash, combinedResults)) return true;
+        }
+        return false;
+    }
+
+    private boolean addUnmatchedRows(List<SearchHitsResult> rows, int nextStage, HashJoinSpillingStructure nextStageHash, JoinedHitsSink combinedResults) throws IOException {
+        InternalSearchHit nullsRow = createNullsRow(nextStage);
+        for (SearchHitsResult keyRows : rows) {
+            if (keyRows.isMatchedWithOtherTable()) continue;
+            for (InternalSearchHit row : keyRows.getSearchHits()) {
+                if (addJoinedRow(joinRows(row, nullsRow, nextStage), nextStage, nextStageHash, combinedResults)) return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean addJoinedRow(InternalSearchHit joinedRow, int nextStage, HashJoinSpillingStructure nextStageHash, JoinedHitsSink combinedResults) throws IOException {
+        if (nextStageHash != null) {
+            insertIntoStageHash(nextStageHash, joinedRow, nextStage);
+            return false;
+        }
+        combinedResults.add(toSearchHit(joinedRow));
+        return combinedResults.size() >= getResultsLimit();
+    }
+
+    private void insertIntoStageHash(HashJoinSpillingStructure stageHash, InternalSearchHit row, int stage) throws IOException {
+        List<Map.Entry<Field, Field>> comparison = stagesComparisons.get(stage);
+        Map<String, Object> joinFields = joinFields(row);
+        Object[] values = new Object[comparison.size()];
+        boolean hasNull = false;
+        for (int i = 0; i < values.length; i++) {
+            values[i] = joinFields.get(comparison.get(i).getKey().getName());
+            if (values[i] == null) hasNull = true;
+        }
+        //null never matches , the row is only needed to be returned unmatched
+        if (hasNull && stagesJoinTypes.get(stage) != SQLJoinTableSource.JoinType.LEFT_OUTER_JOIN) return;
+        stageHash.insertIntoComparisonHash(STAGE_COMPARISON, new HashJoinKey(values), row);
+        stageRows[stage]++;
+    }
+
+    private HashJoinKey getStageTableKey(List<Map.Entry<Field, Field>> comparison, SearchHit hit) {
+        Object[] values = new Object[comparison.size()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = deepSearchInMap(hit.sourceAsMap(), comparison.get(i).getValue().getName());
+            if (values[i] == null) return null;
+        }
+        return new HashJoinKey(values);
+    }
+
+    private InternalSearchHit createRow(SearchHit hit, int tableIndex) {
+        TableInJoinRequestBuilder table = tables.get(tableIndex);
+        Map<String, Object> joinFields = new HashMap<>();
+        for (Map.Entry<String, String> joinField : tablesJoinFields.get(tableIndex).entrySet()) {
+            joinFields.put(joinField.getKey(), deepSearchInMap(hit.sourceAsMap(), joinField.getValue()));
+        }
+        Map<String, Object> source = new HashMap<>(hit.sourceAsMap());
+        onlyReturnedFields(source, table.getReturnedFields(), table.getOriginalSelect().isSelectAll());
+        return newRow(hit.getId(), hit.getType(), hit.getFields(), mapWithAliases(source, table.getAlias()), joinFields);
+    }
+
+    private InternalSearchHit createNullsRow(int tableIndex) {
+        TableInJoinRequestBuilder table = tables.get(tableIndex);
+        Map<String, Object> nulledSource = new HashMap<>();
+        if (table.getReturnedFields() != null) nulledSource = createNullsSource(table.getReturnedFields());
+        return newRow("0", "null", null, mapWithAliases(nulledSource, table.getAlias()), new HashMap<String, Object>());
+    }
+
+    //join fields no stage from nextStage on compares are dropped , the fields of the first table hit are kept
+    private InternalSearchHit joinRows(InternalSearchHit joinedRow, InternalSearchHit stageRow, int nextStage) {
+        Map<String, Object> source = new HashMap<>(joinedRow.sourceAsMap());
+        source.putAll(stageRow.sourceAsMap());
+        source.remove(JOIN_FIELDS);
+        Map<String, Object> joinFields = new HashMap<>();
+        keepJoinFields(joinFields, joinFields(joinedRow), nextStage);
+        keepJoinFields(joinFields, joinFields(stageRow), nextStage);
+        return newRow(joinedRow.id() + "|" + stageRow.id(), joinedRow.type() + "|" + stageRow.type(),
+                joinedRow.getFields(), source, joinFields);
+    }
+
+    private void keepJoinFields(Map<String, Object> into, Map<String, Object> joinFields, int nextStage) {
+        for (Map.Entry<String, Object> joinField : joinFields.entrySet()) {
+            if (joinFieldLastStage.get(joinField.getKey()) >= nextStage) {
+                into.put(joinField.getKey(), joinField.getValue());
+            }
+        }
+    }
+
+    //a row is a hit whose source has the aliased fields and the join fields , so stage hashes can spill it like a table hit
+    private InternalSearchHit newRow(String id, String type, Map<String, SearchHitField> fields, Map<String, Object> source, Map<String, Object> joinFields) {
+        InternalSearchHit row = new InternalSearchHit(0, id, new Text(type), fields);
+        row.sourceRef(EMPTY_SOURCE);
+        row.sourceAsMap().putAll(source);
+        row.sourceAsMap().put(JOIN_FIELDS, joinFields);
+        return row;
+    }
+
+    private Map<String, Object> joinFields(InternalSearchHit row) {
+        return (Map<String, Object>) row.sourceAsMap().get(JOIN_FIELDS);
+    }
+
+    private InternalSearchHit toSearchHit(InternalSearchHit row) {
+        InternalSearchHit searchHit = new InternalSearchHit(++resultIds, row.id(), new Text(row.type()), row.getFields());
+        searchHit.sourceRef(EMPTY_SOURCE);
+        searchHit.sourceAsMap().putAll(row.sourceAsMap());
+        searchHit.sourceAsMap().remove(JOIN_FIELDS);
+        return searchHit;
+    }
+
+    /**
+     * Pages of a table hits , up to the table hint limit.
+     */
+    private class TableHitsReader {
+        private Integer hintLimit;
+        private SearchHit[] firstPage;
+        private HitsPagesReader pagesReader;
+        private int fetched;
+        private boolean finished;
+
+        private TableHitsReader(TableInJoinRequestBuilder table) {
+            this.hintLimit = table.getHintLimit();
+            if (hintLimit != null && hintLimit < MAX_RESULTS_ON_ONE_FETCH) {
+                SearchResponse response = table.getRequestBuilder().setSize(hintLimit).get();
+                updateMetaSearchResults(response);
+                firstPage = response.getHits().getHits();
+            } else {
+                pagesReader = scrollTable(client, table);
+            }
+        }
+
+        private SearchHit[] nextPage() {
+            if (finished) return new SearchHit[0];
+            SearchHit[] hits;
+            if (firstPage != null) {
+                hits = firstPage;
+                firstPage = null;
+            } else {
+                hits = pagesReader.nextPage();
+            }
+            if (pagesReader == null || hits.length == 0) finished = true;
+            if (hintLimit != null && fetched + hits.length >= hintLimit) {
+                hits = Arrays.copyOf(hits, hintLimit - fetched);
+                finished = true;
+            }
+            fetched += hits.length;
+            if (finished) stop();
+            return hits;
+        }
+
+        private void stop() {
+            finished = true;
+            if (pagesReader != null) pagesReader.stop();
+        }
+    }
+}
@@ -1,5 +1,7 @@
 package org.elasticsearch.plugin.zhbwang;
 
+import com.zhbwang.bigdata.es.es4sql.domain.hints.Hint;
+import com.zhbwang.bigdata.es.es4sql.domain.hints.HintType;
 import org.elasticsearch.client.Client;
 import com.zhbwang.bigdata.es.es4sql.exception.SqlParseException;
 import com.zhbwang.bigdata.es.es4sql.query.multi.MultiQueryRequestBuilder;
@@ -12,11 +14,25 @@ public class MultiRequestExecutorFactory {
          switch (builder.getRelation()){
              case UNION_ALL:
              case UNION:
+             case DISTINCT:
                  return new UnionExecutor(client,builder);
              case MINUS:
+             case EXCEPT:
+                 if(hasExternalSortHint(builder)){
+                     return new SortMergeMultiQueryExecutor(client,builder);
+                 }
                  return new MinusExecutor(client,builder);
+             case INTERSECT:
+                 return new SortMergeMultiQueryExecutor(client,builder);
              default:
-                 throw new SqlParseException("only supports union, and minus operations");
+                 throw new SqlParseException("only supports union, minus and intersect operations");
          }
      }
+
+     private static boolean hasExternalSortHint(MultiQueryRequestBuilder builder) {
+         for(Hint hint : builder.getOriginalSelect(true).getHints()){
+             if(hint.getType() == HintType.MULTI_QUERY_EXTERNAL_SORT) return true;
+         }
+         return false;
+     }
 }
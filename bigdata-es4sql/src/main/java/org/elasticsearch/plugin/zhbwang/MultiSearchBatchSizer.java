@@ -0,0 +1,52 @@
+package org.elasticsearch.plugin.zhbwang;
+
+/**
+ * Sizes the multi search batches of nested loops join.
+ * The initial batch size (NL_MULTISEARCH_SIZE hint) is also the max , batches are never bigger than the hint.
+ * Batches shrink when they are slow and grow back (up to the hint) while they return under the target latency,
+ * a batch with rejected searches halves the batch size and allows one less batch in flight.
+ * With targetMillis 0 the batch size is fixed.
+ */
+public class MultiSearchBatchSizer {
+    private final int maxBatchSize;
+    private final int growStep;
+    private final int maxInFlight;
+    private final long targetMillis;
+    private int batchSize;
+    private int inFlightAllowed;
+
+    public MultiSearchBatchSizer(int initialBatchSize, int maxInFlight, long targetMillis) {
+        this.batchSize = Math.max(initialBatchSize, 1);
+        this.maxBatchSize = this.batchSize;
+        this.growStep = Math.max(this.batchSize / 4, 1);
+        this.maxInFlight = Math.max(maxInFlight, 1);
+        this.inFlightAllowed = this.maxInFlight;
+        this.targetMillis = targetMillis;
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    public int getInFlightAllowed() {
+        return inFlightAllowed;
+    }
+
+    public void onBatchDone(int size, long tookMillis, int rejections) {
+        if (rejections > 0) {
+            batchSize = Math.max(batchSize / 2, 1);
+            inFlightAllowed = Math.max(inFlightAllowed - 1, 1);
+            return;
+        }
+        if (targetMillis <= 0) {
+            if (inFlightAllowed < maxInFlight) inFlightAllowed++;
+            return;
+        }
+        if (tookMillis > targetMillis * 2) {
+            batchSize = Math.max(batchSize * 3 / 4, 1);
+        } else if (tookMillis < targetMillis && size >= batchSize) {
+            batchSize = Math.min(batchSize + growStep, maxBatchSize);
+            if (inFlightAllowed < maxInFlight) inFlightAllowed++;
+        }
+    }
+}
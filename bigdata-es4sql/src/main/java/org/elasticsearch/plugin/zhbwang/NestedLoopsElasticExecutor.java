@@ -1,13 +1,15 @@
 package org.elasticsearch.plugin.zhbwang;
 
 import com.alibaba.druid.sql.ast.statement.SQLJoinTableSource;
+import org.elasticsearch.ExceptionsHelper;
 import org.elasticsearch.action.search.MultiSearchRequest;
 import org.elasticsearch.action.search.MultiSearchResponse;
 import org.elasticsearch.action.search.SearchRequestBuilder;
 import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.support.PlainActionFuture;
 import org.elasticsearch.client.Client;
 import org.elasticsearch.common.text.Text;
-import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.rest.RestStatus;
 import org.elasticsearch.search.SearchHit;
 import org.elasticsearch.search.SearchHits;
 import org.elasticsearch.search.internal.InternalSearchHit;
@@ -19,7 +21,12 @@ import com.zhbwang.bigdata.es.es4sql.query.DefaultQueryAction;
 import com.zhbwang.bigdata.es.es4sql.query.join.NestedLoopsElasticRequestBuilder;
 import com.zhbwang.bigdata.es.es4sql.query.join.TableInJoinRequestBuilder;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -28,19 +35,25 @@ import java.util.Map;
  */
 public class NestedLoopsElasticExecutor extends ElasticJoinExecutor {
 
+    private static final int MAX_REJECTED_RETRIES = 3;
+
     private final NestedLoopsElasticRequestBuilder nestedLoopsRequest;
     private final Client client;
+    private final LookupCache lookupCache;
+    private long lookupCacheHits;
+    private long lookupCacheMisses;
 
     public NestedLoopsElasticExecutor(Client client, NestedLoopsElasticRequestBuilder nestedLoops) {
         super(nestedLoops);
         this.client = client;
         this.nestedLoopsRequest = nestedLoops;
+        this.lookupCache = nestedLoops.getMaxCachedLookups() > 0 ? new LookupCache(nestedLoops.getMaxCachedLookups()) : null;
     }
 
     @Override
-    protected List<InternalSearchHit> innerRun() throws SqlParseException {
-        List<InternalSearchHit> combinedResults = new ArrayList<>();
-        int totalLimit = nestedLoopsRequest.getTotalLimit();
+    protected void innerRun() throws SqlParseException {
+        JoinedHitsSink combinedResults = createResultsSink();
+        int totalLimit = getResultsLimit();
         int multiSearchMaxSize = nestedLoopsRequest.getMultiSearchMaxSize();
         Select secondTableSelect = nestedLoopsRequest.getSecondTable().getOriginalSelect();
         Where originalSecondTableWhere = secondTableSelect.getWhere();
@@ -51,22 +64,33 @@ public class NestedLoopsElasticExecutor extends ElasticJoinExecutor {
         FetchWithScrollResponse fetchWithScrollResponse = firstFetch(this.nestedLoopsRequest.getFirstTable());
         SearchResponse firstTableResponse = fetchWithScrollResponse.getResponse();
         boolean needScrollForFirstTable = fetchWithScrollResponse.isNeedScrollForFirstTable();
+        PrefetchingScrollReader scrollReader = null;
+        if (needScrollForFirstTable) {
+            //next first table page is fetched while the multi searches of this one run
+            scrollReader = new PrefetchingScrollReader(client, firstTableResponse, getScrollKeepAlive(), nestedLoopsRequest.getScrollPrefetchDepth());
+        }
 
         int currentCombinedResults = 0;
         boolean finishedWithFirstTable = false;
+        MultiSearchBatchSizer batchSizer = new MultiSearchBatchSizer(multiSearchMaxSize, nestedLoopsRequest.getMaxConcurrentMultiSearches(), nestedLoopsRequest.getTargetMultiSearchMillis());
 
         while (totalLimit > currentCombinedResults && !finishedWithFirstTable){
 
             SearchHit[] hits = firstTableResponse.getHits().getHits();
-            boolean finishedMultiSearches = hits.length == 0;
             int currentHitsIndex = 0 ;
-
-            while(!finishedMultiSearches){
-                MultiSearchRequest multiSearchRequest = createMultiSearchRequest(multiSearchMaxSize, nestedLoopsRequest.getConnectedWhere(), hits, secondTableSelect, originalSecondTableWhere, currentHitsIndex);
-                int multiSearchSize = multiSearchRequest.requests().size();
-                currentCombinedResults = combineResultsFromMultiResponses(combinedResults, totalLimit, currentCombinedResults, hits, currentHitsIndex, multiSearchRequest);
-                currentHitsIndex += multiSearchSize;
-                finishedMultiSearches = currentHitsIndex >= hits.length-1 || currentCombinedResults >= totalLimit;
+            //batches are sent ahead, but merged in first table order
+            Deque<MultiSearchBatch> inFlight = new ArrayDeque<>();
+
+            while(currentCombinedResults < totalLimit){
+                while(inFlight.size() < batchSizer.getInFlightAllowed() && currentHitsIndex < hits.length){
+                    MultiSearchBatch batch = createMultiSearchBatch(batchSizer.getBatchSize(), nestedLoopsRequest.getConnectedWhere(), hits, secondTableSelect, originalSecondTableWhere, currentHitsIndex);
+                    inFlight.add(batch);
+                    currentHitsIndex += batch.keys.length;
+                }
+                MultiSearchBatch batch = inFlight.poll();
+                if(batch == null) break;
+                SearchResponse[] responses = waitForBatch(batch, batchSizer);
+                currentCombinedResults = combineResultsFromMultiResponses(combinedResults, totalLimit, currentCombinedResults, hits, batch.firstHitIndex, responses);
             }
 
             if( hits.length < MAX_RESULTS_ON_ONE_FETCH ) needScrollForFirstTable = false;
@@ -74,16 +98,81 @@ public class NestedLoopsElasticExecutor extends ElasticJoinExecutor {
             if(!finishedWithFirstTable)
             {
                 if(needScrollForFirstTable)
-                    firstTableResponse = client.prepareSearchScroll(firstTableResponse.getScrollId()).setScroll(new TimeValue(600000)).get();
+                    firstTableResponse = scrollReader.next();
                 else finishedWithFirstTable = true;
             }
 
         }
-        return combinedResults;
+        if (scrollReader != null) {
+            scrollReader.stop();
+        }
+        if (lookupCache != null) {
+            metaResults.addLookupCacheStats(lookupCacheHits, lookupCacheMisses);
+        }
+    }
+
+    //returns the second table response of each first table hit of the batch , cached lookups are not searched again
+    private SearchResponse[] waitForBatch(MultiSearchBatch batch, MultiSearchBatchSizer batchSizer) {
+        MultiSearchResponse.Item[] responses = batch.actionGet().getResponses();
+        if (responses.length > 0) {
+            long tookMillis = batch.tookMillis();
+            int rejections = retryRejectedSearches(batch.request, responses);
+            batchSizer.onBatchDone(batch.keys.length, tookMillis, rejections);
+        }
+        TableInJoinRequestBuilder secondTable = nestedLoopsRequest.getSecondTable();
+        for (MultiSearchResponse.Item item : responses) {
+            SearchResponse response = item.getResponse();
+            updateMetaSearchResults(response);
+            //filtered once , a cached response is shared by all the first table hits with the same key
+            for (SearchHit hit : response.getHits().getHits()) {
+                onlyReturnedFields(hit.sourceAsMap(), secondTable.getReturnedFields(), secondTable.getOriginalSelect().isSelectAll());
+            }
+        }
+        SearchResponse[] hitsResponses = new SearchResponse[batch.keys.length];
+        for (int j = 0; j < hitsResponses.length; j++) {
+            if (batch.cachedResponses[j] != null) {
+                hitsResponses[j] = batch.cachedResponses[j];
+                continue;
+            }
+            hitsResponses[j] = responses[batch.requestIndexes[j]].getResponse();
+            if (lookupCache != null) lookupCache.put(batch.keys[j], hitsResponses[j]);
+        }
+        return hitsResponses;
+    }
+
+    //searches rejected by a full search thread pool are sent again (in place) , other failures are thrown
+    private int retryRejectedSearches(MultiSearchRequest multiSearchRequest, MultiSearchResponse.Item[] responses) {
+        int rejections = 0;
+        for (int retry = 0; ; retry++) {
+            List<Integer> rejected = new ArrayList<>();
+            MultiSearchRequest retryRequest = new MultiSearchRequest();
+            for (int j = 0; j < responses.length; j++) {
+                if (!responses[j].isFailure()) continue;
+                if (ExceptionsHelper.status(responses[j].getFailure()) != RestStatus.TOO_MANY_REQUESTS) {
+                    throw ExceptionsHelper.convertToRuntime(responses[j].getFailure());
+                }
+                rejected.add(j);
+                retryRequest.add(multiSearchRequest.requests().get(j));
+            }
+            if (rejected.isEmpty()) return rejections;
+            if (retry == MAX_REJECTED_RETRIES) {
+                throw ExceptionsHelper.convertToRuntime(responses[rejected.get(0)].getFailure());
+            }
+            rejections += rejected.size();
+            try {
+                Thread.sleep(50L << retry);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("interrupted while retrying rejected searches", e);
+            }
+            MultiSearchResponse.Item[] retried = client.multiSearch(retryRequest).actionGet().getResponses();
+            for (int i = 0; i < retried.length; i++) {
+                responses[rejected.get(i)] = retried[i];
+            }
+        }
     }
 
-    private int combineResultsFromMultiResponses(List<InternalSearchHit> combinedResults, int totalLimit, int currentCombinedResults, SearchHit[] hits, int currentIndex, MultiSearchRequest multiSearchRequest) {
-        MultiSearchResponse.Item[] responses = client.multiSearch(multiSearchRequest).actionGet().getResponses();
+    private int combineResultsFromMultiResponses(JoinedHitsSink combinedResults, int totalLimit, int currentCombinedResults, SearchHit[] hits, int currentIndex, SearchResponse[] responses) {
         String t1Alias = nestedLoopsRequest.getFirstTable().getAlias();
         String t2Alias = nestedLoopsRequest.getSecondTable().getAlias();
 
@@ -91,8 +180,7 @@ public class NestedLoopsElasticExecutor extends ElasticJoinExecutor {
             SearchHit hitFromFirstTable = hits[currentIndex+j];
             onlyReturnedFields(hitFromFirstTable.sourceAsMap(), nestedLoopsRequest.getFirstTable().getReturnedFields(),nestedLoopsRequest.getFirstTable().getOriginalSelect().isSelectAll());
 
-            SearchResponse multiItemResponse = responses[j].getResponse();
-            updateMetaSearchResults(multiItemResponse);
+            SearchResponse multiItemResponse = responses[j];
 
             //todo: if responseForHit.getHits.length < responseForHit.getTotalHits(). need to fetch more!
             SearchHits responseForHit = multiItemResponse.getHits();
@@ -117,20 +205,32 @@ public class NestedLoopsElasticExecutor extends ElasticJoinExecutor {
     }
 
     private InternalSearchHit getMergedHit(int currentCombinedResults, String t1Alias, String t2Alias, SearchHit hitFromFirstTable, SearchHit matchedHit) {
-        onlyReturnedFields(matchedHit.sourceAsMap(), nestedLoopsRequest.getSecondTable().getReturnedFields(),nestedLoopsRequest.getSecondTable().getOriginalSelect().isSelectAll());
-        InternalSearchHit searchHit = new InternalSearchHit(currentCombinedResults, hitFromFirstTable.id() + "|" + matchedHit.getId(), new Text(hitFromFirstTable.getType() + "|" + matchedHit.getType()), hitFromFirstTable.getFields());
-        searchHit.sourceRef(hitFromFirstTable.getSourceRef());
-        searchHit.sourceAsMap().clear();
-        searchHit.sourceAsMap().putAll(hitFromFirstTable.sourceAsMap());
-
-        mergeSourceAndAddAliases(matchedHit.getSource(), searchHit, t1Alias, t2Alias);
-        return searchHit;
+        return createJoinedHit(currentCombinedResults, hitFromFirstTable.id() + "|" + matchedHit.getId(), new Text(hitFromFirstTable.getType() + "|" + matchedHit.getType()), hitFromFirstTable, t1Alias, matchedHit.getSource(), t2Alias);
     }
 
-    private MultiSearchRequest createMultiSearchRequest(int multiSearchMaxSize, Where connectedWhere, SearchHit[] hits, Select secondTableSelect, Where originalWhere, int currentIndex) throws SqlParseException {
+    private MultiSearchBatch createMultiSearchBatch(int multiSearchMaxSize, Where connectedWhere, SearchHit[] hits, Select secondTableSelect, Where originalWhere, int currentIndex) throws SqlParseException {
         MultiSearchRequest multiSearchRequest = new MultiSearchRequest();
-        for(int i = currentIndex  ; i < currentIndex  + multiSearchMaxSize && i< hits.length ; i++ ){
+        int batchSize = Math.min(multiSearchMaxSize, hits.length - currentIndex);
+        LookupKey[] keys = new LookupKey[batchSize];
+        SearchResponse[] cachedResponses = new SearchResponse[batchSize];
+        int[] requestIndexes = new int[batchSize];
+        Map<LookupKey, Integer> batchRequests = new HashMap<>();
+        for(int i = currentIndex  ; i < currentIndex  + batchSize ; i++ ){
             Map<String, Object> hitFromFirstTableAsMap = hits[i].sourceAsMap();
+            int j = i - currentIndex;
+            keys[j] = createLookupKey(hitFromFirstTableAsMap, connectedWhere);
+            if (lookupCache != null) {
+                cachedResponses[j] = lookupCache.get(keys[j]);
+                Integer sameKeyRequest = batchRequests.get(keys[j]);
+                if (cachedResponses[j] != null || sameKeyRequest != null) {
+                    lookupCacheHits++;
+                    if (sameKeyRequest != null) requestIndexes[j] = sameKeyRequest;
+                    continue;
+                }
+                lookupCacheMisses++;
+                batchRequests.put(keys[j], multiSearchRequest.requests().size());
+            }
+            requestIndexes[j] = multiSearchRequest.requests().size();
             Where newWhere = Where.newInstance();
             if(originalWhere!=null) newWhere.addWhere(originalWhere);
             if(connectedWhere!=null){
@@ -162,7 +262,23 @@ public class NestedLoopsElasticExecutor extends ElasticJoinExecutor {
                 secondTableRequest.setSize(secondTableHintLimit);
             multiSearchRequest.add(secondTableRequest);
         }
-        return multiSearchRequest;
+        return new MultiSearchBatch(currentIndex, multiSearchRequest, keys, cachedResponses, requestIndexes);
+    }
+
+    private LookupKey createLookupKey(Map<String, Object> hit, Where connectedWhere) {
+        List<Object> values = new ArrayList<>();
+        if (connectedWhere != null) collectConnectedValues(hit, connectedWhere, values);
+        return new LookupKey(values.toArray());
+    }
+
+    //same order as updateValuesOnWhereConditions , so equal keys build the same second table query
+    private void collectConnectedValues(Map<String, Object> hit, Where where, List<Object> values) {
+        if(where instanceof Condition){
+            values.add(deepSearchInMap(hit, ((Condition) where).getValue().toString()));
+        }
+        for(Where innerWhere : where.getWheres()){
+            collectConnectedValues(hit, innerWhere, values);
+        }
     }
 
     private void updateValuesOnWhereConditions(Map<String, Object> hit, Where where) {
@@ -245,4 +361,92 @@ public class NestedLoopsElasticExecutor extends ElasticJoinExecutor {
         }
 
     }
+
+    /**
+     * Second table searches of consecutive first table hits. Hits with a cached key have their response already,
+     * hits with the same key share one search (requestIndexes).
+     */
+    private class MultiSearchBatch extends PlainActionFuture<MultiSearchResponse> {
+        private final int firstHitIndex;
+        private final MultiSearchRequest request;
+        private final LookupKey[] keys;
+        private final SearchResponse[] cachedResponses;
+        private final int[] requestIndexes;
+        private final long startTime;
+        private volatile long endTime;
+
+        private MultiSearchBatch(int firstHitIndex, MultiSearchRequest request, LookupKey[] keys, SearchResponse[] cachedResponses, int[] requestIndexes) {
+            this.firstHitIndex = firstHitIndex;
+            this.request = request;
+            this.keys = keys;
+            this.cachedResponses = cachedResponses;
+            this.requestIndexes = requestIndexes;
+            this.startTime = System.currentTimeMillis();
+            if (request.requests().isEmpty()) {
+                onResponse(new MultiSearchResponse(new MultiSearchResponse.Item[0]));
+            } else {
+                client.multiSearch(request, this);
+            }
+        }
+
+        @Override
+        public void onResponse(MultiSearchResponse result) {
+            endTime = System.currentTimeMillis();
+            super.onResponse(result);
+        }
+
+        @Override
+        public void onFailure(Throwable e) {
+            endTime = System.currentTimeMillis();
+            super.onFailure(e);
+        }
+
+        private long tookMillis() {
+            return endTime - startTime;
+        }
+    }
+
+    /**
+     * Values of the connected conditions for one first table hit , as a key of the second table search.
+     * Raw values are compared (no numeric widening) because they go into the query as they are.
+     */
+    private static final class LookupKey {
+        private final Object[] values;
+        private final int hash;
+
+        private LookupKey(Object[] values) {
+            this.values = values;
+            this.hash = Arrays.deepHashCode(values);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof LookupKey)) return false;
+            LookupKey other = (LookupKey) o;
+            return hash == other.hash && Arrays.deepEquals(values, other.values);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    /**
+     * Least recently used second table responses , for the lifetime of one query.
+     */
+    private static class LookupCache extends LinkedHashMap<LookupKey, SearchResponse> {
+        private final int maxEntries;
+
+        private LookupCache(int maxEntries) {
+            super(16, 0.75f, true);
+            this.maxEntries = maxEntries;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<LookupKey, SearchResponse> eldest) {
+            return size() > maxEntries;
+        }
+    }
 }
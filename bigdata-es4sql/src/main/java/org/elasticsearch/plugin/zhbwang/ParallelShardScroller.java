@@ -0,0 +1,55 @@
+package org.elasticsearch.plugin.zhbwang;
+
+import org.elasticsearch.action.admin.cluster.shards.ClusterSearchShardsGroup;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.search.SearchRequestBuilder;
+import org.elasticsearch.action.search.SearchType;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.unit.TimeValue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Scans a table with one scroll per shard number (preference _shards:N) instead of one scroll over all shards,
+ * up to maxConcurrentShards of them run in parallel and their pages are returned as they come.
+ * Only for unordered scans , hits of different shards are mixed.
+ */
+public class ParallelShardScroller extends ConcurrentScrollsSearch {
+
+    /**
+     * @param metaResults shards of each scroll first response and the number of shard scrolls are added to it , may be null.
+     */
+    public ParallelShardScroller(Client client, SearchRequestBuilder requestBuilder, int hitsPerShard, int maxConcurrentShards, TimeValue keepAlive, MetaSearchResult metaResults) {
+        super(client, shardRequests(client, requestBuilder, hitsPerShard, keepAlive), maxConcurrentShards, keepAlive, false, metaResults);
+        if (metaResults != null) metaResults.addShardScrolls(getNumOfSearches());
+    }
+
+    private static List<SearchRequest> shardRequests(Client client, SearchRequestBuilder requestBuilder, int hitsPerShard, TimeValue keepAlive) {
+        SearchRequest request = requestBuilder.setSearchType(SearchType.SCAN).setScroll(keepAlive).setSize(hitsPerShard).request();
+        int numOfShards = numOfShards(client, request);
+        List<SearchRequest> shardRequests = new ArrayList<>(numOfShards);
+        for (int shard = 0; shard < numOfShards; shard++) {
+            SearchRequest shardRequest = new SearchRequest(request, request);
+            String preference = "_shards:" + shard;
+            if (request.preference() != null) preference += ";" + request.preference();
+            shardRequest.preference(preference);
+            shardRequests.add(shardRequest);
+        }
+        return shardRequests;
+    }
+
+    //indices can have a different number of shards , _shards:N goes to shard N of each index that has it
+    private static int numOfShards(Client client, SearchRequest request) {
+        ClusterSearchShardsGroup[] groups = client.admin().cluster().prepareSearchShards(request.indices())
+                .setTypes(request.types())
+                .setRouting(request.routing())
+                .setIndicesOptions(request.indicesOptions())
+                .get().getGroups();
+        int numOfShards = 0;
+        for (ClusterSearchShardsGroup group : groups) {
+            numOfShards = Math.max(numOfShards, group.getShardId() + 1);
+        }
+        return numOfShards;
+    }
+}
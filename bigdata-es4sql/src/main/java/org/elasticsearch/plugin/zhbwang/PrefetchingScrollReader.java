@@ -0,0 +1,123 @@
+package org.elasticsearch.plugin.zhbwang;
+
+import org.elasticsearch.ExceptionsHelper;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.unit.TimeValue;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Reads the pages of a scroll that was already started, requesting the next page asynchronously
+ * while the caller is still working on the current one.
+ * At most prefetchDepth pages are fetched ahead of the caller (0 means fetch only on next()).
+ */
+public class PrefetchingScrollReader {
+    private final Client client;
+    private final TimeValue keepAlive;
+    private final int prefetchDepth;
+    private final BlockingQueue<Object> pages;
+    private String scrollId;
+    private int queuedPages;
+    private boolean inFlight;
+    private boolean finished;
+    private boolean stopped;
+
+    /**
+     * @param lastResponse the last scroll response the caller already has , pages after it are read.
+     */
+    public PrefetchingScrollReader(Client client, SearchResponse lastResponse, TimeValue keepAlive, int prefetchDepth) {
+        this.client = client;
+        this.keepAlive = keepAlive;
+        this.prefetchDepth = prefetchDepth;
+        this.pages = new LinkedBlockingQueue<>();
+        this.scrollId = lastResponse.getScrollId();
+        this.queuedPages = 0;
+        this.inFlight = false;
+        this.finished = lastResponse.getHits().getHits().length == 0;
+        fetchIfNeeded(false);
+    }
+
+    /**
+     * Returns the next page, blocking only if it was not prefetched yet.
+     * The last page has no hits.
+     */
+    public SearchResponse next() {
+        synchronized (this) {
+            if (stopped || (finished && queuedPages == 0 && !inFlight)) {
+                throw new IllegalStateException("scroll already finished");
+            }
+        }
+        fetchIfNeeded(true);
+        Object page;
+        try {
+            page = pages.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("interrupted while waiting for scroll page", e);
+        }
+        synchronized (this) {
+            queuedPages--;
+        }
+        fetchIfNeeded(false);
+        if (page instanceof Throwable) {
+            throw ExceptionsHelper.convertToRuntime((Throwable) page);
+        }
+        return (SearchResponse) page;
+    }
+
+    /**
+     * No more pages are requested and the scroll context is cleared. Fetched pages are dropped ,
+     * a page still in flight is dropped when it arrives and its scroll is cleared too.
+     */
+    public void stop() {
+        String currentScrollId;
+        synchronized (this) {
+            if (stopped) return;
+            stopped = true;
+            finished = true;
+            pages.clear();
+            queuedPages = 0;
+            currentScrollId = scrollId;
+        }
+        ElasticUtils.clearScroll(client, currentScrollId);
+    }
+
+    private void fetchIfNeeded(boolean callerWaiting) {
+        String currentScrollId;
+        synchronized (this) {
+            int depth = callerWaiting ? Math.max(prefetchDepth, 1) : prefetchDepth;
+            if (finished || inFlight || queuedPages >= depth) return;
+            inFlight = true;
+            currentScrollId = scrollId;
+        }
+        client.prepareSearchScroll(currentScrollId).setScroll(keepAlive).execute(new ActionListener<SearchResponse>() {
+            @Override
+            public void onResponse(SearchResponse response) {
+                onPage(response, response.getHits().getHits().length == 0);
+            }
+
+            @Override
+            public void onFailure(Throwable e) {
+                onPage(e, true);
+            }
+        });
+    }
+
+    private void onPage(Object page, boolean lastPage) {
+        synchronized (this) {
+            inFlight = false;
+            if (stopped) {
+                if (page instanceof SearchResponse) ElasticUtils.clearScroll(client, ((SearchResponse) page).getScrollId());
+                return;
+            }
+            queuedPages++;
+            if (lastPage) finished = true;
+            else scrollId = ((SearchResponse) page).getScrollId();
+            pages.add(page);
+        }
+        fetchIfNeeded(false);
+    }
+}
@@ -8,6 +8,7 @@ import org.elasticsearch.search.SearchHits;
 import org.elasticsearch.search.aggregations.Aggregations;
 import com.zhbwang.bigdata.es.es4sql.exception.SqlParseException;
 import com.zhbwang.bigdata.es.es4sql.query.join.ESJoinQueryAction;
+import com.zhbwang.bigdata.es.es4sql.query.join.ESSemiJoinQueryAction;
 import com.zhbwang.bigdata.es.es4sql.query.multi.MultiQueryAction;
 import com.zhbwang.bigdata.es.es4sql.query.multi.MultiQueryRequestBuilder;
 
@@ -29,6 +30,13 @@ public class QueryActionElasticExecutor {
         return executor.getHits();
     }
 
+    public static SearchHits executeSemiJoinSearchAction(Client client , ESSemiJoinQueryAction semiJoinQueryAction) throws IOException, SqlParseException {
+        SqlElasticRequestBuilder semiJoinRequestBuilder = semiJoinQueryAction.explain();
+        ElasticJoinExecutor executor = ElasticJoinExecutor.createJoinExecutor(client,semiJoinRequestBuilder);
+        executor.run();
+        return executor.getHits();
+    }
+
     public static Aggregations executeAggregationAction(AggregationQueryAction aggregationQueryAction) throws SqlParseException {
         SqlElasticSearchRequestBuilder select =  aggregationQueryAction.explain();
         return ((SearchResponse)select.get()).getAggregations();
@@ -52,6 +60,8 @@ public class QueryActionElasticExecutor {
             return executeAggregationAction((AggregationQueryAction) queryAction);
         if(queryAction instanceof ESJoinQueryAction)
             return executeJoinSearchAction(client, (ESJoinQueryAction) queryAction);
+        if(queryAction instanceof ESSemiJoinQueryAction)
+            return executeSemiJoinSearchAction(client, (ESSemiJoinQueryAction) queryAction);
         if(queryAction instanceof MultiQueryAction)
             return executeMultiQueryAction(client, (MultiQueryAction) queryAction);
         if(queryAction instanceof DeleteQueryAction)
@@ -4,11 +4,15 @@ import org.elasticsearch.plugin.zhbwang.executors.RestExecutor;
 import org.elasticsearch.client.Client;
 import org.elasticsearch.common.inject.Inject;
 import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
 import org.elasticsearch.plugin.zhbwang.executors.ActionRequestRestExecuterFactory;
 import org.elasticsearch.rest.*;
 import com.zhbwang.bigdata.es.es4sql.SearchDao;
 import com.zhbwang.bigdata.es.es4sql.query.QueryAction;
+import com.zhbwang.bigdata.es.es4sql.query.SqlPlanCache;
 
+import java.io.IOException;
 import java.util.Map;
 
 
@@ -19,12 +23,17 @@ public class RestSqlAction extends BaseRestHandler {
 		super(settings, restController, client);
 		restController.registerHandler(RestRequest.Method.POST, "/_sql/_explain", this);
 		restController.registerHandler(RestRequest.Method.GET, "/_sql/_explain", this);
+		restController.registerHandler(RestRequest.Method.GET, "/_sql/_plan_cache", this);
 		restController.registerHandler(RestRequest.Method.POST, "/_sql", this);
 		restController.registerHandler(RestRequest.Method.GET, "/_sql", this);
 	}
 
 	@Override
 	protected void handleRequest(RestRequest request, RestChannel channel, final Client client) throws Exception {
+		if (request.path().endsWith("/_plan_cache")) {
+			channel.sendResponse(new BytesRestResponse(RestStatus.OK, planCacheStats()));
+			return;
+		}
 		String sql = request.param("sql");
 
 		if (sql == null) {
@@ -44,4 +53,17 @@ public class RestSqlAction extends BaseRestHandler {
 			restExecutor.execute(client,params,queryAction,channel);
 		}
 	}
+
+	private XContentBuilder planCacheStats() throws IOException {
+		SqlPlanCache planCache = SqlPlanCache.getInstance();
+		return XContentFactory.jsonBuilder().startObject()
+				.field("size", planCache.size())
+				.field("max_size", planCache.getMaxEntries())
+				.field("hits", planCache.getHits())
+				.field("misses", planCache.getMisses())
+				.field("uncacheable", planCache.getUncacheable())
+				.field("hit_rate", planCache.getHitRate())
+				.field("parse_time_saved_in_millis", planCache.getParseNanosSaved() / 1000000)
+				.endObject();
+	}
 }
\ No newline at end of file
@@ -0,0 +1,116 @@
+package org.elasticsearch.plugin.zhbwang;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * 128 bit murmur3 fingerprint of a row values , used to compare rows without keeping them.
+ * Values are hashed with their type , integral numbers are widened to long and floats to double
+ * so the same value read as Integer or Long has the same fingerprint.
+ */
+public final class RowFingerprint {
+    private static final HashFunction HASH_FUNCTION = Hashing.murmur3_128();
+
+    private final long high;
+    private final long low;
+
+    public RowFingerprint(long high, long low) {
+        this.high = high;
+        this.low = low;
+    }
+
+    //all the fields of the source , in fields names order
+    public static RowFingerprint ofSource(Map<String, Object> source) {
+        Hasher hasher = HASH_FUNCTION.newHasher();
+        putValue(hasher, source);
+        return fromHasher(hasher);
+    }
+
+    //values in the given order , as compared by a multi query.
+    //numeric strings are read as numbers (same as HashJoinKey) , so "1" and 1 are the same row as when rows were compared on toString()
+    public static RowFingerprint ofValues(Object[] values) {
+        Hasher hasher = HASH_FUNCTION.newHasher();
+        hasher.putInt(values.length);
+        for (Object value : values) {
+            putValue(hasher, HashJoinKey.normalize(value));
+        }
+        return fromHasher(hasher);
+    }
+
+    public long getHigh() {
+        return high;
+    }
+
+    public long getLow() {
+        return low;
+    }
+
+    private static RowFingerprint fromHasher(Hasher hasher) {
+        ByteBuffer bytes = ByteBuffer.wrap(hasher.hash().asBytes()).order(ByteOrder.LITTLE_ENDIAN);
+        return new RowFingerprint(bytes.getLong(), bytes.getLong());
+    }
+
+    private static void putValue(Hasher hasher, Object value) {
+        if (value == null) {
+            hasher.putByte((byte) 0);
+        } else if (value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte) {
+            hasher.putByte((byte) 1).putLong(((Number) value).longValue());
+        } else if (value instanceof Float || value instanceof Double) {
+            hasher.putByte((byte) 2).putDouble(Double.valueOf(value.toString()));
+        } else if (value instanceof Boolean) {
+            hasher.putByte((byte) 3).putBoolean((Boolean) value);
+        } else if (value instanceof Map) {
+            Map<?, ?> map = (Map<?, ?>) value;
+            List<String> names = new ArrayList<>();
+            for (Object name : map.keySet()) {
+                names.add(String.valueOf(name));
+            }
+            Collections.sort(names);
+            hasher.putByte((byte) 4).putInt(names.size());
+            for (String name : names) {
+                putString(hasher, name);
+                putValue(hasher, map.get(name));
+            }
+        } else if (value instanceof Collection) {
+            Collection<?> values = (Collection<?>) value;
+            hasher.putByte((byte) 5).putInt(values.size());
+            for (Object innerValue : values) {
+                putValue(hasher, innerValue);
+            }
+        } else {
+            hasher.putByte((byte) 6);
+            putString(hasher, value.toString());
+        }
+    }
+
+    //length prefixed , so fields boundaries can't be moved between values
+    private static void putString(Hasher hasher, String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        hasher.putInt(bytes.length).putBytes(bytes);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+
+        RowFingerprint that = (RowFingerprint) o;
+        return high == that.high && low == that.low;
+    }
+
+    @Override
+    public int hashCode() {
+        return (int) (low ^ (low >>> 32));
+    }
+
+    @Override
+    public String toString() {
+        return Long.toHexString(high) + Long.toHexString(low);
+    }
+}
@@ -0,0 +1,34 @@
+package org.elasticsearch.plugin.zhbwang;
+
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.search.SearchHit;
+
+/**
+ * Pages of one scroll over all shards , starting with the hits of the response the caller already has.
+ */
+public class ScrollHitsReader implements HitsPagesReader {
+    private SearchHit[] firstPage;
+    private final PrefetchingScrollReader scrollReader;
+
+    public ScrollHitsReader(Client client, SearchResponse firstResponse, TimeValue keepAlive, int prefetchDepth) {
+        this.firstPage = firstResponse.getHits().getHits();
+        this.scrollReader = new PrefetchingScrollReader(client, firstResponse, keepAlive, prefetchDepth);
+    }
+
+    @Override
+    public SearchHit[] nextPage() {
+        if (firstPage != null) {
+            SearchHit[] hits = firstPage;
+            firstPage = null;
+            return hits;
+        }
+        return scrollReader.next().getHits().getHits();
+    }
+
+    @Override
+    public void stop() {
+        scrollReader.stop();
+    }
+}
@@ -0,0 +1,141 @@
+package org.elasticsearch.plugin.zhbwang;
+
+import com.zhbwang.bigdata.es.es4sql.domain.Condition;
+import com.zhbwang.bigdata.es.es4sql.domain.Select;
+import com.zhbwang.bigdata.es.es4sql.domain.Where;
+import com.zhbwang.bigdata.es.es4sql.exception.SqlParseException;
+import com.zhbwang.bigdata.es.es4sql.query.DefaultQueryAction;
+import com.zhbwang.bigdata.es.es4sql.query.join.SemiJoinRequestBuilder;
+import com.zhbwang.bigdata.es.es4sql.query.join.TableInJoinRequestBuilder;
+import org.elasticsearch.action.search.SearchRequestBuilder;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.internal.InternalSearchHit;
+
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * Semi join (IN subquery) and anti join (NOT IN subquery).
+ * The subquery is scrolled into a hash set of its returned field values , then:
+ * semi join - the outer query runs with chunks of the set as IN conditions (chunks run in parallel).
+ * anti join - the outer query is scrolled and rows with a value in the set are dropped.
+ * Only outer rows are returned , no joined rows are built.
+ */
+public class SemiJoinElasticExecutor extends ElasticJoinExecutor {
+    private Client client;
+    private SemiJoinRequestBuilder requestBuilder;
+
+    public SemiJoinElasticExecutor(Client client, SemiJoinRequestBuilder requestBuilder) {
+        super(requestBuilder);
+        this.client = client;
+        this.requestBuilder = requestBuilder;
+    }
+
+    @Override
+    protected void innerRun() throws IOException, SqlParseException {
+        Set<HashJoinKey> innerValues = scrollInnerValues();
+        JoinedHitsSink results = createResultsSink();
+        HitsPagesReader outerPages;
+        //a multi valued outer row can match the values of several chunks , it is returned once
+        Set<String> returnedIds = null;
+        if (requestBuilder.isAnti()) {
+            outerPages = scrollTable(client, requestBuilder.getFirstTable());
+        } else {
+            if (innerValues.isEmpty()) return;
+            List<SearchRequestBuilder> chunkRequests = createChunkRequests(innerValues);
+            if (chunkRequests.size() > 1) returnedIds = new HashSet<>();
+            outerPages = new TermsFilterChunksSearch(client, chunkRequests, requestBuilder.getMaxConcurrentTermsFilterChunks(),
+                    MAX_RESULTS_ON_ONE_FETCH, getScrollKeepAlive(), metaResults);
+        }
+        SearchHit[] hits = outerPages.nextPage();
+        while (hits.length > 0 && results.size() < getResultsLimit()) {
+            for (SearchHit hit : hits) {
+                if (requestBuilder.isAnti() && containsAny(innerValues, deepSearchInMap(hit.sourceAsMap(), requestBuilder.getOuterField()))) continue;
+                if (returnedIds != null && !returnedIds.add(hit.getIndex() + "/" + hit.getType() + "/" + hit.getId())) continue;
+                results.add(outerRow((InternalSearchHit) hit));
+                if (results.size() >= getResultsLimit()) break;
+            }
+            if (results.size() < getResultsLimit()) hits = outerPages.nextPage();
+        }
+        outerPages.stop();
+    }
+
+    private Set<HashJoinKey> scrollInnerValues() {
+        Set<HashJoinKey> values = new HashSet<>();
+        String innerField = requestBuilder.getInnerField();
+        HitsPagesReader innerPages = scrollTable(client, requestBuilder.getSecondTable());
+        SearchHit[] hits = innerPages.nextPage();
+        while (hits.length > 0) {
+            for (SearchHit hit : hits) {
+                Object value = deepSearchInMap(hit.sourceAsMap(), innerField);
+                if (value instanceof Collection) {
+                    for (Object innerValue : (Collection) value) {
+                        if (innerValue != null) values.add(new HashJoinKey(new Object[]{innerValue}));
+                    }
+                } else if (value != null) {
+                    values.add(new HashJoinKey(new Object[]{value}));
+                }
+            }
+            hits = innerPages.nextPage();
+        }
+        innerPages.stop();
+        return values;
+    }
+
+    //multi valued outer fields are in the set if one of their values is
+    private boolean containsAny(Set<HashJoinKey> innerValues, Object outerValue) {
+        if (outerValue instanceof Collection) {
+            for (Object value : (Collection) outerValue) {
+                if (value != null && innerValues.contains(new HashJoinKey(new Object[]{value}))) return true;
+            }
+            return false;
+        }
+        return outerValue != null && innerValues.contains(new HashJoinKey(new Object[]{outerValue}));
+    }
+
+    private List<SearchRequestBuilder> createChunkRequests(Set<HashJoinKey> innerValues) throws SqlParseException {
+        TableInJoinRequestBuilder outerTable = requestBuilder.getFirstTable();
+        Select outerSelect = outerTable.getOriginalSelect();
+        Where originalWhere = outerSelect.getWhere();
+        List<Object> values = new ArrayList<>(innerValues.size());
+        for (HashJoinKey key : innerValues) {
+            values.add(key.getValues()[0]);
+        }
+        int chunkSize = requestBuilder.getTermsFilterChunkSize();
+        List<SearchRequestBuilder> chunkRequests = new ArrayList<>();
+        try {
+            for (int from = 0; from < values.size(); from += chunkSize) {
+                List<Object> chunk = values.subList(from, Math.min(from + chunkSize, values.size()));
+                Where where = Where.newInstance();
+                if (originalWhere != null) where.addWhere(originalWhere);
+                where.addWhere(new Condition(Where.CONN.AND, requestBuilder.getOuterField(), null, Condition.OPEAR.IN, chunk.toArray(), null));
+                outerSelect.setWhere(where);
+                DefaultQueryAction queryAction = new DefaultQueryAction(client, outerSelect);
+                queryAction.explain();
+                chunkRequests.add(queryAction.getRequestBuilder());
+            }
+        } finally {
+            outerSelect.setWhere(originalWhere);
+        }
+        return chunkRequests;
+    }
+
+    private InternalSearchHit outerRow(InternalSearchHit hit) {
+        if (requestBuilder.isOuterFieldHidden()) {
+            removeFromMap(hit.sourceAsMap(), requestBuilder.getOuterField());
+        }
+        return hit;
+    }
+
+    private void removeFromMap(Map<String, Object> fieldsMap, String name) {
+        String[] path = name.split("\\.");
+        Map<String, Object> currentObject = fieldsMap;
+        for (int i = 0; i < path.length - 1; i++) {
+            Object valueFromCurrentMap = currentObject.get(path[i]);
+            if (!(valueFromCurrentMap instanceof Map)) return;
+            currentObject = (Map<String, Object>) valueFromCurrentMap;
+        }
+        currentObject.remove(path[path.length - 1]);
+    }
+}
@@ -0,0 +1,114 @@
+package org.elasticsearch.plugin.zhbwang;
+
+import org.elasticsearch.common.io.stream.InputStreamStreamInput;
+import org.elasticsearch.common.io.stream.OutputStreamStreamOutput;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.search.internal.InternalSearchHit;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Second table hits of the current key of a sort merge join , each with the source values of its join fields.
+ * Hits are kept in memory up to maxHitsInMemory , the rest of the group goes to a temp file
+ * (same rows format as HashJoinSpillingStructure) that is read again for each first table hit with the same key.
+ */
+class SortMergeGroupBuffer implements Closeable {
+    private final int maxHitsInMemory;
+    private final List<HashJoinSpillingStructure.SpilledRow> hitsInMemory;
+    private File spillFile;
+    private StreamOutput out;
+    private int spilledHits;
+
+    SortMergeGroupBuffer(int maxHitsInMemory) {
+        this.maxHitsInMemory = maxHitsInMemory;
+        this.hitsInMemory = new ArrayList<>();
+    }
+
+    //the hit source was already filtered by onlyReturnedFields , spilled hits keep the filtered source
+    void add(HashJoinKey sourceKey, InternalSearchHit hit) throws IOException {
+        if (hitsInMemory.size() < maxHitsInMemory) {
+            hitsInMemory.add(new HashJoinSpillingStructure.SpilledRow("", sourceKey, hit));
+            return;
+        }
+        if (spillFile == null) {
+            spillFile = File.createTempFile("sql-merge-join-", ".spill");
+            out = new OutputStreamStreamOutput(new BufferedOutputStream(new FileOutputStream(spillFile)));
+        }
+        HashJoinSpillingStructure.writeRow(out, "", sourceKey, hit.docId(), hit, true);
+        spilledHits++;
+    }
+
+    int size() {
+        return hitsInMemory.size() + spilledHits;
+    }
+
+    void clear() {
+        hitsInMemory.clear();
+        close();
+    }
+
+    GroupIterator iterator() throws IOException {
+        StreamInput in = null;
+        if (spillFile != null) {
+            out.flush();
+            in = new InputStreamStreamInput(new BufferedInputStream(new FileInputStream(spillFile)));
+        }
+        return new GroupIterator(in);
+    }
+
+    @Override
+    public void close() {
+        if (spillFile == null) return;
+        try {
+            out.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        spillFile.delete();
+        spillFile = null;
+        out = null;
+        spilledHits = 0;
+    }
+
+    class GroupIterator implements Iterator<HashJoinSpillingStructure.SpilledRow>, Closeable {
+        private final StreamInput in;
+        private int index;
+
+        private GroupIterator(StreamInput in) {
+            this.in = in;
+            this.index = 0;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return index < size();
+        }
+
+        @Override
+        public HashJoinSpillingStructure.SpilledRow next() {
+            if (!hasNext()) throw new NoSuchElementException();
+            if (index < hitsInMemory.size()) return hitsInMemory.get(index++);
+            index++;
+            try {
+                return HashJoinSpillingStructure.readRow(in);
+            } catch (IOException e) {
+                throw new RuntimeException("could not read spilled merge join group", e);
+            }
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (in != null) in.close();
+        }
+    }
+}
@@ -0,0 +1,225 @@
+package org.elasticsearch.plugin.zhbwang;
+
+import com.alibaba.druid.sql.ast.statement.SQLJoinTableSource;
+import com.zhbwang.bigdata.es.es4sql.domain.Field;
+import com.zhbwang.bigdata.es.es4sql.exception.SqlParseException;
+import com.zhbwang.bigdata.es.es4sql.query.join.SortMergeJoinElasticRequestBuilder;
+import com.zhbwang.bigdata.es.es4sql.query.join.TableInJoinRequestBuilder;
+import org.apache.lucene.util.BytesRef;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.text.Text;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.internal.InternalSearchHit;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Sort merge join: both tables are scrolled sorted by their join fields and merged in one pass.
+ * Keys are compared on the hits sort values , so the merge follows the exact order elastic returned.
+ * String sort values of analyzed or multi valued fields are a term (or the min term) and not the value itself ,
+ * so hits with the same sort key are only joined if their join fields have the same source values , like the hash join.
+ * Only the second table hits of the current key are held , large groups are spilled to disk.
+ */
+public class SortMergeJoinElasticExecutor extends ElasticJoinExecutor {
+
+    private final SortMergeJoinElasticRequestBuilder requestBuilder;
+    private final Client client;
+    private final List<String> firstTableJoinFields;
+    private final List<String> secondTableJoinFields;
+
+    public SortMergeJoinElasticExecutor(Client client, SortMergeJoinElasticRequestBuilder requestBuilder) {
+        super(requestBuilder);
+        this.client = client;
+        this.requestBuilder = requestBuilder;
+        this.firstTableJoinFields = new ArrayList<>();
+        this.secondTableJoinFields = new ArrayList<>();
+        for (Map.Entry<Field, Field> comparison : requestBuilder.getT1ToT2FieldsComparison()) {
+            firstTableJoinFields.add(comparison.getKey().getName());
+            secondTableJoinFields.add(comparison.getValue().getName());
+        }
+    }
+
+    @Override
+    protected void innerRun() throws IOException, SqlParseException {
+        JoinedHitsSink combinedResults = createResultsSink();
+        int totalLimit = getResultsLimit();
+        boolean leftJoin = requestBuilder.getJoinType() == SQLJoinTableSource.JoinType.LEFT_OUTER_JOIN;
+        TableInJoinRequestBuilder firstTableRequest = requestBuilder.getFirstTable();
+        TableInJoinRequestBuilder secondTableRequest = requestBuilder.getSecondTable();
+        String t1Alias = firstTableRequest.getAlias();
+        String t2Alias = secondTableRequest.getAlias();
+
+        SortedHitsCursor firstTable = new SortedHitsCursor(firstTableRequest);
+        SortedHitsCursor secondTable = new SortedHitsCursor(secondTableRequest);
+        SortMergeGroupBuffer secondTableGroup = new SortMergeGroupBuffer(MAX_RESULTS_ON_ONE_FETCH);
+        try {
+            Object[] groupKey = null;
+            while (combinedResults.size() < totalLimit && firstTable.hasNext()) {
+                SearchHit firstTableHit = firstTable.next();
+                Object[] key = firstTableHit.getSortValues();
+                if (!hasMissingValue(key) && (groupKey == null || compareKeys(groupKey, key) < 0)) {
+                    groupKey = fillNextGroup(secondTable, key, secondTableGroup);
+                }
+                boolean matched = groupKey != null && !hasMissingValue(key) && compareKeys(groupKey, key) == 0;
+                if (!matched && !leftJoin) {
+                    //second table is done and its last group is behind , nothing else can match
+                    if (!secondTable.hasNext() && (groupKey == null || compareKeys(groupKey, key) < 0)) break;
+                    continue;
+                }
+                HashJoinKey sourceKey = matched ? sourceKey(firstTableHit, firstTableJoinFields) : null;
+                onlyReturnedFields(firstTableHit.sourceAsMap(), firstTableRequest.getReturnedFields(), firstTableRequest.getOriginalSelect().isSelectAll());
+                if (!matched) {
+                    combinedResults.add(createUnmachedResult(secondTableRequest.getReturnedFields(), combinedResults.size(), t1Alias, t2Alias, firstTableHit));
+                    continue;
+                }
+                boolean joined = false;
+                SortMergeGroupBuffer.GroupIterator groupHits = secondTableGroup.iterator();
+                try {
+                    while (groupHits.hasNext() && combinedResults.size() < totalLimit) {
+                        HashJoinSpillingStructure.SpilledRow groupRow = groupHits.next();
+                        if (!sourceKey.equals(groupRow.getComparisonKey())) continue;
+                        combinedResults.add(getMergedHit(combinedResults.size(), t1Alias, t2Alias, firstTableHit, groupRow.getHit()));
+                        joined = true;
+                    }
+                } finally {
+                    groupHits.close();
+                }
+                if (!joined && leftJoin && combinedResults.size() < totalLimit) {
+                    combinedResults.add(createUnmachedResult(secondTableRequest.getReturnedFields(), combinedResults.size(), t1Alias, t2Alias, firstTableHit));
+                }
+            }
+        } finally {
+            firstTable.close();
+            secondTable.close();
+            secondTableGroup.close();
+        }
+    }
+
+    //skips second table hits below key and collects the hits of the next key , returns that key (null if none left)
+    private Object[] fillNextGroup(SortedHitsCursor secondTable, Object[] key, SortMergeGroupBuffer group) throws IOException {
+        group.clear();
+        while (secondTable.hasNext() && compareKeys(secondTable.peek().getSortValues(), key) < 0) {
+            secondTable.next();
+        }
+        if (!secondTable.hasNext() || hasMissingValue(secondTable.peek().getSortValues())) return null;
+        Object[] groupKey = secondTable.peek().getSortValues();
+        TableInJoinRequestBuilder secondTableRequest = requestBuilder.getSecondTable();
+        while (secondTable.hasNext() && compareKeys(secondTable.peek().getSortValues(), groupKey) == 0) {
+            SearchHit hit = secondTable.next();
+            HashJoinKey sourceKey = sourceKey(hit, secondTableJoinFields);
+            onlyReturnedFields(hit.sourceAsMap(), secondTableRequest.getReturnedFields(), secondTableRequest.getOriginalSelect().isSelectAll());
+            group.add(sourceKey, (InternalSearchHit) hit);
+        }
+        return groupKey;
+    }
+
+    //numeric sort values are the values themselves (dates are millis , their source can have any format)
+    private HashJoinKey sourceKey(SearchHit hit, List<String> joinFields) {
+        Object[] sortValues = hit.getSortValues();
+        Map<String, Object> source = hit.sourceAsMap();
+        Object[] values = new Object[joinFields.size()];
+        for (int i = 0; i < values.length; i++) {
+            boolean sortedOnValue = sortValues[i] == null || sortValues[i] instanceof Number || source == null;
+            values[i] = sortedOnValue ? sortValues[i] : deepSearchInMap(source, joinFields.get(i));
+        }
+        return new HashJoinKey(values);
+    }
+
+    private InternalSearchHit getMergedHit(int docId, String t1Alias, String t2Alias, SearchHit firstTableHit, SearchHit secondTableHit) {
+        return createJoinedHit(docId, firstTableHit.id() + "|" + secondTableHit.getId(), new Text(firstTableHit.getType() + "|" + secondTableHit.getType()), firstTableHit, t1Alias, secondTableHit.getSource(), t2Alias);
+    }
+
+    private static boolean hasMissingValue(Object[] key) {
+        for (Object value : key) {
+            if (value == null) return true;
+        }
+        return false;
+    }
+
+    //nulls (missing) are last , same as the requested sort
+    static int compareKeys(Object[] key1, Object[] key2) {
+        for (int i = 0; i < key1.length; i++) {
+            Object value1 = key1[i];
+            Object value2 = key2[i];
+            int compare;
+            if (value1 == null || value2 == null) {
+                compare = value1 == value2 ? 0 : (value1 == null ? 1 : -1);
+            } else {
+                compare = compareValues(value1, value2);
+            }
+            if (compare != 0) return compare;
+        }
+        return 0;
+    }
+
+    private static int compareValues(Object value1, Object value2) {
+        if (value1 instanceof Number && value2 instanceof Number) {
+            if (isIntegral(value1) && isIntegral(value2)) {
+                return Long.compare(((Number) value1).longValue(), ((Number) value2).longValue());
+            }
+            return Double.compare(((Number) value1).doubleValue(), ((Number) value2).doubleValue());
+        }
+        //elastic sorts strings on their utf8 bytes
+        return toBytesRef(value1).compareTo(toBytesRef(value2));
+    }
+
+    private static boolean isIntegral(Object value) {
+        return value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte;
+    }
+
+    private static BytesRef toBytesRef(Object value) {
+        if (value instanceof BytesRef) return (BytesRef) value;
+        if (value instanceof Text) return new BytesRef(((Text) value).string());
+        return new BytesRef(value.toString());
+    }
+
+    private class SortedHitsCursor {
+        private final PrefetchingScrollReader scrollReader;
+        private final Integer hintLimit;
+        private SearchHit[] page;
+        private int index;
+        private int read;
+
+        private SortedHitsCursor(TableInJoinRequestBuilder tableRequest) {
+            this.hintLimit = tableRequest.getHintLimit();
+            int size = hintLimit != null && hintLimit < MAX_RESULTS_ON_ONE_FETCH ? hintLimit : MAX_RESULTS_ON_ONE_FETCH;
+            //sorted scroll (not SCAN) , first response already has hits
+            SearchResponse response = tableRequest.getRequestBuilder()
+                    .setScroll(getFirstScrollKeepAlive())
+                    .setSize(size).get();
+            updateMetaSearchResults(response);
+            this.page = response.getHits().getHits();
+            this.index = 0;
+            this.read = 0;
+            this.scrollReader = new PrefetchingScrollReader(client, response, getScrollKeepAlive(), requestBuilder.getScrollPrefetchDepth());
+        }
+
+        private boolean hasNext() {
+            if (hintLimit != null && read >= hintLimit) return false;
+            if (index < page.length) return true;
+            if (page.length == 0) return false;
+            SearchResponse response = scrollReader.next();
+            updateMetaSearchResults(response);
+            page = response.getHits().getHits();
+            index = 0;
+            return page.length > 0;
+        }
+
+        private SearchHit peek() {
+            return page[index];
+        }
+
+        private SearchHit next() {
+            read++;
+            return page[index++];
+        }
+
+        private void close() {
+            scrollReader.stop();
+        }
+    }
+}
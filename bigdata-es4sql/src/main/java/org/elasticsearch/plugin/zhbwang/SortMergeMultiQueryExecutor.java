@@ -0,0 +1,189 @@
+package org.elasticsearch.plugin.zhbwang;
+
+import com.alibaba.druid.sql.ast.statement.SQLUnionOperator;
+import com.zhbwang.bigdata.es.es4sql.Util;
+import com.zhbwang.bigdata.es.es4sql.domain.Select;
+import com.zhbwang.bigdata.es.es4sql.domain.hints.Hint;
+import com.zhbwang.bigdata.es.es4sql.domain.hints.HintType;
+import com.zhbwang.bigdata.es.es4sql.exception.SqlParseException;
+import com.zhbwang.bigdata.es.es4sql.query.multi.MultiQueryRequestBuilder;
+import org.elasticsearch.action.search.SearchRequestBuilder;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.text.Text;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.rest.BytesRestResponse;
+import org.elasticsearch.rest.RestChannel;
+import org.elasticsearch.rest.RestStatus;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.SearchHits;
+import org.elasticsearch.search.internal.InternalSearchHit;
+import org.elasticsearch.search.internal.InternalSearchHits;
+
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * MINUS (with MULTI_QUERY_EXTERNAL_SORT hint) and INTERSECT of two queries without fetch limits.
+ * Both tables are scrolled (compared fields only) into runs sorted by the rows fingerprints , runs bigger than
+ * maxRowsInMemory are spilled to disk. The sorted rows of both tables are then merged in one pass:
+ * a first table row is returned if its fingerprint is (intersect) or is not (minus) on the second table.
+ * On the rest api the returned rows are written to the response output as they are merged.
+ */
+public class SortMergeMultiQueryExecutor implements ElasticHitsExecutor {
+    private Client client;
+    private MultiQueryRequestBuilder builder;
+    private SQLUnionOperator relation;
+    private SearchHits results;
+    private String[] fieldsOrderFirstTable;
+    private String[] fieldsOrderSecondTable;
+    private int maxRowsInMemory;
+    private int maxDocsToFetchOnEachScrollShard;
+    private int maxConcurrentShardScrolls;
+    private TimeValue scrollKeepAlive;
+
+    public SortMergeMultiQueryExecutor(Client client, MultiQueryRequestBuilder builder) {
+        this.client = client;
+        this.builder = builder;
+        this.relation = builder.getRelation();
+        this.maxRowsInMemory = 100000;
+        this.maxDocsToFetchOnEachScrollShard = 1000;
+        parseHintsIfAny(builder.getOriginalSelect(true).getHints());
+        this.fieldsOrderFirstTable = builder.getComparedFields(true);
+        this.fieldsOrderSecondTable = builder.getComparedFields(false);
+    }
+
+    @Override
+    public void run() throws IOException, SqlParseException {
+        BufferedJoinedHits resultHits = new BufferedJoinedHits();
+        merge(resultHits);
+        int totalSize = resultHits.size();
+        this.results = new InternalSearchHits(resultHits.getHits().toArray(new InternalSearchHit[totalSize]), totalSize, 1.0f);
+    }
+
+    /**
+     * Runs the query and writes each returned row to the channel response when it is merged , the rows are not kept.
+     */
+    public void runAndSendResponse(RestChannel channel) throws IOException, SqlParseException {
+        long timeBefore = System.currentTimeMillis();
+        StreamingJoinedHits resultHits = new StreamingJoinedHits(channel.newBuilder());
+        merge(resultHits);
+        MetaSearchResult metaResults = new MetaSearchResult();
+        metaResults.setTookImMilli(System.currentTimeMillis() - timeBefore);
+        channel.sendResponse(new BytesRestResponse(RestStatus.OK, resultHits.finish(metaResults)));
+    }
+
+    private void merge(JoinedHitsSink resultHits) throws IOException {
+        boolean intersect = this.relation == SQLUnionOperator.INTERSECT;
+        FingerprintSortedRuns firstTableRows = new FingerprintSortedRuns(this.maxRowsInMemory);
+        FingerprintSortedRuns secondTableRows = new FingerprintSortedRuns(this.maxRowsInMemory);
+        try {
+            scrollIntoSortedRuns(this.builder.getFirstSearchRequest(), this.builder.getOriginalSelect(true), this.fieldsOrderFirstTable, firstTableRows, true);
+            scrollIntoSortedRuns(this.builder.getSecondSearchRequest(), this.builder.getOriginalSelect(false), this.fieldsOrderSecondTable, secondTableRows, false);
+
+            Iterator<FingerprintSortedRuns.SortedRow> firstRows = firstTableRows.sortedRows();
+            Iterator<FingerprintSortedRuns.SortedRow> secondRows = secondTableRows.sortedRows();
+            RowFingerprint secondFingerprint = secondRows.hasNext() ? secondRows.next().getFingerprint() : null;
+            RowFingerprint lastFingerprint = null;
+            while (firstRows.hasNext()) {
+                FingerprintSortedRuns.SortedRow row = firstRows.next();
+                RowFingerprint fingerprint = row.getFingerprint();
+                //same rows are next to each other , only the first one is returned
+                if (fingerprint.equals(lastFingerprint)) continue;
+                lastFingerprint = fingerprint;
+                while (secondFingerprint != null && FingerprintSortedRuns.compareFingerprints(secondFingerprint, fingerprint) < 0) {
+                    secondFingerprint = secondRows.hasNext() ? secondRows.next().getFingerprint() : null;
+                }
+                boolean onSecondTable = fingerprint.equals(secondFingerprint);
+                if (onSecondTable == intersect) {
+                    resultHits.add(createResultHit(row, resultHits.size() + 1));
+                }
+            }
+        } finally {
+            firstTableRows.close();
+            secondTableRows.close();
+        }
+    }
+
+    @Override
+    public SearchHits getHits() {
+        return this.results;
+    }
+
+    private void scrollIntoSortedRuns(SearchRequestBuilder requestBuilder, Select originalSelect, String[] fieldsOrder, FingerprintSortedRuns runs, boolean keepValues) throws IOException {
+        if (fieldsOrder.length > 0) {
+            requestBuilder.setFetchSource(fieldsOrder, null);
+        }
+        HitsPagesReader pages = scrollTable(requestBuilder, originalSelect);
+        try {
+            SearchHit[] hits = pages.nextPage();
+            while (hits.length != 0) {
+                for (SearchHit hit : hits) {
+                    Object[] values = getComparedValues(hit, fieldsOrder);
+                    if (values == null) continue;
+                    RowFingerprint fingerprint = RowFingerprint.ofValues(values);
+                    runs.add(keepValues ? new FingerprintSortedRuns.SortedRow(fingerprint, hit.getId(), hit.getType(), values)
+                            : new FingerprintSortedRuns.SortedRow(fingerprint));
+                }
+                hits = pages.nextPage();
+            }
+        } finally {
+            pages.stop();
+        }
+    }
+
+    //pages of a table scroll , with PARALLEL_SHARD_SCROLL hint each shard is scrolled in parallel
+    private HitsPagesReader scrollTable(SearchRequestBuilder requestBuilder, Select originalSelect) {
+        if (this.maxConcurrentShardScrolls > 0 && !originalSelect.isOrderdSelect()) {
+            return new ParallelShardScroller(this.client, requestBuilder, this.maxDocsToFetchOnEachScrollShard, this.maxConcurrentShardScrolls, getScrollKeepAlive(), null);
+        }
+        SearchResponse firstResponse = ElasticUtils.scrollOneTimeWithHits(this.client, requestBuilder, originalSelect, this.maxDocsToFetchOnEachScrollShard, this.scrollKeepAlive);
+        return new ScrollHitsReader(this.client, firstResponse, getScrollKeepAlive(), 0);
+    }
+
+    private TimeValue getScrollKeepAlive() {
+        return this.scrollKeepAlive != null ? this.scrollKeepAlive : ElasticUtils.DEFAULT_SCROLL_KEEP_ALIVE;
+    }
+
+    //null when all the values are null
+    private Object[] getComparedValues(SearchHit hit, String[] fieldsOrder) {
+        Map<String, Object> hitAsMap = hit.sourceAsMap();
+        Object[] values = new Object[fieldsOrder.length];
+        boolean isAllNull = true;
+        for (int i = 0; i < fieldsOrder.length; i++) {
+            values[i] = Util.deepSearchInMap(hitAsMap, fieldsOrder[i]);
+            if (values[i] != null) isAllNull = false;
+        }
+        return isAllNull ? null : values;
+    }
+
+    private InternalSearchHit createResultHit(FingerprintSortedRuns.SortedRow row, int currentId) throws IOException {
+        Map<String, Object> source = new HashMap<>();
+        Map<String, String> fieldToAlias = this.builder.getFirstTableFieldToAlias();
+        Object[] values = row.getValues();
+        for (int i = 0; i < values.length; i++) {
+            if (values[i] == null) continue;
+            String field = this.fieldsOrderFirstTable[i];
+            source.put(fieldToAlias.containsKey(field) ? fieldToAlias.get(field) : field, values[i]);
+        }
+        InternalSearchHit searchHit = new InternalSearchHit(currentId, row.getId(), new Text(row.getType()), null);
+        searchHit.sourceRef(XContentFactory.jsonBuilder().map(source).bytes());
+        return searchHit;
+    }
+
+    private void parseHintsIfAny(List<Hint> hints) {
+        if (hints == null) return;
+        for (Hint hint : hints) {
+            if (hint.getType() == HintType.MULTI_QUERY_EXTERNAL_SORT) {
+                Object[] params = hint.getParams();
+                this.maxRowsInMemory = (int) params[0];
+                this.maxDocsToFetchOnEachScrollShard = (int) params[1];
+            } else if (hint.getType() == HintType.PARALLEL_SHARD_SCROLL) {
+                this.maxConcurrentShardScrolls = (int) hint.getParams()[0];
+            } else if (hint.getType() == HintType.SCROLL_KEEP_ALIVE) {
+                this.scrollKeepAlive = new TimeValue((int) hint.getParams()[0]);
+            }
+        }
+    }
+}
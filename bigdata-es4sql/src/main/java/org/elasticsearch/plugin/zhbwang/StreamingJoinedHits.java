@@ -0,0 +1,75 @@
+package org.elasticsearch.plugin.zhbwang;
+
+import com.google.common.collect.ImmutableMap;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.search.internal.InternalSearchHit;
+
+import java.io.IOException;
+
+/**
+ * Join results sink that does not keep its hits: each added hit is serialized right away
+ * to the response builder (same fields as ElasticUtils.hitsAsStringResult), so only the output bytes are held.
+ * Hits can't be read back , only size() is tracked. SortMergeMultiQueryExecutor and UnionExecutor stream their rows with it too.
+ */
+public class StreamingJoinedHits implements JoinedHitsSink {
+    private final XContentBuilder builder;
+    private int size;
+
+    public StreamingJoinedHits(XContentBuilder builder) throws IOException {
+        this.builder = builder;
+        this.size = 0;
+        builder.startObject();
+        builder.startObject("hits");
+        builder.startArray("hits");
+    }
+
+    @Override
+    public void add(InternalSearchHit hit) {
+        try {
+            builder.startObject();
+            builder.field("_id", hit.getId());
+            builder.field("_type", hit.getType());
+            builder.field("_score", hit.score());
+            builder.field("_source", hit.sourceAsMap());
+            builder.endObject();
+        } catch (IOException e) {
+            throw new RuntimeException("could not write join result", e);
+        }
+        size++;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    //total and meta data are only known at the end , so they come after the hits.
+    public XContentBuilder finish(MetaSearchResult metaResults) throws IOException {
+        builder.endArray();
+        builder.field("total", size);
+        builder.field("max_score", 1.0f);
+        builder.endObject();
+        builder.field("took", metaResults.getTookImMilli());
+        builder.field("timed_out", metaResults.isTimedOut());
+        builder.field("_shards", ImmutableMap.of("total", metaResults.getTotalNumOfShards(),
+                "successful", metaResults.getSuccessfulShards()
+                , "failed", metaResults.getFailedShards()));
+        if (metaResults.isUsedLookupCache()) {
+            builder.field("lookup_cache", ImmutableMap.of("hits", metaResults.getLookupCacheHits(), "misses", metaResults.getLookupCacheMisses()));
+        }
+        if (metaResults.getSpilledPartitions() > 0) {
+            builder.field("spilled_partitions", metaResults.getSpilledPartitions());
+        }
+        if (metaResults.getBloomFilteredHits() > 0) {
+            builder.field("bloom_filtered_hits", metaResults.getBloomFilteredHits());
+        }
+        if (metaResults.getTermsFilterChunks() > 0) {
+            builder.field("terms_filter_chunks", metaResults.getTermsFilterChunks());
+        }
+        if (metaResults.getShardScrolls() > 0) {
+            builder.field("shard_scrolls", metaResults.getShardScrolls());
+        }
+        builder.endObject();
+        return builder;
+    }
+}
@@ -0,0 +1,34 @@
+package org.elasticsearch.plugin.zhbwang;
+
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.search.SearchRequestBuilder;
+import org.elasticsearch.action.search.SearchType;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.unit.TimeValue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Runs a terms filter that is too big for one request as chunks of terms , each chunk is a scroll of its own.
+ * Up to maxConcurrentChunks scrolls run in parallel.
+ * Hits that match more than one chunk (multi valued fields , OR comparisons) are returned once.
+ */
+public class TermsFilterChunksSearch extends ConcurrentScrollsSearch {
+
+    /**
+     * @param metaResults shards of each chunk first response and the number of chunks are added to it , may be null.
+     */
+    public TermsFilterChunksSearch(Client client, List<SearchRequestBuilder> chunks, int maxConcurrentChunks, int hitsPerShard, TimeValue keepAlive, MetaSearchResult metaResults) {
+        super(client, chunkRequests(chunks, hitsPerShard, keepAlive), maxConcurrentChunks, keepAlive, chunks.size() > 1, metaResults);
+        if (metaResults != null) metaResults.addTermsFilterChunks(chunks.size());
+    }
+
+    private static List<SearchRequest> chunkRequests(List<SearchRequestBuilder> chunks, int hitsPerShard, TimeValue keepAlive) {
+        List<SearchRequest> requests = new ArrayList<>(chunks.size());
+        for (SearchRequestBuilder chunk : chunks) {
+            requests.add(chunk.setSearchType(SearchType.SCAN).setScroll(keepAlive).setSize(hitsPerShard).request());
+        }
+        return requests;
+    }
+}
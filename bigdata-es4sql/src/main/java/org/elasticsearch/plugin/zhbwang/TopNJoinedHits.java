@@ -0,0 +1,126 @@
+package org.elasticsearch.plugin.zhbwang;
+
+import com.zhbwang.bigdata.es.es4sql.domain.Order;
+import org.elasticsearch.search.internal.InternalSearchHit;
+
+import java.util.*;
+
+/**
+ * Join results for ORDER BY with LIMIT: a bounded heap keeps only the best limit rows
+ * while the join runs , ordered on the joined source ("alias.field") so fields of both tables can be used.
+ * Missing values are last , like elastic sorting.
+ */
+public class TopNJoinedHits implements JoinedHitsSink {
+    private final List<Order> orderBys;
+    private final List<String> hiddenFields;
+    private final int limit;
+    private final Comparator<OrderedHit> comparator;
+    private final PriorityQueue<OrderedHit> worstFirst;
+    private long sequence;
+
+    public TopNJoinedHits(List<Order> orderBys, List<String> hiddenFields, int limit) {
+        this.orderBys = orderBys;
+        this.hiddenFields = hiddenFields;
+        this.limit = limit;
+        this.comparator = new OrderedHitComparator();
+        this.worstFirst = new PriorityQueue<>(Math.max(Math.min(limit, 10000), 1), Collections.reverseOrder(comparator));
+        this.sequence = 0;
+    }
+
+    @Override
+    public void add(InternalSearchHit hit) {
+        if (limit <= 0) return;
+        OrderedHit orderedHit = new OrderedHit(hit, orderValues(hit.sourceAsMap()), sequence++);
+        if (worstFirst.size() < limit) {
+            worstFirst.add(orderedHit);
+        } else if (comparator.compare(orderedHit, worstFirst.peek()) < 0) {
+            worstFirst.poll();
+            worstFirst.add(orderedHit);
+        }
+    }
+
+    @Override
+    public int size() {
+        return worstFirst.size();
+    }
+
+    public List<InternalSearchHit> getSortedHits() {
+        List<OrderedHit> orderedHits = new ArrayList<>(worstFirst);
+        Collections.sort(orderedHits, comparator);
+        List<InternalSearchHit> hits = new ArrayList<>(orderedHits.size());
+        for (OrderedHit orderedHit : orderedHits) {
+            Map<String, Object> source = orderedHit.hit.sourceAsMap();
+            for (String hiddenField : hiddenFields) {
+                source.remove(hiddenField);
+            }
+            hits.add(orderedHit.hit);
+        }
+        return hits;
+    }
+
+    private Object[] orderValues(Map<String, Object> source) {
+        Object[] values = new Object[orderBys.size()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = findValue(source, orderBys.get(i).getName());
+        }
+        return values;
+    }
+
+    //joined source has "alias.field" keys , the rest of the path can be inside an object (select all)
+    private Object findValue(Map<String, Object> source, String name) {
+        if (source.containsKey(name)) return source.get(name);
+        int dotIndex = name.indexOf('.');
+        while (dotIndex != -1) {
+            Object value = source.get(name.substring(0, dotIndex));
+            if (value instanceof Map) {
+                return findValue((Map<String, Object>) value, name.substring(dotIndex + 1));
+            }
+            dotIndex = name.indexOf('.', dotIndex + 1);
+        }
+        return null;
+    }
+
+    private static class OrderedHit {
+        private final InternalSearchHit hit;
+        private final Object[] values;
+        private final long sequence;
+
+        private OrderedHit(InternalSearchHit hit, Object[] values, long sequence) {
+            this.hit = hit;
+            this.values = values;
+            this.sequence = sequence;
+        }
+    }
+
+    private class OrderedHitComparator implements Comparator<OrderedHit> {
+        @Override
+        public int compare(OrderedHit o1, OrderedHit o2) {
+            for (int i = 0; i < orderBys.size(); i++) {
+                Object value1 = o1.values[i];
+                Object value2 = o2.values[i];
+                if (value1 == null || value2 == null) {
+                    if (value1 != value2) return value1 == null ? 1 : -1;
+                    continue;
+                }
+                int compare = compareValues(value1, value2);
+                if ("DESC".equalsIgnoreCase(orderBys.get(i).getType())) compare = -compare;
+                if (compare != 0) return compare;
+            }
+            //same order values keep the join order
+            return Long.compare(o1.sequence, o2.sequence);
+        }
+
+        private int compareValues(Object value1, Object value2) {
+            if ((value1 instanceof Long || value1 instanceof Integer) && (value2 instanceof Long || value2 instanceof Integer)) {
+                return Long.compare(((Number) value1).longValue(), ((Number) value2).longValue());
+            }
+            if (value1 instanceof Number && value2 instanceof Number) {
+                return Double.compare(((Number) value1).doubleValue(), ((Number) value2).doubleValue());
+            }
+            if (value1 instanceof Comparable && value1.getClass() == value2.getClass()) {
+                return ((Comparable) value1).compareTo(value2);
+            }
+            return value1.toString().compareTo(value2.toString());
+        }
+    }
+}
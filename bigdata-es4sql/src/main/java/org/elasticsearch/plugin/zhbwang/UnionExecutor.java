@@ -1,8 +1,18 @@
 package org.elasticsearch.plugin.zhbwang;
 
-import org.elasticsearch.action.search.SearchResponse;
+import com.alibaba.druid.sql.ast.statement.SQLUnionOperator;
+import com.zhbwang.bigdata.es.es4sql.domain.Select;
+import com.zhbwang.bigdata.es.es4sql.domain.hints.Hint;
+import com.zhbwang.bigdata.es.es4sql.domain.hints.HintType;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.search.SearchRequestBuilder;
+import org.elasticsearch.action.search.SearchType;
 import org.elasticsearch.client.Client;
 import org.elasticsearch.common.text.Text;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.rest.BytesRestResponse;
+import org.elasticsearch.rest.RestChannel;
+import org.elasticsearch.rest.RestStatus;
 import org.elasticsearch.search.SearchHit;
 import org.elasticsearch.search.SearchHits;
 import org.elasticsearch.search.internal.InternalSearchHit;
@@ -12,55 +22,114 @@ import com.zhbwang.bigdata.es.es4sql.exception.SqlParseException;
 import com.zhbwang.bigdata.es.es4sql.query.multi.MultiQueryRequestBuilder;
 
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.List;
-import java.util.Map;
+import java.util.*;
 
 /**
  * Created by Eliran on 21/8/2016.
+ * All the union queries are scrolled in parallel , pages are added to the results as they come.
+ * Each query returns up to its own limit. On UNION (distinct) rows are kept in a set of their fingerprints
+ * and a row with a fingerprint that was already returned is dropped.
+ * On the rest api the rows are written to the response output as they come , only their fingerprints are kept.
  */
 public class UnionExecutor implements ElasticHitsExecutor {
 
     private MultiQueryRequestBuilder multiQueryBuilder;
     private SearchHits results;
     private Client client;
-    private int currentId;
+    private TimeValue scrollKeepAlive;
 
     public UnionExecutor(Client client,MultiQueryRequestBuilder builder) {
         multiQueryBuilder = builder;
-        client = client;
-        currentId = 0;
+        this.client = client;
+        parseHintsIfAny(builder.getOriginalSelect(true).getHints());
     }
 
     @Override
     public void run() throws IOException, SqlParseException {
-        SearchResponse firstResponse = this.multiQueryBuilder.getFirstSearchRequest().get();
-        SearchHit[] hits = firstResponse.getHits().hits();
-        List<InternalSearchHit> unionHits = new ArrayList<>(hits.length);
-        fillInternalSearchHits(unionHits,hits,this.multiQueryBuilder.getFirstTableFieldToAlias());
-        SearchResponse secondResponse = this.multiQueryBuilder.getSecondSearchRequest().get();
-        fillInternalSearchHits(unionHits,secondResponse.getHits().hits(),this.multiQueryBuilder.getSecondTableFieldToAlias());
-        int totalSize = unionHits.size();
-        InternalSearchHit[] unionHitsArr = unionHits.toArray(new InternalSearchHit[totalSize]);
-        this.results = new InternalSearchHits(unionHitsArr, totalSize,1.0f);
+        BufferedJoinedHits resultHits = new BufferedJoinedHits();
+        union(resultHits);
+        int totalSize = resultHits.size();
+        this.results = new InternalSearchHits(resultHits.getHits().toArray(new InternalSearchHit[totalSize]), totalSize, 1.0f);
     }
 
-    private void fillInternalSearchHits(List<InternalSearchHit> unionHits, SearchHit[] hits, Map<String, String> fieldNameToAlias) {
+    /**
+     * Runs the queries and writes each returned row to the channel response when it comes , the rows are not kept.
+     */
+    public void runAndSendResponse(RestChannel channel) throws IOException, SqlParseException {
+        long timeBefore = System.currentTimeMillis();
+        StreamingJoinedHits resultHits = new StreamingJoinedHits(channel.newBuilder());
+        union(resultHits);
+        MetaSearchResult metaResults = new MetaSearchResult();
+        metaResults.setTookImMilli(System.currentTimeMillis() - timeBefore);
+        channel.sendResponse(new BytesRestResponse(RestStatus.OK, resultHits.finish(metaResults)));
+    }
+
+    private void union(JoinedHitsSink resultHits) {
+        List<Select> selects = this.multiQueryBuilder.getOriginalSelects();
+        List<SearchRequest> scrollRequests = new ArrayList<>(selects.size());
+        for (int i = 0; i < selects.size(); i++) {
+            //on SCAN the size is per shard , an ordered query is scrolled sorted so its limit takes its first rows
+            int pageSize = Math.max(Math.min(selects.get(i).getRowCount(), 10000), 1);
+            SearchRequestBuilder requestBuilder = this.multiQueryBuilder.getSearchRequests().get(i);
+            if (!selects.get(i).isOrderdSelect()) requestBuilder.setSearchType(SearchType.SCAN);
+            scrollRequests.add(requestBuilder.setScroll(getScrollKeepAlive()).setSize(pageSize).request());
+        }
+        ConcurrentScrollsSearch unionSearch = new ConcurrentScrollsSearch(this.client, scrollRequests, scrollRequests.size(), getScrollKeepAlive(), false, null);
+        FingerprintSet returnedRows = null;
+        SQLUnionOperator relation = this.multiQueryBuilder.getRelation();
+        if (relation == SQLUnionOperator.UNION || relation == SQLUnionOperator.DISTINCT) {
+            returnedRows = new FingerprintSet();
+        }
+
+        int[] queriesHits = new int[selects.size()];
+        try {
+            SearchHit[] hits = unionSearch.nextPage();
+            while (hits.length > 0) {
+                int queryIndex = unionSearch.getLastPageSearchIndex();
+                int queryLimit = selects.get(queryIndex).getRowCount();
+                int hitsToTake = Math.min(hits.length, queryLimit - queriesHits[queryIndex]);
+                queriesHits[queryIndex] += hitsToTake;
+                if (queriesHits[queryIndex] >= queryLimit) unionSearch.stopSearch(queryIndex);
+                fillInternalSearchHits(resultHits, Arrays.copyOf(hits, hitsToTake), this.multiQueryBuilder.getTableFieldToAlias(queryIndex), returnedRows);
+                hits = unionSearch.nextPage();
+            }
+        } finally {
+            //a response written to the channel can fail half way , the scrolls left are cleared
+            unionSearch.stop();
+        }
+    }
+
+    //returnedRows is null on UNION ALL
+    private void fillInternalSearchHits(JoinedHitsSink unionHits, SearchHit[] hits, Map<String, String> fieldNameToAlias, FingerprintSet returnedRows) {
         for(SearchHit hit : hits){
-            InternalSearchHit searchHit = new InternalSearchHit(currentId,hit.getId().toString(), new Text(hit.getType()), hit.fields());
+            InternalSearchHit searchHit = new InternalSearchHit(unionHits.size(),hit.getId().toString(), new Text(hit.getType()), hit.fields());
             searchHit.sourceRef(hit.getSourceRef());
             searchHit.sourceAsMap().clear();
             Map<String, Object> sourceAsMap = hit.sourceAsMap();
             if(!fieldNameToAlias.isEmpty()){
                 updateFieldNamesToAlias(sourceAsMap, fieldNameToAlias);
             }
+            if(returnedRows != null && !returnedRows.add(RowFingerprint.ofSource(sourceAsMap))){
+                continue;
+            }
             searchHit.sourceAsMap().putAll(sourceAsMap);
-            currentId++;
             unionHits.add(searchHit);
         }
     }
 
+    private TimeValue getScrollKeepAlive() {
+        return this.scrollKeepAlive != null ? this.scrollKeepAlive : ElasticUtils.DEFAULT_SCROLL_KEEP_ALIVE;
+    }
+
+    private void parseHintsIfAny(List<Hint> hints) {
+        if(hints == null) return;
+        for(Hint hint : hints){
+            if (hint.getType() == HintType.SCROLL_KEEP_ALIVE){
+                this.scrollKeepAlive = new TimeValue((int) hint.getParams()[0]);
+            }
+        }
+    }
+
 
     private void updateFieldNamesToAlias(Map<String, Object> sourceAsMap, Map<String, String> fieldNameToAlias) {
         for(Map.Entry<String,String> fieldToAlias : fieldNameToAlias.entrySet()){
@@ -14,6 +14,7 @@ import org.elasticsearch.rest.RestStatus;
 import org.elasticsearch.rest.action.support.RestStatusToXContentListener;
 import org.elasticsearch.search.SearchHits;
 import com.zhbwang.bigdata.es.es4sql.query.QueryAction;
+import com.zhbwang.bigdata.es.es4sql.query.SqlElasticCountRequestBuilder;
 import com.zhbwang.bigdata.es.es4sql.query.SqlElasticRequestBuilder;
 import com.zhbwang.bigdata.es.es4sql.query.join.JoinRequestBuilder;
 import com.zhbwang.bigdata.es.es4sql.query.multi.MultiQueryRequestBuilder;
@@ -38,12 +39,21 @@ public class ElasticDefaultRestExecutor implements RestExecutor {
 
         if (requestBuilder instanceof JoinRequestBuilder) {
             ElasticJoinExecutor executor = ElasticJoinExecutor.createJoinExecutor(client, requestBuilder);
-            executor.run();
-            executor.sendResponse(channel);
+            executor.runAndSendResponse(channel);
         } else if (requestBuilder instanceof MultiQueryRequestBuilder) {
             ElasticHitsExecutor executor = MultiRequestExecutorFactory.createExecutor(client, (MultiQueryRequestBuilder) requestBuilder);
+            if (executor instanceof SortMergeMultiQueryExecutor) {
+                ((SortMergeMultiQueryExecutor) executor).runAndSendResponse(channel);
+                return;
+            }
+            if (executor instanceof UnionExecutor) {
+                ((UnionExecutor) executor).runAndSendResponse(channel);
+                return;
+            }
             executor.run();
             sendDefaultResponse(executor.getHits(), channel);
+        } else if (requestBuilder instanceof SqlElasticCountRequestBuilder) {
+            client.search((SearchRequest) request, ((SqlElasticCountRequestBuilder) requestBuilder).withCount(new RestStatusToXContentListener<SearchResponse>(channel)));
         } else if (request instanceof SearchRequest) {
             client.search((SearchRequest) request, new RestStatusToXContentListener<SearchResponse>(channel));
         } else if (request instanceof DeleteByQueryRequest) {
@@ -72,6 +82,9 @@ public class ElasticDefaultRestExecutor implements RestExecutor {
         } else if (request instanceof SearchRequest) {
             ActionFuture<SearchResponse> future = client.search((SearchRequest) request);
             SearchResponse response = future.actionGet();
+            if (requestBuilder instanceof SqlElasticCountRequestBuilder) {
+                response = ((SqlElasticCountRequestBuilder) requestBuilder).withCount(response);
+            }
             return response.toString();
         } else if (request instanceof DeleteByQueryRequest) {
             throw new UnsupportedOperationException("currently not support delete on elastic 2.x");
@@ -4,6 +4,7 @@ package com.zhbwang.bigdata.es.es4sql;
 import com.google.common.collect.ContiguousSet;
 import com.google.common.collect.DiscreteDomain;
 import com.google.common.collect.Range;
+import com.zhbwang.bigdata.es.es4sql.query.SqlElasticCountRequestBuilder;
 import com.zhbwang.bigdata.es.es4sql.query.SqlElasticSearchRequestBuilder;
 import org.elasticsearch.action.search.SearchResponse;
 import org.elasticsearch.search.SearchHit;
@@ -50,6 +51,17 @@ public class AggregationTest {
 		Assert.assertEquals(1000, count.getValue());
 	}
 
+	@Test
+	public void countWithWhereIsHitsTotal() throws IOException, SqlParseException, SQLFeatureNotSupportedException {
+		SqlElasticSearchRequestBuilder select = getSearchRequestBuilder(String.format("SELECT COUNT(*) FROM %s/account WHERE age > 30", TestsConstants.TEST_INDEX));
+		Assert.assertTrue(select instanceof SqlElasticCountRequestBuilder);
+		Assert.assertFalse(select.explain().contains("aggregations"));
+		SearchResponse response = (SearchResponse) select.get();
+		ValueCount count = response.getAggregations().get("COUNT(*)");
+		Assert.assertEquals(response.getHits().getTotalHits(), count.getValue());
+		Assert.assertTrue(count.getValue() > 0 && count.getValue() < 1000);
+	}
+
 	@Test
 	public void sumTest() throws IOException, SqlParseException, SQLFeatureNotSupportedException {
 		Aggregations result = query(String.format("SELECT SUM(balance) FROM %s/account", TestsConstants.TEST_INDEX));
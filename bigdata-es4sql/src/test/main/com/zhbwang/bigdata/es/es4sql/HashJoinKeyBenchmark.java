@@ -0,0 +1,116 @@
+package com.zhbwang.bigdata.es.es4sql;
+
+import org.elasticsearch.plugin.zhbwang.HashJoinKey;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Build + probe cost of hash join keys: the old "|value|" string keys against HashJoinKey.
+ * Run with main() , not part of MainTestSuite.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class HashJoinKeyBenchmark {
+
+    @Param({"100000"})
+    private int rows;
+
+    private String[] fields = new String[]{"customerId", "country", "year"};
+    private List<Map<String, Object>> firstTable;
+    private List<Map<String, Object>> secondTable;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(42);
+        firstTable = new ArrayList<>(rows);
+        secondTable = new ArrayList<>(rows);
+        for (int i = 0; i < rows; i++) {
+            firstTable.add(createSource(i));
+            secondTable.add(createSource(random.nextInt(rows * 2)));
+        }
+    }
+
+    private Map<String, Object> createSource(int id) {
+        Map<String, Object> source = new HashMap<>();
+        source.put("customerId", (long) id);
+        source.put("country", "country" + (id % 50));
+        source.put("year", 2000 + (id % 17));
+        return source;
+    }
+
+    @Benchmark
+    public int stringKeys() {
+        Map<String, List<Map<String, Object>>> hash = new HashMap<>();
+        for (Map<String, Object> source : firstTable) {
+            String key = stringKey(source);
+            List<Map<String, Object>> hits = hash.get(key);
+            if (hits == null) {
+                hits = new ArrayList<>();
+                hash.put(key, hits);
+            }
+            hits.add(source);
+        }
+        int matches = 0;
+        for (Map<String, Object> source : secondTable) {
+            if (hash.containsKey(stringKey(source))) matches++;
+        }
+        return matches;
+    }
+
+    @Benchmark
+    public int typedKeys() {
+        Map<HashJoinKey, List<Map<String, Object>>> hash = new HashMap<>();
+        for (Map<String, Object> source : firstTable) {
+            HashJoinKey key = typedKey(source);
+            List<Map<String, Object>> hits = hash.get(key);
+            if (hits == null) {
+                hits = new ArrayList<>();
+                hash.put(key, hits);
+            }
+            hits.add(source);
+        }
+        int matches = 0;
+        for (Map<String, Object> source : secondTable) {
+            if (hash.containsKey(typedKey(source))) matches++;
+        }
+        return matches;
+    }
+
+    //same concatenation HashJoinElasticExecutor used before HashJoinKey
+    private String stringKey(Map<String, Object> source) {
+        String key = "";
+        for (String field : fields) {
+            Object data = source.get(field);
+            if (data == null)
+                key += "|null|";
+            else
+                key += "|" + data.toString() + "|";
+        }
+        return key;
+    }
+
+    private HashJoinKey typedKey(Map<String, Object> source) {
+        Object[] values = new Object[fields.length];
+        for (int i = 0; i < fields.length; i++) {
+            values[i] = source.get(fields[i]);
+        }
+        return new HashJoinKey(values);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options options = new OptionsBuilder()
+                .include(HashJoinKeyBenchmark.class.getSimpleName())
+                .build();
+        new Runner(options).run();
+    }
+}
@@ -9,6 +9,7 @@ import org.junit.Test;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
+import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Properties;
@@ -39,6 +40,46 @@ public class JDBCTests {
         Assert.assertTrue(result.get(1).equals("Heath,39,F"));
     }
 
+    @Test
+    public void testJDBCPreparedStatementWithParameters() throws Exception {
+        Properties properties = new Properties();
+        properties.put("url", "jdbc:elasticsearch://127.0.0.1:9300/" + TestsConstants.TEST_INDEX);
+        properties.put("poolPreparedStatements", "true");
+        DruidDataSource dds = (DruidDataSource) ElasticSearchDruidDataSourceFactory.createDataSource(properties);
+        Connection connection = dds.getConnection();
+        PreparedStatement ps = connection.prepareStatement("SELECT  gender,lastname,age from  " + TestsConstants.TEST_INDEX + " where lastname = ? and age > ?");
+
+        //the same statement executed with different parameters , each result set has only its own rows
+        List<String> heathResult = executeWithParameters(ps, "Heath", 30);
+        List<String> adamsResult = executeWithParameters(ps, "Adams", 30);
+        List<String> olderHeathResult = executeWithParameters(ps, "Heath", 40);
+
+        ps.close();
+        connection.close();
+        dds.close();
+
+        Assert.assertFalse(heathResult.isEmpty());
+        for (String row : heathResult) {
+            Assert.assertEquals("Heath,39,F", row);
+        }
+        Assert.assertFalse(adamsResult.isEmpty());
+        for (String row : adamsResult) {
+            Assert.assertEquals("Adams,33,M", row);
+        }
+        Assert.assertTrue(olderHeathResult.isEmpty());
+    }
+
+    private List<String> executeWithParameters(PreparedStatement ps, String lastname, int age) throws SQLException {
+        ps.setString(1, lastname);
+        ps.setInt(2, age);
+        ResultSet resultSet = ps.executeQuery();
+        List<String> result = new ArrayList<String>();
+        while (resultSet.next()) {
+            result.add(resultSet.getString("lastname") + "," + resultSet.getInt("age") + "," + resultSet.getString("gender"));
+        }
+        return result;
+    }
+
 }
 
 
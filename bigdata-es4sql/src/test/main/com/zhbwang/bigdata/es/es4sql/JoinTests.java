@@ -5,8 +5,11 @@ import com.google.common.collect.ImmutableMap;
 import com.zhbwang.bigdata.es.es4sql.exception.SqlParseException;
 import com.zhbwang.bigdata.es.es4sql.query.SqlElasticRequestBuilder;
 import com.zhbwang.bigdata.es.es4sql.query.join.HashJoinElasticRequestBuilder;
+import com.zhbwang.bigdata.es.es4sql.query.join.JoinCostPlanner;
+import com.zhbwang.bigdata.es.es4sql.query.join.SortMergeJoinElasticRequestBuilder;
 import org.elasticsearch.plugin.zhbwang.ElasticJoinExecutor;
 import org.elasticsearch.plugin.zhbwang.HashJoinElasticExecutor;
+import org.elasticsearch.plugin.zhbwang.SortMergeJoinElasticExecutor;
 import org.elasticsearch.search.SearchHit;
 import org.junit.Assert;
 import org.junit.Test;
@@ -282,6 +285,194 @@ public class JoinTests {
         Assert.assertTrue(hitsContains(hits, secondMatch));
     }
 
+    @Test
+    public void testLeftJoinHASHWithSpillToDisk() throws SQLFeatureNotSupportedException, IOException, SqlParseException {
+        String query = String.format("select /*! HASH_JOIN_SPILL_TO_DISK(1,4)*/ c.name.firstname, f.name.firstname,f.name.lastname from %s/gotCharacters c " +
+                "LEFT JOIN %s/gotCharacters f " +
+                "on f.name.firstname = c.parents.father "
+                , TestsConstants.TEST_INDEX, TestsConstants.TEST_INDEX);
+        ElasticJoinExecutor executor = runJoin(query);
+        //one row in memory , the other first table rows are spilled
+        Assert.assertTrue(executor.getMetaResults().getSpilledPartitions() > 0);
+        SearchHit[] hits = executor.getHits().getHits();
+        Assert.assertEquals(4, hits.length);
+
+        Map<String,Object> oneMatch = new HashMap<>();
+        oneMatch.put("c.name.firstname", "Daenerys");
+        oneMatch.put("f.name.firstname",null);
+        oneMatch.put("f.name.lastname",null);
+
+        Assert.assertTrue(hitsContains(hits, oneMatch));
+        Map<String,Object> secondMatch =  ImmutableMap.of("c.name.firstname", (Object) "Brandon",
+                "f.name.firstname", "Eddard", "f.name.lastname", "Stark");
+        Assert.assertTrue(hitsContains(hits, secondMatch));
+    }
+
+    @Test
+    public void joinWithSpillToDiskSameResultsAsInMemoryHASH() throws SQLFeatureNotSupportedException, IOException, SqlParseException {
+        String query = String.format("select c.name.firstname,c.parents.father , h.hname,h.words from %s/gotCharacters c " +
+                "JOIN %s/gotHouses h " +
+                "on h.hname = c.house ", TestsConstants.TEST_INDEX, TestsConstants.TEST_INDEX);
+        SearchHit[] inMemoryHits = joinAndGetHits(query);
+        ElasticJoinExecutor executor = runJoin(query.replace("select","select /*! HASH_JOIN_SPILL_TO_DISK(1,2)*/ "));
+        Assert.assertTrue(executor.getMetaResults().getSpilledPartitions() > 0);
+        SearchHit[] spilledHits = executor.getHits().getHits();
+        assertSameHits(inMemoryHits, spilledHits);
+    }
+
+    @Test
+    public void joinWithConcurrentMultiSearchesKeepsOrderNL() throws SQLFeatureNotSupportedException, IOException, SqlParseException {
+        String query = String.format("select /*! USE_NL*/ /*! NL_MULTISEARCH_SIZE(1)*/ c.name.firstname,c.parents.father , h.hname,h.words from %s/gotCharacters c " +
+                "JOIN %s/gotHouses h " +
+                "on h.hname = c.house ", TestsConstants.TEST_INDEX, TestsConstants.TEST_INDEX);
+        SearchHit[] serialHits = joinAndGetHits(query);
+        SearchHit[] concurrentHits = joinAndGetHits(query.replace("select","select /*! NL_CONCURRENT_SEARCHES(3,1)*/ "));
+        Assert.assertEquals(serialHits.length, concurrentHits.length);
+        for (int i = 0; i < serialHits.length; i++) {
+            Assert.assertEquals(serialHits[i].sourceAsMap(), concurrentHits[i].sourceAsMap());
+        }
+    }
+
+    @Test
+    public void joinWithBloomFilterSameResultsAsInMemoryHASH() throws SQLFeatureNotSupportedException, IOException, SqlParseException {
+        String query = String.format("select c.name.firstname,c.parents.father , h.hname,h.words from %s/gotCharacters c " +
+                "JOIN %s/gotHouses h " +
+                "on h.hname = c.house " +
+                "where c.name.firstname = 'Daenerys'", TestsConstants.TEST_INDEX, TestsConstants.TEST_INDEX);
+        SearchHit[] inMemoryHits = joinAndGetHits(query);
+        ElasticJoinExecutor executor = runJoin(query.replace("select","select /*! HASH_JOIN_BLOOM_FILTER(0)*/ "));
+        //no terms are pushed down , the Stark and Lannister houses are dropped by the bloom filter
+        Assert.assertTrue(executor.getMetaResults().getBloomFilteredHits() > 0);
+        SearchHit[] bloomHits = executor.getHits().getHits();
+        assertSameHits(inMemoryHits, bloomHits);
+    }
+
+    @Test
+    public void joinWithChunkedTermsFilterSameResultsAsNestedLoopsHASH() throws SQLFeatureNotSupportedException, IOException, SqlParseException {
+        String query = String.format("select c.name.firstname,c.parents.father , h.hname,h.words from %s/gotCharacters c " +
+                "JOIN %s/gotHouses h " +
+                "on h.hname = c.house ", TestsConstants.TEST_INDEX, TestsConstants.TEST_INDEX);
+        SearchHit[] inMemoryHits = joinAndGetHits(query.replace("select", "select /*! USE_NL*/ "));
+        ElasticJoinExecutor executor = runJoin(query.replace("select", "select /*! HASH_WITH_TERMS_FILTER*/ /*! TERMS_FILTER_CHUNKS(1,2)*/ "));
+        //one house a chunk
+        Assert.assertTrue(executor.getMetaResults().getTermsFilterChunks() > 1);
+        SearchHit[] chunkedHits = executor.getHits().getHits();
+        assertSameHits(inMemoryHits, chunkedHits);
+    }
+
+    @Test
+    public void joinWithParallelShardScrollSameResultsAsNestedLoopsHASH() throws SQLFeatureNotSupportedException, IOException, SqlParseException {
+        String query = String.format("select c.name.firstname,c.parents.father , h.hname,h.words from %s/gotCharacters c " +
+                "JOIN %s/gotHouses h " +
+                "on h.hname = c.house ", TestsConstants.TEST_INDEX, TestsConstants.TEST_INDEX);
+        SearchHit[] nestedLoopsHits = joinAndGetHits(query.replace("select", "select /*! USE_NL*/ "));
+        ElasticJoinExecutor executor = runJoin(query.replace("select", "select /*! PARALLEL_SHARD_SCROLL(2)*/ /*! SCROLL_KEEP_ALIVE(30000)*/ "));
+        Assert.assertTrue(executor.getMetaResults().getShardScrolls() > 1);
+        SearchHit[] parallelHits = executor.getHits().getHits();
+        assertSameHits(nestedLoopsHits, parallelHits);
+    }
+
+    @Test
+    public void nestedLoopsReuseSearchesOfSameKeyNL() throws SQLFeatureNotSupportedException, IOException, SqlParseException {
+        String query = String.format("select /*! USE_NL*/ /*! NL_LOOKUP_CACHE(%%d)*/ c.name.firstname, h.hname,h.words from %s/gotCharacters c " +
+                "JOIN %s/gotHouses h " +
+                "on h.hname = c.house ", TestsConstants.TEST_INDEX, TestsConstants.TEST_INDEX);
+        SearchHit[] notCachedHits = joinAndGetHits(String.format(query, 0));
+        SearchDao searchDao = MainTestSuite.getSearchDao();
+        ElasticJoinExecutor executor = ElasticJoinExecutor.createJoinExecutor(searchDao.getClient(), searchDao.explain(String.format(query, 100)).explain());
+        executor.run();
+        SearchHit[] cachedHits = executor.getHits().getHits();
+        //two starks , the second one uses the first one search
+        Assert.assertTrue(executor.getMetaResults().getLookupCacheHits() >= 1);
+        assertSameHits(notCachedHits, cachedHits);
+    }
+
+    @Test
+    public void bloomFilterPushesDownTermsOnlyUnderThresholdHASH() throws SqlParseException, SQLFeatureNotSupportedException, IOException {
+        String query = "SELECT /*! HASH_JOIN_BLOOM_FILTER(%d)*/ a.firstname ,a.lastname , a.gender ,d.dog_name  FROM elasticsearch-sql_test_index/people a " +
+                " JOIN elasticsearch-sql_test_index/dog d on d.holdersName = a.firstname " +
+                " WHERE " +
+                " (a.age > 10 OR a.balance > 2000)" +
+                " AND d.age > 1";
+        String underThreshold = hashJoinRunAndExplain(String.format(query, 100000)).replaceAll("\\s+","");
+        Assert.assertTrue(underThreshold.contains("\"terms\":{\"holdersName\""));
+        String overThreshold = hashJoinRunAndExplain(String.format(query, 1)).replaceAll("\\s+","");
+        Assert.assertFalse(overThreshold.contains("\"terms\":{\"holdersName\""));
+    }
+
+    @Test
+    public void bloomFilterThresholdCountsDistinctTermsHASH() throws SqlParseException, SQLFeatureNotSupportedException, IOException {
+        //4 characters of 3 houses , Stark is collected twice
+        String query = String.format("select /*! HASH_JOIN_BLOOM_FILTER(%%d)*/ c.name.firstname , h.hname from %s/gotCharacters c " +
+                "JOIN %s/gotHouses h " +
+                "on h.hname = c.house ", TestsConstants.TEST_INDEX, TestsConstants.TEST_INDEX);
+        String distinctUnderThreshold = hashJoinRunAndExplain(String.format(query, 3)).replaceAll("\\s+","");
+        Assert.assertTrue(distinctUnderThreshold.contains("\"terms\":{\"hname\""));
+        String distinctOverThreshold = hashJoinRunAndExplain(String.format(query, 2)).replaceAll("\\s+","");
+        Assert.assertFalse(distinctOverThreshold.contains("\"terms\":{\"hname\""));
+    }
+
+    @Test
+    public void costPlannerBuildsOnSmallerTableHASH() throws SQLFeatureNotSupportedException, IOException, SqlParseException {
+        String query = "SELECT a.firstname ,a.lastname , a.gender ,d.dog_name  FROM elasticsearch-sql_test_index/people a " +
+                " JOIN elasticsearch-sql_test_index/dog d on d.holdersName = a.firstname " +
+                " WHERE a.age > 10 AND d.age > 1";
+        SearchDao searchDao = MainTestSuite.getSearchDao();
+        HashJoinElasticExecutor executor = new HashJoinElasticExecutor(searchDao.getClient(), (HashJoinElasticRequestBuilder) searchDao.explain(query).explain());
+        executor.run();
+        //the plan the executor ran , not the explained (unplanned) builder
+        JoinCostPlanner costPlanner = executor.getCostPlanner();
+        Assert.assertNotNull(costPlanner);
+        Assert.assertTrue(costPlanner.getFirstTableRows() <= costPlanner.getSecondTableRows());
+        Assert.assertEquals("d", executor.getRequestBuilder().getFirstTable().getAlias());
+        //terms filter pushdown lowercases keys , the planner leaves it to the hint
+        Assert.assertFalse(executor.getRequestBuilder().isUseTermFiltersOptimization());
+
+        SearchHit[] plannedHits = executor.getHits().getHits();
+        SearchHit[] nestedLoopsHits = joinAndGetHits(query.replace("SELECT", "SELECT /*! USE_NL*/ "));
+        assertSameHits(nestedLoopsHits, plannedHits);
+    }
+
+    @Test
+    public void joinWithMergeJoinSameResultsAsHASH() throws SQLFeatureNotSupportedException, IOException, SqlParseException {
+        String query = String.format("select c.name.firstname,c.parents.father , h.hname,h.words from %s/gotCharacters c " +
+                "JOIN %s/gotHouses h " +
+                "on h.hname = c.house ", TestsConstants.TEST_INDEX, TestsConstants.TEST_INDEX);
+        SearchHit[] hashHits = joinAndGetHits(query);
+        SearchDao searchDao = MainTestSuite.getSearchDao();
+        SortMergeJoinElasticRequestBuilder mergeJoin = (SortMergeJoinElasticRequestBuilder) searchDao.explain(query.replace("select","select /*! USE_MERGE_JOIN*/ ")).explain();
+        //both tables are scrolled sorted on their join field
+        Assert.assertTrue(mergeJoin.getFirstTable().getRequestBuilder().toString().replaceAll("\\s+","").contains("\"sort\":[{\"house\""));
+        Assert.assertTrue(mergeJoin.getSecondTable().getRequestBuilder().toString().replaceAll("\\s+","").contains("\"sort\":[{\"hname\""));
+        ElasticJoinExecutor executor = ElasticJoinExecutor.createJoinExecutor(searchDao.getClient(), mergeJoin);
+        Assert.assertTrue(executor instanceof SortMergeJoinElasticExecutor);
+        executor.run();
+        SearchHit[] mergeHits = executor.getHits().getHits();
+        assertSameHits(hashHits, mergeHits);
+    }
+
+    @Test
+    public void testLeftJoinMergeJoin() throws SQLFeatureNotSupportedException, IOException, SqlParseException {
+        String query = String.format("select /*! USE_MERGE_JOIN*/ c.name.firstname, f.name.firstname,f.name.lastname from %s/gotCharacters c " +
+                "LEFT JOIN %s/gotCharacters f " +
+                "on f.name.firstname = c.parents.father "
+                , TestsConstants.TEST_INDEX, TestsConstants.TEST_INDEX);
+        ElasticJoinExecutor executor = runJoin(query);
+        Assert.assertTrue(executor instanceof SortMergeJoinElasticExecutor);
+        SearchHit[] hits = executor.getHits().getHits();
+        Assert.assertEquals(4, hits.length);
+
+        Map<String,Object> oneMatch = new HashMap<>();
+        oneMatch.put("c.name.firstname", "Daenerys");
+        oneMatch.put("f.name.firstname",null);
+        oneMatch.put("f.name.lastname",null);
+
+        Assert.assertTrue(hitsContains(hits, oneMatch));
+        Map<String,Object> secondMatch =  ImmutableMap.of("c.name.firstname", (Object) "Brandon",
+                "f.name.firstname", "Eddard", "f.name.lastname", "Stark");
+        Assert.assertTrue(hitsContains(hits, secondMatch));
+    }
+
     @Test
     public void hintLimits_firstLimitSecondNullHASH() throws SQLFeatureNotSupportedException, IOException, SqlParseException {
         hintLimits_firstLimitSecondNull(false);
@@ -403,6 +594,31 @@ public class JoinTests {
         Assert.assertEquals("Daenerys", hits[0].getSource().get("c.name.firstname"));
     }
 
+    @Test
+    public void joinThreeTables() throws SQLFeatureNotSupportedException, IOException, SqlParseException {
+        String query = String.format("select c.name.firstname, h.hname, d.dog_name from %s/gotCharacters c " +
+                "JOIN %s/gotHouses h on h.hname = c.house " +
+                "JOIN %s/dog d on d.holdersName = c.name.firstname", TestsConstants.TEST_INDEX, TestsConstants.TEST_INDEX, TestsConstants.TEST_INDEX);
+        SearchHit[] hits = joinAndGetHits(query);
+        Assert.assertEquals(1, hits.length);
+        Map<String, Object> expected = ImmutableMap.of("c.name.firstname", (Object) "Daenerys", "h.hname", "Targaryen", "d.dog_name", "rex");
+        Assert.assertEquals(expected, hits[0].getSource());
+    }
+
+    @Test
+    public void leftJoinThreeTables() throws SQLFeatureNotSupportedException, IOException, SqlParseException {
+        String query = String.format("select c.name.firstname, f.name.firstname, d.dog_name from %s/gotCharacters c " +
+                "LEFT JOIN %s/gotCharacters f on f.name.firstname = c.parents.father " +
+                "LEFT JOIN %s/dog d on d.holdersName = c.name.firstname", TestsConstants.TEST_INDEX, TestsConstants.TEST_INDEX, TestsConstants.TEST_INDEX);
+        SearchHit[] hits = joinAndGetHits(query);
+        Assert.assertEquals(4, hits.length);
+        Map<String, Object> daenerys = new HashMap<>();
+        daenerys.put("c.name.firstname", "Daenerys");
+        daenerys.put("f.name.firstname", null);
+        daenerys.put("d.dog_name", "rex");
+        Assert.assertTrue(hitsContains(hits, daenerys));
+    }
+
 
 
     @Test
@@ -466,6 +682,28 @@ public class JoinTests {
     }
 
 
+    @Test
+    public void joinWithOrderbySecondTableAndLimitHASH() throws SQLFeatureNotSupportedException, IOException, SqlParseException {
+        joinWithOrderbySecondTableAndLimit(false);
+    }
+    @Test
+    public void joinWithOrderbySecondTableAndLimitNL() throws SQLFeatureNotSupportedException, IOException, SqlParseException {
+        joinWithOrderbySecondTableAndLimit(true);
+    }
+    private void joinWithOrderbySecondTableAndLimit(boolean useNestedLoops) throws SQLFeatureNotSupportedException, IOException, SqlParseException {
+        String query = String.format("select c.name.firstname from %s/gotCharacters c " +
+                "JOIN %s/gotHouses d on d.hname = c.house " +
+                "order by d.hname desc , c.name.firstname limit 2"
+                ,  TestsConstants.TEST_INDEX, TestsConstants.TEST_INDEX);
+        if(useNestedLoops) query = query.replace("select","select /*! USE_NL*/ ");
+        SearchHit[] hits = joinAndGetHits(query);
+        Assert.assertEquals(2, hits.length);
+        Assert.assertEquals("Daenerys",hits[0].sourceAsMap().get("c.name.firstname"));
+        Assert.assertEquals("Brandon",hits[1].sourceAsMap().get("c.name.firstname"));
+        //order field was not selected , so it is not returned
+        Assert.assertFalse(hits[0].sourceAsMap().containsKey("d.hname"));
+    }
+
     @Test
     public void joinWithAllFromSecondTableHASH() throws SQLFeatureNotSupportedException, IOException, SqlParseException {
         joinWithAllFromSecondTable(false);
@@ -532,6 +770,27 @@ public class JoinTests {
     }
 
 
+    @Test
+    public void joinNumberWithNumericStringHASH() throws SQLFeatureNotSupportedException, IOException, SqlParseException {
+        joinNumberWithNumericString(false);
+    }
+    @Test
+    public void joinNumberWithNumericStringNL() throws SQLFeatureNotSupportedException, IOException, SqlParseException {
+        joinNumberWithNumericString(true);
+    }
+    private void joinNumberWithNumericString(boolean useNestedLoops) throws SQLFeatureNotSupportedException, IOException, SqlParseException {
+        String query = String.format("select a.pk , b.pkCode from %s/systems a " +
+                "JOIN %s/systems b on b.pkCode = a.pk " +
+                "where a.system_name = 'A' and b.system_name = 'F'"
+                ,  TestsConstants.TEST_INDEX, TestsConstants.TEST_INDEX);
+        if(useNestedLoops) query = query.replace("select","select /*! USE_NL*/ ");
+        SearchHit[] hits = joinAndGetHits(query);
+        Assert.assertEquals(2, hits.length);
+        Assert.assertTrue(hitsContains(hits, ImmutableMap.of("a.pk", (Object) 1, "b.pkCode", "1")));
+        Assert.assertTrue(hitsContains(hits, ImmutableMap.of("a.pk", (Object) 2, "b.pkCode", "2")));
+    }
+
+
     private String hashJoinRunAndExplain(String query) throws IOException, SqlParseException, SQLFeatureNotSupportedException {
         SearchDao searchDao = MainTestSuite.getSearchDao();
         HashJoinElasticRequestBuilder explain = (HashJoinElasticRequestBuilder) searchDao.explain(query).explain();
@@ -541,11 +800,24 @@ public class JoinTests {
     }
 
     private SearchHit[] joinAndGetHits(String query) throws SqlParseException, SQLFeatureNotSupportedException, IOException {
+        return runJoin(query).getHits().getHits();
+    }
+
+    //the executor that ran , its meta results tell how the join ran
+    private ElasticJoinExecutor runJoin(String query) throws SqlParseException, SQLFeatureNotSupportedException, IOException {
         SearchDao searchDao = MainTestSuite.getSearchDao();
         SqlElasticRequestBuilder explain = searchDao.explain(query).explain();
         ElasticJoinExecutor executor  = ElasticJoinExecutor.createJoinExecutor(searchDao.getClient(), explain);
         executor.run();
-        return executor.getHits().getHits();
+        return executor;
+    }
+
+    //same rows , in any order
+    private void assertSameHits(SearchHit[] expected, SearchHit[] actual) {
+        Assert.assertEquals(expected.length, actual.length);
+        for (SearchHit hit : expected) {
+            Assert.assertTrue(hitsContains(actual, hit.sourceAsMap()));
+        }
     }
 
     private boolean hitsContains(SearchHit[] hits, Map<String, Object> matchMap) {
@@ -39,6 +39,7 @@ import static com.zhbwang.bigdata.es.es4sql.TestsConstants.TEST_INDEX;
 		SQLFunctionsTest.class,
 		JDBCTests.class,
         UtilTests.class,
+        MultiSearchBatchSizerTests.class,
         MultiQueryTests.class
 })
 public class MainTestSuite {
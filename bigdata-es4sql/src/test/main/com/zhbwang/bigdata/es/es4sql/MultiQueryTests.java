@@ -24,6 +24,7 @@ public class MultiQueryTests {
 
     private static String MINUS_SCROLL_DEFAULT_HINT = " /*! MINUS_SCROLL_FETCH_AND_RESULT_LIMITS(1000,50,100) */ ";
     private static String MINUS_TERMS_OPTIMIZATION_HINT = " /*! MINUS_USE_TERMS_OPTIMIZATION(true)*/ ";
+    private static String EXTERNAL_SORT_SPILLING_HINT = " /*! MULTI_QUERY_EXTERNAL_SORT(1,1)*/ ";
     @Test
     public void unionAllSameRequestOnlyOneRecordTwice() throws SQLFeatureNotSupportedException, IOException, SqlParseException {
         String query = String.format("SELECT firstname FROM %s/account WHERE firstname = 'Amber' limit 1 union all SELECT firstname FROM %s/account WHERE firstname = 'Amber'",TEST_INDEX,TEST_INDEX);
@@ -67,6 +68,32 @@ public class MultiQueryTests {
         Assert.assertTrue("names should contain Daenerys",names.contains("Daenerys"));
     }
 
+    @Test
+    public void unionAllThreeQueriesOneRecordEach() throws SQLFeatureNotSupportedException, IOException, SqlParseException {
+        String query = String.format("SELECT firstname FROM %s/account WHERE firstname = 'Amber' " +
+                "union all " +
+                "SELECT dog_name as firstname FROM %s/dog WHERE dog_name = 'rex' " +
+                "union all " +
+                "SELECT name.firstname as firstname FROM %s/gotCharacters WHERE name.firstname = 'Daenerys'",TEST_INDEX,TEST_INDEX,TEST_INDEX);
+        SearchHit[] searchHits = executeAndGetHits(query);
+        Assert.assertEquals(3,searchHits.length);
+        Set<String> names = new HashSet<>();
+        for(SearchHit hit : searchHits) {
+            names.add(hit.sourceAsMap().get("firstname").toString());
+        }
+        Assert.assertTrue("names should contain Amber",names.contains("Amber"));
+        Assert.assertTrue("names should contain rex",names.contains("rex"));
+        Assert.assertTrue("names should contain Daenerys",names.contains("Daenerys"));
+    }
+
+    @Test
+    public void unionSameRequestOnlyOneRecordOnce() throws SQLFeatureNotSupportedException, IOException, SqlParseException {
+        String query = String.format("SELECT firstname FROM %s/account WHERE firstname = 'Amber' union SELECT firstname FROM %s/account WHERE firstname = 'Amber'",TEST_INDEX,TEST_INDEX);
+        SearchHit[] searchHits = executeAndGetHits(query);
+        Assert.assertEquals(1,searchHits.length);
+        Assert.assertEquals("Amber",searchHits[0].sourceAsMap().get("firstname"));
+    }
+
     @Test
     public void minusAMinusANoAlias() throws SQLFeatureNotSupportedException, IOException, SqlParseException {
         innerMinusAMinusANoAlias("");
@@ -107,6 +134,21 @@ public class MultiQueryTests {
         innerMinus_AMinusBNoAlias(MINUS_SCROLL_DEFAULT_HINT + MINUS_TERMS_OPTIMIZATION_HINT);
     }
 
+    @Test
+    public void minusAMinusBNoAliasWithScrollingAndChunkedTermsOptimization() throws SQLFeatureNotSupportedException, IOException, SqlParseException {
+        innerMinus_AMinusBNoAlias(MINUS_SCROLL_DEFAULT_HINT + MINUS_TERMS_OPTIMIZATION_HINT + " /*! TERMS_FILTER_CHUNKS(1,2)*/ ");
+    }
+
+    @Test
+    public void minusAMinusBNoAliasWithParallelShardScrolling() throws SQLFeatureNotSupportedException, IOException, SqlParseException {
+        innerMinus_AMinusBNoAlias(MINUS_SCROLL_DEFAULT_HINT + " /*! PARALLEL_SHARD_SCROLL(2)*/ ");
+    }
+
+
+    @Test
+    public void minusAMinusBNoAliasWithExternalSort() throws SQLFeatureNotSupportedException, IOException, SqlParseException {
+        innerMinus_AMinusBNoAlias(EXTERNAL_SORT_SPILLING_HINT);
+    }
 
     private void innerMinus_AMinusBNoAlias(String hint) throws SqlParseException, SQLFeatureNotSupportedException, IOException {
         String query = String.format("SELECT "+hint+" pk FROM %s/systems WHERE system_name = 'A' " +
@@ -121,6 +163,31 @@ public class MultiQueryTests {
     }
 
 
+    @Test
+    public void minusNumbersMinusNumericStrings() throws SQLFeatureNotSupportedException, IOException, SqlParseException {
+        innerMinusNumbersMinusNumericStrings("");
+    }
+
+    @Test
+    public void minusNumbersMinusNumericStringsWithScrolling() throws SQLFeatureNotSupportedException, IOException, SqlParseException {
+        innerMinusNumbersMinusNumericStrings(MINUS_SCROLL_DEFAULT_HINT);
+    }
+
+    @Test
+    public void minusNumbersMinusNumericStringsWithExternalSort() throws SQLFeatureNotSupportedException, IOException, SqlParseException {
+        innerMinusNumbersMinusNumericStrings(EXTERNAL_SORT_SPILLING_HINT);
+    }
+
+    private void innerMinusNumbersMinusNumericStrings(String hint) throws SqlParseException, SQLFeatureNotSupportedException, IOException {
+        String query = String.format("SELECT "+hint+" pk FROM %s/systems WHERE system_name = 'A' " +
+                "minus " +
+                "SELECT pkCode as pk FROM %s/systems WHERE system_name = 'F' ",TEST_INDEX,TEST_INDEX);
+        SearchHit[] searchHits = executeAndGetHits(query);
+        Assert.assertEquals("not exactly one hit returned", 1, searchHits.length);
+        Assert.assertEquals(3, searchHits[0].sourceAsMap().get("pk"));
+    }
+
+
     @Test
     public void minusCMinusDTwoFieldsNoAlias() throws SQLFeatureNotSupportedException, IOException, SqlParseException {
             innerMinus_CMinusDTwoFieldsNoAlias("");
@@ -188,6 +255,37 @@ public class MultiQueryTests {
     }
 
 
+    @Test
+    public void minusCMinusDTwoFieldsAliasOnBothTablesWithExternalSort() throws SQLFeatureNotSupportedException, IOException, SqlParseException {
+        innerMinus_CMinusDTwoFieldsAliasOnBothTables(EXTERNAL_SORT_SPILLING_HINT);
+    }
+
+    @Test
+    public void intersectCIntersectDTwoFields() throws SQLFeatureNotSupportedException, IOException, SqlParseException {
+        innerIntersect_CIntersectDTwoFields("");
+    }
+
+    @Test
+    public void intersectCIntersectDTwoFieldsWithExternalSort() throws SQLFeatureNotSupportedException, IOException, SqlParseException {
+        innerIntersect_CIntersectDTwoFields(EXTERNAL_SORT_SPILLING_HINT);
+    }
+
+    private void innerIntersect_CIntersectDTwoFields(String hint) throws SqlParseException, SQLFeatureNotSupportedException, IOException {
+        String query = String.format("SELECT "+hint+" pk , letter  FROM %s/systems WHERE system_name = 'C' " +
+                "intersect " +
+                "SELECT myId as pk , myLetter as letter FROM %s/systems WHERE system_name = 'E' ",TEST_INDEX,TEST_INDEX);
+        SearchHit[] searchHits = executeAndGetHits(query);
+        Assert.assertEquals("not exactly two hits returned", 2, searchHits.length);
+        Set<String> rows = new HashSet<>();
+        for(SearchHit hit : searchHits){
+            Map<String, Object> sourceAsMap = hit.sourceAsMap();
+            Assert.assertEquals("source map not contained exactly two fields",2,sourceAsMap.size());
+            rows.add(sourceAsMap.get("pk") + "," + sourceAsMap.get("letter"));
+        }
+        Assert.assertTrue(rows.contains("1,d"));
+        Assert.assertTrue(rows.contains("2,c"));
+    }
+
     @Test
     public void minusCMinusCTwoFields_OneAlias() throws SQLFeatureNotSupportedException, IOException, SqlParseException {
         String query = String.format("SELECT pk as myId , letter  FROM %s/systems WHERE system_name = 'C' " +
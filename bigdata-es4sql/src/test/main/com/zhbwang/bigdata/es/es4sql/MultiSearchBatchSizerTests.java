@@ -0,0 +1,77 @@
+package com.zhbwang.bigdata.es.es4sql;
+
+import org.elasticsearch.plugin.zhbwang.MultiSearchBatchSizer;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class MultiSearchBatchSizerTests {
+
+    @Test
+    public void fastBatches_ShouldNotGrowOverHintedSize(){
+        MultiSearchBatchSizer sizer = new MultiSearchBatchSizer(100, 2, 1000);
+        for (int i = 0; i < 10; i++) {
+            sizer.onBatchDone(sizer.getBatchSize(), 10, 0);
+        }
+        Assert.assertEquals(100, sizer.getBatchSize());
+        Assert.assertEquals(2, sizer.getInFlightAllowed());
+    }
+
+    @Test
+    public void slowBatch_ShouldShrinkAndFastBatchesShouldGrowBackToHintedSize(){
+        MultiSearchBatchSizer sizer = new MultiSearchBatchSizer(100, 2, 1000);
+        sizer.onBatchDone(100, 2500, 0);
+        Assert.assertEquals(75, sizer.getBatchSize());
+        sizer.onBatchDone(75, 1500, 0);
+        Assert.assertEquals(75, sizer.getBatchSize());
+        sizer.onBatchDone(75, 10, 0);
+        Assert.assertEquals(100, sizer.getBatchSize());
+        sizer.onBatchDone(100, 10, 0);
+        Assert.assertEquals(100, sizer.getBatchSize());
+    }
+
+    @Test
+    public void smallerBatchThanSize_ShouldNotGrow(){
+        MultiSearchBatchSizer sizer = new MultiSearchBatchSizer(100, 2, 1000);
+        sizer.onBatchDone(100, 2500, 0);
+        sizer.onBatchDone(10, 10, 0);
+        Assert.assertEquals(75, sizer.getBatchSize());
+    }
+
+    @Test
+    public void rejections_ShouldHalveBatchSizeAndInFlightDownToOne(){
+        MultiSearchBatchSizer sizer = new MultiSearchBatchSizer(100, 3, 1000);
+        sizer.onBatchDone(100, 10, 2);
+        Assert.assertEquals(50, sizer.getBatchSize());
+        Assert.assertEquals(2, sizer.getInFlightAllowed());
+        sizer.onBatchDone(50, 10, 1);
+        sizer.onBatchDone(25, 10, 1);
+        Assert.assertEquals(12, sizer.getBatchSize());
+        Assert.assertEquals(1, sizer.getInFlightAllowed());
+        sizer.onBatchDone(12, 10, 0);
+        Assert.assertEquals(37, sizer.getBatchSize());
+        Assert.assertEquals(2, sizer.getInFlightAllowed());
+    }
+
+    @Test
+    public void noTarget_ShouldKeepBatchSizeButRestoreInFlight(){
+        MultiSearchBatchSizer sizer = new MultiSearchBatchSizer(100, 2, 0);
+        sizer.onBatchDone(100, 10, 1);
+        Assert.assertEquals(50, sizer.getBatchSize());
+        Assert.assertEquals(1, sizer.getInFlightAllowed());
+        sizer.onBatchDone(50, 10000, 0);
+        sizer.onBatchDone(50, 10, 0);
+        Assert.assertEquals(50, sizer.getBatchSize());
+        Assert.assertEquals(2, sizer.getInFlightAllowed());
+    }
+
+    @Test
+    public void invalidSizes_ShouldBeAtLeastOne(){
+        MultiSearchBatchSizer sizer = new MultiSearchBatchSizer(0, 0, 1000);
+        Assert.assertEquals(1, sizer.getBatchSize());
+        Assert.assertEquals(1, sizer.getInFlightAllowed());
+        sizer.onBatchDone(1, 10, 3);
+        Assert.assertEquals(1, sizer.getBatchSize());
+        sizer.onBatchDone(1, 10, 0);
+        Assert.assertEquals(1, sizer.getBatchSize());
+    }
+}
@@ -1,9 +1,11 @@
 package com.zhbwang.bigdata.es.es4sql;
 
 import com.zhbwang.bigdata.es.es4sql.query.SqlElasticSearchRequestBuilder;
+import com.zhbwang.bigdata.es.es4sql.query.SubQueryResultsCache;
 import org.elasticsearch.action.search.SearchRequestBuilder;
 import org.elasticsearch.action.search.SearchResponse;
 import org.elasticsearch.index.IndexNotFoundException;
+import org.elasticsearch.plugin.zhbwang.QueryActionElasticExecutor;
 import org.elasticsearch.search.SearchHit;
 import org.elasticsearch.search.SearchHits;
 import org.elasticsearch.search.highlight.HighlightField;
@@ -724,6 +726,18 @@ public class QueryTest {
 
     }
 
+    @Test
+    public void innerQueryWithSubQueryCacheTest() throws SqlParseException, SQLFeatureNotSupportedException {
+        String query = String.format("select /*! SUBQUERY_CACHE(60000)*/ * from %s/dog where holdersName IN (select firstname from %s/account where firstname = 'Hattie')", TestsConstants.TEST_INDEX, TestsConstants.TEST_INDEX);
+        SubQueryResultsCache.getInstance().clear();
+        SearchHit[] hits = query(query).getHits();
+        Assert.assertEquals(1, SubQueryResultsCache.getInstance().size());
+        SearchHit[] cachedSubQueryHits = query(query).getHits();
+        Assert.assertEquals(1, hits.length);
+        Assert.assertEquals(1, cachedSubQueryHits.length);
+        Assert.assertEquals("snoopy", cachedSubQueryHits[0].sourceAsMap().get("dog_name"));
+    }
+
     @Test
     public void twoSubQueriesTest() throws SqlParseException, SQLFeatureNotSupportedException {
         String query = String.format("select * from %s/dog where holdersName IN (select firstname from %s/account where firstname = 'Hattie') and age IN (select name.ofHisName from %s/gotCharacters where name.firstname <> 'Daenerys') ", TestsConstants.TEST_INDEX, TestsConstants.TEST_INDEX, TestsConstants.TEST_INDEX);
@@ -736,6 +750,28 @@ public class QueryTest {
 
     }
 
+    @Test
+    public void innerQueryAsSemiJoinTest() throws SqlParseException, SQLFeatureNotSupportedException, IOException {
+        String query = String.format("select /*! USE_SEMI_JOIN*/ * from %s/dog where holdersName IN (select firstname from %s/account where firstname = 'Hattie')", TestsConstants.TEST_INDEX, TestsConstants.TEST_INDEX);
+        SearchHit[] hits = semiJoinQuery(query).getHits();
+        Assert.assertEquals(1,hits.length);
+        Map<String, Object> hitAsMap = hits[0].sourceAsMap();
+        Assert.assertEquals("snoopy",hitAsMap.get("dog_name"));
+        Assert.assertEquals("Hattie",hitAsMap.get("holdersName"));
+        Assert.assertEquals(4,hitAsMap.get("age"));
+    }
+
+    @Test
+    public void notInQueryAsAntiJoinTest() throws SqlParseException, SQLFeatureNotSupportedException, IOException {
+        String query = String.format("select /*! USE_SEMI_JOIN*/ dog_name from %s/dog where age > 1 and holdersName NOT IN (select firstname from %s/account where firstname = 'Hattie')", TestsConstants.TEST_INDEX, TestsConstants.TEST_INDEX);
+        SearchHit[] hits = semiJoinQuery(query).getHits();
+        Assert.assertEquals(1,hits.length);
+        Map<String, Object> hitAsMap = hits[0].sourceAsMap();
+        Assert.assertEquals("rex",hitAsMap.get("dog_name"));
+        //only added to probe the rows
+        Assert.assertFalse(hitAsMap.containsKey("holdersName"));
+    }
+
     @Test
     public void inTermsSubQueryTest() throws SqlParseException, SQLFeatureNotSupportedException {
         String query = String.format("select * from %s/dog where age = IN_TERMS (select name.ofHisName from %s/gotCharacters where name.firstname <> 'Daenerys')", TestsConstants.TEST_INDEX, TestsConstants.TEST_INDEX);
@@ -909,6 +945,17 @@ public class QueryTest {
 
     }
 
+    @Test
+    public void selectConstantChecksExistence() throws IOException, SqlParseException, SQLFeatureNotSupportedException {
+        String query = String.format("SELECT 1 FROM %s/account WHERE age > 30 LIMIT 1", TestsConstants.TEST_INDEX);
+        SqlElasticSearchRequestBuilder select = (SqlElasticSearchRequestBuilder) MainTestSuite.getSearchDao().explain(query).explain();
+        Assert.assertTrue(select.explain().contains("\"terminate_after\" : 1"));
+        SearchHit[] hits = ((SearchResponse) select.get()).getHits().getHits();
+        Assert.assertEquals(1, hits.length);
+        Assert.assertTrue(hits[0].sourceAsMap().isEmpty());
+        Assert.assertEquals(1, ((Number) hits[0].getFields().get("1").getValue()).intValue());
+    }
+
     private SearchHits query(String query) throws SqlParseException, SQLFeatureNotSupportedException, SQLFeatureNotSupportedException {
         SearchDao searchDao = MainTestSuite.getSearchDao();
         SqlElasticSearchRequestBuilder select = (SqlElasticSearchRequestBuilder) searchDao.explain(query).explain();
@@ -916,6 +963,11 @@ public class QueryTest {
     }
 
 
+    private SearchHits semiJoinQuery(String query) throws SqlParseException, SQLFeatureNotSupportedException, IOException {
+        SearchDao searchDao = MainTestSuite.getSearchDao();
+        return (SearchHits) QueryActionElasticExecutor.executeAnyAction(searchDao.getClient(), searchDao.explain(query));
+    }
+
     private SqlElasticSearchRequestBuilder getRequestBuilder(String query) throws SqlParseException, SQLFeatureNotSupportedException, SQLFeatureNotSupportedException {
         SearchDao searchDao = MainTestSuite.getSearchDao();
         return  (SqlElasticSearchRequestBuilder) searchDao.explain(query).explain();
@@ -10,8 +10,15 @@ import com.zhbwang.bigdata.es.es4sql.exception.SqlParseException;
 import com.zhbwang.bigdata.es.es4sql.parse.ElasticSqlExprParser;
 import com.zhbwang.bigdata.es.es4sql.parse.ScriptFilter;
 import com.zhbwang.bigdata.es.es4sql.parse.SqlParser;
+import com.zhbwang.bigdata.es.es4sql.query.ESActionFactory;
+import com.zhbwang.bigdata.es.es4sql.query.PreparedQuery;
+import com.zhbwang.bigdata.es.es4sql.query.SqlPlanCache;
+import com.zhbwang.bigdata.es.es4sql.query.join.ESJoinQueryActionFactory;
+import com.zhbwang.bigdata.es.es4sql.query.join.HashJoinElasticRequestBuilder;
 import com.zhbwang.bigdata.es.es4sql.query.maker.QueryMaker;
 import com.zhbwang.bigdata.es.es4sql.query.multi.MultiQuerySelect;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.client.transport.TransportClient;
 import org.elasticsearch.index.query.BoolQueryBuilder;
 import org.junit.Assert;
 import org.junit.BeforeClass;
@@ -477,6 +484,25 @@ public class SqlParserTests {
     }
 
 
+    @Test
+    public void constantFieldsAreConstantScripts() throws SqlParseException {
+        Select select = parser.parseSelect((SQLQueryExpr) queryToExpr("SELECT 1, 'x' AS letter FROM index/type LIMIT 1"));
+        List<Field> fields = select.getFields();
+        Assert.assertEquals(2, fields.size());
+        Assert.assertEquals("script", fields.get(0).getName());
+        Assert.assertEquals("1", fields.get(0).getAlias());
+        Assert.assertEquals("1", ((MethodField) fields.get(0)).getParams().get(1).value);
+        Assert.assertEquals("letter", fields.get(1).getAlias());
+        Assert.assertEquals("'x'", ((MethodField) fields.get(1)).getParams().get(1).value);
+        Assert.assertFalse(select.isAgg);
+    }
+
+    @Test(expected = SqlParseException.class)
+    public void constantGroupByIsUnknownField() throws SqlParseException {
+        parser.parseSelect((SQLQueryExpr) queryToExpr("SELECT count(*) FROM index/type GROUP BY 1"));
+    }
+
+
     @Test
     public void explicitScriptOnAggregation() throws SqlParseException {
         String query = "SELECT avg( script('add','doc[\\'field1\\'].value + doc[\\'field2\\'].value') ) FROM index/type";
@@ -702,6 +728,26 @@ public class SqlParserTests {
 
     }
 
+    @Test
+    public void hashJoinIsPlannedWhenItRuns() throws SqlParseException {
+        String query = String.format("select c.name.firstname , d.words from %s/gotCharacters c " +
+                        "JOIN %s/gotHouses d on d.name = c.house"
+                , TestsConstants.TEST_INDEX, TestsConstants.TEST_INDEX);
+
+        JoinSelect joinSelect = parser.parseJoinSelect((SQLQueryExpr) queryToExpr(query));
+        //no nodes , explain must not search
+        Client client = TransportClient.builder().build();
+        try {
+            HashJoinElasticRequestBuilder requestBuilder = (HashJoinElasticRequestBuilder) ESJoinQueryActionFactory.createJoinAction(client, joinSelect).explain();
+            Assert.assertTrue(requestBuilder.isPlanByTableCounts());
+            Assert.assertEquals("c", requestBuilder.getFirstTable().getAlias());
+            Assert.assertEquals("c", joinSelect.getFirstTable().getAlias());
+            Assert.assertTrue(joinSelect.getHints().isEmpty());
+        } finally {
+            client.close();
+        }
+    }
+
     @Test
     public void termsWithStringTest() throws SqlParseException {
         String query = "select * from x where y = IN_TERMS('a','b')";
@@ -1046,7 +1092,124 @@ public class SqlParserTests {
         Assert.assertEquals(1000, params[2]);
     }
 
+    @Test
+    public void preparedSelectBindsParametersInOrder() throws SqlParseException, SQLFeatureNotSupportedException {
+        PreparedQuery preparedQuery = ESActionFactory.prepare("select * from t where a = ? and b in (?, ?) and c between ? and ?");
+        Assert.assertEquals(5, preparedQuery.getParameterCount());
+        Select select = (Select) preparedQuery.parse(new Object[]{"x", 1, 2, 3, 4});
+        List<Where> wheres = select.getWhere().getWheres();
+        Assert.assertEquals("x", ((Condition) wheres.get(0)).getValue());
+        Assert.assertArrayEquals(new Object[]{1, 2}, (Object[]) ((Condition) wheres.get(1)).getValue());
+        Assert.assertArrayEquals(new Object[]{3, 4}, (Object[]) ((Condition) wheres.get(2)).getValue());
+        Select secondSelect = (Select) preparedQuery.parse(new Object[]{"y", 5, 6, 7, 8});
+        Assert.assertEquals("y", ((Condition) secondSelect.getWhere().getWheres().get(0)).getValue());
+        Assert.assertEquals("x", ((Condition) wheres.get(0)).getValue());
+    }
+
+    @Test
+    public void preparedNestedConditionIsNestedOnEachExecution() throws SqlParseException, SQLFeatureNotSupportedException {
+        PreparedQuery preparedQuery = ESActionFactory.prepare("select * from t where nested(message.info) = ?");
+        for (Object value : new Object[]{"a", "b"}) {
+            Condition condition = (Condition) ((Select) preparedQuery.parse(new Object[]{value})).getWhere().getWheres().get(0);
+            Assert.assertTrue(condition.isNested());
+            Assert.assertEquals("message.info", condition.getName());
+            Assert.assertEquals(value, condition.getValue());
+        }
+    }
 
+    @Test(expected = SQLFeatureNotSupportedException.class)
+    public void preparedSelectWithParameterOutsideOfConditionFails() throws SqlParseException, SQLFeatureNotSupportedException {
+        ESActionFactory.prepare("select ? from t where a = ?");
+    }
+
+    @Test
+    public void planCacheBindsLiteralsOfSameShape() throws SqlParseException {
+        SqlPlanCache planCache = new SqlPlanCache(10);
+        String[] sqls = {"select * from t where a = 'x' and b in (1, 2) and c between 3 and 4 and 1 = 1",
+                "select * from t where a = 'y' and b in (5, 6) and c between 7 and 8 and 1 = 1",
+                "select * from t where a = 'y' and b in (5, 6) and c between 7 and 8 and 1 = 1"};
+        for (String sql : sqls) {
+            Select cached = (Select) planCache.parse(sql);
+            Select parsed = parser.parseSelect((SQLQueryExpr) queryToExpr(sql));
+            Assert.assertEquals(QueryMaker.explan(parsed.getWhere()).toString(), QueryMaker.explan(cached.getWhere()).toString());
+        }
+        Assert.assertEquals(1, planCache.size());
+        Assert.assertEquals(1, planCache.getMisses());
+        Assert.assertEquals(2, planCache.getHits());
+        Assert.assertNotSame(planCache.parse(sqls[2]), planCache.parse(sqls[2]));
+    }
+
+    @Test
+    public void planCacheParsesUncacheableShapesAndIsBounded() throws SqlParseException {
+        SqlPlanCache planCache = new SqlPlanCache(2);
+        //'x' looks like a condition value but is a literal of the case
+        String caseSql = "select case when a = 'x' and b = 'y' then 1 else 0 end as c from t where d = 2";
+        Assert.assertNotNull(planCache.parse(caseSql));
+        Assert.assertNotNull(planCache.parse(caseSql));
+        Assert.assertEquals(2, planCache.getUncacheable());
+        Assert.assertEquals(0, planCache.getHits());
+
+        for (int i = 0; i < 5; i++) {
+            planCache.parse("select * from t" + i + " where a = " + i);
+        }
+        Assert.assertEquals(2, planCache.size());
+        Assert.assertEquals(0, planCache.getHits());
+    }
+
+    @Test
+    public void rangesOnSameFieldAreMergedWithHint() throws SqlParseException, SQLFeatureNotSupportedException {
+        //no nodes , explain must not search
+        Client client = TransportClient.builder().build();
+        try {
+            String sql = "select /*! MERGE_RANGES*/ * from t where x > 5 and x < 10";
+            String query = ESActionFactory.create(client, sql).explain().explain().replaceAll("\\s+", "");
+            Assert.assertTrue(query.contains("\"range\":{\"x\":{\"from\":5,\"to\":10,\"include_lower\":false,\"include_upper\":false}}"));
+            query = ESActionFactory.create(client, "select * from t where x > 5 and x < 10").explain().explain().replaceAll("\\s+", "");
+            Assert.assertEquals(2, query.split("\"range\"").length - 1);
+        } finally {
+            client.close();
+        }
+    }
+
+    @Test
+    public void rangesOnSameFieldAreMerged() throws SqlParseException {
+        Select select = parser.parseSelect((SQLQueryExpr) queryToExpr("select * from t where x > 5 and (x < 10 and x >= 7) and y = 1"));
+        String parsedWhere = select.getWhere().toString();
+        String query = QueryMaker.explan(select.getWhere(), true, true).toString().replaceAll("\\s+", "");
+        Assert.assertTrue(query.contains("\"range\":{\"x\":{\"from\":7,\"to\":10,\"include_lower\":true,\"include_upper\":false}}"));
+        Assert.assertEquals(1, query.split("\"range\"").length - 1);
+        Assert.assertEquals(parsedWhere, select.getWhere().toString());
+    }
+
+    @Test
+    public void equalitiesOnSameFieldBecomeOneTermsQuery() throws SqlParseException {
+        Select select = parser.parseSelect((SQLQueryExpr) queryToExpr("select * from t where a = 1 or a = 2 or b = 'x' or a in (3, 4)"));
+        String query = QueryMaker.explan(select.getWhere()).toString().replaceAll("\\s+", "");
+        Assert.assertTrue(query.contains("\"terms\":{\"a\":[1,2,3,4]}"));
+        Assert.assertFalse(query.contains("\"a\":{\"query\""));
+        Assert.assertTrue(query.contains("\"b\":{\"query\":\"x\""));
+    }
+
+    @Test
+    public void numbersInOfTheSqlAreMatchPhrases() throws SqlParseException {
+        Select select = parser.parseSelect((SQLQueryExpr) queryToExpr("select * from t where a in (1, 2)"));
+        String query = QueryMaker.explan(select.getWhere()).toString().replaceAll("\\s+", "");
+        Assert.assertFalse(query.contains("\"terms\""));
+        Assert.assertTrue(query.contains("{\"match\":{\"a\":{\"query\":1,\"type\":\"phrase\"}}}"));
+        Assert.assertTrue(query.contains("{\"match\":{\"a\":{\"query\":2,\"type\":\"phrase\"}}}"));
+    }
+
+    @Test
+    public void literalConditionsAreFolded() throws SqlParseException {
+        Select select = parser.parseSelect((SQLQueryExpr) queryToExpr("select * from t where 1 = 1 and a = 2"));
+        String query = QueryMaker.explan(select.getWhere()).toString().replaceAll("\\s+", "");
+        Assert.assertFalse(query.contains("script"));
+        Assert.assertTrue(query.contains("\"a\":{\"query\":2"));
+
+        select = parser.parseSelect((SQLQueryExpr) queryToExpr("select * from t where 'a' = 'b' and a = 2"));
+        query = QueryMaker.explan(select.getWhere()).toString().replaceAll("\\s+", "");
+        Assert.assertEquals("{\"bool\":{\"must_not\":{\"match_all\":{}}}}", query);
+    }
 
     private SQLExpr queryToExpr(String query) {
         return new ElasticSqlExprParser(query).expr();